@@ -0,0 +1,23 @@
+package com.example.courseservice.config;
+
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.common.config.TopicConfig;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.TopicBuilder;
+
+@Configuration
+public class KafkaConfig {
+    
+    public static final String COURSES_TOPIC = "courses";
+    
+    @Bean
+    public NewTopic coursesTopic() {
+        // Ключ - courseId; при компакции остаётся последнее состояние каждого курса
+        return TopicBuilder.name(COURSES_TOPIC)
+                .partitions(3)
+                .replicas(1)
+                .config(TopicConfig.CLEANUP_POLICY_CONFIG, TopicConfig.CLEANUP_POLICY_COMPACT)
+                .build();
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.courseservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CourseEvent {
+    
+    private String eventType; // CREATED, UPDATED, PUBLISHED, UNPUBLISHED, DELETED
+    private Long courseId;
+    private CourseResponse course; // null для DELETED
+    private LocalDateTime timestamp;
+}
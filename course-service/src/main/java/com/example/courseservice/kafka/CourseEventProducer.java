@@ -0,0 +1,44 @@
+package com.example.courseservice.kafka;
+
+import com.example.courseservice.config.KafkaConfig;
+import com.example.courseservice.dto.CourseEvent;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.concurrent.CompletableFuture;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class CourseEventProducer {
+    
+    private final KafkaTemplate<String, CourseEvent> kafkaTemplate;
+    
+    /**
+     * Отправляет событие после коммита транзакции, в которой оно опубликовано.
+     * DELETED уходит tombstone'ом (значение null): компакция удалит курс из топика.
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+    public void sendCourseEvent(CourseEvent event) {
+        // Ключ - courseId: события курса упорядочены в одной партиции
+        String key = String.valueOf(event.getCourseId());
+        CourseEvent value = "DELETED".equals(event.getEventType()) ? null : event;
+        
+        CompletableFuture<SendResult<String, CourseEvent>> future = 
+                kafkaTemplate.send(KafkaConfig.COURSES_TOPIC, key, value);
+        
+        future.whenComplete((result, ex) -> {
+            if (ex == null) {
+                log.info("Course event sent successfully: {} {} with offset: {}", 
+                        event.getEventType(), event.getCourseId(), result.getRecordMetadata().offset());
+            } else {
+                log.error("Failed to send course event: {} {}", event.getEventType(), event.getCourseId(), ex);
+            }
+        });
+    }
+}
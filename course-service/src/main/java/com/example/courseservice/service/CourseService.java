@@ -1,14 +1,17 @@
 package com.example.courseservice.service;
 
+import com.example.courseservice.dto.CourseEvent;
 import com.example.courseservice.dto.CourseResponse;
 import com.example.courseservice.dto.CreateCourseRequest;
 import com.example.courseservice.dto.UpdateCourseRequest;
 import com.example.courseservice.entity.Course;
 import com.example.courseservice.repository.CourseRepository;
 import lombok.RequiredArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -17,6 +20,7 @@ import java.util.stream.Collectors;
 public class CourseService {
     
     private final CourseRepository courseRepository;
+    private final ApplicationEventPublisher eventPublisher;
     
     @Transactional
     public CourseResponse createCourse(CreateCourseRequest request) {
@@ -36,7 +40,9 @@ public class CourseService {
                 .build();
         
         course = courseRepository.save(course);
-        return CourseResponse.fromEntity(course);
+        CourseResponse response = CourseResponse.fromEntity(course);
+        publishEvent("CREATED", course.getId(), response);
+        return response;
     }
     
     public CourseResponse getCourseById(Long id) {
@@ -90,6 +96,7 @@ public class CourseService {
     public CourseResponse updateCourse(Long id, UpdateCourseRequest request) {
         Course course = courseRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Course not found with id: " + id));
+        boolean wasPublished = Boolean.TRUE.equals(course.getPublished());
         
         if (request.getTitle() != null) {
             course.setTitle(request.getTitle());
@@ -120,7 +127,12 @@ public class CourseService {
         }
         
         course = courseRepository.save(course);
-        return CourseResponse.fromEntity(course);
+        CourseResponse response = CourseResponse.fromEntity(course);
+        
+        boolean isPublished = Boolean.TRUE.equals(course.getPublished());
+        String eventType = wasPublished == isPublished ? "UPDATED" : (isPublished ? "PUBLISHED" : "UNPUBLISHED");
+        publishEvent(eventType, course.getId(), response);
+        return response;
     }
     
     @Transactional
@@ -129,7 +141,8 @@ public class CourseService {
                 .orElseThrow(() -> new RuntimeException("Course not found with id: " + courseId));
         course.setAverageRating(averageRating);
         course.setTotalRatings(totalRatings);
-        courseRepository.save(course);
+        course = courseRepository.save(course);
+        publishEvent("UPDATED", course.getId(), CourseResponse.fromEntity(course));
     }
     
     @Transactional
@@ -138,5 +151,21 @@ public class CourseService {
             throw new RuntimeException("Course not found with id: " + id);
         }
         courseRepository.deleteById(id);
+        publishEvent("DELETED", id, null);
+    }
+    
+    /**
+     * Событие уходит в Kafka только после коммита транзакции (см. CourseEventProducer):
+     * откаченное изменение не публикуется, а опубликованное уже видно в снимке GET /api/courses.
+     */
+    private void publishEvent(String eventType, Long courseId, CourseResponse course) {
+        CourseEvent event = CourseEvent.builder()
+                .eventType(eventType)
+                .courseId(courseId)
+                .course(course)
+                .timestamp(LocalDateTime.now())
+                .build();
+        
+        eventPublisher.publishEvent(event);
     }
 }
@@ -18,7 +18,8 @@ public class RatingEventProducer {
     private final KafkaTemplate<String, RatingEvent> kafkaTemplate;
     
     public void sendRatingEvent(RatingEvent event) {
-        String key = event.getUserId() + "-" + event.getCourseId();
+        // Ключ - userId: все события пользователя попадают в одну партицию и читаются по порядку
+        String key = String.valueOf(event.getUserId());
         
         CompletableFuture<SendResult<String, RatingEvent>> future = 
                 kafkaTemplate.send(KafkaConfig.RATINGS_TOPIC, key, event);
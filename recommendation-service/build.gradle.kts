@@ -2,6 +2,7 @@ plugins {
     kotlin("jvm") version "1.9.21"
     kotlin("plugin.serialization") version "1.9.21"
     id("io.ktor.plugin") version "2.3.7"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.example"
@@ -9,6 +10,8 @@ version = "1.0.0"
 
 application {
     mainClass.set("com.example.recommendationservice.ApplicationKt")
+    // Векторное ядро сходства (SimilarityKernels); без модуля работает скалярное
+    applicationDefaultJvmArgs = listOf("--add-modules=jdk.incubator.vector")
 }
 
 repositories {
@@ -62,12 +65,95 @@ dependencies {
     // Testing
     testImplementation("io.ktor:ktor-server-tests:$ktorVersion")
     testImplementation("org.jetbrains.kotlin:kotlin-test-junit:1.9.21")
+    // Upsert-запросы сервиса не выполняются на H2 - тесты репозитория идут на настоящем PostgreSQL
+    testImplementation("io.zonky.test:embedded-postgres:2.0.7")
 }
 
 kotlin {
     jvmToolchain(21)
 }
 
+// Vector API - инкубаторный модуль, компилятору его нужно подключить явно
+tasks.withType<org.jetbrains.kotlin.gradle.tasks.KotlinCompile>().configureEach {
+    compilerOptions.freeCompilerArgs.add("-Xadd-modules=jdk.incubator.vector")
+}
+
+// Офлайн-бенчмарки: src/benchmark, на classpath основного кода, в fatJar не попадают
+sourceSets {
+    create("benchmark") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+val benchmarkImplementation by configurations.getting {
+    extendsFrom(configurations.implementation.get())
+}
+
+dependencies {
+    benchmarkImplementation("io.zonky.test:embedded-postgres:2.0.7")
+    // JMH-бенчмарки (src/jmh) строят данные тем же генератором, что и replay-бенчмарк
+    jmhImplementation(sourceSets["benchmark"].output)
+}
+
+// gradle jmh -Pjmh.includes=NeighbourSearchBenchmark; результаты в build/results/jmh/results.json
+jmh {
+    jmhVersion.set("1.37")
+    // gc.alloc.rate.norm - байт на операцию: регрессии по аллокациям на горячем пути видны сразу
+    profilers.add("gc")
+    fork.set(1)
+    warmupIterations.set(3)
+    warmup.set("2s")
+    iterations.set(5)
+    timeOnIteration.set("2s")
+    jvmArgs.addAll("-Xmx4g", "--add-modules=jdk.incubator.vector")
+    resultFormat.set("JSON")
+    (project.findProperty("jmh.includes") as String?)?.let { includes.add(it) }
+}
+
+// gradle replayBenchmark -Preplay.users=100000 -Preplay.events=50000 -Preplay.out=build/replay.json
+val replayBenchmark by tasks.registering(JavaExec::class) {
+    group = "benchmark"
+    description = "Replays synthetic rating events through the consumer and recalculation path"
+    classpath = sourceSets["benchmark"].runtimeClasspath
+    mainClass.set("com.example.recommendationservice.benchmark.ReplayBenchmarkKt")
+    maxHeapSize = (project.findProperty("replay.heap") as String?) ?: "8g"
+    jvmArgs("-Dlogback.configurationFile=logback-benchmark.xml", "--add-modules=jdk.incubator.vector")
+    args(
+        listOf(
+            "users", "courses", "events", "partitions", "batchSize", "batchMode", "workers",
+            "debounceMillis", "engine", "delta", "userSkew", "seed", "out"
+        ).mapNotNull { name -> project.findProperty("replay.$name")?.let { "--$name=$it" } }
+    )
+}
+
+// gradle dbLoadTest -Pload.pool=10 -Pload.seconds=10
+val dbLoadTest by tasks.registering(JavaExec::class) {
+    group = "benchmark"
+    description = "Measures /health and GET latency while the database pool is saturated"
+    classpath = sourceSets["benchmark"].runtimeClasspath
+    mainClass.set("com.example.recommendationservice.benchmark.DatabaseLoadTestKt")
+    jvmArgs("-Dlogback.configurationFile=logback-benchmark.xml", "--add-modules=jdk.incubator.vector")
+    args(
+        listOf(
+            "pool", "users", "courses", "seconds", "probes", "sleepers", "sleepMillis", "flood", "seed"
+        ).mapNotNull { name -> project.findProperty("load.$name")?.let { "--$name=$it" } }
+    )
+}
+
+// gradle rebuildRatings -Prebuild.source=csv:/data/ratings.csv -Prebuild.parallelism=8
+val rebuildRatings by tasks.registering(JavaExec::class) {
+    group = "application"
+    description = "Rebuilds user_ratings from a rating-service CSV export or a rating snapshot via COPY"
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("com.example.recommendationservice.rebuild.RatingRebuildKt")
+    maxHeapSize = (project.findProperty("rebuild.heap") as String?) ?: "4g"
+    args(
+        listOf("source", "parallelism", "maintenanceWorkMem", "resetOffsets", "out")
+            .mapNotNull { name -> project.findProperty("rebuild.$name")?.let { "--$name=$it" } }
+    )
+}
+
 ktor {
     fatJar {
         archiveFileName.set("app.jar")
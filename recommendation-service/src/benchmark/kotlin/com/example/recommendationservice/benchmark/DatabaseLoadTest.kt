@@ -0,0 +1,298 @@
+package com.example.recommendationservice.benchmark
+
+import com.example.recommendationservice.config.configureSerialization
+import com.example.recommendationservice.dto.CourseData
+import com.example.recommendationservice.dto.CourseRecommendation
+import com.example.recommendationservice.dto.UserRatingData
+import com.example.recommendationservice.entity.Recommendations
+import com.example.recommendationservice.entity.UserRatingDeletions
+import com.example.recommendationservice.entity.UserRatings
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.model.CourseCatalog
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.repository.DatabaseAccess
+import com.example.recommendationservice.repository.RecommendationRepository
+import com.example.recommendationservice.repository.dbQuery
+import com.example.recommendationservice.routes.recommendationRoutes
+import com.example.recommendationservice.service.CourseServiceClient
+import com.example.recommendationservice.service.RecommendationResponseCache
+import com.example.recommendationservice.service.RecommendationService
+import com.zaxxer.hikari.HikariConfig
+import com.zaxxer.hikari.HikariDataSource
+import io.ktor.server.engine.*
+import io.ktor.server.netty.*
+import io.ktor.server.routing.*
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres
+import kotlinx.coroutines.*
+import org.jetbrains.exposed.sql.SchemaUtils
+import org.jetbrains.exposed.sql.transactions.transaction
+import java.io.IOException
+import java.net.ServerSocket
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.time.Duration
+import java.util.SplittableRandom
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.system.exitProcess
+
+/**
+ * Нагрузочный тест доступа к БД: задержки /health, закэшированного
+ * GET /api/recommendations/{userId} и GET /api/recommendations/{userId}/ratings
+ * (всегда из БД) в двух фазах - на свободной БД и при занятом пуле, когда все
+ * соединения держат медленные транзакции (pg_sleep), а GET .../ratings идут
+ * потоком от [LoadTestOptions.flood] клиентов. Сервер - настоящие маршруты на Netty
+ * и встроенный PostgreSQL; замеряют закрытые клиенты (запрос - ответ - следующий).
+ *
+ * Транзакции выполняются на диспетчере БД, поэтому при занятом пуле ждут
+ * только запросы, которым нужна БД: /health и ответы из кэша - на прежнем уровне.
+ *
+ * Параметры - аргументы вида `--pool=10`, см. [LoadTestOptions];
+ * из Gradle: `gradle dbLoadTest -Pload.pool=10 -Pload.seconds=10`.
+ */
+fun main(args: Array<String>) {
+    val options = LoadTestOptions.parse(args)
+    println("Database load test: $options")
+
+    val postgres = EmbeddedPostgres.start()
+    val dataSource = HikariDataSource(HikariConfig().apply {
+        jdbcUrl = postgres.getJdbcUrl("postgres", "postgres")
+        maximumPoolSize = options.pool
+        isAutoCommit = false
+        transactionIsolation = "TRANSACTION_READ_COMMITTED"
+    })
+    DatabaseAccess.connect(dataSource)
+    transaction { SchemaUtils.create(UserRatings, UserRatingDeletions, Recommendations) }
+
+    val results = try {
+        DatabaseLoadTest(options).run()
+    } finally {
+        DatabaseAccess.close()
+        dataSource.close()
+        postgres.close()
+    }
+
+    println()
+    println("%-10s %-16s %9s %7s %9s %9s %9s".format("phase", "endpoint", "requests", "errors", "p50 ms", "p99 ms", "max ms"))
+    results.forEach { println(it.format()) }
+    // HTTP-клиент RecommendationService держит не-daemon потоки
+    exitProcess(0)
+}
+
+data class LoadTestOptions(
+    val pool: Int = 10,
+    val users: Int = 2_000,
+    val courses: Int = 500,
+    // Длительность каждой фазы
+    val seconds: Int = 10,
+    // Закрытых клиентов-замерщиков на каждую точку
+    val probes: Int = 4,
+    // Медленных транзакций одновременно в фазе saturated (больше пула - очередь на диспетчере)
+    val sleepers: Int = 40,
+    val sleepMillis: Int = 200,
+    // Клиентов, засыпающих GET .../ratings в фазе saturated
+    val flood: Int = 64,
+    val seed: Long = 42
+) {
+    companion object {
+        fun parse(args: Array<String>): LoadTestOptions {
+            val values = args.associate { arg ->
+                require(arg.startsWith("--") && '=' in arg) { "Expected --name=value, got $arg" }
+                arg.substring(2).substringBefore('=') to arg.substringAfter('=')
+            }
+            val defaults = LoadTestOptions()
+            val unknown = values.keys - OPTION_NAMES
+            require(unknown.isEmpty()) { "Unknown options: $unknown" }
+
+            return LoadTestOptions(
+                pool = values["pool"]?.toInt() ?: defaults.pool,
+                users = values["users"]?.toInt() ?: defaults.users,
+                courses = values["courses"]?.toInt() ?: defaults.courses,
+                seconds = values["seconds"]?.toInt() ?: defaults.seconds,
+                probes = values["probes"]?.toInt() ?: defaults.probes,
+                sleepers = values["sleepers"]?.toInt() ?: defaults.sleepers,
+                sleepMillis = values["sleepMillis"]?.toInt() ?: defaults.sleepMillis,
+                flood = values["flood"]?.toInt() ?: defaults.flood,
+                seed = values["seed"]?.toLong() ?: defaults.seed
+            )
+        }
+
+        val OPTION_NAMES = setOf("pool", "users", "courses", "seconds", "probes", "sleepers", "sleepMillis", "flood", "seed")
+    }
+}
+
+class LoadTestResult(
+    val phase: String,
+    val endpoint: String,
+    val requests: Int,
+    val errors: Int,
+    val p50Ms: Double,
+    val p99Ms: Double,
+    val maxMs: Double
+) {
+    fun format(): String =
+        "%-10s %-16s %9d %7d %9.2f %9.2f %9.2f".format(phase, endpoint, requests, errors, p50Ms, p99Ms, maxMs)
+}
+
+class DatabaseLoadTest(private val options: LoadTestOptions) {
+
+    private val http = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .connectTimeout(Duration.ofSeconds(5))
+        .build()
+
+    fun run(): List<LoadTestResult> {
+        val catalog = CourseCatalog().apply { loadSnapshot(courses()) }
+        val service = RecommendationService(
+            CourseServiceClient(UNREACHABLE_COURSE_SERVICE), RatingMatrix(),
+            responseCache = RecommendationResponseCache(CACHE_BYTES), courseCatalog = catalog
+        )
+        runBlocking {
+            seed()
+            // Прогрев кэша ответов: в фазах GET рекомендаций в БД не ходит
+            for (user in 0 until options.users) service.getRecommendationsJson(userIdOf(user))
+        }
+
+        val port = ServerSocket(0).use { it.localPort }
+        val server = embeddedServer(Netty, port = port, host = "127.0.0.1") {
+            configureSerialization()
+            routing { recommendationRoutes(service) }
+        }.start(wait = false)
+        val baseUrl = "http://127.0.0.1:$port"
+
+        try {
+            // Прогрев JIT и соединений клиента, в отчёт не идёт
+            measure("warmup", baseUrl)
+            val results = ArrayList<LoadTestResult>()
+            results += measure("idle", baseUrl)
+
+            val stop = AtomicBoolean(false)
+            val sleepers = startSleepers(stop)
+            val flood = List(options.flood) { client ->
+                thread(isDaemon = true, name = "flood-$client") {
+                    val random = SplittableRandom(options.seed + 1000 + client)
+                    while (!stop.get()) send("$baseUrl/api/recommendations/${randomUser(random)}/ratings")
+                }
+            }
+            // Очередь на диспетчере успевает выстроиться до замеров
+            Thread.sleep(options.sleepMillis * 2L)
+            results += measure("saturated", baseUrl)
+            val metrics = Metrics.snapshot()
+            println(
+                "saturated: db.wait p99 %.2f ms, dispatcher queue %.0f"
+                    .format(metrics["db.wait.p99_ms"] ?: 0.0, metrics["db.queued"] ?: 0.0)
+            )
+            stop.set(true)
+            flood.forEach { it.join() }
+            sleepers.forEach { it.join() }
+            return results
+        } finally {
+            server.stop(0, 1_000)
+        }
+    }
+
+    /** Медленные транзакции, держащие соединения пула: эмуляция тяжёлых записей */
+    private fun startSleepers(stop: AtomicBoolean): List<Thread> {
+        val seconds = options.sleepMillis / 1000.0
+        return List(options.sleepers) { index ->
+            thread(isDaemon = true, name = "sleeper-$index") {
+                runBlocking {
+                    while (!stop.get()) dbQuery { exec("SELECT pg_sleep($seconds)") }
+                }
+            }
+        }
+    }
+
+    private fun measure(phase: String, baseUrl: String): List<LoadTestResult> {
+        val endpoints = linkedMapOf<String, (SplittableRandom) -> String>(
+            "health" to { _ -> "$baseUrl/health" },
+            "recommendations" to { random -> "$baseUrl/api/recommendations/${randomUser(random)}" },
+            "ratings" to { random -> "$baseUrl/api/recommendations/${randomUser(random)}/ratings" }
+        )
+        val deadline = System.nanoTime() + options.seconds * 1_000_000_000L
+        val samples = endpoints.keys.associateWith { ArrayList<Long>() }
+        val errors = endpoints.keys.associateWith { AtomicInteger() }
+        val probes = endpoints.entries.flatMapIndexed { index, (name, url) ->
+            List(options.probes) { probe ->
+                thread(name = "probe-$name-$probe") {
+                    val random = SplittableRandom(options.seed + index * 100L + probe)
+                    val latencies = ArrayList<Long>()
+                    while (System.nanoTime() < deadline) {
+                        val startedAt = System.nanoTime()
+                        if (send(url(random))) {
+                            latencies.add(System.nanoTime() - startedAt)
+                        } else {
+                            errors.getValue(name).incrementAndGet()
+                        }
+                    }
+                    synchronized(samples) { samples.getValue(name).addAll(latencies) }
+                }
+            }
+        }
+        probes.forEach { it.join() }
+
+        return samples.map { (name, latencies) ->
+            val sorted = latencies.toLongArray().also { it.sort() }
+            LoadTestResult(
+                phase, name, sorted.size, errors.getValue(name).get(),
+                percentile(sorted, 0.50), percentile(sorted, 0.99), if (sorted.isEmpty()) 0.0 else sorted.last() / 1e6
+            )
+        }
+    }
+
+    /** Ответ 200 - true; другой статус или таймаут - ошибка запроса */
+    private fun send(url: String): Boolean {
+        val request = HttpRequest.newBuilder(URI.create(url)).timeout(REQUEST_TIMEOUT).GET().build()
+        return try {
+            http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200
+        } catch (e: IOException) {
+            false
+        }
+    }
+
+    private suspend fun seed() {
+        val random = SplittableRandom(options.seed)
+        for (chunk in (0 until options.users).chunked(SEED_CHUNK)) {
+            val ratings = ArrayList<UserRatingData>()
+            val recommendations = HashMap<Long, List<CourseRecommendation>>()
+            for (user in chunk) {
+                val userId = userIdOf(user)
+                repeat(RATINGS_PER_USER) {
+                    ratings.add(UserRatingData(userId, courseIdOf(random.nextInt(options.courses)), 1 + random.nextInt(5)))
+                }
+                recommendations[userId] = List(RECOMMENDATIONS_PER_USER) { rank ->
+                    CourseRecommendation(courseIdOf(random.nextInt(options.courses)), 1.0 - rank * 0.05, "load test")
+                }
+            }
+            RecommendationRepository.applyUserRatingBatch(ratings.distinctBy { it.userId to it.courseId }, emptyList())
+            RecommendationRepository.saveRecommendationsBatch(recommendations)
+        }
+    }
+
+    private fun courses(): List<CourseData> = List(options.courses) { course ->
+        CourseData(
+            id = courseIdOf(course), title = "Course $course", category = "category-${course % 10}",
+            level = "BEGINNER", published = true, averageRating = 4.0, totalRatings = 10
+        )
+    }
+
+    private fun randomUser(random: SplittableRandom): Long = userIdOf(random.nextInt(options.users))
+
+    private fun percentile(sorted: LongArray, quantile: Double): Double =
+        if (sorted.isEmpty()) 0.0 else sorted[minOf(sorted.size - 1, (sorted.size * quantile).toInt())] / 1e6
+
+    companion object {
+        private const val UNREACHABLE_COURSE_SERVICE = "http://127.0.0.1:9"
+        private val REQUEST_TIMEOUT = Duration.ofSeconds(5)
+        private const val CACHE_BYTES = 64L * 1024 * 1024
+        private const val SEED_CHUNK = 500
+        private const val RATINGS_PER_USER = 10
+        private const val RECOMMENDATIONS_PER_USER = 10
+
+        private fun userIdOf(user: Int): Long = user + 1L
+        private fun courseIdOf(course: Int): Long = course + 1L
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.recommendationservice.benchmark
+
+import com.example.recommendationservice.dto.RatingEvent
+import com.example.recommendationservice.entity.Recommendations
+import com.example.recommendationservice.entity.UserRatingDeletions
+import com.example.recommendationservice.entity.UserRatings
+import com.example.recommendationservice.kafka.RatingEventProcessor
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.model.DeltaUserScorer
+import com.example.recommendationservice.model.ExactNeighbourSearch
+import com.example.recommendationservice.model.ItemSimilarityMetric
+import com.example.recommendationservice.model.ItemSimilarityModel
+import com.example.recommendationservice.model.PopularityModel
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.repository.DatabaseAccess
+import com.example.recommendationservice.service.CourseServiceClient
+import com.example.recommendationservice.service.RecalculationScheduler
+import com.example.recommendationservice.service.RecommendationEngine
+import com.example.recommendationservice.service.RecommendationService
+import com.example.recommendationservice.util.LongIntHashMap
+import com.zaxxer.hikari.HikariConfig
+import com.zaxxer.hikari.HikariDataSource
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.jetbrains.exposed.sql.SchemaUtils
+import org.jetbrains.exposed.sql.transactions.transaction
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.time.Instant
+import java.util.SplittableRandom
+import kotlin.concurrent.thread
+import kotlin.system.exitProcess
+
+/**
+ * Офлайн-бенчмарк пути "событие оценки -> пересчёт рекомендаций" на синтетических данных.
+ *
+ * Матрица оценок заполняется [SyntheticRatings], БД - встроенный PostgreSQL (в него
+ * пишутся только события прогона и рекомендации). Заранее сгенерированный поток
+ * [RatingEvent] раскладывается по партициям по userId и прогоняется через
+ * [RatingEventProcessor] (по потоку на партицию, пакетами как из poll()) и
+ * [RecalculationScheduler]. Отчёт: events/sec, перцентили длительности пересчёта,
+ * пик кучи и время GC за прогон.
+ *
+ * Параметры - аргументы вида `--users=1000000`, см. [ReplayOptions];
+ * из Gradle: `gradle replayBenchmark -Preplay.users=100000 -Preplay.events=50000`.
+ */
+fun main(args: Array<String>) {
+    val options = ReplayOptions.parse(args)
+    println("Replay benchmark: $options")
+
+    val postgres = EmbeddedPostgres.start()
+    val dataSource = HikariDataSource(HikariConfig().apply {
+        jdbcUrl = postgres.getJdbcUrl("postgres", "postgres")
+        maximumPoolSize = 10
+        isAutoCommit = false
+        transactionIsolation = "TRANSACTION_READ_COMMITTED"
+    })
+    DatabaseAccess.connect(dataSource)
+    transaction { SchemaUtils.create(UserRatings, UserRatingDeletions, Recommendations) }
+
+    val report = try {
+        ReplayBenchmark(options).run()
+    } finally {
+        dataSource.close()
+        postgres.close()
+    }
+
+    println(report.format())
+    options.out?.let { out ->
+        val path = Paths.get(out)
+        path.toAbsolutePath().parent?.let { Files.createDirectories(it) }
+        Files.writeString(path, Json { prettyPrint = true }.encodeToString(ReplayReport.serializer(), report))
+        println("Report written to $path")
+    }
+    // HTTP-клиент RecommendationService держит не-daemon потоки
+    exitProcess(0)
+}
+
+data class ReplayOptions(
+    val users: Int = 1_000_000,
+    val courses: Int = 50_000,
+    val events: Int = 200_000,
+    val partitions: Int = 4,
+    val batchSize: Int = 500,
+    val batchMode: Boolean = true,
+    val workers: Int = 4,
+    val debounceMillis: Long = 0,
+    val engine: RecommendationEngine = RecommendationEngine.USER_BASED,
+    val delta: Boolean = false,
+    // Показатель Zipf для выбора пользователя события: активные оценивают чаще
+    val userSkew: Double = 0.8,
+    val seed: Long = 42,
+    val out: String? = null
+) {
+    companion object {
+        fun parse(args: Array<String>): ReplayOptions {
+            val values = args.associate { arg ->
+                require(arg.startsWith("--") && '=' in arg) { "Expected --name=value, got $arg" }
+                arg.substring(2).substringBefore('=') to arg.substringAfter('=')
+            }
+            val defaults = ReplayOptions()
+            val unknown = values.keys - OPTION_NAMES
+            require(unknown.isEmpty()) { "Unknown options: $unknown" }
+
+            return ReplayOptions(
+                users = values["users"]?.toInt() ?: defaults.users,
+                courses = values["courses"]?.toInt() ?: defaults.courses,
+                events = values["events"]?.toInt() ?: defaults.events,
+                partitions = values["partitions"]?.toInt() ?: defaults.partitions,
+                batchSize = values["batchSize"]?.toInt() ?: defaults.batchSize,
+                batchMode = values["batchMode"]?.toBooleanStrict() ?: defaults.batchMode,
+                workers = values["workers"]?.toInt() ?: defaults.workers,
+                debounceMillis = values["debounceMillis"]?.toLong() ?: defaults.debounceMillis,
+                engine = values["engine"]?.let(RecommendationEngine::fromConfig) ?: defaults.engine,
+                delta = values["delta"]?.toBooleanStrict() ?: defaults.delta,
+                userSkew = values["userSkew"]?.toDouble() ?: defaults.userSkew,
+                seed = values["seed"]?.toLong() ?: defaults.seed,
+                out = values["out"]
+            )
+        }
+
+        val OPTION_NAMES = setOf(
+            "users", "courses", "events", "partitions", "batchSize", "batchMode", "workers",
+            "debounceMillis", "engine", "delta", "userSkew", "seed", "out"
+        )
+    }
+}
+
+@Serializable
+data class ReplayReport(
+    val engine: String,
+    val users: Int,
+    val courses: Int,
+    val ratings: Long,
+    val events: Int,
+    val loadSeconds: Double,
+    val ingestEventsPerSecond: Double,
+    val endToEndEventsPerSecond: Double,
+    val recalculations: Long,
+    val recalculationMeanMs: Double,
+    val recalculationP50Ms: Double,
+    val recalculationP99Ms: Double,
+    val recalculationMaxMs: Double,
+    val queueWaitP99Ms: Double,
+    val heapAfterLoadMb: Double,
+    val heapPeakMb: Double,
+    val gcCount: Long,
+    val gcTimeMs: Long
+) {
+    fun format(): String = buildString {
+        appendLine("engine=$engine users=$users courses=$courses ratings=$ratings events=$events")
+        appendLine("load: %.1f s".format(loadSeconds))
+        appendLine("throughput: ingest %.0f events/s, end-to-end %.0f events/s".format(ingestEventsPerSecond, endToEndEventsPerSecond))
+        appendLine(
+            "recalculation: %d runs, mean %.2f ms, p50 %.2f ms, p99 %.2f ms, max %.2f ms (percentiles over the last %d runs)"
+                .format(recalculations, recalculationMeanMs, recalculationP50Ms, recalculationP99Ms, recalculationMaxMs, minOf(recalculations, 1024))
+        )
+        appendLine("queue wait p99: %.2f ms".format(queueWaitP99Ms))
+        appendLine("heap: %.0f MB after load, %.0f MB peak".format(heapAfterLoadMb, heapPeakMb))
+        append("gc: %d collections, %d ms".format(gcCount, gcTimeMs))
+    }
+}
+
+class ReplayBenchmark(private val options: ReplayOptions) {
+
+    private val json = Json { encodeDefaults = true }
+
+    fun run(): ReplayReport {
+        val dataset = SyntheticRatings(options.users, options.courses, seed = options.seed)
+        val ratingMatrix = RatingMatrix(options.users, options.courses)
+
+        val loadStart = System.nanoTime()
+        dataset.loadInto(ratingMatrix)
+        val service = createService(ratingMatrix)
+        val loadSeconds = (System.nanoTime() - loadStart) / 1e9
+        println("Loaded ${ratingMatrix.ratingCount} ratings in %.1f s".format(loadSeconds))
+
+        val partitions = generateEvents(dataset, ratingMatrix)
+        val scheduler = RecalculationScheduler(service, options.workers, options.debounceMillis)
+        val processor = RatingEventProcessor(ratingMatrix, scheduler, options.batchMode)
+
+        System.gc()
+        val memory = ManagementFactory.getMemoryMXBean()
+        val heapAfterLoad = memory.heapMemoryUsage.used
+        val heapSampler = HeapSampler().also { it.start() }
+        val gcBefore = gcTotals()
+
+        val start = System.nanoTime()
+        val workers = partitions.mapIndexed { partition, records ->
+            thread(name = "replay-partition-$partition") {
+                records.chunked(options.batchSize).forEach(processor::process)
+            }
+        }
+        workers.forEach { it.join() }
+        val ingestSeconds = (System.nanoTime() - start) / 1e9
+        scheduler.drain(Long.MAX_VALUE)
+        val totalSeconds = (System.nanoTime() - start) / 1e9
+
+        val gcAfter = gcTotals()
+        val heapPeak = heapSampler.stop()
+        val metrics = Metrics.snapshot()
+
+        return ReplayReport(
+            engine = options.engine.name,
+            users = options.users,
+            courses = options.courses,
+            ratings = ratingMatrix.ratingCount,
+            events = options.events,
+            loadSeconds = loadSeconds,
+            ingestEventsPerSecond = options.events / ingestSeconds,
+            endToEndEventsPerSecond = options.events / totalSeconds,
+            recalculations = metrics["recalculation.duration.count"]?.toLong() ?: 0,
+            recalculationMeanMs = metrics["recalculation.duration.mean_ms"] ?: 0.0,
+            recalculationP50Ms = metrics["recalculation.duration.p50_ms"] ?: 0.0,
+            recalculationP99Ms = metrics["recalculation.duration.p99_ms"] ?: 0.0,
+            recalculationMaxMs = metrics["recalculation.duration.max_ms"] ?: 0.0,
+            queueWaitP99Ms = metrics["recalculation.queue_wait.p99_ms"] ?: 0.0,
+            heapAfterLoadMb = heapAfterLoad / MB,
+            heapPeakMb = heapPeak / MB,
+            gcCount = gcAfter.first - gcBefore.first,
+            gcTimeMs = gcAfter.second - gcBefore.second
+        )
+    }
+
+    private fun createService(ratingMatrix: RatingMatrix): RecommendationService {
+        val itemSimilarityModel = if (options.engine == RecommendationEngine.ITEM_BASED) {
+            ItemSimilarityModel(ratingMatrix, ItemSimilarityMetric.COSINE, ITEM_NEIGHBOURS).also {
+                ratingMatrix.addListener(it)
+                it.rebuild()
+            }
+        } else {
+            null
+        }
+        val deltaScorer = if (options.delta && options.engine == RecommendationEngine.USER_BASED) {
+            DeltaUserScorer(
+                ratingMatrix, neighbours = 10,
+                maxTrackedUsers = DELTA_TRACKED_USERS, maxOverlapEntries = DELTA_OVERLAP_ENTRIES
+            ).also {
+                ratingMatrix.addWriteListener(it)
+                ratingMatrix.addListener(it)
+            }
+        } else {
+            null
+        }
+        require(options.engine != RecommendationEngine.ALS) { "ALS engine is not supported by the replay benchmark" }
+
+        // Холодный старт из снимка популярности - без обращений к course-service
+        val popularityModel = PopularityModel(ratingMatrix, priorWeight = 10.0, topN = 100).also { it.refresh() }
+        return RecommendationService(
+            CourseServiceClient(UNREACHABLE_COURSE_SERVICE), ratingMatrix, options.engine, itemSimilarityModel,
+            ExactNeighbourSearch(ratingMatrix), popularityModel = popularityModel, deltaScorer = deltaScorer
+        )
+    }
+
+    /**
+     * Поток событий, разложенный по партициям по userId. Тип события зависит от состояния
+     * на момент события: новая пара - CREATED, существующая - UPDATED или (в 20% случаев) DELETED.
+     */
+    private fun generateEvents(dataset: SyntheticRatings, ratingMatrix: RatingMatrix): List<List<ConsumerRecord<String, String>>> {
+        val random = SplittableRandom(options.seed + 1)
+        val userCdf = SyntheticRatings.zipfCdf(options.users, options.userSkew)
+        // (userId, courseId) -> оценка после уже сгенерированных событий; 0 - удалена
+        val overlay = LongIntHashMap(options.events * 2)
+        val partitions = List(options.partitions) { ArrayList<ConsumerRecord<String, String>>() }
+        val timestamp = Instant.now().toString()
+
+        repeat(options.events) { i ->
+            val userId = SyntheticRatings.userIdOf(SyntheticRatings.sample(userCdf, random))
+            val course = dataset.sampleCourse(random)
+            val courseId = SyntheticRatings.courseIdOf(course)
+            val key = userId * options.courses + course
+            val current = overlay.get(key).takeIf { it >= 0 } ?: currentRating(ratingMatrix, userId, courseId)
+
+            val rating = dataset.rating(random)
+            val type = when {
+                current == 0 -> "CREATED"
+                random.nextInt(5) == 0 -> "DELETED"
+                else -> "UPDATED"
+            }
+            overlay.put(key, if (type == "DELETED") 0 else rating)
+
+            val event = RatingEvent(type, i.toLong(), userId, courseId, rating, timestamp = timestamp)
+            val partition = Math.floorMod(userId.hashCode(), options.partitions)
+            val records = partitions[partition]
+            records.add(
+                ConsumerRecord(TOPIC, partition, records.size.toLong(), userId.toString(), json.encodeToString(RatingEvent.serializer(), event))
+            )
+        }
+        return partitions
+    }
+
+    private fun currentRating(ratingMatrix: RatingMatrix, userId: Long, courseId: Long): Int = ratingMatrix.read {
+        val user = ratingMatrix.userIndexOf(userId)
+        val course = ratingMatrix.courseIndexOf(courseId)
+        if (user < 0 || course < 0) 0 else ratingMatrix.rating(user, course)
+    }
+
+    private fun gcTotals(): Pair<Long, Long> {
+        val collectors = ManagementFactory.getGarbageCollectorMXBeans()
+        return collectors.sumOf { maxOf(it.collectionCount, 0) } to collectors.sumOf { maxOf(it.collectionTime, 0) }
+    }
+
+    /** Опрос занятой кучи: максимум за прогон, а не сумма пиков отдельных пулов */
+    private class HeapSampler {
+        @Volatile
+        private var running = true
+        @Volatile
+        private var peak = 0L
+        private lateinit var sampler: Thread
+
+        fun start() {
+            val memory = ManagementFactory.getMemoryMXBean()
+            sampler = thread(isDaemon = true, name = "heap-sampler") {
+                while (running) {
+                    peak = maxOf(peak, memory.heapMemoryUsage.used)
+                    Thread.sleep(HEAP_SAMPLE_MILLIS)
+                }
+            }
+        }
+
+        fun stop(): Long {
+            running = false
+            sampler.join()
+            return peak
+        }
+    }
+
+    companion object {
+        private const val TOPIC = "ratings"
+        private const val UNREACHABLE_COURSE_SERVICE = "http://127.0.0.1:9"
+        private const val ITEM_NEIGHBOURS = 20
+        private const val DELTA_TRACKED_USERS = 5_000
+        private const val DELTA_OVERLAP_ENTRIES = 10_000_000L
+        private const val HEAP_SAMPLE_MILLIS = 20L
+        private const val MB = 1024.0 * 1024.0
+    }
+}
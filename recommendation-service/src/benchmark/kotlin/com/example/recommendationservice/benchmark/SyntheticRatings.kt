@@ -0,0 +1,85 @@
+package com.example.recommendationservice.benchmark
+
+import com.example.recommendationservice.model.RatingMatrix
+import java.util.SplittableRandom
+
+/**
+ * Синтетический набор оценок масштаба MovieLens с распределениями "с длинным хвостом":
+ * - популярность курсов - Zipf с показателем [courseSkew] (немногие курсы собирают
+ *   большинство оценок);
+ * - число оценок пользователя - Парето с минимумом [minRatingsPerUser] и показателем
+ *   [activityExponent], не больше [maxRatingsPerUser];
+ * - оценки смещены к высоким, как в реальных данных.
+ *
+ * Набор полностью определяется [seed]: один и тот же на разных версиях алгоритма.
+ */
+class SyntheticRatings(
+    val users: Int,
+    val courses: Int,
+    private val minRatingsPerUser: Int = 5,
+    private val maxRatingsPerUser: Int = 2_000,
+    private val activityExponent: Double = 2.5,
+    private val courseSkew: Double = 1.0,
+    private val seed: Long = 42
+) {
+
+    private val courseCdf = zipfCdf(courses, courseSkew)
+
+    /** Вызывает [action] для каждой оценки; повторная оценка той же пары перезаписывает предыдущую */
+    fun forEach(action: (userId: Long, courseId: Long, rating: Int) -> Unit) {
+        val random = SplittableRandom(seed)
+        for (user in 0 until users) {
+            val count = ratingsPerUser(random)
+            repeat(count) {
+                action(userIdOf(user), courseIdOf(sample(courseCdf, random)), rating(random))
+            }
+        }
+    }
+
+    fun loadInto(ratingMatrix: RatingMatrix) {
+        forEach { userId, courseId, rating -> ratingMatrix.put(userId, courseId, rating) }
+    }
+
+    /** Индекс курса с вероятностью, пропорциональной его популярности */
+    fun sampleCourse(random: SplittableRandom): Int = sample(courseCdf, random)
+
+    fun rating(random: SplittableRandom): Int {
+        val u = random.nextDouble()
+        var acc = 0.0
+        RATING_WEIGHTS.forEachIndexed { i, weight ->
+            acc += weight
+            if (u < acc) return i + 1
+        }
+        return RATING_WEIGHTS.size
+    }
+
+    private fun ratingsPerUser(random: SplittableRandom): Int {
+        val pareto = minRatingsPerUser * Math.pow(1.0 - random.nextDouble(), -1.0 / (activityExponent - 1.0))
+        return minOf(pareto.toInt(), maxRatingsPerUser, courses)
+    }
+
+    companion object {
+        private val RATING_WEIGHTS = doubleArrayOf(0.05, 0.10, 0.20, 0.35, 0.30)
+
+        fun userIdOf(user: Int): Long = user + 1L
+
+        fun courseIdOf(course: Int): Long = course + 1L
+
+        /** Накопленные вероятности Zipf(s) для рангов 1..n */
+        fun zipfCdf(n: Int, s: Double): DoubleArray {
+            val cdf = DoubleArray(n)
+            var sum = 0.0
+            for (rank in 0 until n) {
+                sum += 1.0 / Math.pow(rank + 1.0, s)
+                cdf[rank] = sum
+            }
+            for (rank in 0 until n) cdf[rank] /= sum
+            return cdf
+        }
+
+        fun sample(cdf: DoubleArray, random: SplittableRandom): Int {
+            val pos = cdf.binarySearch(random.nextDouble())
+            return if (pos >= 0) pos else minOf(-(pos + 1), cdf.size - 1)
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.recommendationservice.jmh
+
+import com.example.recommendationservice.dto.CourseRecommendation
+import com.example.recommendationservice.model.ExactNeighbourSearch
+import com.example.recommendationservice.model.ItemSimilarityMetric
+import com.example.recommendationservice.model.ItemSimilarityModel
+import com.example.recommendationservice.model.NeighbourSearch
+import com.example.recommendationservice.model.PopularityModel
+import com.example.recommendationservice.service.CourseServiceClient
+import com.example.recommendationservice.service.RecommendationEngine
+import com.example.recommendationservice.service.RecommendationService
+import com.example.recommendationservice.util.TopKSelector
+import kotlinx.coroutines.runBlocking
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Сбор и ранжирование кандидатов [RecommendationService.computeRecommendations] без поиска соседей:
+ * для user-based соседи посчитаны заранее, для item-based списки похожих курсов построены в setup.
+ * Измеряется слияние строк соседей, фильтр и отбор топ-10.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class CandidateAggregationBenchmark {
+
+    @Param("10000", "100000")
+    var users: Int = 0
+
+    @Param("2000")
+    var courses: Int = 0
+
+    @Param("user-based", "item-based")
+    var engine: String = ""
+
+    private lateinit var fixture: RatingFixture
+    private lateinit var service: RecommendationService
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        fixture = RatingFixture(users, courses)
+        val ratingMatrix = fixture.ratingMatrix
+        val recommendationEngine = RecommendationEngine.fromConfig(engine)
+
+        val itemSimilarityModel = if (recommendationEngine == RecommendationEngine.ITEM_BASED) {
+            ItemSimilarityModel(ratingMatrix, ItemSimilarityMetric.COSINE, 20).also { it.rebuild() }
+        } else {
+            null
+        }
+        service = RecommendationService(
+            CourseServiceClient("http://127.0.0.1:9"), ratingMatrix, recommendationEngine, itemSimilarityModel,
+            PrecomputedNeighbours(fixture),
+            popularityModel = PopularityModel(ratingMatrix, priorWeight = 10.0, topN = 100).also { it.refresh() }
+        )
+    }
+
+    @Benchmark
+    fun computeRecommendations(): List<CourseRecommendation> {
+        val userId = fixture.ratingMatrix.userIdAt(fixture.nextUser())
+        return runBlocking { service.computeRecommendations(userId) }
+    }
+
+    /** Соседи пользователей выборки, найденные один раз точным поиском */
+    private class PrecomputedNeighbours(fixture: RatingFixture) : NeighbourSearch {
+        private val neighbours = fixture.ratingMatrix.read {
+            val search = ExactNeighbourSearch(fixture.ratingMatrix)
+            fixture.queryUsers.distinct().associateWith { search.similarUsers(it, 10) }
+        }
+
+        override fun similarUsers(user: Int, limit: Int): TopKSelector = neighbours.getValue(user)
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.recommendationservice.jmh
+
+import com.example.recommendationservice.model.ExactNeighbourSearch
+import com.example.recommendationservice.model.MinHashLshIndex
+import com.example.recommendationservice.model.NeighbourSearch
+import com.example.recommendationservice.util.TopKSelector
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Поиск top-10 похожих пользователей: точный Jaccard по posting list'ам
+ * против MinHash/LSH (параметры как в application.conf).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class NeighbourSearchBenchmark {
+
+    @Param("10000", "100000")
+    var users: Int = 0
+
+    @Param("2000")
+    var courses: Int = 0
+
+    @Param("exact", "lsh")
+    var search: String = ""
+
+    private lateinit var fixture: RatingFixture
+    private lateinit var neighbourSearch: NeighbourSearch
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        fixture = RatingFixture(users, courses)
+        neighbourSearch = when (search) {
+            "exact" -> ExactNeighbourSearch(fixture.ratingMatrix)
+            "lsh" -> MinHashLshIndex(fixture.ratingMatrix, bands = 32, rows = 2, seed = 42).also { it.rebuild() }
+            else -> error("Unknown search: $search")
+        }
+    }
+
+    @Benchmark
+    fun similarUsers(): TopKSelector {
+        val user = fixture.nextUser()
+        return fixture.ratingMatrix.read { neighbourSearch.similarUsers(user, 10) }
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.recommendationservice.jmh
+
+import com.example.recommendationservice.benchmark.SyntheticRatings
+import com.example.recommendationservice.model.RatingMatrix
+import java.util.SplittableRandom
+
+/**
+ * Матрица оценок из [SyntheticRatings] и выборка пользователей для запросов.
+ * Набор детерминирован: одинаков для всех форков и всех версий кода.
+ */
+class RatingFixture(users: Int, courses: Int, queryCount: Int = 1024, minRatingsPerUser: Int = 5) {
+
+    val ratingMatrix = RatingMatrix(users, courses)
+
+    /** Индексы пользователей с не менее чем [MIN_QUERY_RATINGS] оценками - у них есть соседи */
+    val queryUsers: IntArray
+
+    init {
+        SyntheticRatings(users, courses, minRatingsPerUser = minRatingsPerUser).loadInto(ratingMatrix)
+        val random = SplittableRandom(7)
+        queryUsers = ratingMatrix.read {
+            val eligible = (0 until ratingMatrix.userCount).filter { ratingMatrix.rowSize(it) >= MIN_QUERY_RATINGS }
+            IntArray(queryCount) { eligible[random.nextInt(eligible.size)] }
+        }
+    }
+
+    private var next = 0
+
+    /** Следующий пользователь запроса по кругу: каждое измерение - другой пользователь */
+    fun nextUser(): Int {
+        val user = queryUsers[next]
+        if (++next == queryUsers.size) next = 0
+        return user
+    }
+
+    companion object {
+        const val MIN_QUERY_RATINGS = 5
+    }
+}
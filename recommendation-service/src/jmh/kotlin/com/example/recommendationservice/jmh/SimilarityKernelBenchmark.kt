@@ -0,0 +1,61 @@
+package com.example.recommendationservice.jmh
+
+import com.example.recommendationservice.model.ExactNeighbourSearch
+import com.example.recommendationservice.model.NeighbourSearch
+import com.example.recommendationservice.model.RatingSimilarity
+import com.example.recommendationservice.model.RatingSimilaritySearch
+import com.example.recommendationservice.model.SimilarityKernels
+import com.example.recommendationservice.util.TopKSelector
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Пропускная способность поиска top-10 соседей на одном ядре: Jaccard по наборам
+ * курсов против сходства по значениям оценок со скалярным и векторным ядром.
+ * similarity - "jaccard" или "<метрика>/<ядро>"; minRatings - минимум оценок
+ * у пользователя: векторное ядро выигрывает на длинных строках.
+ * Для vector нужны Java 21.0.3+ и --add-modules jdk.incubator.vector (есть в jvmArgs jmh).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+open class SimilarityKernelBenchmark {
+
+    @Param("10000", "100000")
+    var users: Int = 0
+
+    @Param("2000")
+    var courses: Int = 0
+
+    @Param("5", "50")
+    var minRatings: Int = 0
+
+    @Param(
+        "jaccard",
+        "cosine/scalar", "cosine/vector",
+        "pearson/scalar", "pearson/vector",
+        "adjusted-cosine/scalar", "adjusted-cosine/vector"
+    )
+    var similarity: String = ""
+
+    private lateinit var fixture: RatingFixture
+    private lateinit var neighbourSearch: NeighbourSearch
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        fixture = RatingFixture(users, courses, minRatingsPerUser = minRatings)
+        neighbourSearch = if (similarity == "jaccard") {
+            ExactNeighbourSearch(fixture.ratingMatrix)
+        } else {
+            val (metric, kernel) = similarity.split('/')
+            RatingSimilaritySearch(fixture.ratingMatrix, RatingSimilarity.fromConfig(metric), SimilarityKernels.create(kernel))
+        }
+    }
+
+    @Benchmark
+    fun similarUsers(): TopKSelector {
+        val user = fixture.nextUser()
+        return fixture.ratingMatrix.read { neighbourSearch.similarUsers(user, 10) }
+    }
+}
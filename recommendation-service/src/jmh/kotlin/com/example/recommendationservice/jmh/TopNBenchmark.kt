@@ -0,0 +1,46 @@
+package com.example.recommendationservice.jmh
+
+import com.example.recommendationservice.util.TopKSelector
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.SplittableRandom
+import java.util.concurrent.TimeUnit
+
+/**
+ * Отбор топ-N из кандидатов: [TopKSelector] на примитивах против
+ * `sortedByDescending { }.take(n)` по списку `Pair<Long, Double>`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class TopNBenchmark {
+
+    @Param("100", "10000", "100000")
+    var candidates: Int = 0
+
+    @Param("10")
+    var n: Int = 0
+
+    private lateinit var ids: IntArray
+    private lateinit var scores: DoubleArray
+    private lateinit var pairs: List<Pair<Long, Double>>
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        val random = SplittableRandom(42)
+        ids = IntArray(candidates) { it }
+        scores = DoubleArray(candidates) { random.nextDouble() }
+        pairs = List(candidates) { ids[it].toLong() to scores[it] }
+    }
+
+    @Benchmark
+    fun topKSelector(blackhole: Blackhole) {
+        val top = TopKSelector(n)
+        for (i in ids.indices) top.offer(ids[i], scores[i])
+        blackhole.consume(top)
+    }
+
+    @Benchmark
+    fun sortedPairs(): List<Pair<Long, Double>> =
+        pairs.sortedByDescending { it.second }.take(n)
+}
@@ -1,10 +1,35 @@
 package com.example.recommendationservice
 
+import com.example.recommendationservice.config.configureAls
+import com.example.recommendationservice.config.configureCourseClient
 import com.example.recommendationservice.config.configureDatabase
+import com.example.recommendationservice.config.configureRatingDeletionsPruning
+import com.example.recommendationservice.config.configureDeltaScoring
+import com.example.recommendationservice.config.configureFullRecompute
+import com.example.recommendationservice.config.configureItemSimilarity
+import com.example.recommendationservice.config.configureNeighbourSearch
+import com.example.recommendationservice.config.configurePopularity
+import com.example.recommendationservice.config.createLshIndex
+import com.example.recommendationservice.config.configureRatingMatrix
+import com.example.recommendationservice.config.configureRatingSnapshots
 import com.example.recommendationservice.config.configureRouting
 import com.example.recommendationservice.config.configureSecurity
 import com.example.recommendationservice.config.configureSerialization
+import com.example.recommendationservice.kafka.CourseEventConsumer
+import com.example.recommendationservice.kafka.DeadLetterRedriver
+import com.example.recommendationservice.kafka.FailedEventRouter
 import com.example.recommendationservice.kafka.RatingEventConsumer
+import com.example.recommendationservice.kafka.RetryEventConsumer
+import com.example.recommendationservice.model.CourseCatalog
+import com.example.recommendationservice.model.CourseCatalogListener
+import com.example.recommendationservice.model.ExactNeighbourSearch
+import com.example.recommendationservice.model.MinHashLshIndex
+import com.example.recommendationservice.service.LazyRecalculation
+import com.example.recommendationservice.service.NeighbourSearchReporter
+import com.example.recommendationservice.service.RecalculationScheduler
+import com.example.recommendationservice.service.RecommendationEngine
+import com.example.recommendationservice.service.RecommendationResponseCache
+import com.example.recommendationservice.service.RecommendationService
 import io.ktor.server.application.*
 import io.ktor.server.netty.*
 import kotlinx.coroutines.launch
@@ -13,17 +38,113 @@ fun main(args: Array<String>): Unit = EngineMain.main(args)
 
 fun Application.module() {
     configureDatabase()
+    val loadedRatingMatrix = configureRatingMatrix()
+    val ratingMatrix = loadedRatingMatrix.matrix
+    
+    val engine = RecommendationEngine.fromConfig(environment.config.property("recommendation.engine").getString())
+    val itemSimilarityModel = if (engine == RecommendationEngine.ITEM_BASED) {
+        configureItemSimilarity(ratingMatrix)
+    } else {
+        null
+    }
+    
+    val alsRecommender = if (engine == RecommendationEngine.ALS) {
+        configureAls(ratingMatrix)
+    } else {
+        null
+    }
+    
+    val neighbourSearch = configureNeighbourSearch(ratingMatrix)
+    val deltaScorer = configureDeltaScoring(ratingMatrix, engine, neighbourSearch)
+    val neighbourSearchReporter = NeighbourSearchReporter(ratingMatrix, ExactNeighbourSearch(ratingMatrix)) {
+        // В режиме exact индекс строится при первом отчёте и дальше следит за матрицей, как в режиме lsh
+        neighbourSearch as? MinHashLshIndex ?: createLshIndex(ratingMatrix).also {
+            ratingMatrix.addListener(it)
+            it.rebuild()
+        }
+    }
+    
+    val courseClient = configureCourseClient()
+    val responseCache = RecommendationResponseCache(
+        maxBytes = environment.config.property("recommendation.responseCache.maxMegabytes").getString().toLong() * 1024 * 1024
+    )
+    val courseCatalog = CourseCatalog()
+    val popularityModel = configurePopularity(ratingMatrix, courseCatalog)
+    val recalculationConfig = environment.config.config("recommendation.recalculation")
+    val lazyRecalculation = when (val mode = recalculationConfig.property("mode").getString()) {
+        "eager" -> null
+        "lazy" -> recalculationConfig.config("lazy").let { lazy ->
+            LazyRecalculation(
+                activeWindowMillis = lazy.property("activeWindowMinutes").getString().toLong() * 60_000,
+                concurrency = lazy.property("concurrency").getString().toInt(),
+                sweepIntervalMillis = lazy.property("sweepIntervalSeconds").getString().toLong() * 1000
+            )
+        }
+        else -> throw IllegalArgumentException("Unknown recalculation mode: $mode, expected eager or lazy")
+    }
+    val recommendationService = RecommendationService(
+        courseClient, ratingMatrix, engine, itemSimilarityModel, neighbourSearch, responseCache, courseCatalog,
+        popularityModel, alsRecommender, deltaScorer, lazyRecalculation
+    )
+    courseCatalog.addListener(object : CourseCatalogListener {
+        override fun onCourseChanged(courseId: Long) = recommendationService.invalidateCourse(courseId)
+        override fun onCatalogReloaded() = recommendationService.invalidateAllResponses()
+    })
+    
+    val recalculationScheduler = RecalculationScheduler(
+        recommendationService,
+        workers = recalculationConfig.property("workers").getString().toInt(),
+        debounceMillis = recalculationConfig.property("debounceMillis").getString().toLong(),
+        lazyRecalculation = lazyRecalculation
+    )
+    // Соседи, у которых чужая оценка изменила топ, пересчитываются без собственного события
+    deltaScorer?.changeListener = recalculationScheduler::schedule
+    val drainTimeoutMillis = recalculationConfig.property("drainTimeoutSeconds").getString().toLong() * 1000
+    val fullRecomputeJob = configureFullRecompute(ratingMatrix, recommendationService, recalculationScheduler)
+    
+    // Неприменённые события уходят в топики повторов и DLQ, не останавливая партицию
+    val failedEvents = FailedEventRouter(this)
+    val deadLetterRedriver = DeadLetterRedriver(this, failedEvents)
+    configureRatingDeletionsPruning()
+    
     configureSerialization()
     configureSecurity()
-    configureRouting()
+    configureRouting(
+        recommendationService, neighbourSearchReporter, alsRecommender, fullRecomputeJob, deltaScorer, deadLetterRedriver
+    )
     
     // Start Kafka consumer
-    val consumer = RatingEventConsumer(this)
+    // Чтение начинается с offset'ов, которые уже отражены в матрице (снимок или БД)
+    val consumer = RatingEventConsumer(
+        this, ratingMatrix, recalculationScheduler, loadedRatingMatrix.appliedOffsets, failedEvents
+    )
     launch {
         consumer.start()
     }
+    val retryConsumer = RetryEventConsumer(this, ratingMatrix, recalculationScheduler, failedEvents)
+    launch {
+        retryConsumer.start()
+    }
+    val ratingCheckpointer = configureRatingSnapshots(ratingMatrix, consumer)
+    
+    // Реплика курсов: снимок из course-service и дальше события топика courses
+    val courseEventConsumer = CourseEventConsumer(this, courseCatalog, courseClient)
+    launch {
+        courseEventConsumer.start()
+    }
     
     environment.monitor.subscribe(ApplicationStopped) {
+        fullRecomputeJob.stop()
+        courseEventConsumer.stop()
         consumer.stop()
+        retryConsumer.stop()
+        failedEvents.close()
+        // После остановки потребителя offset'ы окончательные - следующий старт продолжит с них
+        try {
+            ratingCheckpointer?.checkpoint()
+        } catch (e: Exception) {
+            log.error("Error writing rating snapshot on shutdown", e)
+        }
+        recalculationScheduler.drain(drainTimeoutMillis)
     }
 }
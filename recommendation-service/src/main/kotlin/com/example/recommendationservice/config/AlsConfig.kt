@@ -0,0 +1,62 @@
+package com.example.recommendationservice.config
+
+import com.example.recommendationservice.model.AlsRecommender
+import com.example.recommendationservice.model.AlsTrainer
+import com.example.recommendationservice.model.HnswSettings
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.model.VectorMetric
+import io.ktor.server.application.*
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import java.nio.file.Paths
+
+/**
+ * Создаёт ALS-модель: подхватывает сохранённый файл модели, если он есть,
+ * подписывает fold-in на изменения матрицы и запускает обучение -
+ * сразу при старте и затем по расписанию. При retrieval = "hnsw" кандидаты
+ * отбираются по HNSW-индексу векторов курсов вместо полного перебора.
+ */
+fun Application.configureAls(ratingMatrix: RatingMatrix): AlsRecommender {
+    val config = environment.config.config("recommendation.als")
+    val retrainIntervalMinutes = config.property("retrainIntervalMinutes").getString().toLong()
+
+    val trainer = AlsTrainer(
+        factors = config.property("factors").getString().toInt(),
+        iterations = config.property("iterations").getString().toInt(),
+        lambda = config.property("lambda").getString().toDouble(),
+        parallelism = config.property("parallelism").getString().toInt(),
+        seed = config.property("seed").getString().toLong()
+    )
+    val hnswSettings = when (val retrieval = config.property("retrieval").getString()) {
+        "hnsw" -> config.config("hnsw").let { hnsw ->
+            HnswSettings(
+                metric = VectorMetric.fromConfig(hnsw.property("metric").getString()),
+                m = hnsw.property("m").getString().toInt(),
+                efConstruction = hnsw.property("efConstruction").getString().toInt(),
+                efSearch = hnsw.property("efSearch").getString().toInt()
+            )
+        }
+        "exhaustive" -> null
+        else -> throw IllegalArgumentException("Unknown ALS retrieval mode: $retrieval")
+    }
+    val recommender = AlsRecommender(
+        ratingMatrix, trainer, Paths.get(config.property("modelPath").getString()), hnswSettings
+    )
+    ratingMatrix.addListener(recommender)
+    recommender.loadExisting()
+
+    launch(Dispatchers.Default) {
+        while (isActive) {
+            try {
+                recommender.train()
+            } catch (e: Exception) {
+                log.error("Error training ALS model", e)
+            }
+            delay(retrainIntervalMinutes * 60_000)
+        }
+    }
+
+    return recommender
+}
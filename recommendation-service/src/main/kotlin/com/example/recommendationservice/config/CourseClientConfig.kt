@@ -0,0 +1,25 @@
+package com.example.recommendationservice.config
+
+import com.example.recommendationservice.service.CourseClientSettings
+import com.example.recommendationservice.service.CourseServiceClient
+import io.ktor.server.application.*
+
+/**
+ * Клиент course-service с ограничениями из services.courseClient:
+ * сроки вызова, bulkhead и предохранитель.
+ */
+fun Application.configureCourseClient(): CourseServiceClient {
+    val courseServiceUrl = environment.config.property("services.courseServiceUrl").getString()
+    val config = environment.config.config("services.courseClient")
+    val settings = CourseClientSettings(
+        callTimeoutMillis = config.property("callTimeoutMillis").getString().toLong(),
+        connectTimeoutMillis = config.property("connectTimeoutMillis").getString().toLong(),
+        socketTimeoutMillis = config.property("socketTimeoutMillis").getString().toLong(),
+        maxConnections = config.property("maxConnections").getString().toInt(),
+        maxConcurrentCalls = config.property("maxConcurrentCalls").getString().toInt(),
+        failureThreshold = config.property("failureThreshold").getString().toInt(),
+        openMillis = config.property("openSeconds").getString().toLong() * 1000,
+        fallbackCourses = config.property("fallbackCourses").getString().toInt()
+    )
+    return CourseServiceClient(courseServiceUrl, settings)
+}
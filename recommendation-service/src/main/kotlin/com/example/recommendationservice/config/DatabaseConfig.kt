@@ -1,13 +1,20 @@
 package com.example.recommendationservice.config
 
+import com.example.recommendationservice.entity.UserRatingDeletions
 import com.example.recommendationservice.entity.UserRatings
 import com.example.recommendationservice.entity.Recommendations
+import com.example.recommendationservice.repository.DatabaseAccess
+import com.example.recommendationservice.repository.RecommendationRepository
 import com.zaxxer.hikari.HikariConfig
 import com.zaxxer.hikari.HikariDataSource
 import io.ktor.server.application.*
-import org.jetbrains.exposed.sql.Database
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
 import org.jetbrains.exposed.sql.SchemaUtils
 import org.jetbrains.exposed.sql.transactions.transaction
+import java.time.LocalDateTime
 
 fun Application.configureDatabase() {
     val config = environment.config
@@ -17,18 +24,41 @@ fun Application.configureDatabase() {
         driverClassName = config.property("database.driver").getString()
         username = config.property("database.user").getString()
         password = config.property("database.password").getString()
-        maximumPoolSize = 10
+        maximumPoolSize = config.property("database.maxPoolSize").getString().toInt()
         isAutoCommit = false
-        transactionIsolation = "TRANSACTION_REPEATABLE_READ"
+        // Уровень изоляции задаёт каждая транзакция: dbRead или dbQuery
+        transactionIsolation = "TRANSACTION_READ_COMMITTED"
         validate()
     }
     
     val dataSource = HikariDataSource(hikariConfig)
-    Database.connect(dataSource)
+    DatabaseAccess.connect(dataSource)
     
     transaction {
-        SchemaUtils.create(UserRatings, Recommendations)
+        SchemaUtils.create(UserRatings, UserRatingDeletions, Recommendations)
     }
     
-    log.info("Database connected successfully")
+    log.info("Database connected successfully: pool=${dataSource.maximumPoolSize}")
 }
+
+/**
+ * Раз в час удаляет отметки удалений (user_rating_deletions) старше kafka.dlq.deletionRetentionHours:
+ * события старше этого срока уже не вернутся ни из повторов, ни из DLQ.
+ */
+fun Application.configureRatingDeletionsPruning() {
+    val retentionHours = environment.config.property("kafka.dlq.deletionRetentionHours").getString().toLong()
+
+    launch(Dispatchers.IO) {
+        while (isActive) {
+            try {
+                val pruned = RecommendationRepository.pruneRatingDeletions(LocalDateTime.now().minusHours(retentionHours))
+                if (pruned > 0) log.info("Pruned $pruned rating deletion marks older than $retentionHours h")
+            } catch (e: Exception) {
+                log.error("Error pruning rating deletion marks", e)
+            }
+            delay(DELETIONS_PRUNE_INTERVAL_MILLIS)
+        }
+    }
+}
+
+private const val DELETIONS_PRUNE_INTERVAL_MILLIS = 3_600_000L
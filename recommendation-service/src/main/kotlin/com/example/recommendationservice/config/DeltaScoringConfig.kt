@@ -0,0 +1,55 @@
+package com.example.recommendationservice.config
+
+import com.example.recommendationservice.model.DeltaUserScorer
+import com.example.recommendationservice.model.ExactNeighbourSearch
+import com.example.recommendationservice.model.NeighbourSearch
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.service.RecommendationEngine
+import io.ktor.server.application.*
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+
+/**
+ * Создаёт инкрементальный скорер для user-based движка с точным поиском соседей
+ * (recommendation.delta.enabled) и запускает периодическую сверку с полным пересчётом.
+ * Для LSH-поиска скорер не создаётся: его соседи не совпали бы с точным Jaccard.
+ */
+fun Application.configureDeltaScoring(
+    ratingMatrix: RatingMatrix,
+    engine: RecommendationEngine,
+    neighbourSearch: NeighbourSearch
+): DeltaUserScorer? {
+    val config = environment.config.config("recommendation.delta")
+    if (!config.property("enabled").getString().toBoolean()) return null
+    if (engine != RecommendationEngine.USER_BASED || neighbourSearch !is ExactNeighbourSearch) return null
+
+    val scorer = DeltaUserScorer(
+        ratingMatrix,
+        neighbours = 10,
+        maxTrackedUsers = config.property("maxTrackedUsers").getString().toInt(),
+        maxOverlapEntries = config.property("maxOverlapEntries").getString().toLong()
+    )
+    ratingMatrix.addWriteListener(scorer)
+    ratingMatrix.addListener(scorer)
+
+    val verifyIntervalMinutes = config.property("verifyIntervalMinutes").getString().toLong()
+    val verifySample = config.property("verifySample").getString().toInt()
+    val tolerance = config.property("tolerance").getString().toDouble()
+    launch(Dispatchers.Default) {
+        while (isActive) {
+            delay(verifyIntervalMinutes * 60_000)
+            try {
+                val report = scorer.verify(verifySample, tolerance)
+                if (report.driftedUsers > 0) {
+                    log.warn("Delta scoring drift: ${report.driftedUsers} of ${report.sampledUsers} sampled users rebuilt, max score drift ${report.maxScoreDrift}")
+                }
+            } catch (e: Exception) {
+                log.error("Error verifying delta scoring state", e)
+            }
+        }
+    }
+
+    return scorer
+}
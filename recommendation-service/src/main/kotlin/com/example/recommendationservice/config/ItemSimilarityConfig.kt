@@ -0,0 +1,40 @@
+package com.example.recommendationservice.config
+
+import com.example.recommendationservice.model.ItemSimilarityMetric
+import com.example.recommendationservice.model.ItemSimilarityModel
+import com.example.recommendationservice.model.RatingMatrix
+import io.ktor.server.application.*
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+
+/**
+ * Создаёт модель сходства курсов, подписывает её на изменения матрицы
+ * и запускает фоновое полное перестроение: сразу при старте и затем по расписанию.
+ */
+fun Application.configureItemSimilarity(ratingMatrix: RatingMatrix): ItemSimilarityModel {
+    val config = environment.config
+    val metric = ItemSimilarityMetric.valueOf(
+        config.property("recommendation.itemSimilarity.metric").getString().trim().uppercase()
+    )
+    val neighbours = config.property("recommendation.itemSimilarity.neighbours").getString().toInt()
+    val rebuildIntervalMinutes = config.property("recommendation.itemSimilarity.rebuildIntervalMinutes")
+        .getString().toLong()
+
+    val model = ItemSimilarityModel(ratingMatrix, metric, neighbours)
+    ratingMatrix.addListener(model)
+
+    launch(Dispatchers.Default) {
+        while (isActive) {
+            try {
+                model.rebuild()
+            } catch (e: Exception) {
+                log.error("Error rebuilding item similarity model", e)
+            }
+            delay(rebuildIntervalMinutes * 60_000)
+        }
+    }
+
+    return model
+}
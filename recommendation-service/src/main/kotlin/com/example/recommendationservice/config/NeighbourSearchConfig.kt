@@ -0,0 +1,52 @@
+package com.example.recommendationservice.config
+
+import com.example.recommendationservice.model.ExactNeighbourSearch
+import com.example.recommendationservice.model.MinHashLshIndex
+import com.example.recommendationservice.model.NeighbourSearch
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.model.RatingSimilarity
+import com.example.recommendationservice.model.RatingSimilaritySearch
+import com.example.recommendationservice.model.SimilarityKernels
+import io.ktor.server.application.*
+
+/**
+ * Выбирает поиск похожих пользователей по recommendation.neighbourSearch.mode:
+ * exact - точный поиск по инвертированному индексу, lsh - MinHash/LSH.
+ * Для exact сходство задаёт recommendation.neighbourSearch.similarity:
+ * jaccard по наборам курсов или cosine | pearson | adjusted-cosine по значениям оценок.
+ */
+fun Application.configureNeighbourSearch(ratingMatrix: RatingMatrix): NeighbourSearch {
+    val config = environment.config
+    val mode = config.property("recommendation.neighbourSearch.mode").getString().trim().lowercase()
+    val similarity = config.property("recommendation.neighbourSearch.similarity").getString().trim().lowercase()
+    
+    return when (mode) {
+        "exact" -> if (similarity == "jaccard") {
+            ExactNeighbourSearch(ratingMatrix)
+        } else {
+            val kernel = SimilarityKernels.create(
+                config.property("recommendation.neighbourSearch.kernel").getString().trim().lowercase()
+            )
+            log.info("Neighbour similarity: $similarity, kernel: ${kernel.name}")
+            RatingSimilaritySearch(ratingMatrix, RatingSimilarity.fromConfig(similarity), kernel)
+        }
+        "lsh" -> {
+            require(similarity == "jaccard") { "LSH neighbour search supports only jaccard similarity, got: $similarity" }
+            createLshIndex(ratingMatrix).also {
+                ratingMatrix.addListener(it)
+                it.rebuild()
+            }
+        }
+        else -> throw IllegalArgumentException("Unknown neighbour search mode: $mode")
+    }
+}
+
+fun Application.createLshIndex(ratingMatrix: RatingMatrix): MinHashLshIndex {
+    val config = environment.config
+    return MinHashLshIndex(
+        ratingMatrix,
+        bands = config.property("recommendation.neighbourSearch.bands").getString().toInt(),
+        rows = config.property("recommendation.neighbourSearch.rows").getString().toInt(),
+        seed = config.property("recommendation.neighbourSearch.seed").getString().toLong()
+    )
+}
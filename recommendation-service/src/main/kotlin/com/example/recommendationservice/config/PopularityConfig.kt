@@ -0,0 +1,39 @@
+package com.example.recommendationservice.config
+
+import com.example.recommendationservice.model.CourseCatalog
+import com.example.recommendationservice.model.PopularityModel
+import com.example.recommendationservice.model.RatingMatrix
+import io.ktor.server.application.*
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+
+/**
+ * Создаёт модель популярности для холодного старта и запускает
+ * обновление снимка: сразу при старте и затем по расписанию.
+ */
+fun Application.configurePopularity(ratingMatrix: RatingMatrix, courseCatalog: CourseCatalog): PopularityModel {
+    val config = environment.config.config("recommendation.popularity")
+    val refreshIntervalSeconds = config.property("refreshIntervalSeconds").getString().toLong()
+
+    val model = PopularityModel(
+        ratingMatrix,
+        priorWeight = config.property("priorWeight").getString().toDouble(),
+        topN = config.property("topN").getString().toInt(),
+        courseFilter = courseCatalog::isRecommendable
+    )
+
+    launch(Dispatchers.Default) {
+        while (isActive) {
+            try {
+                model.refresh()
+            } catch (e: Exception) {
+                log.error("Error refreshing popularity model", e)
+            }
+            delay(refreshIntervalSeconds * 1000)
+        }
+    }
+
+    return model
+}
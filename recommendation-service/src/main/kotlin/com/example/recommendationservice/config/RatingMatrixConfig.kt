@@ -0,0 +1,120 @@
+package com.example.recommendationservice.config
+
+import com.example.recommendationservice.kafka.RatingEventConsumer
+import com.example.recommendationservice.kafka.RatingEventProcessor
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.model.RatingSnapshot
+import com.example.recommendationservice.repository.RecommendationRepository
+import com.example.recommendationservice.service.RatingCheckpointer
+import io.ktor.server.application.*
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import java.nio.file.Files
+import java.nio.file.Paths
+
+/** Матрица оценок и offset'ы топика оценок, до которых она отражает события */
+class LoadedRatingMatrix(val matrix: RatingMatrix, val appliedOffsets: Map<Int, Long>)
+
+/**
+ * Загружает матрицу оценок: из снимка (recommendation.snapshot), если он есть и
+ * не устарел, иначе из таблицы user_ratings. Вызывается один раз при старте,
+ * дальше матрица обновляется событиями Kafka с возвращённых offset'ов.
+ */
+fun Application.configureRatingMatrix(): LoadedRatingMatrix {
+    val config = environment.config.config("recommendation.snapshot")
+    if (config.property("enabled").getString().toBoolean()) {
+        loadSnapshot()?.let { return it }
+    }
+
+    val startedAt = System.currentTimeMillis()
+    // Offset'ы читаем до таблицы: всё до них уже в БД
+    val offsets = RatingEventConsumer.committedOffsets(this)
+    val matrix = RatingMatrix()
+
+    var invalid = 0L
+    runBlocking {
+        RecommendationRepository.forEachUserRating { userId, courseId, rating ->
+            // Строки, записанные до проверки оценок в событиях, не должны ронять старт
+            if (rating in RatingEventProcessor.VALID_RATINGS) matrix.put(userId, courseId, rating) else invalid++
+        }
+    }
+    if (invalid > 0) log.warn("Skipped $invalid user_ratings rows with a rating outside ${RatingEventProcessor.VALID_RATINGS}")
+
+    log.info(
+        "Rating matrix loaded: users=${matrix.userCount}, courses=${matrix.courseCount}, " +
+            "ratings=${matrix.ratingCount} in ${System.currentTimeMillis() - startedAt} ms"
+    )
+    return LoadedRatingMatrix(matrix, offsets)
+}
+
+private fun Application.loadSnapshot(): LoadedRatingMatrix? {
+    val config = environment.config.config("recommendation.snapshot")
+    val path = Paths.get(config.property("path").getString())
+    val maxAgeMillis = config.property("maxAgeHours").getString().toLong() * 3_600_000
+    val topic = environment.config.property("kafka.topic").getString()
+    if (!Files.exists(path)) return null
+
+    val startedAt = System.currentTimeMillis()
+    val snapshot = try {
+        RatingSnapshot.read(path)
+    } catch (e: Exception) {
+        log.error("Error reading rating snapshot $path, loading from database", e)
+        return null
+    }
+    if (snapshot.topic != topic) {
+        log.warn("Rating snapshot $path is for topic ${snapshot.topic}, not $topic, loading from database")
+        return null
+    }
+    if (startedAt - snapshot.createdAt > maxAgeMillis) {
+        log.warn("Rating snapshot $path is older than $maxAgeMillis ms, loading from database")
+        return null
+    }
+    // Снимок экземпляра, владевшего частью партиций, отстаёт по остальным на неизвестную величину
+    val partitions = RatingEventConsumer.topicPartitions(this)
+    if (partitions == null || !snapshot.offsets.keys.containsAll(partitions)) {
+        log.warn(
+            "Rating snapshot $path has offsets for partitions ${snapshot.offsets.keys.sorted()}, " +
+                "topic $topic has ${partitions?.sorted() ?: "unknown partitions"}, loading from database"
+        )
+        return null
+    }
+
+    val matrix = snapshot.toMatrix()
+    log.info(
+        "Rating matrix restored from snapshot: users=${matrix.userCount}, courses=${matrix.courseCount}, " +
+            "ratings=${matrix.ratingCount} in ${System.currentTimeMillis() - startedAt} ms, offsets=${snapshot.offsets}"
+    )
+    return LoadedRatingMatrix(matrix, snapshot.offsets)
+}
+
+/**
+ * Периодически пишет снимок матрицы с offset'ами потребителя. null, если снимки выключены.
+ */
+fun Application.configureRatingSnapshots(ratingMatrix: RatingMatrix, consumer: RatingEventConsumer): RatingCheckpointer? {
+    val config = environment.config.config("recommendation.snapshot")
+    if (!config.property("enabled").getString().toBoolean()) return null
+    val intervalMinutes = config.property("intervalMinutes").getString().toLong()
+
+    val checkpointer = RatingCheckpointer(
+        ratingMatrix,
+        consumer,
+        environment.config.property("kafka.topic").getString(),
+        Paths.get(config.property("path").getString())
+    )
+
+    launch(Dispatchers.IO) {
+        while (isActive) {
+            delay(intervalMinutes * 60_000)
+            try {
+                checkpointer.checkpoint()
+            } catch (e: Exception) {
+                log.error("Error writing rating snapshot", e)
+            }
+        }
+    }
+
+    return checkpointer
+}
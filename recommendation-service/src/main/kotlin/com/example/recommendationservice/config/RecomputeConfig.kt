@@ -0,0 +1,36 @@
+package com.example.recommendationservice.config
+
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.service.FullRecomputeJob
+import com.example.recommendationservice.service.RecalculationScheduler
+import com.example.recommendationservice.service.RecommendationService
+import io.ktor.server.application.*
+import java.nio.file.Paths
+
+/**
+ * Создаёт задание полного пересчёта рекомендаций. Прогон, прерванный остановкой
+ * сервиса, продолжается с сохранённого курсора (recommendation.recompute.resumeOnStartup).
+ */
+fun Application.configureFullRecompute(
+    ratingMatrix: RatingMatrix,
+    recommendationService: RecommendationService,
+    scheduler: RecalculationScheduler
+): FullRecomputeJob {
+    val config = environment.config.config("recommendation.recompute")
+
+    val job = FullRecomputeJob(
+        ratingMatrix,
+        recommendationService,
+        scheduler,
+        shards = config.property("shards").getString().toInt(),
+        batchSize = config.property("batchSize").getString().toInt(),
+        maxUsersPerSecond = config.property("maxUsersPerSecond").getString().toInt(),
+        liveQueueThreshold = config.property("liveQueueThreshold").getString().toInt(),
+        checkpointPath = Paths.get(config.property("checkpointPath").getString())
+    )
+
+    if (config.property("resumeOnStartup").getString().toBoolean() && job.hasCheckpoint) {
+        job.start(resume = true)
+    }
+    return job
+}
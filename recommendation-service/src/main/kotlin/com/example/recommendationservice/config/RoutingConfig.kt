@@ -1,14 +1,29 @@
 package com.example.recommendationservice.config
 
+import com.example.recommendationservice.kafka.DeadLetterRedriver
+import com.example.recommendationservice.model.AlsRecommender
+import com.example.recommendationservice.model.DeltaUserScorer
+import com.example.recommendationservice.routes.adminRoutes
 import com.example.recommendationservice.routes.recommendationRoutes
+import com.example.recommendationservice.service.FullRecomputeJob
+import com.example.recommendationservice.service.NeighbourSearchReporter
+import com.example.recommendationservice.service.RecommendationService
 import io.ktor.http.*
 import io.ktor.server.application.*
+import io.ktor.server.auth.*
 import io.ktor.server.plugins.cors.routing.*
 import io.ktor.server.plugins.statuspages.*
 import io.ktor.server.response.*
 import io.ktor.server.routing.*
 
-fun Application.configureRouting() {
+fun Application.configureRouting(
+    recommendationService: RecommendationService,
+    neighbourSearchReporter: NeighbourSearchReporter,
+    alsRecommender: AlsRecommender?,
+    fullRecomputeJob: FullRecomputeJob,
+    deltaScorer: DeltaUserScorer?,
+    deadLetterRedriver: DeadLetterRedriver
+) {
     install(CORS) {
         anyHost()
         allowHeader(HttpHeaders.ContentType)
@@ -29,6 +44,10 @@ fun Application.configureRouting() {
     }
     
     routing {
-        recommendationRoutes()
+        recommendationRoutes(recommendationService)
+        
+        authenticate("auth-jwt") {
+            adminRoutes(neighbourSearchReporter, alsRecommender, fullRecomputeJob, deltaScorer, deadLetterRedriver)
+        }
     }
 }
@@ -19,6 +19,11 @@ data class RecommendationResponse(
     val recommendations: List<CourseRecommendation>
 )
 
+@Serializable
+data class BatchRecommendationsRequest(
+    val userIds: List<Long>
+)
+
 @Serializable
 data class CourseRecommendation(
     val courseId: Long,
@@ -39,6 +44,41 @@ data class CourseInfo(
     val totalRatings: Int? = null
 )
 
+/**
+ * Курс в том виде, в каком его отдаёт course-service (GET /api/courses и события топика courses)
+ */
+@Serializable
+data class CourseData(
+    val id: Long,
+    val title: String,
+    val description: String? = null,
+    val category: String,
+    val instructorName: String? = null,
+    val level: String,
+    val published: Boolean? = null,
+    val averageRating: Double? = null,
+    val totalRatings: Int? = null
+) {
+    fun toCourseInfo() = CourseInfo(
+        id = id,
+        title = title,
+        description = description,
+        category = category,
+        instructorName = instructorName,
+        level = level,
+        averageRating = averageRating,
+        totalRatings = totalRatings
+    )
+}
+
+@Serializable
+data class CourseEvent(
+    val eventType: String,
+    val courseId: Long,
+    val course: CourseData? = null,
+    val timestamp: String? = null
+)
+
 @Serializable
 data class UserRatingData(
     val userId: Long,
@@ -46,6 +86,98 @@ data class UserRatingData(
     val rating: Int
 )
 
+@Serializable
+data class LatencySummary(
+    val meanMicros: Double,
+    val p50Micros: Double,
+    val p99Micros: Double
+)
+
+@Serializable
+data class NeighbourSearchReport(
+    val sampledUsers: Int,
+    val k: Int,
+    val bands: Int,
+    val rows: Int,
+    val recallAtK: Double,
+    val meanCandidates: Double,
+    val exactLatency: LatencySummary,
+    val lshLatency: LatencySummary
+)
+
+@Serializable
+data class AlsIterationReport(
+    val iteration: Int,
+    val seconds: Double,
+    val userUpdatesPerSecond: Double,
+    val itemUpdatesPerSecond: Double,
+    val ratingsPerSecond: Double,
+    val rmse: Double
+)
+
+@Serializable
+data class AlsTrainingReport(
+    val users: Int,
+    val courses: Int,
+    val ratings: Int,
+    val factors: Int,
+    val totalSeconds: Double,
+    val iterations: List<AlsIterationReport>
+)
+
+@Serializable
+data class AnnSearchReport(
+    val sampledQueries: Int,
+    val k: Int,
+    val metric: String,
+    val efSearch: Int,
+    val indexSize: Int,
+    val recallAtK: Double,
+    val exhaustiveLatency: LatencySummary,
+    val hnswLatency: LatencySummary
+)
+
+@Serializable
+data class RecomputeProgress(
+    val state: String,
+    val startedAt: Long? = null,
+    val resumed: Boolean = false,
+    val shards: Int = 0,
+    val totalUsers: Long = 0,
+    val processedUsers: Long = 0,
+    val changedUsers: Long = 0,
+    val failedUsers: Long = 0,
+    val usersPerSecond: Double = 0.0,
+    val etaSeconds: Double? = null,
+    val checkpointed: Boolean = false
+)
+
+@Serializable
+data class DeltaDriftReport(
+    val trackedUsers: Int,
+    val sampledUsers: Int,
+    val driftedUsers: Int,
+    val overlapMismatches: Long,
+    val maxScoreDrift: Double,
+    val tolerance: Double,
+    val verifiedAt: Long
+)
+
+@Serializable
+data class DeadLetterPartition(
+    val partition: Int,
+    val pending: Long
+)
+
+@Serializable
+data class DeadLetterReport(
+    val topic: String,
+    val targetTopic: String,
+    val redriven: Int = 0,
+    val pending: Long,
+    val partitions: List<DeadLetterPartition>
+)
+
 @Serializable
 data class ErrorResponse(
     val error: String
@@ -0,0 +1,21 @@
+package com.example.recommendationservice.entity
+
+import org.jetbrains.exposed.sql.Table
+import org.jetbrains.exposed.sql.javatime.datetime
+
+/**
+ * Время последнего удаления оценки пары (время события DELETED): вместе с
+ * user_ratings.updated_at показывает, было ли у пары изменение новее события,
+ * вернувшегося из повторов или DLQ. Строка на пару, повторное удаление её перезаписывает.
+ *
+ * Отметка нужна, пока удалённой паре может прийти более старое событие - из повторов
+ * или из DLQ, - поэтому строки старше kafka.dlq.deletionRetentionHours (не меньше
+ * retention топика DLQ) удаляются раз в час.
+ */
+object UserRatingDeletions : Table("user_rating_deletions") {
+    val userId = long("user_id")
+    val courseId = long("course_id")
+    val deletedAt = datetime("deleted_at").index()
+
+    override val primaryKey = PrimaryKey(userId, courseId)
+}
@@ -0,0 +1,146 @@
+package com.example.recommendationservice.kafka
+
+import com.example.recommendationservice.dto.CourseEvent
+import com.example.recommendationservice.model.CourseCatalog
+import com.example.recommendationservice.service.CourseServiceClient
+import io.ktor.server.application.*
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.json.Json
+import org.apache.kafka.clients.consumer.ConsumerConfig
+import org.apache.kafka.clients.consumer.KafkaConsumer
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.errors.WakeupException
+import org.apache.kafka.common.serialization.StringDeserializer
+import org.slf4j.LoggerFactory
+import java.time.Duration
+import java.util.*
+import kotlin.concurrent.thread
+
+/**
+ * Наполняет [CourseCatalog]: запоминает концы партиций топика courses,
+ * загружает снимок всех курсов из course-service и дальше применяет события
+ * с запомненных позиций. События, попавшие между позицией и снимком,
+ * применяются повторно - для реплики «последнее состояние курса» это безопасно.
+ * Запись без значения (tombstone компактного топика) - удаление курса из ключа.
+ *
+ * Потребитель без группы: каждому экземпляру сервиса нужны все события.
+ */
+class CourseEventConsumer(
+    application: Application,
+    private val courseCatalog: CourseCatalog,
+    private val courseClient: CourseServiceClient
+) {
+
+    private val logger = LoggerFactory.getLogger(CourseEventConsumer::class.java)
+    private val config = application.environment.config
+
+    private val bootstrapServers = config.property("kafka.bootstrapServers").getString()
+    private val topic = config.property("kafka.courseTopic").getString()
+
+    private var consumer: KafkaConsumer<String, String>? = null
+    @Volatile
+    private var running = true
+    private var consumerThread: Thread? = null
+    private var nextSnapshotAttempt = 0L
+
+    private val json = Json {
+        ignoreUnknownKeys = true
+        isLenient = true
+    }
+
+    fun start() {
+        val props = Properties().apply {
+            put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers)
+            put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer::class.java.name)
+            put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer::class.java.name)
+            put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false")
+        }
+
+        consumerThread = thread(start = true, name = "course-event-consumer") {
+            try {
+                consumer = KafkaConsumer<String, String>(props)
+                val partitions = awaitPartitions() ?: return@thread
+
+                consumer!!.assign(partitions)
+                consumer!!.seekToEnd(partitions)
+                partitions.forEach { consumer!!.position(it) }
+                loadSnapshot()
+
+                logger.info("Course event consumer started, listening to topic: $topic")
+
+                while (running) {
+                    try {
+                        consumer!!.poll(Duration.ofMillis(1000)).forEach { record ->
+                            try {
+                                val value = record.value()
+                                courseCatalog.apply(
+                                    if (value == null) CourseEvent("DELETED", record.key().toLong())
+                                    else json.decodeFromString<CourseEvent>(value)
+                                )
+                            } catch (e: Exception) {
+                                logger.error("Error processing course event: ${record.value()}", e)
+                            }
+                        }
+                        if (!courseCatalog.isReady && System.currentTimeMillis() >= nextSnapshotAttempt) {
+                            loadSnapshot()
+                        }
+                    } catch (e: WakeupException) {
+                        if (running) logger.warn("Unexpected course consumer wakeup")
+                    } catch (e: Exception) {
+                        if (running) {
+                            logger.error("Error polling course events", e)
+                            Thread.sleep(1000)
+                        }
+                    }
+                }
+            } catch (e: WakeupException) {
+                // остановка во время ожидания топика
+            } catch (e: Exception) {
+                logger.error("Course event consumer error", e)
+            } finally {
+                consumer?.close()
+                logger.info("Course event consumer stopped")
+            }
+        }
+    }
+
+    /** Ждёт появления топика (его создаёт course-service при старте) */
+    private fun awaitPartitions(): List<TopicPartition>? {
+        while (running) {
+            val partitions = try {
+                consumer!!.partitionsFor(topic, Duration.ofSeconds(10)).orEmpty()
+            } catch (e: WakeupException) {
+                throw e
+            } catch (e: Exception) {
+                logger.warn("Topic $topic is not available yet: ${e.message}")
+                emptyList()
+            }
+            if (partitions.isNotEmpty()) {
+                return partitions.map { TopicPartition(it.topic(), it.partition()) }
+            }
+            Thread.sleep(PARTITIONS_RETRY_MILLIS)
+        }
+        return null
+    }
+
+    private fun loadSnapshot() {
+        val courses = runBlocking { courseClient.allCourses() }
+        if (courses != null) {
+            courseCatalog.loadSnapshot(courses)
+        } else {
+            logger.error("Error loading course snapshot, retrying in ${SNAPSHOT_RETRY_MILLIS / 1000} s")
+            nextSnapshotAttempt = System.currentTimeMillis() + SNAPSHOT_RETRY_MILLIS
+        }
+    }
+
+    fun stop() {
+        running = false
+        consumer?.wakeup()
+        consumerThread?.join(5000)
+    }
+
+    companion object {
+        private const val PARTITIONS_RETRY_MILLIS = 5000L
+        private const val SNAPSHOT_RETRY_MILLIS = 30_000L
+    }
+}
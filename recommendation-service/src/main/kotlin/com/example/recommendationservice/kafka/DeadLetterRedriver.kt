@@ -0,0 +1,148 @@
+package com.example.recommendationservice.kafka
+
+import com.example.recommendationservice.dto.DeadLetterPartition
+import com.example.recommendationservice.dto.DeadLetterReport
+import com.example.recommendationservice.metrics.Metrics
+import io.ktor.server.application.*
+import org.apache.kafka.clients.consumer.ConsumerConfig
+import org.apache.kafka.clients.consumer.KafkaConsumer
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.clients.producer.KafkaProducer
+import org.apache.kafka.clients.producer.ProducerConfig
+import org.apache.kafka.clients.producer.ProducerRecord
+import org.apache.kafka.clients.producer.RecordMetadata
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.header.internals.RecordHeaders
+import org.apache.kafka.common.serialization.StringSerializer
+import org.slf4j.LoggerFactory
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.Future
+
+/**
+ * Возврат событий из DLQ ([FailedEventRouter.deadLetterTopic]) в основной топик после
+ * исправления причины сбоя. Позиция чтения DLQ - закоммиченные offset'ы отдельной группы,
+ * поэтому каждое событие возвращается один раз; в основной топик оно уходит с исходным
+ * ключом и без заголовков повторов - как новое событие, с полным набором попыток, - но
+ * с [FailedEventRouter.REDRIVEN_HEADER]: если оценку пары с тех пор изменило или удалило
+ * более новое событие, [RatingEventProcessor] возвращённое событие пропускает.
+ *
+ * Потребитель и продюсер создаются на время вызова: DLQ читается редко и по команде.
+ */
+class DeadLetterRedriver(application: Application, private val failedEvents: FailedEventRouter) {
+
+    private val logger = LoggerFactory.getLogger(DeadLetterRedriver::class.java)
+    private val config = application.environment.config
+
+    private val bootstrapServers = config.property("kafka.bootstrapServers").getString()
+    private val groupId = config.property("kafka.groupId").getString() + ".dlq-redrive"
+    private val topic = config.property("kafka.topic").getString()
+
+    private val redriven = Metrics.counter("kafka.dlq.redriven")
+
+    /** Сколько событий ждёт в DLQ, по партициям */
+    @Synchronized
+    fun pending(): DeadLetterReport = withConsumer { consumer, partitions ->
+        report(0, positions(consumer, partitions), consumer.endOffsets(partitions, TIMEOUT))
+    }
+
+    /**
+     * Возвращает в основной топик до [limit] событий DLQ в порядке offset'ов партиций,
+     * не дольше [REDRIVE_TIMEOUT_MILLIS] за вызов. Offset'ы DLQ коммитятся только после подтверждения записи в основной топик: при сбое
+     * посередине часть событий может вернуться повторно, но ни одно не теряется.
+     */
+    @Synchronized
+    fun redrive(limit: Int): DeadLetterReport = withConsumer { consumer, partitions ->
+        val positions = positions(consumer, partitions)
+        val ends = consumer.endOffsets(partitions, TIMEOUT)
+        if (limit <= 0) return@withConsumer report(0, positions, ends)
+
+        var sent = 0
+        val deadline = System.currentTimeMillis() + REDRIVE_TIMEOUT_MILLIS
+        newProducer().use { producer ->
+            val acks = ArrayList<Future<RecordMetadata>>()
+            while (sent < limit && System.currentTimeMillis() < deadline &&
+                partitions.any { positions.getValue(it) < (ends[it] ?: 0L) }
+            ) {
+                val records = consumer.poll(POLL_TIMEOUT)
+                for (partition in records.partitions()) {
+                    var limited = false
+                    for (record in records.records(partition)) {
+                        if (sent == limit || record.offset() >= (ends[partition] ?: 0L)) {
+                            limited = true
+                            break
+                        }
+                        val headers = RecordHeaders().add(FailedEventRouter.REDRIVEN_HEADER, record.offset().toString().toByteArray())
+                        acks.add(producer.send(ProducerRecord(topic, null, record.key(), record.value(), headers)))
+                        positions[partition] = record.offset() + 1
+                        sent++
+                    }
+                    // Остаток poll() перечитается следующим циклом или следующим вызовом;
+                    // без остатка позиция потребителя учитывает и пропуски offset'ов
+                    if (limited) consumer.seek(partition, positions.getValue(partition))
+                    else positions[partition] = consumer.position(partition)
+                }
+            }
+            producer.flush()
+            acks.forEach { it.get() }
+        }
+        consumer.commitSync(partitions.associateWith { OffsetAndMetadata(positions.getValue(it)) }, TIMEOUT)
+        redriven.addAndGet(sent.toLong())
+        if (sent > 0) logger.info("Redriven $sent events from ${failedEvents.deadLetterTopic} to $topic")
+        report(sent, positions, ends)
+    }
+
+    private fun <T> withConsumer(block: (KafkaConsumer<String, String>, List<TopicPartition>) -> T): T {
+        val props = RatingEventConsumer.consumerProperties(bootstrapServers, groupId).apply {
+            put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false")
+            put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest")
+            put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, MAX_POLL_RECORDS)
+        }
+        return KafkaConsumer<String, String>(props).use { consumer ->
+            val partitions = consumer.partitionsFor(failedEvents.deadLetterTopic, TIMEOUT)
+                .map { TopicPartition(it.topic(), it.partition()) }
+                .sortedBy { it.partition() }
+            consumer.assign(partitions)
+            block(consumer, partitions)
+        }
+    }
+
+    /** Закоммиченная позиция группы или начало лога, если группа партицию ещё не читала */
+    private fun positions(consumer: KafkaConsumer<String, String>, partitions: List<TopicPartition>): MutableMap<TopicPartition, Long> {
+        val committed = consumer.committed(partitions.toSet(), TIMEOUT)
+        val beginnings = consumer.beginningOffsets(partitions, TIMEOUT)
+        return partitions.associateWithTo(HashMap()) { partition ->
+            val position = maxOf(committed[partition]?.offset() ?: 0L, beginnings[partition] ?: 0L)
+            consumer.seek(partition, position)
+            position
+        }
+    }
+
+    private fun report(sent: Int, positions: Map<TopicPartition, Long>, ends: Map<TopicPartition, Long>): DeadLetterReport {
+        val partitions = positions.keys.sortedBy { it.partition() }.map { partition ->
+            DeadLetterPartition(partition.partition(), maxOf((ends[partition] ?: 0L) - positions.getValue(partition), 0L))
+        }
+        return DeadLetterReport(
+            topic = failedEvents.deadLetterTopic,
+            targetTopic = topic,
+            redriven = sent,
+            pending = partitions.sumOf { it.pending },
+            partitions = partitions
+        )
+    }
+
+    private fun newProducer() = KafkaProducer<String, String>(Properties().apply {
+        put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers)
+        put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer::class.java.name)
+        put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer::class.java.name)
+        put(ProducerConfig.ACKS_CONFIG, "all")
+        put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true)
+    })
+
+    companion object {
+        private val TIMEOUT = Duration.ofSeconds(10)
+        private val POLL_TIMEOUT = Duration.ofMillis(500)
+        private const val MAX_POLL_RECORDS = 500
+        private const val REDRIVE_TIMEOUT_MILLIS = 60_000L
+    }
+}
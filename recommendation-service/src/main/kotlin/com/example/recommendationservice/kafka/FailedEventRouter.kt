@@ -0,0 +1,209 @@
+package com.example.recommendationservice.kafka
+
+import com.example.recommendationservice.dto.RatingEvent
+import com.example.recommendationservice.metrics.Metrics
+import io.ktor.server.application.*
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.clients.producer.KafkaProducer
+import org.apache.kafka.clients.producer.ProducerConfig
+import org.apache.kafka.clients.producer.ProducerRecord
+import org.apache.kafka.common.header.internals.RecordHeaders
+import org.apache.kafka.common.serialization.StringSerializer
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListMap
+
+/**
+ * Уводит события оценок, которые не удалось применить, из основного топика, не
+ * останавливая партицию: в топики повторов `<topic>.retry.N` с нарастающей паузой
+ * (kafka.retry.backoffSeconds), после последнего яруса - в `<topic>.dlq`.
+ * Нераскодируемые события идут в DLQ сразу. Записи несут заголовки с номером попытки,
+ * временем, раньше которого повтор не выполняется, исходными партицией и offset'ом и ошибкой.
+ *
+ * Порядок событий одной пары (userId, courseId) сохраняется: пока у пары есть событие
+ * в повторах, следующие её события тоже уходят в повторы, а применяются строго в порядке
+ * исходных offset'ов ([isNext]). Учёт - в памяти экземпляра и с истечением
+ * ([parkTimeoutMillis]): после перезапуска или если повторы читает другой экземпляр,
+ * события из повторов применяются по мере готовности, а пара не остаётся заблокированной.
+ *
+ * Отправка синхронная: offset основной партиции не коммитится, пока событие не записано
+ * в топик повторов; если Kafka недоступна, пачку повторяет [PartitionWorker].
+ */
+class FailedEventRouter(application: Application) {
+
+    private val logger = LoggerFactory.getLogger(FailedEventRouter::class.java)
+    private val config = application.environment.config
+
+    private val topic = config.property("kafka.topic").getString()
+
+    /** Пауза перед повтором на каждом ярусе */
+    val backoffMillis: List<Long> =
+        config.property("kafka.retry.backoffSeconds").getList().map { it.toLong() * 1000 }
+
+    val retryTopics: List<String> = backoffMillis.indices.map { "$topic.retry.${it + 1}" }
+    val deadLetterTopic = "$topic.dlq"
+
+    private val producer = KafkaProducer<String, String>(Properties().apply {
+        put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, config.property("kafka.bootstrapServers").getString())
+        put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer::class.java.name)
+        put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer::class.java.name)
+        put(ProducerConfig.ACKS_CONFIG, "all")
+        put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true)
+    })
+
+    /** С запасом больше всех пауз повторов: столько пара ждёт своё событие из повторов */
+    private val parkTimeoutMillis = backoffMillis.sum() * 2 + PARK_GRACE_MILLIS
+
+    // (userId, courseId) -> исходный offset события пары в повторах -> когда перестать его ждать
+    private val pending = ConcurrentHashMap<Pair<Long, Long>, ConcurrentSkipListMap<Long, Long>>()
+
+    // Исходная партиция -> исходные offset'ы событий в повторах -> когда перестать их учитывать
+    private val inRetry = ConcurrentHashMap<Int, ConcurrentSkipListMap<Long, Long>>()
+
+    private val retried = Metrics.counter("kafka.retry.sent")
+    private val deadLettered = Metrics.counter("kafka.dlq.sent")
+
+    init {
+        require(backoffMillis.isNotEmpty()) { "kafka.retry.backoffSeconds must not be empty" }
+        Metrics.gauge("kafka.retry.parked_keys") { pending.size }
+    }
+
+    /** Есть ли у пары события в повторах: тогда новые её события тоже идут в повторы */
+    fun isParked(event: RatingEvent): Boolean = firstPending(event) != null
+
+    /** Событие из основного топика - в первый ярус повторов */
+    fun sendToRetry(record: ConsumerRecord<String, String>, event: RatingEvent, error: String) {
+        val expiresAt = System.currentTimeMillis() + parkTimeoutMillis
+        pending.computeIfAbsent(keyOf(event)) { ConcurrentSkipListMap() }[record.offset()] = expiresAt
+        inRetry.computeIfAbsent(record.partition()) { ConcurrentSkipListMap() }[record.offset()] = expiresAt
+        send(retryTopics[0], record, attempt = 1, originalPartition = record.partition(), originalOffset = record.offset(), error)
+        retried.incrementAndGet()
+    }
+
+    /** Нераскодируемое или невалидное событие из основного топика - сразу в DLQ */
+    fun sendToDeadLetter(record: ConsumerRecord<String, String>, error: String) {
+        logger.error("Sending rejected record ${record.topic()}-${record.partition()}@${record.offset()} to $deadLetterTopic")
+        send(deadLetterTopic, record, attempt = 0, originalPartition = record.partition(), originalOffset = record.offset(), error)
+        deadLettered.incrementAndGet()
+    }
+
+    /** Повтор не удался - в следующий ярус или, после последнего, в DLQ */
+    fun escalate(record: ConsumerRecord<String, String>, event: RatingEvent, error: String) {
+        val attempt = attemptOf(record)
+        val originalOffset = originalOffsetOf(record)
+        if (attempt < retryTopics.size) {
+            send(retryTopics[attempt], record, attempt + 1, originalPartitionOf(record), originalOffset, error)
+            retried.incrementAndGet()
+        } else {
+            logger.error("Event $event failed after $attempt retries, sending to $deadLetterTopic: $error")
+            send(deadLetterTopic, record, attempt, originalPartitionOf(record), originalOffset, error)
+            deadLettered.incrementAndGet()
+            release(event, originalPartitionOf(record), originalOffset)
+        }
+    }
+
+    /** Событие применено или ушло в DLQ: следующие события пары больше его не ждут */
+    fun release(event: RatingEvent, originalPartition: Int, originalOffset: Long) {
+        pending.computeIfPresent(keyOf(event)) { _, offsets ->
+            offsets.remove(originalOffset)
+            offsets.takeIf { it.isNotEmpty() }
+        }
+        inRetry[originalPartition]?.remove(originalOffset)
+    }
+
+    /**
+     * Самый ранний исходный offset партиции, событие которого ещё в повторах: матрица
+     * его не содержит, поэтому снимок не должен заявлять offset'ы дальше него. Учёт истекает
+     * так же, как ожидание пары: событие, которое повторяет другой экземпляр, не держит снимок вечно.
+     */
+    fun firstInRetry(partition: Int): Long? {
+        val offsets = inRetry[partition] ?: return null
+        val now = System.currentTimeMillis()
+        while (true) {
+            val first = offsets.firstEntry() ?: return null
+            if (first.value > now) return first.key
+            offsets.remove(first.key, first.value)
+        }
+    }
+
+    /**
+     * Ждут ли события пары это событие: пока да, новые события пары уходят в повторы за ним
+     * и применены быть не могли, так что проверять его по времени последнего изменения не нужно
+     */
+    fun isTracked(event: RatingEvent, originalOffset: Long): Boolean {
+        val expiresAt = pending[keyOf(event)]?.get(originalOffset) ?: return false
+        return expiresAt > System.currentTimeMillis()
+    }
+
+    /** Можно ли применять событие: раньше него в повторах нет событий той же пары */
+    fun isNext(event: RatingEvent, originalOffset: Long): Boolean {
+        val first = firstPending(event) ?: return true
+        return first >= originalOffset
+    }
+
+    /** Самый ранний исходный offset пары в повторах; истёкшие ожидания снимаются */
+    private fun firstPending(event: RatingEvent): Long? {
+        val key = keyOf(event)
+        val offsets = pending[key] ?: return null
+        val now = System.currentTimeMillis()
+        while (true) {
+            val first = offsets.firstEntry() ?: break
+            if (first.value > now) return first.key
+            offsets.remove(first.key, first.value)
+        }
+        pending.computeIfPresent(key) { _, current -> current.takeIf { it.isNotEmpty() } }
+        return null
+    }
+
+    fun attemptOf(record: ConsumerRecord<String, String>): Int = longHeader(record, ATTEMPT_HEADER)?.toInt() ?: 1
+
+    fun notBeforeOf(record: ConsumerRecord<String, String>): Long = longHeader(record, NOT_BEFORE_HEADER) ?: 0
+
+    fun originalOffsetOf(record: ConsumerRecord<String, String>): Long =
+        longHeader(record, ORIGINAL_OFFSET_HEADER) ?: record.offset()
+
+    fun originalPartitionOf(record: ConsumerRecord<String, String>): Int =
+        longHeader(record, ORIGINAL_PARTITION_HEADER)?.toInt() ?: record.partition()
+
+    private fun send(
+        target: String,
+        record: ConsumerRecord<String, String>,
+        attempt: Int,
+        originalPartition: Int,
+        originalOffset: Long,
+        error: String
+    ) {
+        val headers = RecordHeaders().apply {
+            add(ATTEMPT_HEADER, attempt.toString().toByteArray())
+            if (target != deadLetterTopic) {
+                add(NOT_BEFORE_HEADER, (System.currentTimeMillis() + backoffMillis[attempt - 1]).toString().toByteArray())
+            }
+            add(ORIGINAL_PARTITION_HEADER, originalPartition.toString().toByteArray())
+            add(ORIGINAL_OFFSET_HEADER, originalOffset.toString().toByteArray())
+            add(ERROR_HEADER, error.take(MAX_ERROR_LENGTH).toByteArray())
+        }
+        producer.send(ProducerRecord(target, null, record.key(), record.value(), headers)).get()
+    }
+
+    fun close() {
+        producer.close()
+    }
+
+    companion object {
+        const val ATTEMPT_HEADER = "retry.attempt"
+        const val NOT_BEFORE_HEADER = "retry.not-before"
+        const val ORIGINAL_PARTITION_HEADER = "retry.original-partition"
+        const val ORIGINAL_OFFSET_HEADER = "retry.original-offset"
+        const val ERROR_HEADER = "retry.error"
+        // Событие возвращено из DLQ: применяется, только если пара не менялась после него
+        const val REDRIVEN_HEADER = "retry.redriven"
+        private const val MAX_ERROR_LENGTH = 1000
+        private const val PARK_GRACE_MILLIS = 60_000L
+
+        private fun keyOf(event: RatingEvent) = event.userId to event.courseId
+
+        private fun longHeader(record: ConsumerRecord<String, String>, name: String): Long? =
+            record.headers().lastHeader(name)?.value()?.decodeToString()?.toLongOrNull()
+    }
+}
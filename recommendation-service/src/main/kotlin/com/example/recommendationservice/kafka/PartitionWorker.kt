@@ -0,0 +1,122 @@
+package com.example.recommendationservice.kafka
+
+import com.example.recommendationservice.metrics.Metrics
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.common.TopicPartition
+import org.slf4j.LoggerFactory
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+/**
+ * Воркер одной назначенной партиции: собственный поток и очередь записей.
+ * Записи партиции обрабатываются строго по порядку (rating-service использует
+ * userId как ключ, поэтому это и порядок событий пользователя), пачками до
+ * [maxBatchSize]. Упавшая пачка повторяется, пока не будет обработана -
+ * offset партиции не продвигается дальше необработанных записей. С топиками
+ * повторов ([FailedEventRouter]) пачка падает, только если не удалось отправить
+ * в них событие (недоступна сама Kafka).
+ */
+class PartitionWorker(
+    val partition: TopicPartition,
+    private val processor: RatingEventProcessor,
+    private val maxBatchSize: Int
+) {
+
+    private val logger = LoggerFactory.getLogger(PartitionWorker::class.java)
+
+    private val queue = LinkedBlockingQueue<ConsumerRecord<String, String>>()
+
+    // Записи в очереди плюс обрабатываемые прямо сейчас
+    private val inFlight = AtomicInteger()
+
+    /** Следующий offset для коммита (последний обработанный + 1), -1 если ещё ничего не обработано */
+    @Volatile
+    var processedOffset: Long = -1
+        private set
+
+    val processedRecords = AtomicLong()
+
+    @Volatile
+    private var running = true
+
+    private val metricPrefix = "kafka.partition.${partition.partition()}"
+
+    private val thread = thread(start = true, name = "rating-worker-${partition.partition()}") { run() }
+
+    init {
+        Metrics.gauge("$metricPrefix.queued") { inFlight.get() }
+    }
+
+    fun submit(records: List<ConsumerRecord<String, String>>) {
+        inFlight.addAndGet(records.size)
+        queue.addAll(records)
+    }
+
+    fun queuedRecords(): Int = inFlight.get()
+
+    /**
+     * Ждёт, пока обработаются все переданные записи. Возвращает false по таймауту.
+     */
+    fun drain(timeoutMillis: Long): Boolean {
+        val deadline = System.currentTimeMillis() + timeoutMillis
+        while (inFlight.get() > 0) {
+            if (System.currentTimeMillis() > deadline) return false
+            Thread.sleep(DRAIN_POLL_MILLIS)
+        }
+        return true
+    }
+
+    fun stop() {
+        running = false
+        thread.interrupt()
+        thread.join(STOP_TIMEOUT_MILLIS)
+        Metrics.removeGauge("$metricPrefix.queued")
+    }
+
+    private fun run() {
+        val batch = ArrayList<ConsumerRecord<String, String>>(maxBatchSize)
+        while (running) {
+            try {
+                val first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) ?: continue
+                batch.add(first)
+                queue.drainTo(batch, maxBatchSize - 1)
+
+                processWithRetry(batch)
+
+                processedOffset = batch.last().offset() + 1
+                processedRecords.addAndGet(batch.size.toLong())
+                inFlight.addAndGet(-batch.size)
+                batch.clear()
+            } catch (e: InterruptedException) {
+                if (running) logger.warn("Worker for $partition interrupted")
+            }
+        }
+        logger.info("Worker for $partition stopped")
+    }
+
+    private fun processWithRetry(batch: List<ConsumerRecord<String, String>>) {
+        var backoffMillis = INITIAL_BACKOFF_MILLIS
+        while (true) {
+            try {
+                processor.process(batch)
+                return
+            } catch (e: Exception) {
+                if (!running) throw InterruptedException("Worker stopped")
+                logger.error("Error processing batch of ${batch.size} records from $partition, retrying in $backoffMillis ms", e)
+                Thread.sleep(backoffMillis)
+                backoffMillis = minOf(backoffMillis * 2, MAX_BACKOFF_MILLIS)
+            }
+        }
+    }
+
+    companion object {
+        private const val POLL_TIMEOUT_MILLIS = 200L
+        private const val DRAIN_POLL_MILLIS = 10L
+        private const val STOP_TIMEOUT_MILLIS = 5000L
+        private const val INITIAL_BACKOFF_MILLIS = 500L
+        private const val MAX_BACKOFF_MILLIS = 30_000L
+    }
+}
@@ -1,77 +1,126 @@
 package com.example.recommendationservice.kafka
 
-import com.example.recommendationservice.dto.RatingEvent
-import com.example.recommendationservice.repository.RecommendationRepository
-import com.example.recommendationservice.service.RecommendationService
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.service.RecalculationScheduler
 import io.ktor.server.application.*
-import kotlinx.coroutines.*
-import kotlinx.serialization.json.Json
 import org.apache.kafka.clients.consumer.ConsumerConfig
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener
 import org.apache.kafka.clients.consumer.KafkaConsumer
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.errors.WakeupException
 import org.apache.kafka.common.serialization.StringDeserializer
 import org.slf4j.LoggerFactory
 import java.time.Duration
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.concurrent.thread
 
-class RatingEventConsumer(application: Application) {
-    
+/**
+ * Потребитель событий оценок. Поток poll() только читает записи, раздаёт их
+ * воркерам назначенных партиций ([PartitionWorker]) и коммитит offset'ы,
+ * которые воркеры уже обработали. Медленная партиция ставится на паузу,
+ * не задерживая остальные; перед отзывом партиции при ребалансировке
+ * её воркер дорабатывает очередь и коммитит результат.
+ *
+ * Для каждой партиции, которой потребитель владел, помнится offset, до которого
+ * события применены к матрице ([appliedOffsets]); он попадает в снимок матрицы.
+ * При назначении партиции чтение начинается с него, а не с закоммиченного offset'а:
+ * матрица, загруженная из снимка, получает всё, что случилось после снимка.
+ *
+ * С [failedEvents] события, которые не удалось применить, уходят в топики повторов
+ * и DLQ, а партиция идёт дальше; без него воркер повторяет пачку сам.
+ */
+class RatingEventConsumer(
+    application: Application,
+    ratingMatrix: RatingMatrix,
+    recalculationScheduler: RecalculationScheduler,
+    initialOffsets: Map<Int, Long> = emptyMap(),
+    private val failedEvents: FailedEventRouter? = null
+) {
+
     private val logger = LoggerFactory.getLogger(RatingEventConsumer::class.java)
     private val config = application.environment.config
-    
+
     private val bootstrapServers = config.property("kafka.bootstrapServers").getString()
     private val groupId = config.property("kafka.groupId").getString()
     private val topic = config.property("kafka.topic").getString()
-    private val courseServiceUrl = config.property("services.courseServiceUrl").getString()
-    
-    private val recommendationService = RecommendationService(courseServiceUrl)
-    
+    private val batchMode = config.property("kafka.batchMode").getString().toBoolean()
+    private val maxPollRecords = config.property("kafka.maxPollRecords").getString().toInt()
+    private val workerQueueCapacity = config.property("kafka.workerQueueCapacity").getString().toInt()
+    private val revokeDrainTimeoutMillis =
+        config.property("kafka.revokeDrainTimeoutSeconds").getString().toLong() * 1000
+
+    private val processor = RatingEventProcessor(ratingMatrix, recalculationScheduler, batchMode, failedEvents)
+
     private var consumer: KafkaConsumer<String, String>? = null
     private var running = true
     private var consumerThread: Thread? = null
-    
-    private val json = Json { 
-        ignoreUnknownKeys = true 
-        isLenient = true
+
+    // Доступ к воркерам и паузам только из потока poll() (включая колбэки ребалансировки)
+    private val workers = HashMap<TopicPartition, PartitionWorker>()
+    private val paused = HashSet<TopicPartition>()
+    private val committedOffsets = HashMap<TopicPartition, Long>()
+
+    // Партиция -> offset, до которого события применены к матрице (читается снимком из другого потока)
+    private val appliedOffsets = ConcurrentHashMap<Int, Long>(initialOffsets)
+
+    // Значения gauge'ей считаются в потоке poll(), читаются из /metrics
+    private val partitionLag = ConcurrentHashMap<Int, AtomicLong>()
+    private val partitionRate = ConcurrentHashMap<Int, AtomicLong>()
+    private val lastRateSample = HashMap<TopicPartition, Pair<Long, Long>>()
+
+    /**
+     * Снимок [appliedOffsets] для записи вместе с матрицей. Партиция, у которой события
+     * ещё в повторах, ограничена самым ранним из них: после старта со снимка оно прочитается
+     * из основного топика заново, а не потеряется, если повтор применится уже после снимка.
+     */
+    fun appliedOffsets(): Map<Int, Long> = appliedOffsets.mapValuesTo(HashMap()) { (partition, offset) ->
+        failedEvents?.firstInRetry(partition)?.let { minOf(it, offset) } ?: offset
     }
-    
+
     fun start() {
-        val props = Properties().apply {
-            put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers)
-            put(ConsumerConfig.GROUP_ID_CONFIG, groupId)
-            put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer::class.java.name)
-            put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer::class.java.name)
+        val props = consumerProperties(bootstrapServers, groupId).apply {
             put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest")
-            put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "true")
+            // Offset'ы коммитятся вручную - только то, что воркеры уже обработали
+            put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false")
+            put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords)
         }
-        
+
         consumerThread = thread(start = true, name = "kafka-consumer") {
             try {
                 consumer = KafkaConsumer<String, String>(props)
-                consumer?.subscribe(listOf(topic))
-                
-                logger.info("Kafka consumer started, listening to topic: $topic")
-                
+                consumer?.subscribe(listOf(topic), RebalanceListener())
+
+                logger.info("Kafka consumer started, listening to topic: $topic (batchMode=$batchMode)")
+
+                // Пауза после ошибок poll()/коммита растёт с каждой ошибкой подряд: разовый сбой
+                // задерживает все партиции на миллисекунды, а не на секунду
+                var errorBackoffMillis = 0L
                 while (running) {
                     try {
-                        val records = consumer?.poll(Duration.ofMillis(1000))
-                        
-                        records?.forEach { record ->
-                            try {
-                                logger.debug("Received message: ${record.value()}")
-                                val event = json.decodeFromString<RatingEvent>(record.value())
-                                processRatingEvent(event)
-                            } catch (e: Exception) {
-                                logger.error("Error processing message: ${record.value()}", e)
-                            }
+                        val records = consumer!!.poll(Duration.ofMillis(POLL_TIMEOUT_MILLIS))
+                        records.partitions().forEach { partition ->
+                            workers[partition]?.submit(records.records(partition))
                         }
+                        applyBackpressure()
+                        commitProcessed()
+                        updatePartitionMetrics()
+                        errorBackoffMillis = 0
+                    } catch (e: WakeupException) {
+                        if (running) logger.warn("Unexpected consumer wakeup")
                     } catch (e: Exception) {
                         if (running) {
-                            logger.error("Error polling messages", e)
-                            Thread.sleep(1000)
+                            errorBackoffMillis = (errorBackoffMillis * 2).coerceIn(MIN_ERROR_BACKOFF_MILLIS, MAX_ERROR_BACKOFF_MILLIS)
+                            logger.error("Error polling messages, retrying in $errorBackoffMillis ms", e)
+                            Thread.sleep(errorBackoffMillis)
                         }
                     }
                 }
+
+                drainAndStop(workers.keys.toList())
             } catch (e: Exception) {
                 logger.error("Kafka consumer error", e)
             } finally {
@@ -80,39 +129,233 @@ class RatingEventConsumer(application: Application) {
             }
         }
     }
-    
-    private fun processRatingEvent(event: RatingEvent) {
-        logger.info("Processing rating event: type=${event.eventType}, userId=${event.userId}, courseId=${event.courseId}")
-        
-        when (event.eventType) {
-            "CREATED", "UPDATED" -> {
-                RecommendationRepository.saveOrUpdateUserRating(
-                    event.userId,
-                    event.courseId,
-                    event.rating
-                )
-                
-                // Пересчитываем рекомендации асинхронно
-                CoroutineScope(Dispatchers.IO).launch {
-                    recommendationService.recalculateRecommendations(event.userId)
-                }
+
+    /**
+     * Приостанавливает партиции, у воркеров которых накопилось больше
+     * [workerQueueCapacity] записей, и возобновляет их после разгрузки.
+     */
+    private fun applyBackpressure() {
+        val consumer = consumer ?: return
+        workers.forEach { (partition, worker) ->
+            val queued = worker.queuedRecords()
+            if (queued >= workerQueueCapacity && paused.add(partition)) {
+                consumer.pause(listOf(partition))
+                logger.debug("Partition $partition paused, $queued records queued")
+            } else if (queued < workerQueueCapacity / 2 && paused.remove(partition)) {
+                consumer.resume(listOf(partition))
+                logger.debug("Partition $partition resumed")
             }
-            "DELETED" -> {
-                RecommendationRepository.deleteUserRating(event.userId, event.courseId)
-                
-                CoroutineScope(Dispatchers.IO).launch {
-                    recommendationService.recalculateRecommendations(event.userId)
-                }
+        }
+    }
+
+    private fun commitProcessed(partitions: Collection<TopicPartition> = workers.keys) {
+        val offsets = HashMap<TopicPartition, OffsetAndMetadata>()
+        partitions.forEach { partition ->
+            val offset = workers[partition]?.processedOffset ?: return@forEach
+            if (offset >= 0) appliedOffsets[partition.partition()] = offset
+            if (offset >= 0 && committedOffsets[partition] != offset) {
+                offsets[partition] = OffsetAndMetadata(offset)
+            }
+        }
+        if (offsets.isEmpty()) return
+
+        consumer?.commitSync(offsets)
+        offsets.forEach { (partition, offset) -> committedOffsets[partition] = offset.offset() }
+    }
+
+    private fun updatePartitionMetrics() {
+        val consumer = consumer ?: return
+        val now = System.nanoTime()
+        workers.forEach { (partition, worker) ->
+            consumer.currentLag(partition).ifPresent { lag ->
+                partitionLag[partition.partition()]?.set(lag + worker.queuedRecords())
             }
-            else -> {
-                logger.warn("Unknown event type: ${event.eventType}")
+
+            val processed = worker.processedRecords.get()
+            val (sampledAt, sampledCount) = lastRateSample.getOrPut(partition) { now to processed }
+            val elapsedNanos = now - sampledAt
+            if (elapsedNanos >= RATE_WINDOW_NANOS) {
+                partitionRate[partition.partition()]?.set((processed - sampledCount) * 1_000_000_000 / elapsedNanos)
+                lastRateSample[partition] = now to processed
             }
         }
     }
-    
+
+    /**
+     * Начинает партиции с offset'а, до которого матрица их уже видела. Если он
+     * старше начала лога (удалён по retention), события между ними потеряны для матрицы.
+     * Партиция без такого offset'а начинается с закоммиченного (или с начала лога) - он
+     * и запоминается: всё до него матрица получила из БД.
+     */
+    private fun seekToApplied(partitions: Collection<TopicPartition>) {
+        val consumer = consumer ?: return
+        val (known, unknown) = partitions.partition { appliedOffsets.containsKey(it.partition()) }
+        unknown.forEach { partition -> appliedOffsets.putIfAbsent(partition.partition(), consumer.position(partition)) }
+        if (known.isEmpty()) return
+
+        val beginnings = consumer.beginningOffsets(known)
+        known.forEach { partition ->
+            val offset = appliedOffsets.getValue(partition.partition())
+            val beginning = beginnings[partition] ?: 0L
+            if (offset < beginning) {
+                logger.error("Applied offset $offset of $partition is before log start $beginning, events in between are lost")
+            }
+            consumer.seek(partition, maxOf(offset, beginning))
+        }
+        logger.info("Resuming partitions from applied offsets: ${known.associate { it.partition() to appliedOffsets[it.partition()] }}")
+    }
+
+    private fun startWorkers(partitions: Collection<TopicPartition>) {
+        partitions.forEach { partition ->
+            workers[partition] = PartitionWorker(partition, processor, maxPollRecords)
+
+            val lag = AtomicLong()
+            val rate = AtomicLong()
+            partitionLag[partition.partition()] = lag
+            partitionRate[partition.partition()] = rate
+            Metrics.gauge("kafka.partition.${partition.partition()}.lag") { lag.get() }
+            Metrics.gauge("kafka.partition.${partition.partition()}.records_per_sec") { rate.get() }
+        }
+    }
+
+    private fun stopWorkers(partitions: Collection<TopicPartition>) {
+        partitions.forEach { partition ->
+            workers.remove(partition)?.let { worker ->
+                worker.stop()
+                // Матрица остаётся с событиями партиции до этого offset'а, даже если он не закоммичен
+                if (worker.processedOffset >= 0) appliedOffsets[partition.partition()] = worker.processedOffset
+            }
+            paused.remove(partition)
+            committedOffsets.remove(partition)
+            lastRateSample.remove(partition)
+            partitionLag.remove(partition.partition())
+            partitionRate.remove(partition.partition())
+            Metrics.removeGauge("kafka.partition.${partition.partition()}.lag")
+            Metrics.removeGauge("kafka.partition.${partition.partition()}.records_per_sec")
+        }
+    }
+
+    /**
+     * Дожидается обработки уже розданных записей, коммитит их offset'ы и
+     * останавливает воркеры. Не дождавшиеся записи будут перечитаны новым владельцем.
+     */
+    private fun drainAndStop(partitions: Collection<TopicPartition>) {
+        partitions.forEach { partition ->
+            val worker = workers[partition] ?: return@forEach
+            if (!worker.drain(revokeDrainTimeoutMillis)) {
+                logger.warn("Worker for $partition not drained in $revokeDrainTimeoutMillis ms, ${worker.queuedRecords()} records left")
+            }
+        }
+        try {
+            commitProcessed(partitions)
+        } catch (e: Exception) {
+            logger.error("Failed to commit offsets for $partitions", e)
+        }
+        stopWorkers(partitions)
+    }
+
+    private inner class RebalanceListener : ConsumerRebalanceListener {
+
+        override fun onPartitionsAssigned(partitions: Collection<TopicPartition>) {
+            logger.info("Partitions assigned: $partitions")
+            val assigned = partitions.filterNot { it in workers }
+            seekToApplied(assigned)
+            startWorkers(assigned)
+            warnIfPartial()
+        }
+
+        override fun onPartitionsRevoked(partitions: Collection<TopicPartition>) {
+            logger.info("Partitions revoked: $partitions")
+            drainAndStop(partitions)
+        }
+
+        override fun onPartitionsLost(partitions: Collection<TopicPartition>) {
+            // Партиции уже у другого потребителя - коммитить нельзя, очередь отбрасываем
+            logger.warn("Partitions lost: $partitions")
+            stopWorkers(partitions)
+        }
+    }
+
+    /**
+     * Резидентная матрица видит события только своих партиций: с несколькими экземплярами
+     * в группе оценки остальных партиций в ней не обновляются
+     */
+    private fun warnIfPartial() {
+        val total = consumer?.partitionsFor(topic)?.size ?: return
+        if (workers.size < total) {
+            logger.warn(
+                "Consumer owns ${workers.size} of $total partitions of $topic: the rating matrix misses " +
+                    "events of the others. Run a single recommendation-service instance per group $groupId"
+            )
+        }
+    }
+
     fun stop() {
         running = false
         consumer?.wakeup()
-        consumerThread?.join(5000)
+        consumerThread?.join(revokeDrainTimeoutMillis + 5000)
+    }
+
+    companion object {
+        private const val POLL_TIMEOUT_MILLIS = 500L
+        private const val RATE_WINDOW_NANOS = 5_000_000_000L
+        private const val COMMITTED_OFFSETS_TIMEOUT_SECONDS = 10L
+        private const val MIN_ERROR_BACKOFF_MILLIS = 50L
+        private const val MAX_ERROR_BACKOFF_MILLIS = 1000L
+
+        internal fun consumerProperties(bootstrapServers: String, groupId: String) = Properties().apply {
+            put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers)
+            put(ConsumerConfig.GROUP_ID_CONFIG, groupId)
+            put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer::class.java.name)
+            put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer::class.java.name)
+        }
+
+        /**
+         * Закоммиченные offset'ы группы по всем партициям топика оценок. Читаются
+         * до загрузки матрицы из БД: коммит идёт после записи в БД, поэтому
+         * загруженная следом матрица отражает как минимум эти события.
+         * Пустой результат, если Kafka недоступна.
+         */
+        fun committedOffsets(application: Application): Map<Int, Long> {
+            val config = application.environment.config
+            val topic = config.property("kafka.topic").getString()
+            val props = consumerProperties(
+                config.property("kafka.bootstrapServers").getString(),
+                config.property("kafka.groupId").getString()
+            )
+            return try {
+                KafkaConsumer<String, String>(props).use { consumer ->
+                    val timeout = Duration.ofSeconds(COMMITTED_OFFSETS_TIMEOUT_SECONDS)
+                    val partitions = consumer.partitionsFor(topic, timeout).map { TopicPartition(topic, it.partition()) }
+                    consumer.committed(partitions.toSet(), timeout)
+                        .filterValues { it != null }
+                        .map { (partition, offset) -> partition.partition() to offset.offset() }
+                        .toMap()
+                }
+            } catch (e: Exception) {
+                LoggerFactory.getLogger(RatingEventConsumer::class.java)
+                    .warn("Could not read committed offsets of $topic, partitions will start from committed positions", e)
+                emptyMap()
+            }
+        }
+
+        /** Номера партиций топика оценок; null, если Kafka недоступна */
+        fun topicPartitions(application: Application): Set<Int>? {
+            val config = application.environment.config
+            val topic = config.property("kafka.topic").getString()
+            val props = consumerProperties(
+                config.property("kafka.bootstrapServers").getString(),
+                config.property("kafka.groupId").getString()
+            )
+            return try {
+                KafkaConsumer<String, String>(props).use { consumer ->
+                    consumer.partitionsFor(topic, Duration.ofSeconds(COMMITTED_OFFSETS_TIMEOUT_SECONDS))
+                        .mapTo(HashSet()) { it.partition() }
+                }
+            } catch (e: Exception) {
+                LoggerFactory.getLogger(RatingEventConsumer::class.java).warn("Could not read partitions of $topic", e)
+                null
+            }
+        }
     }
 }
@@ -0,0 +1,243 @@
+package com.example.recommendationservice.kafka
+
+import com.example.recommendationservice.dto.RatingEvent
+import com.example.recommendationservice.dto.UserRatingData
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.repository.RecommendationRepository
+import com.example.recommendationservice.service.RecalculationScheduler
+import kotlinx.coroutines.runBlocking
+import kotlinx.serialization.json.Json
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.slf4j.LoggerFactory
+import java.time.LocalDateTime
+import java.time.format.DateTimeParseException
+
+/**
+ * Применяет события оценок к БД, матрице оценок и планировщику пересчёта.
+ * Потокобезопасен при условии, что события одного пользователя
+ * обрабатываются одним потоком (одна партиция - один воркер).
+ * Поток воркера ждёт транзакцию на диспетчере БД (runBlocking): порядок
+ * событий партиции сохраняется, а соединение берётся из общего пула.
+ *
+ * С [failedEvents] события, которые не удалось раскодировать или применить,
+ * уходят в DLQ или топики повторов, и партиция идёт дальше; без него
+ * нераскодируемые и упавшие по одному события только логируются.
+ *
+ * В БД пишется время события ([RatingEvent.timestamp]), а не время применения. Событие,
+ * возвращённое из DLQ (заголовок [FailedEventRouter.REDRIVEN_HEADER]), применяется только
+ * если у пары с тех пор не было более нового изменения ([isSuperseded]).
+ */
+class RatingEventProcessor(
+    private val ratingMatrix: RatingMatrix,
+    private val recalculationScheduler: RecalculationScheduler,
+    private val batchMode: Boolean,
+    private val failedEvents: FailedEventRouter? = null
+) {
+
+    private val logger = LoggerFactory.getLogger(RatingEventProcessor::class.java)
+
+    private val json = Json {
+        ignoreUnknownKeys = true
+        isLenient = true
+    }
+
+    private val supersededRedrives = Metrics.counter("kafka.dlq.redrive_superseded")
+    private val invalidEvents = Metrics.counter("kafka.events.invalid")
+
+    fun process(batch: List<ConsumerRecord<String, String>>) {
+        val records = if (batch.any(::isRedriven)) withoutSupersededRedrives(batch) else batch
+        if (batchMode) {
+            processBatch(records)
+        } else {
+            records.forEach { record ->
+                logger.debug("Received message: ${record.value()}")
+                val event = decode(record) ?: return@forEach
+                applyOrRetry(record, event)
+            }
+        }
+    }
+
+    /**
+     * Раскодированное событие; null - не раскодировано или с оценкой вне [VALID_RATINGS]
+     * (и, если есть куда, отправлено в DLQ). Проверка до записи в БД: такую оценку не примет
+     * матрица, а строка в user_ratings сломала бы загрузку матрицы при следующем старте.
+     */
+    private fun decode(record: ConsumerRecord<String, String>): RatingEvent? {
+        val event = try {
+            json.decodeFromString<RatingEvent>(record.value())
+        } catch (e: Exception) {
+            logger.error("Error decoding message: ${record.value()}", e)
+            failedEvents?.sendToDeadLetter(record, e.toString())
+            return null
+        }
+        val error = validate(event) ?: return event
+        logger.error("Invalid rating event ${record.value()}: $error")
+        invalidEvents.incrementAndGet()
+        failedEvents?.sendToDeadLetter(record, error)
+        return null
+    }
+
+    /** Ошибка валидации события или null; оценку несут только CREATED и UPDATED */
+    private fun validate(event: RatingEvent): String? = when (event.eventType) {
+        "CREATED", "UPDATED" -> if (event.rating in VALID_RATINGS) null else "Rating out of range: ${event.rating}"
+        else -> null
+    }
+
+    private fun isRedriven(record: ConsumerRecord<String, String>): Boolean =
+        record.headers().lastHeader(FailedEventRouter.REDRIVEN_HEADER) != null
+
+    /** Пакет без возвращённых из DLQ событий, перекрытых более новыми; время изменений - одним запросом */
+    private fun withoutSupersededRedrives(batch: List<ConsumerRecord<String, String>>): List<ConsumerRecord<String, String>> {
+        val redriven = batch.filter(::isRedriven).mapNotNull { record ->
+            val event = try {
+                json.decodeFromString<RatingEvent>(record.value())
+            } catch (e: Exception) {
+                return@mapNotNull null
+            }
+            val eventTime = parseTime(event) ?: return@mapNotNull null
+            Triple(record, event, eventTime)
+        }
+        if (redriven.isEmpty()) return batch
+        val lastChanges = runBlocking {
+            RecommendationRepository.lastRatingChanges(redriven.map { (_, event, _) -> event.userId to event.courseId })
+        }
+        val superseded = redriven.filter { (_, event, eventTime) ->
+            lastChanges[event.userId to event.courseId]?.isAfter(eventTime) == true
+        }
+        superseded.forEach { (_, event, _) ->
+            supersededRedrives.incrementAndGet()
+            logger.warn("Skipping redriven rating event $event: the rating changed after it")
+        }
+        val skipped = superseded.mapTo(HashSet()) { it.first.offset() }
+        return if (skipped.isEmpty()) batch else batch.filterNot { it.offset() in skipped }
+    }
+
+    /**
+     * Было ли у пары изменение новее события - тогда применять событие нельзя: оно
+     * перезаписало бы новую оценку или вернуло удалённую. Без времени события - false.
+     */
+    fun isSuperseded(event: RatingEvent): Boolean {
+        val eventTime = parseTime(event) ?: return false
+        val lastChange = runBlocking { RecommendationRepository.lastRatingChange(event.userId, event.courseId) }
+        return lastChange != null && lastChange.isAfter(eventTime)
+    }
+
+    /** Применяет событие; если не вышло или пара ждёт более раннее событие в повторах - в повторы */
+    private fun applyOrRetry(record: ConsumerRecord<String, String>, event: RatingEvent) {
+        if (failedEvents?.isParked(event) == true) {
+            failedEvents.sendToRetry(record, event, PARKED_BEHIND_RETRY)
+            return
+        }
+        try {
+            apply(event)
+        } catch (e: Exception) {
+            if (failedEvents == null) {
+                logger.error("Error processing message: ${record.value()}", e)
+                return
+            }
+            logger.warn("Error processing rating event $event, sending to retry: $e")
+            failedEvents.sendToRetry(record, event, e.toString())
+        }
+    }
+
+    /**
+     * Применяет одно событие к БД, матрице и планировщику; бросает исключение, если запись
+     * в БД не удалась или оценка вне [VALID_RATINGS] (тогда до записи)
+     */
+    fun apply(event: RatingEvent) {
+        logger.info("Processing rating event: type=${event.eventType}, userId=${event.userId}, courseId=${event.courseId}")
+
+        when (event.eventType) {
+            "CREATED", "UPDATED" -> {
+                // Событие из повторов не проходило через decode этого экземпляра
+                validate(event)?.let { throw IllegalArgumentException(it) }
+                runBlocking {
+                    RecommendationRepository.saveOrUpdateUserRating(
+                        event.userId,
+                        event.courseId,
+                        event.rating,
+                        eventTime(event)
+                    )
+                }
+                ratingMatrix.put(event.userId, event.courseId, event.rating)
+
+                // Пересчитываем рекомендации асинхронно; серия событий пользователя схлопывается
+                recalculationScheduler.schedule(event.userId)
+            }
+            "DELETED" -> {
+                runBlocking { RecommendationRepository.deleteUserRating(event.userId, event.courseId, eventTime(event)) }
+                ratingMatrix.remove(event.userId, event.courseId)
+
+                recalculationScheduler.schedule(event.userId)
+            }
+            else -> {
+                logger.warn("Unknown event type: ${event.eventType}")
+            }
+        }
+    }
+
+    /**
+     * Обрабатывает пакет записей как единое целое: события схлопываются
+     * до последнего состояния по (userId, courseId) и применяются к БД одной
+     * транзакцией; матрица и пересчёт обновляются только после коммита.
+     * Если транзакция пакета не удалась, события применяются по одному:
+     * в повторы уходят только те, что не применились.
+     */
+    private fun processBatch(records: List<ConsumerRecord<String, String>>) {
+        val latest = LinkedHashMap<Pair<Long, Long>, Pair<ConsumerRecord<String, String>, RatingEvent>>()
+        records.forEach { record ->
+            val event = decode(record) ?: return@forEach
+            when (event.eventType) {
+                "CREATED", "UPDATED", "DELETED" -> {
+                    if (failedEvents?.isParked(event) == true) {
+                        failedEvents.sendToRetry(record, event, PARKED_BEHIND_RETRY)
+                    } else {
+                        latest[event.userId to event.courseId] = record to event
+                    }
+                }
+                else -> logger.warn("Unknown event type: ${event.eventType}")
+            }
+        }
+
+        val events = latest.values.map { it.second }
+        val upserts = events
+            .filter { it.eventType != "DELETED" }
+            .map { UserRatingData(it.userId, it.courseId, it.rating) }
+        val deletes = events
+            .filter { it.eventType == "DELETED" }
+            .map { it.userId to it.courseId }
+
+        try {
+            val changedAt = latest.mapValues { (_, value) -> eventTime(value.second) }
+            runBlocking { RecommendationRepository.applyUserRatingBatch(upserts, deletes, changedAt) }
+        } catch (e: Exception) {
+            if (failedEvents == null) throw e
+            logger.warn("Error applying batch of ${latest.size} events, applying one by one: $e")
+            latest.values.forEach { (record, event) -> applyOrRetry(record, event) }
+            return
+        }
+
+        upserts.forEach { ratingMatrix.put(it.userId, it.courseId, it.rating) }
+        deletes.forEach { (userId, courseId) -> ratingMatrix.remove(userId, courseId) }
+        latest.keys.mapTo(LinkedHashSet()) { it.first }.forEach(recalculationScheduler::schedule)
+
+        logger.debug("Processed batch: records=${records.size}, upserts=${upserts.size}, deletes=${deletes.size}")
+    }
+
+    private fun eventTime(event: RatingEvent): LocalDateTime = parseTime(event) ?: LocalDateTime.now()
+
+    private fun parseTime(event: RatingEvent): LocalDateTime? =
+        try {
+            LocalDateTime.parse(event.timestamp)
+        } catch (e: DateTimeParseException) {
+            null
+        }
+
+    companion object {
+        /** Допустимые оценки - как в API rating-service */
+        val VALID_RATINGS = 1..5
+
+        private const val PARKED_BEHIND_RETRY = "Waiting for an earlier event of the same user and course in retry"
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.recommendationservice.kafka
+
+import com.example.recommendationservice.dto.RatingEvent
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.service.RecalculationScheduler
+import io.ktor.server.application.*
+import kotlinx.serialization.json.Json
+import org.apache.kafka.clients.consumer.ConsumerConfig
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.apache.kafka.clients.consumer.KafkaConsumer
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.common.TopicPartition
+import org.apache.kafka.common.errors.WakeupException
+import org.slf4j.LoggerFactory
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+/**
+ * Потребитель топиков повторов ([FailedEventRouter.retryTopics]) в отдельной группе
+ * и отдельном потоке: основной poll() и воркеры партиций его не ждут.
+ *
+ * Запись применяется не раньше своего времени повтора. Пока время не пришло, партиция
+ * яруса стоит на паузе с позицией на этой записи, а поток продолжает poll() остальных -
+ * без sleep. Записи яруса идут в порядке времени повтора, поэтому следующая запись
+ * партиции не может стать готовой раньше текущей.
+ *
+ * Запись, перед которой в повторах есть более раннее событие той же пары, не пересылается,
+ * а ждёт его в памяти, пока партиция идёт дальше; offset партиции коммитится не дальше
+ * самой ранней ждущей записи, поэтому после рестарта она прочитается снова.
+ */
+class RetryEventConsumer(
+    application: Application,
+    ratingMatrix: RatingMatrix,
+    recalculationScheduler: RecalculationScheduler,
+    private val failedEvents: FailedEventRouter
+) {
+
+    private val logger = LoggerFactory.getLogger(RetryEventConsumer::class.java)
+    private val config = application.environment.config
+
+    private val bootstrapServers = config.property("kafka.bootstrapServers").getString()
+    private val groupId = config.property("kafka.groupId").getString() + ".retry"
+
+    private val processor = RatingEventProcessor(ratingMatrix, recalculationScheduler, batchMode = false)
+
+    private val json = Json {
+        ignoreUnknownKeys = true
+        isLenient = true
+    }
+
+    private var consumer: KafkaConsumer<String, String>? = null
+    @Volatile
+    private var running = true
+    private var consumerThread: Thread? = null
+
+    // Только из потока poll(): партиции на паузе до времени повтора их текущей записи
+    private val resumeAt = HashMap<TopicPartition, Long>()
+
+    private class HeldRecord(val record: ConsumerRecord<String, String>, val event: RatingEvent, val originalOffset: Long)
+
+    // Только из потока poll(): записи, ждущие более раннее событие своей пары, в порядке offset'ов
+    private val held = HashMap<TopicPartition, MutableList<HeldRecord>>()
+    private val heldRecords = AtomicInteger()
+
+    // Только из потока poll(): offset после обработанных записей партиции и последний закоммиченный
+    private val positions = HashMap<TopicPartition, Long>()
+    private val committed = HashMap<TopicPartition, Long>()
+
+    private val succeeded = Metrics.counter("kafka.retry.succeeded")
+    private val failed = Metrics.counter("kafka.retry.failed")
+    private val superseded = Metrics.counter("kafka.retry.superseded")
+
+    init {
+        Metrics.gauge("kafka.retry.held") { heldRecords.get() }
+    }
+
+    fun start() {
+        val props = RatingEventConsumer.consumerProperties(bootstrapServers, groupId).apply {
+            put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest")
+            put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false")
+            put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, MAX_POLL_RECORDS)
+        }
+
+        consumerThread = thread(start = true, name = "kafka-retry-consumer") {
+            try {
+                val consumer = KafkaConsumer<String, String>(props).also { consumer = it }
+                consumer.subscribe(failedEvents.retryTopics, object : ConsumerRebalanceListener {
+                    override fun onPartitionsRevoked(partitions: Collection<TopicPartition>) {
+                        try {
+                            commitProcessed(consumer, partitions)
+                        } catch (e: Exception) {
+                            logger.warn("Failed to commit retry offsets for $partitions: $e")
+                        }
+                        // Ждущие записи не закоммичены - их перечитает новый владелец
+                        partitions.forEach { partition ->
+                            resumeAt.remove(partition)
+                            held.remove(partition)?.let { heldRecords.addAndGet(-it.size) }
+                            positions.remove(partition)
+                            committed.remove(partition)
+                        }
+                    }
+
+                    override fun onPartitionsAssigned(partitions: Collection<TopicPartition>) {}
+                })
+                logger.info("Retry consumer started, listening to topics: ${failedEvents.retryTopics}")
+
+                while (running) {
+                    try {
+                        resumeDuePartitions(consumer)
+                        handleHeld()
+                        val records = consumer.poll(Duration.ofMillis(POLL_TIMEOUT_MILLIS))
+                        var failedPartitions = 0
+                        records.partitions().forEach { partition ->
+                            val result = processPartition(consumer, partition, records.records(partition))
+                            if (result.next >= 0) positions[partition] = result.next
+                            if (result.failed) failedPartitions++
+                        }
+                        commitProcessed(consumer)
+                        // Не удалось даже переслать запись (Kafka недоступна): ждёт только этот поток
+                        if (failedPartitions > 0) Thread.sleep(ERROR_BACKOFF_MILLIS)
+                    } catch (e: WakeupException) {
+                        if (running) logger.warn("Unexpected retry consumer wakeup")
+                    } catch (e: Exception) {
+                        if (running) {
+                            logger.error("Error processing retry records, retrying in $ERROR_BACKOFF_MILLIS ms", e)
+                            Thread.sleep(ERROR_BACKOFF_MILLIS)
+                        }
+                    }
+                }
+            } catch (e: Exception) {
+                logger.error("Retry consumer error", e)
+            } finally {
+                consumer?.close()
+                logger.info("Retry consumer stopped")
+            }
+        }
+    }
+
+    /** next - offset для коммита (-1, если нечего); failed - запись не удалось ни применить, ни переслать */
+    private class PartitionResult(val next: Long, val failed: Boolean)
+
+    /**
+     * Обрабатывает готовые записи партиции по порядку. На первой неготовой ставит
+     * партицию на паузу, на первой необработанной - возвращает позицию на неё.
+     */
+    private fun processPartition(
+        consumer: KafkaConsumer<String, String>,
+        partition: TopicPartition,
+        records: List<ConsumerRecord<String, String>>
+    ): PartitionResult {
+        var next = -1L
+        for (record in records) {
+            val notBefore = failedEvents.notBeforeOf(record)
+            if (notBefore > System.currentTimeMillis()) {
+                consumer.pause(listOf(partition))
+                consumer.seek(partition, record.offset())
+                resumeAt[partition] = notBefore
+                break
+            }
+            try {
+                handle(record)
+            } catch (e: Exception) {
+                logger.error("Error handling retry record $partition@${record.offset()}, will read it again", e)
+                consumer.seek(partition, record.offset())
+                return PartitionResult(next, failed = true)
+            }
+            next = record.offset() + 1
+        }
+        return PartitionResult(next, failed = false)
+    }
+
+    private fun handle(record: ConsumerRecord<String, String>) {
+        val event = try {
+            json.decodeFromString<RatingEvent>(record.value())
+        } catch (e: Exception) {
+            failedEvents.sendToDeadLetter(record, e.toString())
+            return
+        }
+        val originalOffset = failedEvents.originalOffsetOf(record)
+        if (!failedEvents.isNext(event, originalOffset)) {
+            held.getOrPut(TopicPartition(record.topic(), record.partition())) { ArrayList() }
+                .add(HeldRecord(record, event, originalOffset))
+            heldRecords.incrementAndGet()
+            return
+        }
+        retry(record, event, originalOffset)
+    }
+
+    /**
+     * Применяет ждущие записи, чья очередь подошла: более раннее событие пары применено,
+     * ушло в DLQ или перестало учитываться по истечении ожидания.
+     */
+    private fun handleHeld() {
+        held.forEach { (partition, records) ->
+            val iterator = records.iterator()
+            while (iterator.hasNext()) {
+                val next = iterator.next()
+                if (!failedEvents.isNext(next.event, next.originalOffset)) continue
+                try {
+                    retry(next.record, next.event, next.originalOffset)
+                } catch (e: Exception) {
+                    logger.error("Error handling held retry record $partition@${next.record.offset()}, will try again", e)
+                    continue
+                }
+                iterator.remove()
+                heldRecords.decrementAndGet()
+            }
+        }
+    }
+
+    private fun retry(record: ConsumerRecord<String, String>, event: RatingEvent, originalOffset: Long) {
+        try {
+            // После рестарта или истечения ожидания новое событие пары могло примениться раньше этого;
+            // пока ожидание в силе, новые события пары ждут за ним, и запрос к БД не нужен
+            if (!failedEvents.isTracked(event, originalOffset) && processor.isSuperseded(event)) {
+                superseded.incrementAndGet()
+                logger.warn("Skipping retried rating event $event: the rating changed after it")
+            } else {
+                processor.apply(event)
+            }
+            failedEvents.release(event, failedEvents.originalPartitionOf(record), originalOffset)
+            succeeded.incrementAndGet()
+        } catch (e: Exception) {
+            failed.incrementAndGet()
+            logger.warn("Retry ${failedEvents.attemptOf(record)} of rating event $event failed: $e")
+            failedEvents.escalate(record, event, e.toString())
+        }
+    }
+
+    /** Коммитит обработанное, но не дальше самой ранней ждущей записи партиции */
+    private fun commitProcessed(
+        consumer: KafkaConsumer<String, String>,
+        partitions: Collection<TopicPartition> = positions.keys
+    ) {
+        val offsets = HashMap<TopicPartition, OffsetAndMetadata>()
+        partitions.forEach { partition ->
+            val next = positions[partition] ?: return@forEach
+            val offset = held[partition]?.firstOrNull()?.record?.offset()?.let { minOf(it, next) } ?: next
+            if (committed[partition] != offset) offsets[partition] = OffsetAndMetadata(offset)
+        }
+        if (offsets.isEmpty()) return
+        consumer.commitSync(offsets)
+        offsets.forEach { (partition, offset) -> committed[partition] = offset.offset() }
+    }
+
+    private fun resumeDuePartitions(consumer: KafkaConsumer<String, String>) {
+        if (resumeAt.isEmpty()) return
+        val now = System.currentTimeMillis()
+        val due = resumeAt.filterValues { it <= now }.keys
+        if (due.isEmpty()) return
+        consumer.resume(due)
+        resumeAt.keys.removeAll(due)
+    }
+
+    fun stop() {
+        running = false
+        consumer?.wakeup()
+        consumerThread?.join(STOP_TIMEOUT_MILLIS)
+    }
+
+    companion object {
+        private const val POLL_TIMEOUT_MILLIS = 500L
+        private const val MAX_POLL_RECORDS = 100
+        private const val ERROR_BACKOFF_MILLIS = 1000L
+        private const val STOP_TIMEOUT_MILLIS = 10_000L
+    }
+}
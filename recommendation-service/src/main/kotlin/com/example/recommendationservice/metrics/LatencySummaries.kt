@@ -0,0 +1,15 @@
+package com.example.recommendationservice.metrics
+
+import com.example.recommendationservice.dto.LatencySummary
+
+/** Среднее и перцентили по замерам одного запроса в наносекундах, в микросекундах */
+fun latencySummary(nanos: LongArray): LatencySummary {
+    if (nanos.isEmpty()) return LatencySummary(0.0, 0.0, 0.0)
+    val sorted = nanos.sortedArray()
+    fun percentile(p: Double) = sorted[((sorted.size - 1) * p).toInt()] / 1000.0
+    return LatencySummary(
+        meanMicros = sorted.average() / 1000.0,
+        p50Micros = percentile(0.50),
+        p99Micros = percentile(0.99)
+    )
+}
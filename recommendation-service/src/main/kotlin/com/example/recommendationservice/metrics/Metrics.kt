@@ -0,0 +1,87 @@
+package com.example.recommendationservice.metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Минимальный реестр метрик сервиса: счётчики, gauge'и и таймеры.
+ * Снимок отдаётся плоским JSON на GET /metrics.
+ */
+object Metrics {
+
+    private val counters = ConcurrentHashMap<String, AtomicLong>()
+    private val gauges = ConcurrentHashMap<String, () -> Number>()
+    private val timers = ConcurrentHashMap<String, Timer>()
+
+    fun counter(name: String): AtomicLong = counters.computeIfAbsent(name) { AtomicLong() }
+
+    fun gauge(name: String, supplier: () -> Number) {
+        gauges[name] = supplier
+    }
+
+    fun removeGauge(name: String) {
+        gauges.remove(name)
+    }
+
+    fun timer(name: String): Timer = timers.computeIfAbsent(name) { Timer() }
+
+    fun snapshot(): Map<String, Double> {
+        val result = sortedMapOf<String, Double>()
+        counters.forEach { (name, value) -> result[name] = value.get().toDouble() }
+        gauges.forEach { (name, supplier) -> result[name] = supplier().toDouble() }
+        timers.forEach { (name, timer) -> timer.snapshotInto(name, result) }
+        return result
+    }
+}
+
+/**
+ * Таймер: количество, сумма, максимум и перцентили по скользящему окну
+ * из последних [WINDOW] замеров.
+ */
+class Timer {
+
+    private val count = AtomicLong()
+    private val totalNanos = AtomicLong()
+    private val maxNanos = AtomicLong()
+    private val window = LongArray(WINDOW)
+    private var windowPosition = 0
+    private var windowFilled = false
+
+    fun record(nanos: Long) {
+        count.incrementAndGet()
+        totalNanos.addAndGet(nanos)
+        maxNanos.accumulateAndGet(nanos, ::maxOf)
+        synchronized(window) {
+            window[windowPosition] = nanos
+            windowPosition = (windowPosition + 1) % WINDOW
+            if (windowPosition == 0) windowFilled = true
+        }
+    }
+
+    inline fun <T> time(block: () -> T): T {
+        val startedAt = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(System.nanoTime() - startedAt)
+        }
+    }
+
+    fun snapshotInto(name: String, target: MutableMap<String, Double>) {
+        val samples = synchronized(window) { window.copyOf(if (windowFilled) WINDOW else windowPosition) }
+        samples.sort()
+        val total = count.get()
+        target["$name.count"] = total.toDouble()
+        target["$name.mean_ms"] = if (total > 0) totalNanos.get() / total / 1e6 else 0.0
+        target["$name.max_ms"] = maxNanos.get() / 1e6
+        target["$name.p50_ms"] = percentile(samples, 0.50)
+        target["$name.p99_ms"] = percentile(samples, 0.99)
+    }
+
+    private fun percentile(sorted: LongArray, p: Double): Double =
+        if (sorted.isEmpty()) 0.0 else sorted[((sorted.size - 1) * p).toInt()] / 1e6
+
+    companion object {
+        private const val WINDOW = 1024
+    }
+}
@@ -0,0 +1,390 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.dto.AlsIterationReport
+import com.example.recommendationservice.dto.AlsTrainingReport
+import com.example.recommendationservice.dto.AnnSearchReport
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.metrics.latencySummary
+import com.example.recommendationservice.util.LongIntHashMap
+import com.example.recommendationservice.util.TopKSelector
+import org.slf4j.LoggerFactory
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.SplittableRandom
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Параметры HNSW-индекса по векторам курсов (recommendation.als.hnsw)
+ */
+class HnswSettings(
+    val metric: VectorMetric,
+    val m: Int,
+    val efConstruction: Int,
+    val efSearch: Int
+)
+
+/**
+ * Обслуживание ALS-модели: обучение по снимку матрицы, запись в файл,
+ * отображение файла в память и скоринг пользователя скалярным произведением
+ * с векторами курсов - полным перебором или через HNSW-индекс ([hnswSettings]).
+ *
+ * Оценки, пришедшие после снимка, не ждут переобучения: вектор изменившегося
+ * пользователя пересчитывается fold-in'ом - решением его k×k системы при
+ * фиксированных векторах курсов - и кэшируется до следующего изменения.
+ * Курс, которого не было в снимке, так же получает вектор по векторам оценивших
+ * его пользователей, как только наберёт [NEW_COURSE_MIN_RATINGS] оценок, и
+ * вставляется в индекс. Модель, загруженная с диска при старте, не знает
+ * об оценках между её обучением и остановкой сервиса - до ближайшего переобучения.
+ */
+class AlsRecommender(
+    private val ratingMatrix: RatingMatrix,
+    private val trainer: AlsTrainer,
+    private val modelPath: Path,
+    private val hnswSettings: HnswSettings? = null
+) : RatingChangeListener {
+
+    private class FoldedVector(val sequence: Long, val vector: FloatArray)
+
+    /** Модель, её индекс и номер последнего изменения оценок, вошедшего в снимок */
+    private class ServingState(val model: FactorModel, val trainedSequence: Long, val index: HnswIndex?) {
+        val folded = ConcurrentHashMap<Long, FoldedVector>()
+        val newCourses = ConcurrentHashMap<Long, FloatArray>()
+    }
+
+    private val logger = LoggerFactory.getLogger(AlsRecommender::class.java)
+
+    private val indexPath = modelPath.resolveSibling(modelPath.fileName.toString() + ".hnsw")
+
+    @Volatile
+    private var state: ServingState? = null
+
+    // userId -> номер последнего изменения его оценок
+    private val sequence = AtomicLong()
+    private val changedAt = ConcurrentHashMap<Long, Long>()
+
+    private val trainLock = Any()
+
+    @Volatile
+    var lastReport: AlsTrainingReport? = null
+        private set
+
+    private val foldIns = Metrics.counter("als.fold_ins")
+    private val courseFoldIns = Metrics.counter("als.course_fold_ins")
+    private val scoreTimer = Metrics.timer("als.score")
+
+    init {
+        Metrics.gauge("als.model_users") { state?.model?.userCount ?: 0 }
+        Metrics.gauge("als.model_courses") { state?.model?.courseCount ?: 0 }
+        Metrics.gauge("als.index_size") { state?.index?.size ?: 0 }
+    }
+
+    val isReady: Boolean get() = state != null
+
+    override fun onRatingChanged(userId: Long, courseId: Long, previous: Int, current: Int) {
+        changedAt[userId] = sequence.incrementAndGet()
+
+        val serving = state ?: return
+        if (current != 0 && serving.model.courseIndexOf(courseId) < 0 && !serving.newCourses.containsKey(courseId)) {
+            try {
+                addNewCourse(serving, courseId)
+            } catch (e: Exception) {
+                logger.error("Error folding in new course $courseId", e)
+            }
+        }
+    }
+
+    /** Подхватывает ранее обученную модель (и её индекс) с диска, если она есть */
+    fun loadExisting(): Boolean {
+        if (!Files.exists(modelPath)) return false
+        return try {
+            val model = FactorModel.open(modelPath)
+            state = ServingState(model, Long.MIN_VALUE, loadOrBuildIndex(model))
+            logger.info("ALS model loaded from $modelPath: ${model.userCount} users, ${model.courseCount} courses, k=${model.factors}")
+            true
+        } catch (e: Exception) {
+            logger.error("Error loading ALS model from $modelPath", e)
+            false
+        }
+    }
+
+    /**
+     * Полное обучение по текущему снимку матрицы, запись файла и подмена модели.
+     */
+    fun train(): AlsTrainingReport = synchronized(trainLock) {
+        val startedAt = System.nanoTime()
+        // Номер изменения читаем под той же блокировкой, что и снимок: всё, что
+        // позже, уведомит слушателя уже после неё и получит больший номер
+        val (csr, snapshotSequence) = ratingMatrix.read { RatingCsr.fromMatrix(ratingMatrix) to sequence.get() }
+
+        val iterations = ArrayList<AlsIterationReport>()
+        val factors = trainer.train(csr) { iterations.add(it) }
+        FactorModel.write(modelPath, csr, factors)
+        val model = FactorModel.open(modelPath)
+        state = ServingState(model, snapshotSequence, buildIndex(model))
+        changedAt.entries.removeIf { it.value <= snapshotSequence }
+
+        val report = AlsTrainingReport(
+            users = csr.userCount,
+            courses = csr.courseCount,
+            ratings = csr.ratingCount,
+            factors = trainer.factors,
+            totalSeconds = (System.nanoTime() - startedAt) / 1e9,
+            iterations = iterations
+        )
+        lastReport = report
+        logger.info("ALS model trained in %.2f s and written to $modelPath".format(report.totalSeconds))
+        report
+    }
+
+    /**
+     * Топ-[limit] курсов по предсказанной оценке среди неоценённых пользователем
+     * и прошедших [filter]. Пары (courseId, предсказание); null, если модели нет
+     * или пользователя нечем описать. Вызывается внутри [RatingMatrix.read].
+     */
+    fun recommend(userId: Long, limit: Int, filter: (Long) -> Boolean): List<Pair<Long, Double>>? = scoreTimer.time {
+        val current = state ?: return@time null
+        val vector = userVector(current, userId) ?: return@time null
+
+        val rated = LongIntHashMap()
+        val user = ratingMatrix.userIndexOf(userId)
+        if (user >= 0) {
+            val courses = ratingMatrix.rowCourses(user)
+            for (i in 0 until ratingMatrix.rowSize(user)) {
+                rated.put(ratingMatrix.courseIdAt(courses[i]), 1)
+            }
+        }
+        val accept = { courseId: Long -> !rated.containsKey(courseId) && filter(courseId) }
+
+        current.index?.let { index ->
+            // Запрашиваем с запасом на уже оценённые; если после фильтра не хватило - полный перебор
+            val wanted = limit + rated.size
+            val found = index.search(vector, wanted, maxOf(hnswSettings!!.efSearch, wanted))
+                .filter { (courseId, _) -> accept(courseId) }
+            if (found.size >= limit || found.size == index.size) {
+                return@time found.take(limit).map { (courseId, _) -> courseId to predict(current, vector, courseId) }
+            }
+        }
+        exhaustive(current, vector, limit, accept)
+    }
+
+    /**
+     * Сравнивает HNSW с полным перебором на векторах случайных пользователей модели:
+     * recall@k и задержка одного запроса.
+     */
+    fun annReport(sampleSize: Int, k: Int): AnnSearchReport? {
+        val current = state ?: return null
+        val index = current.index ?: return null
+        val settings = hnswSettings!!
+        val model = current.model
+        if (model.userCount == 0) return null
+
+        val random = SplittableRandom(SAMPLE_SEED)
+        val queries = List(minOf(sampleSize, model.userCount)) { model.userVector(random.nextInt(model.userCount)) }
+        val score: (FloatArray, Long) -> Double = if (settings.metric == VectorMetric.COSINE) {
+            { vector, courseId -> cosine(current, vector, courseId) }
+        } else {
+            { vector, courseId -> predict(current, vector, courseId) }
+        }
+
+        // Прогрев JIT, чтобы первые запросы не искажали перцентили
+        queries.take(WARMUP_QUERIES).forEach { vector ->
+            exhaustive(current, vector, k, { true }, score)
+            index.search(vector, k, settings.efSearch)
+        }
+
+        val exhaustiveNanos = LongArray(queries.size)
+        val hnswNanos = LongArray(queries.size)
+        var recallSum = 0.0
+        queries.forEachIndexed { i, vector ->
+            var startedAt = System.nanoTime()
+            val expected = exhaustive(current, vector, k, { true }, score)
+            exhaustiveNanos[i] = System.nanoTime() - startedAt
+
+            startedAt = System.nanoTime()
+            val approximate = index.search(vector, k, settings.efSearch)
+            hnswNanos[i] = System.nanoTime() - startedAt
+
+            val expectedIds = expected.mapTo(HashSet()) { it.first }
+            recallSum += if (expectedIds.isEmpty()) 1.0 else approximate.count { it.first in expectedIds }.toDouble() / expectedIds.size
+        }
+
+        return AnnSearchReport(
+            sampledQueries = queries.size,
+            k = k,
+            metric = settings.metric.name,
+            efSearch = settings.efSearch,
+            indexSize = index.size,
+            recallAtK = if (queries.isNotEmpty()) recallSum / queries.size else 1.0,
+            exhaustiveLatency = latencySummary(exhaustiveNanos),
+            hnswLatency = latencySummary(hnswNanos)
+        )
+    }
+
+    /** Полный перебор курсов модели и добавленных fold-in'ом */
+    private fun exhaustive(
+        current: ServingState,
+        vector: FloatArray,
+        limit: Int,
+        accept: (Long) -> Boolean,
+        score: (FloatArray, Long) -> Double = { v, courseId -> predict(current, v, courseId) }
+    ): List<Pair<Long, Double>> {
+        val model = current.model
+        val top = TopKSelector(limit)
+        for (course in 0 until model.courseCount) {
+            val courseId = model.courseIdAt(course)
+            if (accept(courseId)) top.offer(course, score(vector, courseId))
+        }
+        val result = (0 until top.size).mapTo(ArrayList()) { model.courseIdAt(top.idAt(it)) to top.scoreAt(it) }
+        if (current.newCourses.isEmpty()) return result
+
+        current.newCourses.keys.forEach { courseId ->
+            if (accept(courseId)) result.add(courseId to score(vector, courseId))
+        }
+        return result
+            .sortedWith(compareByDescending<Pair<Long, Double>> { it.second }.thenBy { it.first })
+            .take(limit)
+    }
+
+    private fun predict(current: ServingState, vector: FloatArray, courseId: Long): Double {
+        val course = current.model.courseIndexOf(courseId)
+        if (course >= 0) return current.model.score(vector, course)
+        val courseVector = current.newCourses[courseId] ?: return 0.0
+        return AlsTrainer.dot(vector, 0, courseVector, 0, vector.size)
+    }
+
+    private fun cosine(current: ServingState, vector: FloatArray, courseId: Long): Double {
+        val k = vector.size
+        val courseVector = FloatArray(k)
+        val course = current.model.courseIndexOf(courseId)
+        if (course >= 0) current.model.copyItemVector(course, courseVector, 0)
+        else current.newCourses[courseId]?.copyInto(courseVector) ?: return 0.0
+        val norms = Math.sqrt(AlsTrainer.dot(vector, 0, vector, 0, k) * AlsTrainer.dot(courseVector, 0, courseVector, 0, k))
+        return if (norms == 0.0) 0.0 else AlsTrainer.dot(vector, 0, courseVector, 0, k) / norms
+    }
+
+    private fun userVector(current: ServingState, userId: Long): FloatArray? {
+        val changed = changedAt[userId]
+        if (changed == null || changed <= current.trainedSequence) {
+            val user = current.model.userIndexOf(userId)
+            if (user >= 0) return current.model.userVector(user)
+        }
+
+        val stamp = changed ?: 0
+        current.folded[userId]?.takeIf { it.sequence == stamp }?.let { return it.vector }
+        val vector = foldIn(current, userId) ?: return null
+        current.folded[userId] = FoldedVector(stamp, vector)
+        return vector
+    }
+
+    /** Вектор пользователя по его текущим оценкам при фиксированных векторах курсов */
+    private fun foldIn(current: ServingState, userId: Long): FloatArray? {
+        val model = current.model
+        val user = ratingMatrix.userIndexOf(userId)
+        if (user < 0) return null
+
+        val k = model.factors
+        val size = ratingMatrix.rowSize(user)
+        val courses = ratingMatrix.rowCourses(user)
+        val ratings = ratingMatrix.rowRatings(user)
+        val vectors = FloatArray(size * k)
+        val values = FloatArray(size)
+        var known = 0
+        for (i in 0 until size) {
+            val courseId = ratingMatrix.courseIdAt(courses[i])
+            val course = model.courseIndexOf(courseId)
+            if (course >= 0) {
+                model.copyItemVector(course, vectors, known * k)
+            } else {
+                current.newCourses[courseId]?.copyInto(vectors, known * k) ?: continue
+            }
+            values[known++] = ratings[i].toFloat()
+        }
+        if (known == 0) return null
+
+        val vector = FloatArray(k)
+        AlsTrainer.solveRow(
+            vectors, IntArray(known) { it }, values, 0, known, k, trainer.lambda,
+            DoubleArray(k * k), DoubleArray(k), vector, 0
+        )
+        foldIns.incrementAndGet()
+        return vector
+    }
+
+    /**
+     * Вектор нового курса по векторам оценивших его пользователей модели
+     * (симметричный fold-in); курс добавляется в индекс один раз.
+     */
+    private fun addNewCourse(current: ServingState, courseId: Long) {
+        val model = current.model
+        val k = model.factors
+        val (vectors, values, known) = ratingMatrix.read {
+            val course = ratingMatrix.courseIndexOf(courseId)
+            if (course < 0 || ratingMatrix.columnSize(course) < NEW_COURSE_MIN_RATINGS) {
+                return@read Triple(FloatArray(0), FloatArray(0), 0)
+            }
+            val size = ratingMatrix.columnSize(course)
+            val users = ratingMatrix.columnUsers(course)
+            val vectors = FloatArray(size * k)
+            val values = FloatArray(size)
+            var known = 0
+            for (i in 0 until size) {
+                val modelUser = model.userIndexOf(ratingMatrix.userIdAt(users[i]))
+                if (modelUser < 0) continue
+                model.userVector(modelUser).copyInto(vectors, known * k)
+                values[known++] = ratingMatrix.rating(users[i], course).toFloat()
+            }
+            Triple(vectors, values, known)
+        }
+        if (known < NEW_COURSE_MIN_RATINGS) return
+
+        val vector = FloatArray(k)
+        AlsTrainer.solveRow(
+            vectors, IntArray(known) { it }, values, 0, known, k, trainer.lambda,
+            DoubleArray(k * k), DoubleArray(k), vector, 0
+        )
+        if (current.newCourses.putIfAbsent(courseId, vector) == null) {
+            current.index?.insert(courseId, vector)
+            courseFoldIns.incrementAndGet()
+            logger.info("Course $courseId added to ALS model by fold-in from $known ratings")
+        }
+    }
+
+    private fun loadOrBuildIndex(model: FactorModel): HnswIndex? {
+        hnswSettings ?: return null
+        if (Files.exists(indexPath)) {
+            try {
+                val loaded = HnswIndex.load(indexPath, model.trainedAt)
+                if (loaded != null && loaded.metric == hnswSettings.metric) {
+                    logger.info("HNSW index loaded from $indexPath: ${loaded.size} courses")
+                    return loaded
+                }
+            } catch (e: Exception) {
+                logger.warn("Error loading HNSW index from $indexPath, rebuilding", e)
+            }
+        }
+        return buildIndex(model)
+    }
+
+    private fun buildIndex(model: FactorModel): HnswIndex? {
+        val settings = hnswSettings ?: return null
+        val startedAt = System.nanoTime()
+        val index = HnswIndex(model.factors, settings.metric, settings.m, settings.efConstruction)
+        val vector = FloatArray(model.factors)
+        for (course in 0 until model.courseCount) {
+            model.copyItemVector(course, vector, 0)
+            index.insert(model.courseIdAt(course), vector)
+        }
+        index.save(indexPath, model.trainedAt)
+        logger.info("HNSW index built over ${index.size} courses in %.2f s".format((System.nanoTime() - startedAt) / 1e9))
+        return index
+    }
+
+    companion object {
+        /** Сколько оценок нужно курсу вне модели, чтобы получить вектор до переобучения */
+        const val NEW_COURSE_MIN_RATINGS = 3
+
+        private const val WARMUP_QUERIES = 50
+        private const val SAMPLE_SEED = 42L
+    }
+}
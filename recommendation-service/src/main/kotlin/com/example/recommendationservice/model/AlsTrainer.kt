@@ -0,0 +1,244 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.dto.AlsIterationReport
+import org.slf4j.LoggerFactory
+import java.util.SplittableRandom
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.RecursiveTask
+import kotlin.math.sqrt
+
+/**
+ * Факторы, полученные обучением: векторы длины [factors], уложенные подряд.
+ */
+class AlsFactors(
+    val factors: Int,
+    val userFactors: FloatArray,
+    val itemFactors: FloatArray
+)
+
+/**
+ * Обучение матричной факторизации методом чередующихся наименьших квадратов
+ * (ALS) для явных оценок с weighted-λ регуляризацией:
+ *
+ *     x_u = (Y_uᵀ Y_u + λ n_u I)⁻¹ Y_uᵀ r_u
+ *
+ * Каждая половина итерации - независимые k×k системы по строкам (пользователям)
+ * или столбцам (курсам), они решаются разложением Холецкого параллельно
+ * на собственном ForkJoin-пуле.
+ */
+class AlsTrainer(
+    val factors: Int,
+    private val iterations: Int,
+    val lambda: Double,
+    parallelism: Int,
+    private val seed: Long
+) {
+
+    private val logger = LoggerFactory.getLogger(AlsTrainer::class.java)
+
+    private val pool = ForkJoinPool(if (parallelism > 0) parallelism else Runtime.getRuntime().availableProcessors())
+
+    init {
+        require(factors > 0) { "ALS factors must be positive" }
+        require(iterations > 0) { "ALS iterations must be positive" }
+        require(lambda > 0) { "ALS lambda must be positive" }
+    }
+
+    fun train(csr: RatingCsr, onIteration: (AlsIterationReport) -> Unit = {}): AlsFactors {
+        val random = SplittableRandom(seed)
+        val userFactors = FloatArray(csr.userCount * factors)
+        val itemFactors = FloatArray(csr.courseCount * factors) { (random.nextDouble() * INIT_SCALE).toFloat() }
+
+        for (iteration in 1..iterations) {
+            val startedAt = System.nanoTime()
+            pool.invoke(
+                SolveTask(itemFactors, userFactors, csr.userPtr, csr.userCourses, csr.userRatings, 0, csr.userCount)
+            )
+            val usersDoneAt = System.nanoTime()
+            pool.invoke(
+                SolveTask(userFactors, itemFactors, csr.coursePtr, csr.courseUsers, csr.courseRatings, 0, csr.courseCount)
+            )
+            val finishedAt = System.nanoTime()
+
+            val seconds = (finishedAt - startedAt) / 1e9
+            val report = AlsIterationReport(
+                iteration = iteration,
+                seconds = seconds,
+                userUpdatesPerSecond = csr.userCount / ((usersDoneAt - startedAt) / 1e9),
+                itemUpdatesPerSecond = csr.courseCount / ((finishedAt - usersDoneAt) / 1e9),
+                ratingsPerSecond = 2.0 * csr.ratingCount / seconds,
+                rmse = rmse(csr, userFactors, itemFactors)
+            )
+            logger.info(
+                "ALS iteration ${report.iteration}/$iterations: %.3f s, %.0f users/s, %.0f items/s, %.0f ratings/s, rmse=%.4f"
+                    .format(report.seconds, report.userUpdatesPerSecond, report.itemUpdatesPerSecond,
+                        report.ratingsPerSecond, report.rmse)
+            )
+            onIteration(report)
+        }
+
+        return AlsFactors(factors, userFactors, itemFactors)
+    }
+
+    private fun rmse(csr: RatingCsr, userFactors: FloatArray, itemFactors: FloatArray): Double {
+        if (csr.ratingCount == 0) return 0.0
+        val squaredError = pool.invoke(ErrorTask(csr, userFactors, itemFactors, 0, csr.userCount))
+        return sqrt(squaredError / csr.ratingCount)
+    }
+
+    /**
+     * Решает строки [from, to) одной стороны: target[row] по фиксированным векторам fixed.
+     */
+    private inner class SolveTask(
+        private val fixed: FloatArray,
+        private val target: FloatArray,
+        private val ptr: IntArray,
+        private val indices: IntArray,
+        private val values: FloatArray,
+        private val from: Int,
+        private val to: Int
+    ) : RecursiveAction() {
+
+        override fun compute() {
+            if (to - from > ROWS_PER_TASK) {
+                val mid = (from + to) ushr 1
+                invokeAll(
+                    SolveTask(fixed, target, ptr, indices, values, from, mid),
+                    SolveTask(fixed, target, ptr, indices, values, mid, to)
+                )
+                return
+            }
+            val a = DoubleArray(factors * factors)
+            val b = DoubleArray(factors)
+            for (row in from until to) {
+                solveRow(fixed, indices, values, ptr[row], ptr[row + 1], factors, lambda, a, b, target, row * factors)
+            }
+        }
+    }
+
+    private inner class ErrorTask(
+        private val csr: RatingCsr,
+        private val userFactors: FloatArray,
+        private val itemFactors: FloatArray,
+        private val from: Int,
+        private val to: Int
+    ) : RecursiveTask<Double>() {
+
+        override fun compute(): Double {
+            if (to - from > ROWS_PER_TASK) {
+                val mid = (from + to) ushr 1
+                val left = ErrorTask(csr, userFactors, itemFactors, from, mid).fork()
+                val right = ErrorTask(csr, userFactors, itemFactors, mid, to).compute()
+                return left.join() + right
+            }
+            var sum = 0.0
+            for (user in from until to) {
+                for (p in csr.userPtr[user] until csr.userPtr[user + 1]) {
+                    val error = dot(userFactors, user * factors, itemFactors, csr.userCourses[p] * factors, factors) -
+                        csr.userRatings[p]
+                    sum += error * error
+                }
+            }
+            return sum
+        }
+    }
+
+    companion object {
+        private const val ROWS_PER_TASK = 256
+        private const val INIT_SCALE = 0.1
+
+        /**
+         * Решает нормальные уравнения для одной строки по векторам fixed[indices[from until to]]
+         * с оценками values и пишет результат в out[outOffset until outOffset + k].
+         * a (k×k) и b (k) - рабочие буферы. Строка без оценок получает нулевой вектор.
+         */
+        fun solveRow(
+            fixed: FloatArray,
+            indices: IntArray,
+            values: FloatArray,
+            from: Int,
+            to: Int,
+            k: Int,
+            lambda: Double,
+            a: DoubleArray,
+            b: DoubleArray,
+            out: FloatArray,
+            outOffset: Int
+        ) {
+            if (from == to) {
+                out.fill(0f, outOffset, outOffset + k)
+                return
+            }
+            a.fill(0.0)
+            b.fill(0.0)
+            for (p in from until to) {
+                val base = indices[p] * k
+                val rating = values[p]
+                for (i in 0 until k) {
+                    val yi = fixed[base + i].toDouble()
+                    b[i] += rating * yi
+                    // Заполняем только нижний треугольник - Холецкому больше не нужно
+                    for (j in 0..i) {
+                        a[i * k + j] += yi * fixed[base + j]
+                    }
+                }
+            }
+            val regularization = lambda * (to - from)
+            for (i in 0 until k) {
+                a[i * k + i] += regularization
+            }
+
+            choleskySolve(a, b, k)
+            for (i in 0 until k) {
+                out[outOffset + i] = b[i].toFloat()
+            }
+        }
+
+        /**
+         * Решает A x = b для симметричной положительно определённой A (используется
+         * нижний треугольник). A заменяется на L, b - на решение x.
+         */
+        fun choleskySolve(a: DoubleArray, b: DoubleArray, k: Int) {
+            for (j in 0 until k) {
+                var diagonal = a[j * k + j]
+                for (p in 0 until j) {
+                    diagonal -= a[j * k + p] * a[j * k + p]
+                }
+                val ljj = sqrt(maxOf(diagonal, 1e-12))
+                a[j * k + j] = ljj
+                for (i in j + 1 until k) {
+                    var value = a[i * k + j]
+                    for (p in 0 until j) {
+                        value -= a[i * k + p] * a[j * k + p]
+                    }
+                    a[i * k + j] = value / ljj
+                }
+            }
+            // L y = b
+            for (i in 0 until k) {
+                var value = b[i]
+                for (p in 0 until i) {
+                    value -= a[i * k + p] * b[p]
+                }
+                b[i] = value / a[i * k + i]
+            }
+            // Lᵀ x = y
+            for (i in k - 1 downTo 0) {
+                var value = b[i]
+                for (p in i + 1 until k) {
+                    value -= a[p * k + i] * b[p]
+                }
+                b[i] = value / a[i * k + i]
+            }
+        }
+
+        fun dot(a: FloatArray, aOffset: Int, b: FloatArray, bOffset: Int, k: Int): Double {
+            var sum = 0.0
+            for (i in 0 until k) {
+                sum += a[aOffset + i] * b[bOffset + i]
+            }
+            return sum
+        }
+    }
+}
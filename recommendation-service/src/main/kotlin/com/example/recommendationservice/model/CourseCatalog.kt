@@ -0,0 +1,95 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.dto.CourseData
+import com.example.recommendationservice.dto.CourseEvent
+import com.example.recommendationservice.dto.CourseInfo
+import com.example.recommendationservice.metrics.Metrics
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Локальная реплика метаданных курсов: снимок из course-service плюс
+ * события топика courses. Пишет один поток (CourseEventConsumer),
+ * читают - обогащение ответов и фильтрация рекомендаций.
+ *
+ * Пока снимок не загружен ([isReady] = false), данных может не хватать,
+ * и вызывающий код должен сходить в course-service напрямую.
+ */
+class CourseCatalog {
+
+    private class Entry(val info: CourseInfo, val published: Boolean)
+
+    private val logger = LoggerFactory.getLogger(CourseCatalog::class.java)
+
+    private val courses = ConcurrentHashMap<Long, Entry>()
+    private val listeners = CopyOnWriteArrayList<CourseCatalogListener>()
+
+    @Volatile
+    var isReady = false
+        private set
+
+    private val appliedEvents = Metrics.counter("course_catalog.events")
+
+    init {
+        Metrics.gauge("course_catalog.size") { courses.size }
+    }
+
+    fun addListener(listener: CourseCatalogListener) {
+        listeners.add(listener)
+    }
+
+    fun get(courseId: Long): CourseInfo? = courses[courseId]?.info
+
+    /**
+     * Можно ли рекомендовать курс: известен и опубликован.
+     * До загрузки снимка фильтр не применяется.
+     */
+    fun isRecommendable(courseId: Long): Boolean = !isReady || courses[courseId]?.published == true
+
+    /** Опубликованные курсы по убыванию рейтинга - как GET /api/courses/top-rated */
+    fun topRated(limit: Int): List<CourseInfo> =
+        courses.values.asSequence()
+            .filter { it.published }
+            .map { it.info }
+            .sortedWith(compareByDescending<CourseInfo, Double?>(nullsFirst()) { it.averageRating }.thenBy { it.id })
+            .take(limit)
+            .toList()
+
+    /**
+     * Заменяет содержимое реплики снимком. Курсы, которых нет в снимке, удаляются.
+     */
+    fun loadSnapshot(snapshot: List<CourseData>) {
+        val ids = HashSet<Long>(snapshot.size * 2)
+        snapshot.forEach { course ->
+            ids.add(course.id)
+            courses[course.id] = Entry(course.toCourseInfo(), course.published == true)
+        }
+        courses.keys.retainAll(ids)
+        isReady = true
+
+        logger.info("Course catalog loaded: ${courses.size} courses")
+        listeners.forEach { it.onCatalogReloaded() }
+    }
+
+    fun apply(event: CourseEvent) {
+        val course = event.course
+        when {
+            event.eventType == "DELETED" -> courses.remove(event.courseId)
+            course != null -> courses[event.courseId] = Entry(course.toCourseInfo(), course.published == true)
+            else -> {
+                logger.warn("Course event without payload: type=${event.eventType}, courseId=${event.courseId}")
+                return
+            }
+        }
+        appliedEvents.incrementAndGet()
+        listeners.forEach { it.onCourseChanged(event.courseId) }
+    }
+}
+
+interface CourseCatalogListener {
+
+    fun onCourseChanged(courseId: Long)
+
+    fun onCatalogReloaded()
+}
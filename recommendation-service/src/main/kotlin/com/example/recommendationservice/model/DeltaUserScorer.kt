@@ -0,0 +1,485 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.dto.DeltaDriftReport
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.util.LongIntHashMap
+import com.example.recommendationservice.util.TopKSelector
+import java.util.SplittableRandom
+
+/**
+ * Инкрементальный user-based скоринг: для отслеживаемых пользователей хранится
+ * размер пересечения с каждым соседом-кандидатом, top-K соседей и накопитель
+ * оценок кандидатов (курс -> вклад самого похожего соседа, оценившего его на 4+) -
+ * то же, что считает [ExactNeighbourSearch] плюс слияние соседей, но без обхода
+ * posting list'ов всех курсов пользователя на каждый пересчёт.
+ *
+ * Изменение оценки применяется дельтой:
+ * - под блокировкой записи матрицы ([onRatingWritten]) пересечения пользователя
+ *   и других оценивших курс сдвигаются на ±1, а запись ставится в очередь;
+ * - после записи ([onRatingChanged]) top-K соседей обновляется слиянием прежнего
+ *   top-K с изменившимися парами, а пересчитываются только те кандидаты, которые
+ *   зависят от изменившихся соседей или курса. Пользователи, у которых изменился
+ *   отданный [recommend] топ, передаются в [changeListener].
+ *
+ * Изменение одной оценки без изменения набора курсов (UPDATED) не трогает ни
+ * пересечения, ни кандидатов самого пользователя - только кандидатов тех, у кого
+ * он в top-K. Отслеживается не больше [maxTrackedUsers] последних запрошенных
+ * пользователей, а суммарно не больше [maxOverlapEntries] пар в таблицах пересечений:
+ * с популярными курсами пересечение есть почти со всеми, и именно эти таблицы
+ * определяют память. [verify] сравнивает состояние с полным пересчётом.
+ */
+class DeltaUserScorer(
+    private val ratingMatrix: RatingMatrix,
+    private val neighbours: Int,
+    private val maxTrackedUsers: Int,
+    private val maxOverlapEntries: Long
+) : RatingWriteListener, RatingChangeListener {
+
+    /** course -> score без боксинга; удаление переносом последнего элемента на место удалённого */
+    private class CandidateScores {
+        private val slots = LongIntHashMap(64)
+        var courses = IntArray(64)
+            private set
+        var scores = DoubleArray(64)
+            private set
+        var size = 0
+            private set
+
+        fun get(course: Int): Double {
+            val slot = slots.get(course.toLong())
+            return if (slot >= 0) scores[slot] else 0.0
+        }
+
+        fun contains(course: Int): Boolean = slots.containsKey(course.toLong())
+
+        /** true, если курс добавлен или его score изменился */
+        fun put(course: Int, score: Double): Boolean {
+            val slot = slots.get(course.toLong())
+            if (slot >= 0) {
+                if (scores[slot] == score) return false
+                scores[slot] = score
+                return true
+            }
+            if (size == courses.size) {
+                courses = courses.copyOf(size * 2)
+                scores = scores.copyOf(size * 2)
+            }
+            courses[size] = course
+            scores[size] = score
+            slots.put(course.toLong(), size++)
+            return true
+        }
+
+        /** true, если курс был среди кандидатов */
+        fun remove(course: Int): Boolean {
+            val slot = slots.remove(course.toLong())
+            if (slot < 0) return false
+            val last = --size
+            if (slot != last) {
+                courses[slot] = courses[last]
+                scores[slot] = scores[last]
+                slots.put(courses[slot].toLong(), slot)
+            }
+            return true
+        }
+
+        fun clear() {
+            slots.clear()
+            size = 0
+        }
+    }
+
+    private class PendingWrite(val user: Int, val course: Int, val setChanged: Boolean)
+
+    private class UserState(val user: Int) {
+        val overlaps = LongIntHashMap(64, missingValue = 0)
+        var topUsers = IntArray(0)
+        var topSimilarities = DoubleArray(0)
+        val candidates = CandidateScores()
+
+        // Лимит и фильтр последнего [recommend]: изменение топа проверяется по тому же списку, что отдан
+        var limit = 0
+        var filter: (Long) -> Boolean = { true }
+
+        // Отданный топ курсов на момент последнего пересчёта - чтобы понять, изменился ли он
+        var lastTop = IntArray(0)
+
+        fun hasTopNeighbour(other: Int): Boolean = topUsers.contains(other)
+    }
+
+    private val lock = Any()
+
+    // Порядок вставки; запрошенный пользователь переставляется в конец, вытесняется первый
+    private val states = LinkedHashMap<Int, UserState>()
+
+    // Отложенная работа, накопленная под блокировкой записи матрицы
+    private val dirtyRebuild = HashSet<Int>()
+    private val pendingWrites = ArrayList<PendingWrite>()
+
+    // Сумма размеров таблиц пересечений отслеживаемых пользователей
+    private var overlapEntries = 0L
+
+    /** Получает userId, у которых после изменения чужих оценок изменился топ */
+    @Volatile
+    var changeListener: ((Long) -> Unit)? = null
+
+    @Volatile
+    var lastDriftReport: DeltaDriftReport? = null
+        private set
+
+    private val builds = Metrics.counter("delta.builds")
+    private val updates = Metrics.counter("delta.updates")
+    private val driftResets = Metrics.counter("delta.drift_resets")
+    private val processTimer = Metrics.timer("delta.process")
+
+    init {
+        require(neighbours > 0) { "Neighbour count must be positive" }
+        Metrics.gauge("delta.tracked_users") { synchronized(lock) { states.size } }
+        Metrics.gauge("delta.overlap_entries") { synchronized(lock) { overlapEntries } }
+    }
+
+    override fun onRatingWritten(user: Int, course: Int, previous: Int, current: Int) {
+        synchronized(lock) { markWrite(user, course, previous, current) }
+    }
+
+    private fun markWrite(user: Int, course: Int, previous: Int, current: Int) {
+        if (states.isEmpty()) return
+        val setChanged = (previous == 0) != (current == 0)
+
+        val delta = if (current != 0) 1 else -1
+        val own = states[user]
+        // Posting list популярного курса бывает длиннее списка отслеживаемых - тогда проверяем их строки
+        val scanColumn = setChanged && (own != null || ratingMatrix.columnSize(course) <= states.size)
+        if (scanColumn) {
+            val raters = ratingMatrix.columnUsers(course)
+            for (i in 0 until ratingMatrix.columnSize(course)) {
+                val other = raters[i]
+                if (other == user) continue
+                own?.let { addOverlap(it, other, delta) }
+                states[other]?.let { addOverlap(it, user, delta) }
+            }
+        } else if (setChanged) {
+            for (state in states.values) {
+                if (state.user != user && ratingMatrix.rating(state.user, course) != 0) addOverlap(state, user, delta)
+            }
+        }
+        if (setChanged && own != null) dirtyRebuild.add(user)
+        pendingWrites.add(PendingWrite(user, course, setChanged))
+    }
+
+    override fun onRatingChanged(userId: Long, courseId: Long, previous: Int, current: Int) {
+        val changed = ratingMatrix.read { synchronized(lock) { processPending() } }
+        changeListener?.let { listener -> changed.forEach(listener) }
+    }
+
+    /**
+     * Топ-[limit] кандидатов пользователя, прошедших [filter]: пары (courseId, score).
+     * Первый запрос строит состояние полным проходом, дальше оно поддерживается дельтами.
+     * Вызывается внутри [RatingMatrix.read].
+     */
+    fun recommend(user: Int, limit: Int, filter: (Long) -> Boolean): List<Pair<Long, Double>> {
+        // Состояние строится вне [lock], чтобы не держать обработку событий: под блокировкой
+        // чтения матрицы записей нет, а уже применённые к матрице записи в нём учтены
+        val built = if (synchronized(lock) { user in states }) null else buildState(user).also { builds.incrementAndGet() }
+        val changed = synchronized(lock) {
+            val changed = processPending()
+            val state = states.remove(user)
+                ?: (built ?: buildState(user).also { builds.incrementAndGet() }).also { overlapEntries += it.overlaps.size }
+            states[user] = state
+            evictOverflow()
+
+            state.limit = limit
+            state.filter = filter
+            val top = servedTop(state)
+            state.lastTop = IntArray(top.size) { top.idAt(it) }
+            changed to (0 until top.size).map { ratingMatrix.courseIdAt(top.idAt(it)) to top.scoreAt(it) }
+        }
+        changeListener?.let { listener -> changed.first.forEach(listener) }
+        return changed.second
+    }
+
+    /**
+     * Сверяет состояние случайных отслеживаемых пользователей с полным пересчётом.
+     * Разошедшееся больше чем на [tolerance] состояние заменяется пересчитанным.
+     */
+    fun verify(sampleSize: Int, tolerance: Double): DeltaDriftReport {
+        val sampled = synchronized(lock) {
+            val tracked = states.keys.toIntArray()
+            val random = SplittableRandom(System.nanoTime())
+            if (tracked.size <= sampleSize) tracked.toList() else List(sampleSize) { tracked[random.nextInt(tracked.size)] }.distinct()
+        }
+
+        var drifted = 0
+        var overlapMismatches = 0L
+        var maxScoreDrift = 0.0
+        sampled.forEach { user ->
+            ratingMatrix.read {
+                synchronized(lock) {
+                    processPending()
+                    val state = states[user] ?: return@synchronized
+                    val fresh = buildState(user)
+                    val mismatches = overlapMismatches(state, fresh)
+                    val scoreDrift = scoreDrift(state, fresh)
+                    overlapMismatches += mismatches
+                    maxScoreDrift = maxOf(maxScoreDrift, scoreDrift)
+                    if (mismatches > 0 || scoreDrift > tolerance) {
+                        drifted++
+                        driftResets.incrementAndGet()
+                        fresh.limit = state.limit
+                        fresh.filter = state.filter
+                        fresh.lastTop = state.lastTop
+                        states[user] = fresh
+                        overlapEntries += fresh.overlaps.size - state.overlaps.size
+                    }
+                }
+            }
+        }
+
+        val report = DeltaDriftReport(
+            trackedUsers = synchronized(lock) { states.size },
+            sampledUsers = sampled.size,
+            driftedUsers = drifted,
+            overlapMismatches = overlapMismatches,
+            maxScoreDrift = maxScoreDrift,
+            tolerance = tolerance,
+            verifiedAt = System.currentTimeMillis()
+        )
+        lastDriftReport = report
+        return report
+    }
+
+    /** Применяет очередь записей. Под блокировкой чтения матрицы и [lock]. */
+    private fun processPending(): List<Long> {
+        if (pendingWrites.isEmpty()) return emptyList()
+
+        val changed = ArrayList<Long>()
+        processTimer.time {
+            for (state in states.values) {
+                val candidatesChanged = if (state.user in dirtyRebuild) {
+                    refreshNeighbours(state)
+                    rebuildCandidates(state)
+                    true
+                } else {
+                    applyWrites(state)
+                }
+                if (!candidatesChanged) continue
+                updates.incrementAndGet()
+
+                val top = topCourses(state)
+                if (!top.contentEquals(state.lastTop)) {
+                    state.lastTop = top
+                    changed.add(ratingMatrix.userIdAt(state.user))
+                }
+            }
+            dirtyRebuild.clear()
+            pendingWrites.clear()
+        }
+        return changed
+    }
+
+    /**
+     * Применяет чужие записи к состоянию; true, если изменились кандидаты.
+     * top-K на этот момент ещё тот же, что и во время записей.
+     */
+    private fun applyWrites(state: UserState): Boolean {
+        var changedNeighbours: MutableSet<Int>? = null
+        var courses: MutableSet<Int>? = null
+        for (write in pendingWrites) {
+            if (write.user == state.user) continue
+            // Сменился размер набора пользователя - сходство с ним изменилось у всех, с кем есть пересечение
+            if (write.setChanged && state.overlaps.containsKey(write.user.toLong())) {
+                (changedNeighbours ?: HashSet<Int>().also { changedNeighbours = it }).add(write.user)
+            }
+            // Его оценка курса - вклад в кандидата этот курс у тех, у кого он в top-K
+            if (state.hasTopNeighbour(write.user)) {
+                (courses ?: HashSet<Int>().also { courses = it }).add(write.course)
+            }
+        }
+
+        val previousTop = state.topUsers
+        val previousSimilarities = state.topSimilarities
+        val neighboursChanged = changedNeighbours?.let { updateNeighbours(state, it) } ?: false
+        if (!neighboursChanged && courses == null) return false
+
+        val affectedCourses = courses ?: HashSet()
+        if (neighboursChanged) {
+            // Кандидатов дают только соседи из top-K: пересчитываем курсы тех, кто вошёл в него,
+            // вышел из него, сменил место или сходство
+            for (rank in 0 until maxOf(previousTop.size, state.topUsers.size)) {
+                val before = previousTop.getOrNull(rank)
+                val after = state.topUsers.getOrNull(rank)
+                if (before != after || previousSimilarities[rank] != state.topSimilarities[rank]) {
+                    before?.let { addRowCourses(it, affectedCourses) }
+                    after?.let { addRowCourses(it, affectedCourses) }
+                }
+            }
+        }
+        var candidatesChanged = false
+        affectedCourses.forEach { if (updateCandidate(state, it)) candidatesChanged = true }
+        return candidatesChanged
+    }
+
+    private fun addRowCourses(user: Int, target: MutableSet<Int>) {
+        val courses = ratingMatrix.rowCourses(user)
+        for (i in 0 until ratingMatrix.rowSize(user)) target.add(courses[i])
+    }
+
+    private fun buildState(user: Int): UserState {
+        val state = UserState(user)
+        val userCourses = ratingMatrix.rowCourses(user)
+        for (i in 0 until ratingMatrix.rowSize(user)) {
+            val course = userCourses[i]
+            val raters = ratingMatrix.columnUsers(course)
+            for (j in 0 until ratingMatrix.columnSize(course)) {
+                val other = raters[j]
+                if (other != user) state.overlaps.addTo(other.toLong(), 1)
+            }
+        }
+        refreshNeighbours(state)
+        rebuildCandidates(state)
+        return state
+    }
+
+    /** top-K соседей по Jaccard из накопленных пересечений, как в [ExactNeighbourSearch] */
+    private fun refreshNeighbours(state: UserState) {
+        val userSize = ratingMatrix.rowSize(state.user)
+        val top = TopKSelector(neighbours)
+        state.overlaps.forEach { other, common ->
+            if (common >= MIN_COMMON_COURSES) {
+                val union = userSize + ratingMatrix.rowSize(other.toInt()) - common
+                top.offer(other.toInt(), common.toDouble() / union)
+            }
+        }
+        state.topUsers = IntArray(top.size) { top.idAt(it) }
+        state.topSimilarities = DoubleArray(top.size) { top.scoreAt(it) }
+    }
+
+    /**
+     * Обновляет top-K, когда изменилось сходство только с [changed]: остальные пары прежние,
+     * поэтому достаточно слить прежний top-K с изменившимися. Если сосед из top-K стал
+     * менее похожим, его место может занять любой - тогда полный проход по пересечениям.
+     * true, если top-K (соседи или их сходство) изменился.
+     */
+    private fun updateNeighbours(state: UserState, changed: Set<Int>): Boolean {
+        val userSize = ratingMatrix.rowSize(state.user)
+        val previousTop = state.topUsers
+        val previousSimilarities = state.topSimilarities
+
+        // Частый случай: изменившиеся не в top-K и не проходят в заполненный top-K
+        if (previousTop.size == neighbours && changed.none { state.hasTopNeighbour(it) }) {
+            val lastUser = previousTop.last()
+            val lastSimilarity = previousSimilarities.last()
+            val entersTop = changed.any { other ->
+                val similarity = similarity(state, other, userSize)
+                similarity > lastSimilarity || (similarity == lastSimilarity && other < lastUser)
+            }
+            if (!entersTop) return false
+        }
+
+        val top = TopKSelector(neighbours)
+        for (rank in previousTop.indices) {
+            val other = previousTop[rank]
+            if (other !in changed) {
+                top.offer(other, previousSimilarities[rank])
+            } else if (similarity(state, other, userSize) < previousSimilarities[rank]) {
+                refreshNeighbours(state)
+                return !(state.topUsers.contentEquals(previousTop) && state.topSimilarities.contentEquals(previousSimilarities))
+            }
+        }
+        changed.forEach { other ->
+            val similarity = similarity(state, other, userSize)
+            if (similarity >= 0) top.offer(other, similarity)
+        }
+        state.topUsers = IntArray(top.size) { top.idAt(it) }
+        state.topSimilarities = DoubleArray(top.size) { top.scoreAt(it) }
+        return !(state.topUsers.contentEquals(previousTop) && state.topSimilarities.contentEquals(previousSimilarities))
+    }
+
+    /** Jaccard с [other] или -1, если общих курсов меньше [MIN_COMMON_COURSES] */
+    private fun similarity(state: UserState, other: Int, userSize: Int): Double {
+        val common = state.overlaps.get(other.toLong())
+        if (common < MIN_COMMON_COURSES) return -1.0
+        return common.toDouble() / (userSize + ratingMatrix.rowSize(other) - common)
+    }
+
+    private fun rebuildCandidates(state: UserState) {
+        val user = state.user
+        state.candidates.clear()
+        state.topUsers.forEachIndexed { rank, neighbour ->
+            val courses = ratingMatrix.rowCourses(neighbour)
+            val ratings = ratingMatrix.rowRatings(neighbour)
+            for (i in 0 until ratingMatrix.rowSize(neighbour)) {
+                val course = courses[i]
+                val rating = ratings[i].toInt()
+                if (rating < 4 || state.candidates.contains(course) || ratingMatrix.rating(user, course) != 0) continue
+                state.candidates.put(course, state.topSimilarities[rank] * rating / 5.0)
+            }
+        }
+    }
+
+    /** Вклад самого похожего соседа, оценившего курс на 4+; курс пользователя кандидатом не бывает */
+    private fun updateCandidate(state: UserState, course: Int): Boolean {
+        if (ratingMatrix.rating(state.user, course) != 0) {
+            return state.candidates.remove(course)
+        }
+        state.topUsers.forEachIndexed { rank, neighbour ->
+            val rating = ratingMatrix.rating(neighbour, course)
+            if (rating >= 4) {
+                return state.candidates.put(course, state.topSimilarities[rank] * rating / 5.0)
+            }
+        }
+        return state.candidates.remove(course)
+    }
+
+    /** Топ кандидатов, который отдал бы [recommend] с лимитом и фильтром последнего запроса */
+    private fun servedTop(state: UserState): TopKSelector {
+        val top = TopKSelector(state.limit)
+        val candidates = state.candidates
+        for (slot in 0 until candidates.size) {
+            if (state.filter(ratingMatrix.courseIdAt(candidates.courses[slot]))) {
+                top.offer(candidates.courses[slot], candidates.scores[slot])
+            }
+        }
+        return top
+    }
+
+    private fun topCourses(state: UserState): IntArray {
+        val top = servedTop(state)
+        return IntArray(top.size) { top.idAt(it) }
+    }
+
+    private fun addOverlap(state: UserState, other: Int, delta: Int) {
+        val before = state.overlaps.size
+        if (state.overlaps.addTo(other.toLong(), delta) == 0) state.overlaps.remove(other.toLong())
+        overlapEntries += state.overlaps.size - before
+    }
+
+    private fun evictOverflow() {
+        // Только что запрошенный пользователь (последний) остаётся, даже если один не влезает в лимит
+        while (states.size > maxTrackedUsers || (overlapEntries > maxOverlapEntries && states.size > 1)) {
+            val eldest = states.keys.first()
+            overlapEntries -= states.remove(eldest)!!.overlaps.size
+            dirtyRebuild.remove(eldest)
+        }
+    }
+
+    private fun overlapMismatches(state: UserState, fresh: UserState): Int {
+        var mismatches = 0
+        fresh.overlaps.forEach { other, common -> if (state.overlaps.get(other) != common) mismatches++ }
+        state.overlaps.forEach { other, _ -> if (!fresh.overlaps.containsKey(other)) mismatches++ }
+        return mismatches
+    }
+
+    private fun scoreDrift(state: UserState, fresh: UserState): Double {
+        var drift = 0.0
+        for (slot in 0 until fresh.candidates.size) {
+            val course = fresh.candidates.courses[slot]
+            drift = maxOf(drift, Math.abs(fresh.candidates.scores[slot] - state.candidates.get(course)))
+        }
+        for (slot in 0 until state.candidates.size) {
+            val course = state.candidates.courses[slot]
+            if (!fresh.candidates.contains(course)) drift = maxOf(drift, Math.abs(state.candidates.scores[slot]))
+        }
+        return drift
+    }
+}
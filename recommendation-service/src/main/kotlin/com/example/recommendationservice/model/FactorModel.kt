@@ -0,0 +1,129 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.util.LittleEndianOutput
+import com.example.recommendationservice.util.LongIntHashMap
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.FloatBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Модель факторизации, отображённая в память из файла (только чтение).
+ *
+ * Формат файла, little-endian:
+ *
+ *     0   int   magic = 0x31534C41 ("ALS1")
+ *     4   int   version = 1
+ *     8   int   factors (k)
+ *     12  int   userCount
+ *     16  int   courseCount
+ *     20  int   зарезервировано
+ *     24  long  время обучения, epoch millis
+ *     32  long[userCount]          userIds
+ *     ..  long[courseCount]        courseIds
+ *     ..  float[userCount * k]     факторы пользователей
+ *     ..  float[courseCount * k]   факторы курсов
+ *
+ * Файл пишется во временный и атомарно переименовывается, поэтому старое
+ * отображение остаётся валидным, пока модель не заменят.
+ */
+class FactorModel private constructor(
+    val factors: Int,
+    val trainedAt: Long,
+    private val userIds: LongArray,
+    private val courseIds: LongArray,
+    private val userFactors: FloatBuffer,
+    private val itemFactors: FloatBuffer
+) {
+
+    private val userIndex = LongIntHashMap(userIds.size).also { index ->
+        userIds.forEachIndexed { i, id -> index.put(id, i) }
+    }
+    private val courseIndex = LongIntHashMap(courseIds.size).also { index ->
+        courseIds.forEachIndexed { i, id -> index.put(id, i) }
+    }
+
+    val userCount: Int get() = userIds.size
+    val courseCount: Int get() = courseIds.size
+
+    fun userIndexOf(userId: Long): Int = userIndex.get(userId)
+
+    fun courseIndexOf(courseId: Long): Int = courseIndex.get(courseId)
+
+    fun courseIdAt(course: Int): Long = courseIds[course]
+
+    fun userVector(user: Int): FloatArray = FloatArray(factors) { userFactors.get(user * factors + it) }
+
+    /** Копирует вектор курса в target начиная с offset */
+    fun copyItemVector(course: Int, target: FloatArray, offset: Int) {
+        itemFactors.get(course * factors, target, offset, factors)
+    }
+
+    fun score(vector: FloatArray, course: Int): Double {
+        val base = course * factors
+        var sum = 0.0
+        for (i in 0 until factors) {
+            sum += vector[i] * itemFactors.get(base + i)
+        }
+        return sum
+    }
+
+    companion object {
+        private const val MAGIC = 0x31534C41
+        private const val VERSION = 1
+        private const val HEADER_BYTES = 32
+
+        fun write(path: Path, csr: RatingCsr, model: AlsFactors) {
+            LittleEndianOutput.create(path).use { output ->
+                output.putInt(MAGIC).putInt(VERSION).putInt(model.factors)
+                    .putInt(csr.userCount).putInt(csr.courseCount).putInt(0)
+                    .putLong(System.currentTimeMillis())
+                output.putLongs(csr.userIds)
+                output.putLongs(csr.courseIds)
+                output.putFloats(model.userFactors)
+                output.putFloats(model.itemFactors)
+                output.commit()
+            }
+        }
+
+        fun open(path: Path): FactorModel {
+            FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+                val size = channel.size()
+                if (size < HEADER_BYTES || size > Int.MAX_VALUE) {
+                    throw IOException("Invalid ALS model file size: $size")
+                }
+                val mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN)
+
+                if (mapped.getInt(0) != MAGIC) throw IOException("Not an ALS model file: $path")
+                val version = mapped.getInt(4)
+                if (version != VERSION) throw IOException("Unsupported ALS model version: $version")
+                val k = mapped.getInt(8)
+                val users = mapped.getInt(12)
+                val courses = mapped.getInt(16)
+                val trainedAt = mapped.getLong(24)
+
+                val userIdsOffset = HEADER_BYTES
+                val courseIdsOffset = userIdsOffset + users * 8
+                val userFactorsOffset = courseIdsOffset + courses * 8
+                val itemFactorsOffset = userFactorsOffset + users * k * 4
+                val expectedSize = itemFactorsOffset.toLong() + courses.toLong() * k * 4
+                if (size != expectedSize) throw IOException("Truncated ALS model file: $size of $expectedSize bytes")
+
+                return FactorModel(
+                    factors = k,
+                    trainedAt = trainedAt,
+                    userIds = LongArray(users) { mapped.getLong(userIdsOffset + it * 8) },
+                    courseIds = LongArray(courses) { mapped.getLong(courseIdsOffset + it * 8) },
+                    userFactors = floatView(mapped, userFactorsOffset, users * k),
+                    itemFactors = floatView(mapped, itemFactorsOffset, courses * k)
+                )
+            }
+        }
+
+        private fun floatView(buffer: ByteBuffer, offset: Int, count: Int): FloatBuffer =
+            buffer.slice(offset, count * 4).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()
+    }
+}
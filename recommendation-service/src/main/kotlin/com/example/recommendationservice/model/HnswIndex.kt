@@ -0,0 +1,460 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.util.LittleEndianOutput
+import com.example.recommendationservice.util.LongIntHashMap
+import java.io.IOException
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.SplittableRandom
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.math.ln
+import kotlin.math.sqrt
+
+enum class VectorMetric {
+    /** Скалярное произведение (maximum inner product search) */
+    INNER_PRODUCT,
+
+    /** Косинус: векторы нормируются при вставке и в запросе */
+    COSINE;
+
+    companion object {
+        fun fromConfig(value: String): VectorMetric =
+            valueOf(value.trim().uppercase().replace('-', '_'))
+    }
+}
+
+/**
+ * Приближённый поиск ближайших векторов по графу HNSW (Malkov, Yashunin).
+ *
+ * Узел - вектор с long-меткой (courseId). Расстояние - минус скалярное
+ * произведение, для [VectorMetric.COSINE] по нормированным векторам. Уровень
+ * узла выбирается экспоненциально; на каждом уровне до [m] связей (на нулевом
+ * до 2 * [m]), соседи отбираются эвристикой разнообразия. Вставка инкрементальная,
+ * под блокировкой записи; поиски идут параллельно под блокировкой чтения.
+ */
+class HnswIndex(
+    val dimension: Int,
+    val metric: VectorMetric,
+    val m: Int = 16,
+    val efConstruction: Int = 200,
+    seed: Long = 42
+) {
+
+    private val maxLinks0 = m * 2
+    private val levelMultiplier = 1.0 / ln(m.toDouble())
+    private val random = SplittableRandom(seed)
+    private val lock = ReentrantReadWriteLock()
+
+    private var labels = LongArray(INITIAL_CAPACITY)
+    private var vectors = FloatArray(INITIAL_CAPACITY * dimension)
+    private var levels = IntArray(INITIAL_CAPACITY)
+
+    // links[node][level]: [0] - число связей, дальше индексы соседей
+    private var links = arrayOfNulls<Array<IntArray>>(INITIAL_CAPACITY)
+    private val labelIndex = LongIntHashMap()
+
+    private var entryPoint = -1
+    private var maxLevel = -1
+
+    var size: Int = 0
+        private set
+
+    private val visitedSets = ThreadLocal.withInitial { VisitedSet() }
+
+    init {
+        require(dimension > 0) { "Vector dimension must be positive" }
+        require(m >= 2) { "HNSW m must be at least 2" }
+    }
+
+    fun contains(label: Long): Boolean = lock.read { labelIndex.containsKey(label) }
+
+    /**
+     * Добавляет вектор. Метка должна быть новой: граф HNSW не поддерживает
+     * замену вектора на месте - при переобучении индекс строится заново.
+     */
+    fun insert(label: Long, vector: FloatArray) {
+        require(vector.size == dimension) { "Expected vector of $dimension, got ${vector.size}" }
+        lock.write {
+            require(!labelIndex.containsKey(label)) { "Label $label is already indexed" }
+            val node = allocate(label, vector)
+            val level = levels[node]
+
+            if (entryPoint < 0) {
+                entryPoint = node
+                maxLevel = level
+                return
+            }
+
+            val query = vectors.copyOfRange(node * dimension, (node + 1) * dimension)
+            var nearest = entryPoint
+            for (layer in maxLevel downTo level + 1) {
+                nearest = greedyClosest(query, nearest, layer)
+            }
+
+            var entries = intArrayOf(nearest)
+            for (layer in minOf(level, maxLevel) downTo 0) {
+                val found = searchLayer(query, entries, efConstruction, layer).sortedNodes()
+                val selected = selectNeighbours(query, found, maxLinksAt(layer))
+                val own = links[node]!![layer]
+                selected.forEach { neighbour -> addLink(own, neighbour) }
+                selected.forEach { neighbour -> connect(neighbour, node, layer) }
+                entries = found
+            }
+
+            if (level > maxLevel) {
+                maxLevel = level
+                entryPoint = node
+            }
+        }
+    }
+
+    /**
+     * До [k] ближайших к запросу меток с их сходством (скалярное произведение
+     * или косинус), по убыванию сходства. [ef] - ширина поиска на нулевом уровне.
+     */
+    fun search(query: FloatArray, k: Int, ef: Int): List<Pair<Long, Double>> = lock.read {
+        require(query.size == dimension) { "Expected vector of $dimension, got ${query.size}" }
+        if (entryPoint < 0 || k <= 0) return@read emptyList()
+
+        val normalized = if (metric == VectorMetric.COSINE) normalize(query.copyOf()) else query
+        var nearest = entryPoint
+        for (layer in maxLevel downTo 1) {
+            nearest = greedyClosest(normalized, nearest, layer)
+        }
+        val found = searchLayer(normalized, intArrayOf(nearest), maxOf(ef, k), 0)
+        val nodes = found.sortedNodes()
+        (0 until minOf(k, nodes.size)).map { i -> labels[nodes[i]] to -distance(normalized, nodes[i]).toDouble() }
+    }
+
+    fun save(path: Path, tag: Long) = lock.read {
+        LittleEndianOutput.create(path).use { output ->
+            output.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(metric.ordinal)
+                .putInt(m).putInt(efConstruction).putInt(size).putInt(entryPoint)
+                .putInt(maxLevel).putInt(0).putLong(tag)
+            for (node in 0 until size) {
+                output.putLong(labels[node])
+                output.putInt(levels[node])
+                output.putFloats(vectors, node * dimension, (node + 1) * dimension)
+                for (layer in 0..levels[node]) {
+                    val nodeLinks = links[node]!![layer]
+                    output.putInts(nodeLinks, 0, nodeLinks[0] + 1)
+                }
+            }
+            output.commit()
+        }
+    }
+
+    /** Поиск жадным спуском: ближайший к запросу узел слоя, начиная с [start] */
+    private fun greedyClosest(query: FloatArray, start: Int, layer: Int): Int {
+        var current = start
+        var currentDistance = distance(query, current)
+        var improved = true
+        while (improved) {
+            improved = false
+            val nodeLinks = links[current]!![layer]
+            for (i in 1..nodeLinks[0]) {
+                val candidate = nodeLinks[i]
+                val candidateDistance = distance(query, candidate)
+                if (candidateDistance < currentDistance) {
+                    current = candidate
+                    currentDistance = candidateDistance
+                    improved = true
+                }
+            }
+        }
+        return current
+    }
+
+    /** Лучевой поиск по слою: до [ef] ближайших узлов в max-куче по расстоянию */
+    private fun searchLayer(query: FloatArray, entries: IntArray, ef: Int, layer: Int): NodeHeap {
+        val visited = visitedSets.get().reset(size)
+        val candidates = NodeHeap(ef, max = false)
+        val results = NodeHeap(ef + 1, max = true)
+
+        for (entry in entries) {
+            if (!visited.add(entry)) continue
+            val d = distance(query, entry)
+            candidates.push(d, entry)
+            results.push(d, entry)
+            if (results.size > ef) results.pop()
+        }
+
+        while (candidates.size > 0) {
+            val candidateDistance = candidates.topDistance()
+            if (results.size >= ef && candidateDistance > results.topDistance()) break
+            val candidate = candidates.pop()
+
+            val nodeLinks = links[candidate]!![layer]
+            for (i in 1..nodeLinks[0]) {
+                val neighbour = nodeLinks[i]
+                if (!visited.add(neighbour)) continue
+                val d = distance(query, neighbour)
+                if (results.size < ef || d < results.topDistance()) {
+                    candidates.push(d, neighbour)
+                    results.push(d, neighbour)
+                    if (results.size > ef) results.pop()
+                }
+            }
+        }
+        return results
+    }
+
+    /**
+     * Эвристика отбора соседей: кандидат (по возрастанию расстояния) берётся,
+     * только если он ближе к базовой точке, чем к любому уже выбранному соседу.
+     */
+    private fun selectNeighbours(base: FloatArray, sortedCandidates: IntArray, limit: Int): IntArray {
+        if (sortedCandidates.size <= limit) return sortedCandidates
+        val selected = IntArray(limit)
+        var count = 0
+        for (candidate in sortedCandidates) {
+            val toBase = distance(base, candidate)
+            var diverse = true
+            for (s in 0 until count) {
+                if (nodeDistance(candidate, selected[s]) < toBase) {
+                    diverse = false
+                    break
+                }
+            }
+            if (diverse) {
+                selected[count++] = candidate
+                if (count == limit) break
+            }
+        }
+        return selected.copyOf(count)
+    }
+
+    /** Добавляет обратную связь neighbour -> node, при переполнении прореживая список */
+    private fun connect(neighbour: Int, node: Int, layer: Int) {
+        val neighbourLinks = links[neighbour]!![layer]
+        val limit = maxLinksAt(layer)
+        if (neighbourLinks[0] < limit) {
+            addLink(neighbourLinks, node)
+            return
+        }
+
+        val base = vectors.copyOfRange(neighbour * dimension, (neighbour + 1) * dimension)
+        val candidates = IntArray(neighbourLinks[0] + 1)
+        for (i in 0 until neighbourLinks[0]) candidates[i] = neighbourLinks[i + 1]
+        candidates[candidates.size - 1] = node
+        val sorted = candidates.sortedBy { distance(base, it) }.toIntArray()
+
+        val kept = selectNeighbours(base, sorted, limit)
+        neighbourLinks[0] = kept.size
+        kept.copyInto(neighbourLinks, 1)
+    }
+
+    private fun addLink(nodeLinks: IntArray, target: Int) {
+        nodeLinks[0]++
+        nodeLinks[nodeLinks[0]] = target
+    }
+
+    private fun maxLinksAt(layer: Int): Int = if (layer == 0) maxLinks0 else m
+
+    private fun allocate(label: Long, vector: FloatArray): Int {
+        val level = (-ln(1.0 - random.nextDouble()) * levelMultiplier).toInt()
+        return allocate(label, vector, level, null)
+    }
+
+    private fun allocate(label: Long, vector: FloatArray, level: Int, nodeLinks: Array<IntArray>?): Int {
+        if (size == labels.size) grow()
+        val node = size++
+        labels[node] = label
+        levels[node] = level
+        vector.copyInto(vectors, node * dimension)
+        // Сохранённые векторы уже нормированы: повторная нормировка сдвинула бы их на ulp
+        if (metric == VectorMetric.COSINE && nodeLinks == null) normalizeAt(node)
+        links[node] = nodeLinks ?: Array(level + 1) { IntArray(maxLinksAt(it) + 1) }
+        labelIndex.put(label, node)
+        return node
+    }
+
+    private fun grow() {
+        val capacity = labels.size * 2
+        labels = labels.copyOf(capacity)
+        vectors = vectors.copyOf(capacity * dimension)
+        levels = levels.copyOf(capacity)
+        links = links.copyOf(capacity)
+    }
+
+    private fun distance(query: FloatArray, node: Int): Float {
+        val base = node * dimension
+        var dot = 0f
+        for (i in 0 until dimension) {
+            dot += query[i] * vectors[base + i]
+        }
+        return -dot
+    }
+
+    private fun nodeDistance(a: Int, b: Int): Float {
+        val aBase = a * dimension
+        val bBase = b * dimension
+        var dot = 0f
+        for (i in 0 until dimension) {
+            dot += vectors[aBase + i] * vectors[bBase + i]
+        }
+        return -dot
+    }
+
+    private fun normalizeAt(node: Int) {
+        val base = node * dimension
+        var norm = 0.0
+        for (i in 0 until dimension) norm += vectors[base + i] * vectors[base + i]
+        if (norm == 0.0) return
+        val scale = (1.0 / sqrt(norm)).toFloat()
+        for (i in 0 until dimension) vectors[base + i] *= scale
+    }
+
+    private fun normalize(vector: FloatArray): FloatArray {
+        var norm = 0.0
+        for (value in vector) norm += value * value
+        if (norm == 0.0) return vector
+        val scale = (1.0 / sqrt(norm)).toFloat()
+        for (i in vector.indices) vector[i] *= scale
+        return vector
+    }
+
+    /** Отметки посещённых узлов с эпохой вместо очистки массива на каждый поиск */
+    private class VisitedSet {
+        private var marks = IntArray(INITIAL_CAPACITY)
+        private var epoch = 0
+
+        fun reset(capacity: Int): VisitedSet {
+            if (marks.size < capacity) marks = IntArray(capacity * 2)
+            epoch++
+            if (epoch == Int.MAX_VALUE) {
+                marks.fill(0)
+                epoch = 1
+            }
+            return this
+        }
+
+        fun add(node: Int): Boolean {
+            if (marks[node] == epoch) return false
+            marks[node] = epoch
+            return true
+        }
+    }
+
+    /** Двоичная куча пар (расстояние, узел) без боксинга */
+    private class NodeHeap(capacity: Int, private val max: Boolean) {
+        private var distances = FloatArray(maxOf(capacity, 4))
+        private var nodes = IntArray(maxOf(capacity, 4))
+
+        var size = 0
+            private set
+
+        fun topDistance(): Float = distances[0]
+
+        fun push(distance: Float, node: Int) {
+            if (size == distances.size) {
+                distances = distances.copyOf(size * 2)
+                nodes = nodes.copyOf(size * 2)
+            }
+            var i = size++
+            while (i > 0) {
+                val parent = (i - 1) / 2
+                if (!before(distance, distances[parent])) break
+                distances[i] = distances[parent]
+                nodes[i] = nodes[parent]
+                i = parent
+            }
+            distances[i] = distance
+            nodes[i] = node
+        }
+
+        fun pop(): Int {
+            val top = nodes[0]
+            size--
+            if (size > 0) {
+                val distance = distances[size]
+                val node = nodes[size]
+                var i = 0
+                while (true) {
+                    var child = 2 * i + 1
+                    if (child >= size) break
+                    if (child + 1 < size && before(distances[child + 1], distances[child])) child++
+                    if (!before(distances[child], distance)) break
+                    distances[i] = distances[child]
+                    nodes[i] = nodes[child]
+                    i = child
+                }
+                distances[i] = distance
+                nodes[i] = node
+            }
+            return top
+        }
+
+        /** Узлы кучи по возрастанию расстояния (куча при этом опустошается) */
+        fun sortedNodes(): IntArray {
+            val result = IntArray(size)
+            if (max) {
+                for (i in result.size - 1 downTo 0) result[i] = pop()
+            } else {
+                for (i in result.indices) result[i] = pop()
+            }
+            return result
+        }
+
+        private fun before(a: Float, b: Float): Boolean = if (max) a > b else a < b
+    }
+
+    companion object {
+        private const val MAGIC = 0x31534E48 // "HNS1"
+        private const val VERSION = 1
+        private const val INITIAL_CAPACITY = 64
+
+        /**
+         * Читает индекс, сохранённый [save]. Возвращает null, если метка файла
+         * не совпадает с [expectedTag] (индекс построен для другой модели)
+         * или связи узлов испорчены - тогда индекс строится заново.
+         */
+        fun load(path: Path, expectedTag: Long): HnswIndex? {
+            FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN)
+                if (buffer.getInt() != MAGIC) throw IOException("Not an HNSW index file: $path")
+                val version = buffer.getInt()
+                if (version != VERSION) throw IOException("Unsupported HNSW index version: $version")
+
+                val dimension = buffer.getInt()
+                val metric = VectorMetric.entries[buffer.getInt()]
+                val m = buffer.getInt()
+                val efConstruction = buffer.getInt()
+                val size = buffer.getInt()
+                val entryPoint = buffer.getInt()
+                val maxLevel = buffer.getInt()
+                buffer.getInt()
+                if (buffer.getLong() != expectedTag) return null
+
+                val index = HnswIndex(dimension, metric, m, efConstruction)
+                val vector = FloatArray(dimension)
+                repeat(size) {
+                    val label = buffer.getLong()
+                    val level = buffer.getInt()
+                    for (i in 0 until dimension) vector[i] = buffer.getFloat()
+                    if (level !in 0..maxLevel) return null
+                    val nodeLinks = arrayOfNulls<IntArray>(level + 1)
+                    for (layer in 0..level) {
+                        val row = IntArray(index.maxLinksAt(layer) + 1)
+                        row[0] = buffer.getInt()
+                        // Испорченный файл: не пишем за пределы строки и не ссылаемся за пределы индекса
+                        if (row[0] !in 0..index.maxLinksAt(layer)) return null
+                        for (i in 1..row[0]) {
+                            row[i] = buffer.getInt()
+                            if (row[i] !in 0 until size) return null
+                        }
+                        nodeLinks[layer] = row
+                    }
+                    index.allocate(label, vector, level, nodeLinks.requireNoNulls())
+                }
+                index.entryPoint = entryPoint
+                index.maxLevel = maxLevel
+                return index
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.util.TopKSelector
+import org.slf4j.LoggerFactory
+import java.util.BitSet
+import java.util.stream.IntStream
+import kotlin.math.sqrt
+
+enum class ItemSimilarityMetric {
+    /** Доля оценивших курс i, которые оценили и курс j: |U(i) ∩ U(j)| / |U(i)| */
+    COOCCURRENCE,
+
+    /** Косинус между столбцами оценок курсов */
+    COSINE
+}
+
+/**
+ * Список ближайших соседей курса: индексы курсов в [RatingMatrix]
+ * и их сходство, по убыванию сходства. Неизменяемый.
+ */
+class NeighbourList(val courses: IntArray, val similarities: FloatArray) {
+    val size: Int get() = courses.size
+
+    companion object {
+        val EMPTY = NeighbourList(IntArray(0), FloatArray(0))
+    }
+}
+
+/**
+ * Модель сходства курс×курс с ограниченным top-K списком соседей на курс.
+ *
+ * Инкрементально: изменение оценки (u, i) помечает устаревшими списки курса i,
+ * остальных курсов из строки u и текущих соседей i; устаревший список
+ * пересчитывается лениво при следующем чтении - проходом по оценившим курс
+ * пользователям. [rebuild] пересчитывает все списки параллельно на ForkJoin-пуле.
+ */
+class ItemSimilarityModel(
+    private val ratingMatrix: RatingMatrix,
+    private val metric: ItemSimilarityMetric,
+    private val neighbourCount: Int
+) : RatingChangeListener {
+
+    private val logger = LoggerFactory.getLogger(ItemSimilarityModel::class.java)
+
+    private val lock = Any()
+    private var lists = arrayOfNulls<NeighbourList>(256)
+    private val dirty = BitSet()
+
+    private val scratch = ThreadLocal.withInitial { Scratch(0) }
+
+    /**
+     * Соседи курса по индексу матрицы; пересчитываются, если список устарел.
+     */
+    fun neighbours(course: Int): NeighbourList {
+        synchronized(lock) {
+            val current = if (course < lists.size) lists[course] else null
+            if (current != null && !dirty[course]) return current
+            // Флаг снимаем до пересчёта: изменения, пришедшие во время него, пометят курс снова
+            dirty.clear(course)
+        }
+        val computed = computeNeighbours(course)
+        synchronized(lock) {
+            ensureCapacity(course + 1)
+            lists[course] = computed
+        }
+        return computed
+    }
+
+    /**
+     * Полностью перестраивает модель по текущему состоянию матрицы.
+     */
+    fun rebuild() {
+        val startedAt = System.currentTimeMillis()
+        val courseCount = ratingMatrix.read { ratingMatrix.courseCount }
+        val rebuilt = arrayOfNulls<NeighbourList>(courseCount)
+        IntStream.range(0, courseCount).parallel().forEach { course ->
+            rebuilt[course] = computeNeighbours(course)
+        }
+
+        synchronized(lock) {
+            ensureCapacity(courseCount)
+            for (course in 0 until courseCount) {
+                // Курсы, изменившиеся во время перестроения, остаются помеченными
+                if (!dirty[course]) lists[course] = rebuilt[course]
+            }
+        }
+        logger.info(
+            "Item similarity model rebuilt: metric=$metric, courses=$courseCount, " +
+                "k=$neighbourCount in ${System.currentTimeMillis() - startedAt} ms"
+        )
+    }
+
+    override fun onRatingChanged(userId: Long, courseId: Long, previous: Int, current: Int) {
+        val (course, rowCourses) = ratingMatrix.read {
+            val user = ratingMatrix.userIndexOf(userId)
+            val courseIndex = ratingMatrix.courseIndexOf(courseId)
+            courseIndex to ratingMatrix.rowCourses(user).copyOf(ratingMatrix.rowSize(user))
+        }
+        synchronized(lock) {
+            dirty.set(course)
+            rowCourses.forEach { dirty.set(it) }
+            // Для косинуса меняется норма курса, а значит и его сходство с текущими соседями
+            if (course < lists.size) lists[course]?.courses?.forEach { dirty.set(it) }
+        }
+    }
+
+    /**
+     * Считает сходство курса со всеми курсами, которые оценивал хотя бы один
+     * из его оценщиков, и оставляет top-K.
+     */
+    private fun computeNeighbours(course: Int): NeighbourList = ratingMatrix.read {
+        val courseCount = ratingMatrix.courseCount
+        val buffers = scratch.get().let { if (it.capacity < courseCount) Scratch(courseCount).also(scratch::set) else it }
+        val raters = ratingMatrix.columnUsers(course)
+        val raterCount = ratingMatrix.columnSize(course)
+        var touchedCount = 0
+
+        for (r in 0 until raterCount) {
+            val user = raters[r]
+            val courses = ratingMatrix.rowCourses(user)
+            val ratings = ratingMatrix.rowRatings(user)
+            val rowSize = ratingMatrix.rowSize(user)
+            val ownRating = ratingMatrix.rating(user, course).toDouble()
+            for (i in 0 until rowSize) {
+                val other = courses[i]
+                if (other == course) continue
+                if (buffers.counts[other] == 0) buffers.touched[touchedCount++] = other
+                buffers.counts[other]++
+                buffers.dots[other] += ownRating * ratings[i]
+            }
+        }
+
+        val norm = sqrt(ratingMatrix.columnSquaredSum(course).toDouble())
+        val top = TopKSelector(neighbourCount)
+        for (t in 0 until touchedCount) {
+            val other = buffers.touched[t]
+            val similarity = when (metric) {
+                ItemSimilarityMetric.COOCCURRENCE -> buffers.counts[other].toDouble() / raterCount
+                ItemSimilarityMetric.COSINE -> {
+                    val denominator = norm * sqrt(ratingMatrix.columnSquaredSum(other).toDouble())
+                    if (denominator > 0) buffers.dots[other] / denominator else 0.0
+                }
+            }
+            if (similarity > 0) top.offer(other, similarity)
+            buffers.counts[other] = 0
+            buffers.dots[other] = 0.0
+        }
+
+        if (top.size == 0) {
+            NeighbourList.EMPTY
+        } else {
+            NeighbourList(
+                IntArray(top.size) { top.idAt(it) },
+                FloatArray(top.size) { top.scoreAt(it).toFloat() }
+            )
+        }
+    }
+
+    private fun ensureCapacity(courseCount: Int) {
+        if (courseCount <= lists.size) return
+        var capacity = lists.size
+        while (capacity < courseCount) capacity = capacity shl 1
+        lists = lists.copyOf(capacity)
+    }
+
+    private class Scratch(val capacity: Int) {
+        val counts = IntArray(capacity)
+        val dots = DoubleArray(capacity)
+        val touched = IntArray(capacity)
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.util.LongIntHashMap
+import com.example.recommendationservice.util.TopKSelector
+import org.slf4j.LoggerFactory
+import java.util.SplittableRandom
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Приближённый поиск похожих пользователей: MinHash-сигнатура набора
+ * оценённых курсов + LSH по полосам (bands × rows хешей).
+ *
+ * Пользователи, у которых совпала хотя бы одна полоса сигнатуры, становятся
+ * кандидатами; для них считается точный Jaccard по строкам матрицы.
+ * Вероятность попасть в кандидаты для пары с Jaccard s равна 1 - (1 - s^rows)^bands.
+ *
+ * Сигнатуры поддерживаются инкрементально: добавление курса - поэлементный min,
+ * удаление - пересчёт сигнатуры по строке пользователя.
+ */
+class MinHashLshIndex(
+    private val ratingMatrix: RatingMatrix,
+    val bands: Int,
+    val rows: Int,
+    seed: Long
+) : NeighbourSearch, RatingChangeListener {
+
+    private val logger = LoggerFactory.getLogger(MinHashLshIndex::class.java)
+
+    private val hashCount = bands * rows
+    private val hashSeeds = SplittableRandom(seed).let { random -> LongArray(hashCount) { random.nextLong() } }
+
+    private val lock = ReentrantReadWriteLock()
+    private var signatures = arrayOfNulls<IntArray>(1024)
+    private var bandKeys = arrayOfNulls<LongArray>(1024)
+    private val buckets = Array(bands) { HashMap<Long, Bucket>() }
+
+    init {
+        require(bands > 0 && rows > 0) { "LSH bands and rows must be positive" }
+    }
+
+    override fun similarUsers(user: Int, limit: Int): TopKSelector {
+        val userCourses = ratingMatrix.rowCourses(user)
+        val userSize = ratingMatrix.rowSize(user)
+        val similarUsers = TopKSelector(limit)
+
+        for (other in candidates(user)) {
+            val otherSize = ratingMatrix.rowSize(other)
+            val common = intersectionSize(userCourses, userSize, ratingMatrix.rowCourses(other), otherSize)
+            if (common >= MIN_COMMON_COURSES) {
+                similarUsers.offer(other, common.toDouble() / (userSize + otherSize - common))
+            }
+        }
+        return similarUsers
+    }
+
+    /**
+     * Пользователи, попавшие хотя бы в одну общую LSH-корзину с [user].
+     */
+    fun candidates(user: Int): IntArray = lock.read {
+        val keys = if (user < bandKeys.size) bandKeys[user] else null
+        if (keys == null) return@read IntArray(0)
+
+        val seen = LongIntHashMap(64)
+        var result = IntArray(64)
+        var count = 0
+        for (band in 0 until bands) {
+            val bucket = buckets[band][keys[band]] ?: continue
+            for (i in 0 until bucket.size) {
+                val other = bucket.users[i]
+                if (other == user || seen.containsKey(other.toLong())) continue
+                seen.put(other.toLong(), 0)
+                if (count == result.size) result = result.copyOf(count * 2)
+                result[count++] = other
+            }
+        }
+        result.copyOf(count)
+    }
+
+    /**
+     * Строит сигнатуры и корзины для всех пользователей матрицы.
+     */
+    fun rebuild() {
+        val startedAt = System.currentTimeMillis()
+        val userCount = ratingMatrix.read { ratingMatrix.userCount }
+        for (user in 0 until userCount) {
+            reindex(user)
+        }
+        logger.info(
+            "MinHash LSH index built: users=$userCount, bands=$bands, rows=$rows " +
+                "in ${System.currentTimeMillis() - startedAt} ms"
+        )
+    }
+
+    override fun onRatingChanged(userId: Long, courseId: Long, previous: Int, current: Int) {
+        // Изменение значения оценки не меняет набор курсов
+        if (previous != 0 && current != 0) return
+
+        val user = ratingMatrix.read { ratingMatrix.userIndexOf(userId) }
+        if (current != 0) {
+            val applied = lock.write {
+                val signature = if (user < signatures.size) signatures[user] else null
+                if (signature == null) {
+                    false
+                } else {
+                    val updated = signature.copyOf()
+                    for (h in 0 until hashCount) {
+                        updated[h] = minOf(updated[h], hash(h, courseId))
+                    }
+                    assign(user, updated)
+                    true
+                }
+            }
+            if (applied) return
+        }
+        reindex(user)
+    }
+
+    /**
+     * Пересчитывает сигнатуру пользователя по его текущей строке.
+     */
+    private fun reindex(user: Int) {
+        val signature = ratingMatrix.read {
+            val size = ratingMatrix.rowSize(user)
+            if (size < MIN_COMMON_COURSES) {
+                null
+            } else {
+                val courses = ratingMatrix.rowCourses(user)
+                val courseIds = LongArray(size) { ratingMatrix.courseIdAt(courses[it]) }
+                IntArray(hashCount) { h ->
+                    var min = Int.MAX_VALUE
+                    for (courseId in courseIds) min = minOf(min, hash(h, courseId))
+                    min
+                }
+            }
+        }
+        lock.write { assign(user, signature) }
+    }
+
+    private fun assign(user: Int, signature: IntArray?) {
+        ensureCapacity(user + 1)
+        val oldKeys = bandKeys[user]
+        val newKeys = signature?.let { bandKeysOf(it) }
+        for (band in 0 until bands) {
+            val oldKey = oldKeys?.get(band)
+            val newKey = newKeys?.get(band)
+            if (oldKeys != null && newKeys != null && oldKey == newKey) continue
+            if (oldKey != null) {
+                val bucket = buckets[band][oldKey]
+                if (bucket != null && bucket.remove(user) == 0) buckets[band].remove(oldKey)
+            }
+            if (newKey != null) {
+                buckets[band].getOrPut(newKey) { Bucket() }.add(user)
+            }
+        }
+        signatures[user] = signature
+        bandKeys[user] = newKeys
+    }
+
+    private fun bandKeysOf(signature: IntArray): LongArray = LongArray(bands) { band ->
+        var key = band.toLong()
+        for (r in 0 until rows) {
+            key = mix(key * 31 + signature[band * rows + r])
+        }
+        key
+    }
+
+    private fun hash(h: Int, courseId: Long): Int = mix(courseId xor hashSeeds[h]).toInt()
+
+    private fun mix(value: Long): Long {
+        var x = value
+        x = (x xor (x ushr 33)) * -0xae502812aa7333L
+        x = (x xor (x ushr 33)) * -0x3b314601e57a13adL
+        return x xor (x ushr 33)
+    }
+
+    private fun ensureCapacity(userCount: Int) {
+        if (userCount <= signatures.size) return
+        var capacity = signatures.size
+        while (capacity < userCount) capacity = capacity shl 1
+        signatures = signatures.copyOf(capacity)
+        bandKeys = bandKeys.copyOf(capacity)
+    }
+
+    private class Bucket {
+        var users = IntArray(4)
+        var size = 0
+
+        fun add(user: Int) {
+            if (size == users.size) users = users.copyOf(size * 2)
+            users[size++] = user
+        }
+
+        /** Удаляет пользователя и возвращает оставшийся размер корзины */
+        fun remove(user: Int): Int {
+            for (i in 0 until size) {
+                if (users[i] == user) {
+                    users[i] = users[--size]
+                    break
+                }
+            }
+            return size
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.util.LongIntHashMap
+import com.example.recommendationservice.util.TopKSelector
+
+/**
+ * Поиск похожих пользователей (по индексу в [RatingMatrix]).
+ * Вызывается под блокировкой чтения матрицы.
+ */
+interface NeighbourSearch {
+    fun similarUsers(user: Int, limit: Int): TopKSelector
+}
+
+/** Пользователи с меньшим числом общих курсов соседями не считаются */
+const val MIN_COMMON_COURSES = 2
+
+/**
+ * Точный поиск: кандидаты берутся из posting list'ов курсов пользователя,
+ * размер пересечения накапливается в счётчике без боксинга,
+ * сходство - Jaccard по наборам оценённых курсов.
+ */
+class ExactNeighbourSearch(private val ratingMatrix: RatingMatrix) : NeighbourSearch {
+
+    override fun similarUsers(user: Int, limit: Int): TopKSelector {
+        val userSize = ratingMatrix.rowSize(user)
+        val overlaps = countOverlaps(ratingMatrix, user)
+
+        val similarUsers = TopKSelector(limit)
+        overlaps.forEach { other, common ->
+            if (common >= MIN_COMMON_COURSES) {
+                val union = userSize + ratingMatrix.rowSize(other.toInt()) - common
+                similarUsers.offer(other.toInt(), common.toDouble() / union)
+            }
+        }
+
+        return similarUsers
+    }
+}
+
+/**
+ * Кандидаты в соседи из posting list'ов курсов пользователя:
+ * индекс другого пользователя -> число общих оценённых курсов.
+ */
+internal fun countOverlaps(ratingMatrix: RatingMatrix, user: Int): LongIntHashMap {
+    val userCourses = ratingMatrix.rowCourses(user)
+    val overlaps = LongIntHashMap(64, missingValue = 0)
+    for (i in 0 until ratingMatrix.rowSize(user)) {
+        val course = userCourses[i]
+        val raters = ratingMatrix.columnUsers(course)
+        for (j in 0 until ratingMatrix.columnSize(course)) {
+            val other = raters[j]
+            if (other != user) overlaps.addTo(other.toLong(), 1)
+        }
+    }
+    return overlaps
+}
+
+/**
+ * Размер пересечения двух отсортированных наборов индексов
+ */
+internal fun intersectionSize(a: IntArray, aSize: Int, b: IntArray, bSize: Int): Int {
+    var i = 0
+    var j = 0
+    var common = 0
+    while (i < aSize && j < bSize) {
+        when {
+            a[i] < b[j] -> i++
+            a[i] > b[j] -> j++
+            else -> {
+                common++
+                i++
+                j++
+            }
+        }
+    }
+    return common
+}
@@ -0,0 +1,79 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.util.TopKSelector
+
+/**
+ * Неизменяемый снимок топа популярных курсов, по убыванию score.
+ * score - сглаженный средний рейтинг, нормированный в [0, 1].
+ */
+class PopularitySnapshot(val courseIds: LongArray, val scores: DoubleArray) {
+
+    val size: Int get() = courseIds.size
+
+    companion object {
+        val EMPTY = PopularitySnapshot(LongArray(0), DoubleArray(0))
+    }
+}
+
+/**
+ * Модель популярности для холодного старта. Сумма и количество оценок по
+ * курсам уже поддерживаются матрицей оценок на каждом событии топика ratings
+ * ([RatingMatrix.columnSum], [RatingMatrix.columnSize]); модель по расписанию
+ * считает по ним байесовски сглаженный рейтинг
+ *
+ *     score(i) = (m * C + sum(i)) / (m + n(i))
+ *
+ * где C - средняя оценка по всей матрице, m - [priorWeight] «виртуальных»
+ * оценок, и публикует топ-[topN] как неизменяемый [PopularitySnapshot].
+ * Курс с одной пятёркой не обгоняет курс с сотней оценок в среднем 4.8.
+ */
+class PopularityModel(
+    private val ratingMatrix: RatingMatrix,
+    private val priorWeight: Double,
+    private val topN: Int,
+    private val courseFilter: (Long) -> Boolean = { true }
+) {
+
+    @Volatile
+    var snapshot: PopularitySnapshot = PopularitySnapshot.EMPTY
+        private set
+
+    private val refreshTimer = Metrics.timer("popularity.refresh")
+
+    init {
+        require(priorWeight >= 0) { "Prior weight must not be negative" }
+        require(topN > 0) { "Popularity top size must be positive" }
+        Metrics.gauge("popularity.snapshot_size") { snapshot.size }
+    }
+
+    fun refresh() = refreshTimer.time {
+        snapshot = ratingMatrix.read {
+            var totalSum = 0L
+            var totalCount = 0L
+            for (course in 0 until ratingMatrix.courseCount) {
+                totalSum += ratingMatrix.columnSum(course)
+                totalCount += ratingMatrix.columnSize(course)
+            }
+            if (totalCount == 0L) return@read PopularitySnapshot.EMPTY
+
+            val globalMean = totalSum.toDouble() / totalCount
+            val top = TopKSelector(topN)
+            for (course in 0 until ratingMatrix.courseCount) {
+                val count = ratingMatrix.columnSize(course)
+                if (count == 0 || !courseFilter(ratingMatrix.courseIdAt(course))) continue
+                val smoothed = (priorWeight * globalMean + ratingMatrix.columnSum(course)) / (priorWeight + count)
+                top.offer(course, smoothed / MAX_RATING)
+            }
+
+            PopularitySnapshot(
+                LongArray(top.size) { ratingMatrix.courseIdAt(top.idAt(it)) },
+                DoubleArray(top.size) { top.scoreAt(it) }
+            )
+        }
+    }
+
+    companion object {
+        private const val MAX_RATING = 5.0
+    }
+}
@@ -0,0 +1,20 @@
+package com.example.recommendationservice.model
+
+/**
+ * Получает уведомление после каждого изменения [RatingMatrix].
+ * [previous] и [current] равны 0, если оценки до/после изменения не было.
+ * Вызывается в потоке писателя уже после снятия блокировки записи.
+ */
+fun interface RatingChangeListener {
+    fun onRatingChanged(userId: Long, courseId: Long, previous: Int, current: Int)
+}
+
+/**
+ * Как [RatingChangeListener], но вызывается под блокировкой записи сразу после
+ * изменения, с индексами матрицы: видит матрицу ровно в этом состоянии, поэтому
+ * подходит для поддержки производных счётчиков дельтами. Должен быть быстрым
+ * и не может обращаться к блокировке матрицы.
+ */
+fun interface RatingWriteListener {
+    fun onRatingWritten(user: Int, course: Int, previous: Int, current: Int)
+}
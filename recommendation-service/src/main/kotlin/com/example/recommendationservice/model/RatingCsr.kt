@@ -0,0 +1,79 @@
+package com.example.recommendationservice.model
+
+/**
+ * Неизменяемый снимок матрицы оценок в формате CSR (по пользователям)
+ * и CSC (по курсам) для обучения факторизации. Индексы пользователей и
+ * курсов совпадают с индексами [RatingMatrix] на момент снимка.
+ */
+class RatingCsr(
+    val userIds: LongArray,
+    val courseIds: LongArray,
+    /** Строка пользователя u - позиции [userPtr[u], userPtr[u + 1]) */
+    val userPtr: IntArray,
+    val userCourses: IntArray,
+    val userRatings: FloatArray,
+    /** Столбец курса i - позиции [coursePtr[i], coursePtr[i + 1]) */
+    val coursePtr: IntArray,
+    val courseUsers: IntArray,
+    val courseRatings: FloatArray
+) {
+
+    val userCount: Int get() = userIds.size
+    val courseCount: Int get() = courseIds.size
+    val ratingCount: Int get() = userCourses.size
+
+    companion object {
+
+        /** Снимает CSR/CSC с матрицы. Вызывается внутри [RatingMatrix.read]. */
+        fun fromMatrix(ratingMatrix: RatingMatrix): RatingCsr {
+            val users = ratingMatrix.userCount
+            val courses = ratingMatrix.courseCount
+
+            val userPtr = IntArray(users + 1)
+            for (user in 0 until users) {
+                userPtr[user + 1] = userPtr[user] + ratingMatrix.rowSize(user)
+            }
+            val nnz = userPtr[users]
+            val userCourses = IntArray(nnz)
+            val userRatings = FloatArray(nnz)
+            val coursePtr = IntArray(courses + 1)
+
+            for (user in 0 until users) {
+                val rowCourses = ratingMatrix.rowCourses(user)
+                val rowRatings = ratingMatrix.rowRatings(user)
+                val offset = userPtr[user]
+                for (i in 0 until ratingMatrix.rowSize(user)) {
+                    userCourses[offset + i] = rowCourses[i]
+                    userRatings[offset + i] = rowRatings[i].toFloat()
+                    coursePtr[rowCourses[i] + 1]++
+                }
+            }
+
+            // Транспонирование: пользователи идут по возрастанию, столбцы получаются отсортированными
+            for (course in 0 until courses) {
+                coursePtr[course + 1] += coursePtr[course]
+            }
+            val fill = coursePtr.copyOf(courses)
+            val courseUsers = IntArray(nnz)
+            val courseRatings = FloatArray(nnz)
+            for (user in 0 until users) {
+                for (p in userPtr[user] until userPtr[user + 1]) {
+                    val slot = fill[userCourses[p]]++
+                    courseUsers[slot] = user
+                    courseRatings[slot] = userRatings[p]
+                }
+            }
+
+            return RatingCsr(
+                userIds = LongArray(users) { ratingMatrix.userIdAt(it) },
+                courseIds = LongArray(courses) { ratingMatrix.courseIdAt(it) },
+                userPtr = userPtr,
+                userCourses = userCourses,
+                userRatings = userRatings,
+                coursePtr = coursePtr,
+                courseUsers = courseUsers,
+                courseRatings = courseRatings
+            )
+        }
+    }
+}
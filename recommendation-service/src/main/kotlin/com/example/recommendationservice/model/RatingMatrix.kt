@@ -0,0 +1,299 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.util.LongIntHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Резидентная разреженная матрица оценок пользователь -> (курс, оценка).
+ *
+ * Внешние id пользователей и курсов переотображаются в плотные int-индексы,
+ * строка пользователя хранится как отсортированный по индексу курса IntArray
+ * плюс параллельный ByteArray оценок. Дополнительно ведётся инвертированный
+ * индекс курс -> отсортированный список индексов оценивших его пользователей
+ * (posting list) для генерации кандидатов в соседи. Матрица загружается
+ * один раз при старте и дальше обновляется на месте событиями из топика оценок.
+ *
+ * Методы чтения (`rowSize`, `rowCourses`, ...) должны вызываться внутри [read].
+ * Производные модели подписываются на изменения через [addListener]
+ * (или [addWriteListener], если им нужно видеть изменение атомарно).
+ */
+class RatingMatrix(expectedUsers: Int = 1024, expectedCourses: Int = 256) {
+
+    private val lock = ReentrantReadWriteLock()
+    private val listeners = CopyOnWriteArrayList<RatingChangeListener>()
+    private val writeListeners = CopyOnWriteArrayList<RatingWriteListener>()
+
+    private val userIndex = LongIntHashMap(expectedUsers)
+    private val courseIndex = LongIntHashMap(expectedCourses)
+
+    private var userIds = LongArray(maxOf(expectedUsers, 16))
+    private var courseIds = LongArray(maxOf(expectedCourses, 16))
+
+    private var rowCourses = arrayOfNulls<IntArray>(userIds.size)
+    private var rowRatings = arrayOfNulls<ByteArray>(userIds.size)
+    private var rowSizes = IntArray(userIds.size)
+
+    private var columnUsers = arrayOfNulls<IntArray>(courseIds.size)
+    private var columnSizes = IntArray(courseIds.size)
+    private var columnSums = LongArray(courseIds.size)
+    private var columnSquaredSums = LongArray(courseIds.size)
+
+    var userCount: Int = 0
+        private set
+    var courseCount: Int = 0
+        private set
+    var ratingCount: Long = 0
+        private set
+
+    fun <T> read(block: () -> T): T = lock.read(block)
+
+    fun addListener(listener: RatingChangeListener) {
+        listeners.add(listener)
+    }
+
+    fun addWriteListener(listener: RatingWriteListener) {
+        writeListeners.add(listener)
+    }
+
+    /**
+     * Устанавливает оценку и возвращает предыдущую (0, если её не было).
+     * Слушатели уведомляются только о реальном изменении.
+     */
+    fun put(userId: Long, courseId: Long, rating: Int): Int {
+        require(rating in 1..Byte.MAX_VALUE) { "Rating out of range: $rating" }
+        val previous = lock.write {
+            val user = internUser(userId)
+            val course = internCourse(courseId)
+            val size = rowSizes[user]
+            val courses = rowCourses[user]!!
+            val pos = courses.binarySearch(course, 0, size)
+            val replaced = if (pos >= 0) {
+                val existing = rowRatings[user]!![pos].toInt()
+                // Повтор или дубликат события: матрица не меняется, слушателей не будим
+                if (existing == rating) return@write existing
+                rowRatings[user]!![pos] = rating.toByte()
+                existing
+            } else {
+                insertAt(user, -(pos + 1), course, rating.toByte())
+                addPosting(course, user)
+                ratingCount++
+                0
+            }
+            updateColumnSums(course, replaced, rating)
+            writeListeners.forEach { it.onRatingWritten(user, course, replaced, rating) }
+            replaced
+        }
+        if (previous != rating) notifyListeners(userId, courseId, previous, rating)
+        return previous
+    }
+
+    /**
+     * Удаляет оценку и возвращает удалённое значение (0, если её не было).
+     */
+    fun remove(userId: Long, courseId: Long): Int {
+        val previous = lock.write {
+            val user = userIndex.get(userId)
+            val course = courseIndex.get(courseId)
+            if (user < 0 || course < 0) return@write 0
+            val size = rowSizes[user]
+            val pos = rowCourses[user]!!.binarySearch(course, 0, size)
+            if (pos < 0) return@write 0
+            val removed = rowRatings[user]!![pos].toInt()
+            removeAt(user, pos)
+            removePosting(course, user)
+            updateColumnSums(course, removed, 0)
+            ratingCount--
+            writeListeners.forEach { it.onRatingWritten(user, course, removed, 0) }
+            removed
+        }
+        if (previous != 0) notifyListeners(userId, courseId, previous, 0)
+        return previous
+    }
+
+    /**
+     * Заполняет пустую матрицу готовыми строками (CSR) и posting list'ами курсов (CSC)
+     * из снимка: без поэлементных вставок и без уведомления слушателей.
+     * Индексы пользователей и курсов сохраняются как в снимке.
+     */
+    fun restore(
+        userIds: LongArray,
+        courseIds: LongArray,
+        userPtr: IntArray,
+        userCourses: IntArray,
+        userRatings: ByteArray,
+        coursePtr: IntArray,
+        courseUsers: IntArray
+    ) = lock.write {
+        check(userCount == 0 && courseCount == 0) { "Rating matrix is not empty" }
+        val users = userIds.size
+        val courses = courseIds.size
+
+        this.userIds = userIds.copyOf(maxOf(users, 16))
+        rowCourses = arrayOfNulls(this.userIds.size)
+        rowRatings = arrayOfNulls(this.userIds.size)
+        rowSizes = IntArray(this.userIds.size)
+        this.courseIds = courseIds.copyOf(maxOf(courses, 16))
+        columnUsers = arrayOfNulls(this.courseIds.size)
+        columnSizes = IntArray(this.courseIds.size)
+        columnSums = LongArray(this.courseIds.size)
+        columnSquaredSums = LongArray(this.courseIds.size)
+
+        for (user in 0 until users) {
+            val from = userPtr[user]
+            val to = userPtr[user + 1]
+            rowCourses[user] = userCourses.copyOfRange(from, to)
+            rowRatings[user] = userRatings.copyOfRange(from, to)
+            rowSizes[user] = to - from
+            userIndex.put(userIds[user], user)
+            for (p in from until to) {
+                val rating = userRatings[p].toLong()
+                columnSums[userCourses[p]] += rating
+                columnSquaredSums[userCourses[p]] += rating * rating
+            }
+        }
+        for (course in 0 until courses) {
+            columnUsers[course] = courseUsers.copyOfRange(coursePtr[course], coursePtr[course + 1])
+            columnSizes[course] = coursePtr[course + 1] - coursePtr[course]
+            courseIndex.put(courseIds[course], course)
+        }
+
+        userCount = users
+        courseCount = courses
+        ratingCount = userCourses.size.toLong()
+    }
+
+    fun userIndexOf(userId: Long): Int = userIndex.get(userId)
+
+    fun courseIndexOf(courseId: Long): Int = courseIndex.get(courseId)
+
+    fun userIdAt(user: Int): Long = userIds[user]
+
+    fun courseIdAt(course: Int): Long = courseIds[course]
+
+    fun rowSize(user: Int): Int = rowSizes[user]
+
+    /** Индексы курсов строки; валидны первые [rowSize] элементов. */
+    fun rowCourses(user: Int): IntArray = rowCourses[user]!!
+
+    /** Оценки строки, параллельные [rowCourses]. */
+    fun rowRatings(user: Int): ByteArray = rowRatings[user]!!
+
+    fun columnSize(course: Int): Int = columnSizes[course]
+
+    /** Отсортированные индексы пользователей, оценивших курс; валидны первые [columnSize]. */
+    fun columnUsers(course: Int): IntArray = columnUsers[course]!!
+
+    /** Сумма оценок курса. */
+    fun columnSum(course: Int): Long = columnSums[course]
+
+    /** Сумма квадратов оценок курса (квадрат L2-нормы столбца). */
+    fun columnSquaredSum(course: Int): Long = columnSquaredSums[course]
+
+    /** Оценка пользователя за курс или 0, если её нет. */
+    fun rating(user: Int, course: Int): Int {
+        val pos = rowCourses[user]!!.binarySearch(course, 0, rowSizes[user])
+        return if (pos >= 0) rowRatings[user]!![pos].toInt() else 0
+    }
+
+    private fun notifyListeners(userId: Long, courseId: Long, previous: Int, current: Int) {
+        listeners.forEach { it.onRatingChanged(userId, courseId, previous, current) }
+    }
+
+    private fun internUser(userId: Long): Int {
+        val existing = userIndex.get(userId)
+        if (existing >= 0) return existing
+        val user = userCount++
+        if (user == userIds.size) {
+            val capacity = userIds.size shl 1
+            userIds = userIds.copyOf(capacity)
+            rowCourses = rowCourses.copyOf(capacity)
+            rowRatings = rowRatings.copyOf(capacity)
+            rowSizes = rowSizes.copyOf(capacity)
+        }
+        userIds[user] = userId
+        rowCourses[user] = IntArray(INITIAL_ROW_CAPACITY)
+        rowRatings[user] = ByteArray(INITIAL_ROW_CAPACITY)
+        userIndex.put(userId, user)
+        return user
+    }
+
+    private fun internCourse(courseId: Long): Int {
+        val existing = courseIndex.get(courseId)
+        if (existing >= 0) return existing
+        val course = courseCount++
+        if (course == courseIds.size) {
+            val capacity = courseIds.size shl 1
+            courseIds = courseIds.copyOf(capacity)
+            columnUsers = columnUsers.copyOf(capacity)
+            columnSizes = columnSizes.copyOf(capacity)
+            columnSums = columnSums.copyOf(capacity)
+            columnSquaredSums = columnSquaredSums.copyOf(capacity)
+        }
+        courseIds[course] = courseId
+        columnUsers[course] = IntArray(INITIAL_ROW_CAPACITY)
+        courseIndex.put(courseId, course)
+        return course
+    }
+
+    private fun insertAt(user: Int, pos: Int, course: Int, rating: Byte) {
+        val size = rowSizes[user]
+        var courses = rowCourses[user]!!
+        var ratings = rowRatings[user]!!
+        if (size == courses.size) {
+            courses = courses.copyOf(size + (size shr 1) + 1)
+            ratings = ratings.copyOf(courses.size)
+            rowCourses[user] = courses
+            rowRatings[user] = ratings
+        }
+        System.arraycopy(courses, pos, courses, pos + 1, size - pos)
+        System.arraycopy(ratings, pos, ratings, pos + 1, size - pos)
+        courses[pos] = course
+        ratings[pos] = rating
+        rowSizes[user] = size + 1
+    }
+
+    private fun removeAt(user: Int, pos: Int) {
+        val size = rowSizes[user]
+        val courses = rowCourses[user]!!
+        val ratings = rowRatings[user]!!
+        System.arraycopy(courses, pos + 1, courses, pos, size - pos - 1)
+        System.arraycopy(ratings, pos + 1, ratings, pos, size - pos - 1)
+        rowSizes[user] = size - 1
+    }
+
+    private fun updateColumnSums(course: Int, previous: Int, current: Int) {
+        columnSums[course] += (current - previous).toLong()
+        columnSquaredSums[course] += (current * current - previous * previous).toLong()
+    }
+
+    private fun addPosting(course: Int, user: Int) {
+        val size = columnSizes[course]
+        var users = columnUsers[course]!!
+        val pos = users.binarySearch(user, 0, size)
+        if (pos >= 0) return
+        val insertAt = -(pos + 1)
+        if (size == users.size) {
+            users = users.copyOf(size + (size shr 1) + 1)
+            columnUsers[course] = users
+        }
+        System.arraycopy(users, insertAt, users, insertAt + 1, size - insertAt)
+        users[insertAt] = user
+        columnSizes[course] = size + 1
+    }
+
+    private fun removePosting(course: Int, user: Int) {
+        val size = columnSizes[course]
+        val users = columnUsers[course]!!
+        val pos = users.binarySearch(user, 0, size)
+        if (pos < 0) return
+        System.arraycopy(users, pos + 1, users, pos, size - pos - 1)
+        columnSizes[course] = size - 1
+    }
+
+    companion object {
+        private const val INITIAL_ROW_CAPACITY = 4
+    }
+}
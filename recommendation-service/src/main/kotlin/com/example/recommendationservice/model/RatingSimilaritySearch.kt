@@ -0,0 +1,128 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.util.TopKSelector
+import kotlin.math.sqrt
+
+/**
+ * Сходство пользователей по значениям оценок, а не только по наборам курсов.
+ * [SimilarityKernel] считает суммы по общим курсам (со сдвигом оценок на
+ * [courseShift], если [shiftsByCourse]), [score] собирает из них коэффициент.
+ */
+enum class RatingSimilarity(val configName: String, val shiftsByCourse: Boolean) {
+    /** Косинус полных векторов оценок: произведение по общим курсам на нормы строк */
+    COSINE("cosine", shiftsByCourse = false) {
+        override fun score(sums: CoRatedSums, querySquaredNorm: Double): Double {
+            val denominator = sqrt(querySquaredNorm * sums.rowSquares)
+            return if (denominator > 0) sums.products / denominator else 0.0
+        }
+    },
+
+    /**
+     * Корреляция Пирсона по общим курсам (средние - тоже по общим). Суммы целых
+     * оценок во float точны, центрирование делается уже в double.
+     */
+    PEARSON("pearson", shiftsByCourse = false) {
+        override fun score(sums: CoRatedSums, querySquaredNorm: Double): Double {
+            val n = sums.count
+            val queryVariance = sums.querySquares - sums.query * sums.query / n
+            val otherVariance = sums.otherSquares - sums.other * sums.other / n
+            if (queryVariance <= MIN_VARIANCE * n || otherVariance <= MIN_VARIANCE * n) return 0.0
+            return (sums.products - sums.query * sums.other / n) / sqrt(queryVariance * otherVariance)
+        }
+    },
+
+    /** Скорректированный косинус по общим курсам: оценки центрируются средней оценкой курса */
+    ADJUSTED_COSINE("adjusted-cosine", shiftsByCourse = true) {
+        override fun courseShift(ratingMatrix: RatingMatrix, course: Int) =
+            ratingMatrix.columnSum(course).toFloat() / ratingMatrix.columnSize(course)
+
+        override fun score(sums: CoRatedSums, querySquaredNorm: Double): Double {
+            val n = sums.count
+            if (sums.querySquares <= MIN_VARIANCE * n || sums.otherSquares <= MIN_VARIANCE * n) return 0.0
+            return sums.products / sqrt(sums.querySquares * sums.otherSquares)
+        }
+    };
+
+    open fun courseShift(ratingMatrix: RatingMatrix, course: Int): Float = 0f
+
+    /** Коэффициент сходства; [querySquaredNorm] - сумма квадратов исходных оценок запроса */
+    abstract fun score(sums: CoRatedSums, querySquaredNorm: Double): Double
+
+    companion object {
+        /** Разброс ниже этого (на курс) - шум округления float: оценки по сути константны */
+        private const val MIN_VARIANCE = 1e-6
+
+        fun fromConfig(name: String): RatingSimilarity =
+            entries.firstOrNull { it.configName == name }
+                ?: throw IllegalArgumentException("Unknown rating similarity: $name")
+    }
+}
+
+/**
+ * Точный поиск соседей со сходством по значениям оценок. Кандидаты - те же,
+ * что у [ExactNeighbourSearch] (не меньше [MIN_COMMON_COURSES] общих курсов),
+ * но ранжируются [similarity], посчитанной ядром [kernel] прямо по строкам матрицы.
+ *
+ * Строка запроса разворачивается в плотный вектор по индексу курса из
+ * потоколокального буфера; после запроса записанные ячейки возвращаются в NaN,
+ * так что буфер не перезаполняется целиком. Сдвиги курсов нужны ядру только
+ * на курсах запроса (на остальных линии гасятся маской) - их и записываем.
+ * В соседи попадают только пользователи с положительным сходством.
+ */
+class RatingSimilaritySearch(
+    private val ratingMatrix: RatingMatrix,
+    val similarity: RatingSimilarity,
+    val kernel: SimilarityKernel
+) : NeighbourSearch {
+
+    private val scratch = ThreadLocal.withInitial { Scratch(0) }
+
+    override fun similarUsers(user: Int, limit: Int): TopKSelector {
+        val overlaps = countOverlaps(ratingMatrix, user)
+        val courseCount = ratingMatrix.courseCount
+        val buffers = scratch.get().let { if (it.capacity < courseCount) Scratch(courseCount).also(scratch::set) else it }
+        val query = buffers.query
+        val shift = if (similarity.shiftsByCourse) buffers.shift else null
+        val sums = buffers.sums
+
+        val userCourses = ratingMatrix.rowCourses(user)
+        val userRatings = ratingMatrix.rowRatings(user)
+        val userSize = ratingMatrix.rowSize(user)
+        var querySquaredNorm = 0.0
+        for (i in 0 until userSize) {
+            val course = userCourses[i]
+            val rating = userRatings[i].toInt()
+            querySquaredNorm += rating * rating
+            if (shift == null) {
+                query[course] = rating.toFloat()
+            } else {
+                shift[course] = similarity.courseShift(ratingMatrix, course)
+                query[course] = rating - shift[course]
+            }
+        }
+
+        val similarUsers = TopKSelector(limit)
+        try {
+            overlaps.forEach { otherId, common ->
+                if (common >= MIN_COMMON_COURSES) {
+                    val other = otherId.toInt()
+                    kernel.coRatedSums(
+                        query, shift, ratingMatrix.rowCourses(other), ratingMatrix.rowRatings(other),
+                        ratingMatrix.rowSize(other), sums
+                    )
+                    val score = similarity.score(sums, querySquaredNorm)
+                    if (score > 0) similarUsers.offer(other, minOf(score, 1.0))
+                }
+            }
+        } finally {
+            for (i in 0 until userSize) query[userCourses[i]] = Float.NaN
+        }
+        return similarUsers
+    }
+
+    private class Scratch(val capacity: Int) {
+        val query = FloatArray(capacity).also { it.fill(Float.NaN) }
+        val shift = FloatArray(capacity)
+        val sums = CoRatedSums()
+    }
+}
@@ -0,0 +1,190 @@
+package com.example.recommendationservice.model
+
+import com.example.recommendationservice.util.LittleEndianOutput
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Снимок матрицы оценок вместе с offset'ами топика оценок, до которых (не включая)
+ * события уже применены к матрице. После загрузки снимка потребитель продолжает
+ * с этих offset'ов; события между снимком и закоммиченным offset'ом применяются
+ * повторно, что безопасно - событие задаёт оценку, а не прибавляет её.
+ *
+ * Формат файла, little-endian:
+ *
+ *     0   int   magic = 0x31534D52 ("RMS1")
+ *     4   int   version = 1
+ *     8   int   userCount
+ *     12  int   courseCount
+ *     16  int   ratingCount
+ *     20  int   partitionCount
+ *     24  long  время снимка, epoch millis
+ *     32  int   длина имени топика в байтах, дальше UTF-8
+ *     ..  (int partition, long offset)[partitionCount]
+ *     ..  long[userCount]        userIds
+ *     ..  long[courseCount]      courseIds
+ *     ..  int[userCount + 1]     начала строк пользователей
+ *     ..  int[ratingCount]       индексы курсов по строкам
+ *     ..  int[courseCount + 1]   начала posting list'ов курсов
+ *     ..  int[ratingCount]       индексы пользователей по курсам
+ *     ..  byte[ratingCount]      оценки по строкам
+ *
+ * Файл пишется во временный и атомарно переименовывается.
+ */
+class RatingSnapshot private constructor(
+    val topic: String,
+    val offsets: Map<Int, Long>,
+    val createdAt: Long,
+    private val userIds: LongArray,
+    private val courseIds: LongArray,
+    private val userPtr: IntArray,
+    private val userCourses: IntArray,
+    private val userRatings: ByteArray,
+    private val coursePtr: IntArray,
+    private val courseUsers: IntArray
+) {
+
+    val userCount: Int get() = userIds.size
+    val courseCount: Int get() = courseIds.size
+    val ratingCount: Int get() = userCourses.size
+
+    fun toMatrix(): RatingMatrix =
+        RatingMatrix(userCount, courseCount).also {
+            it.restore(userIds, courseIds, userPtr, userCourses, userRatings, coursePtr, courseUsers)
+        }
+
+    /** Оценки пользователей с индексами из [users], по строкам: userId, courseId, оценка */
+    fun forEachRating(users: IntRange, action: (userId: Long, courseId: Long, rating: Int) -> Unit) {
+        for (user in users) {
+            val userId = userIds[user]
+            for (i in userPtr[user] until userPtr[user + 1]) {
+                action(userId, courseIds[userCourses[i]], userRatings[i].toInt())
+            }
+        }
+    }
+
+    /** Делит пользователей на не больше [parts] отрезков с примерно равным числом оценок */
+    fun userRanges(parts: Int): List<IntRange> {
+        val ranges = ArrayList<IntRange>(parts)
+        var from = 0
+        for (part in 1..parts) {
+            if (from >= userCount) break
+            val target = (ratingCount.toLong() * part / parts).toInt()
+            var to = from
+            while (to < userCount && (userPtr[to + 1] <= target || part == parts)) to++
+            if (to == from) to = from + 1
+            ranges.add(from until to)
+            from = to
+        }
+        return ranges
+    }
+
+    fun write(path: Path) {
+        val topicBytes = topic.toByteArray(Charsets.UTF_8)
+        LittleEndianOutput.create(path).use { output ->
+            output.putInt(MAGIC).putInt(VERSION).putInt(userCount).putInt(courseCount)
+                .putInt(ratingCount).putInt(offsets.size).putLong(createdAt)
+            output.putInt(topicBytes.size)
+            output.putBytes(topicBytes)
+            offsets.toSortedMap().forEach { (partition, offset) -> output.putInt(partition).putLong(offset) }
+            output.putLongs(userIds)
+            output.putLongs(courseIds)
+            output.putInts(userPtr)
+            output.putInts(userCourses)
+            output.putInts(coursePtr)
+            output.putInts(courseUsers)
+            output.putBytes(userRatings)
+            output.commit()
+        }
+    }
+
+    companion object {
+        private const val MAGIC = 0x31534D52
+        private const val VERSION = 1
+        private const val HEADER_BYTES = 36
+
+        /**
+         * Снимает матрицу. [offsets] должны быть получены до вызова: матрица
+         * к этому моменту отражает как минимум эти события, а лишние применятся повторно.
+         */
+        fun capture(ratingMatrix: RatingMatrix, topic: String, offsets: Map<Int, Long>): RatingSnapshot =
+            ratingMatrix.read {
+                val csr = RatingCsr.fromMatrix(ratingMatrix)
+                val userRatings = ByteArray(csr.ratingCount)
+                for (user in 0 until csr.userCount) {
+                    val row = ratingMatrix.rowRatings(user)
+                    System.arraycopy(row, 0, userRatings, csr.userPtr[user], ratingMatrix.rowSize(user))
+                }
+                RatingSnapshot(
+                    topic, offsets, System.currentTimeMillis(),
+                    csr.userIds, csr.courseIds, csr.userPtr, csr.userCourses, userRatings,
+                    csr.coursePtr, csr.courseUsers
+                )
+            }
+
+        /** Отображает файл в память и копирует массивы пакетно через view-буферы */
+        fun read(path: Path): RatingSnapshot {
+            FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+                val size = channel.size()
+                if (size < HEADER_BYTES || size > Int.MAX_VALUE) {
+                    throw IOException("Invalid rating snapshot size: $size")
+                }
+                val mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN)
+
+                if (mapped.getInt(0) != MAGIC) throw IOException("Not a rating snapshot file: $path")
+                val version = mapped.getInt(4)
+                if (version != VERSION) throw IOException("Unsupported rating snapshot version: $version")
+                val users = mapped.getInt(8)
+                val courses = mapped.getInt(12)
+                val ratings = mapped.getInt(16)
+                val partitions = mapped.getInt(20)
+                val createdAt = mapped.getLong(24)
+                val topicLength = mapped.getInt(32)
+
+                var position = HEADER_BYTES
+                val topicBytes = ByteArray(topicLength)
+                mapped.get(position, topicBytes)
+                position += topicLength
+
+                val offsets = HashMap<Int, Long>()
+                repeat(partitions) {
+                    offsets[mapped.getInt(position)] = mapped.getLong(position + 4)
+                    position += 12
+                }
+
+                val expectedSize = position.toLong() + (users + courses) * 8L +
+                    (users + 1 + courses + 1) * 4L + ratings * 9L
+                if (size != expectedSize) throw IOException("Truncated rating snapshot: $size of $expectedSize bytes")
+
+                val userIds = LongArray(users).also { mapped.slice(position, users * 8).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(it) }
+                position += users * 8
+                val courseIds = LongArray(courses).also { mapped.slice(position, courses * 8).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(it) }
+                position += courses * 8
+                val userPtr = readInts(mapped, position, users + 1)
+                position += (users + 1) * 4
+                val userCourses = readInts(mapped, position, ratings)
+                position += ratings * 4
+                val coursePtr = readInts(mapped, position, courses + 1)
+                position += (courses + 1) * 4
+                val courseUsers = readInts(mapped, position, ratings)
+                position += ratings * 4
+                val userRatings = ByteArray(ratings).also { mapped.get(position, it) }
+
+                if (userPtr[users] != ratings || coursePtr[courses] != ratings) {
+                    throw IOException("Corrupted rating snapshot: $path")
+                }
+                return RatingSnapshot(
+                    String(topicBytes, Charsets.UTF_8), offsets, createdAt,
+                    userIds, courseIds, userPtr, userCourses, userRatings, coursePtr, courseUsers
+                )
+            }
+        }
+
+        private fun readInts(buffer: ByteBuffer, offset: Int, count: Int): IntArray =
+            IntArray(count).also { buffer.slice(offset, count * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(it) }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.recommendationservice.model
+
+import org.slf4j.LoggerFactory
+
+/**
+ * Суммы по курсам, оценённым обоими пользователями пары: query - значения
+ * пользователя запроса, other - кандидата. [rowSquares] - сумма квадратов
+ * исходных оценок всей строки кандидата (квадрат её нормы).
+ */
+class CoRatedSums {
+    var count = 0.0
+    var query = 0.0
+    var other = 0.0
+    var querySquares = 0.0
+    var otherSquares = 0.0
+    var products = 0.0
+    var rowSquares = 0.0
+}
+
+/**
+ * Ядро сходства по значениям оценок. Строка запроса развёрнута в плотный
+ * вектор по индексу курса (NaN - курс не оценён), строка кандидата - как в
+ * [RatingMatrix]: индексы курсов плюс оценки-байты. Значение кандидата -
+ * оценка минус shift[курс] (без сдвига, если shift == null). Ядро проходит строку
+ * кандидата, берёт значения запроса по её индексам (gather) и накапливает
+ * [CoRatedSums] только по курсам, где оценка запроса есть.
+ *
+ * Как у строк [RatingMatrix], элементы [courses] за length (до конца массива) -
+ * тоже индексы курсов, меньшие размера query: векторное ядро читает их и отбрасывает.
+ */
+interface SimilarityKernel {
+    val name: String
+
+    fun coRatedSums(
+        query: FloatArray,
+        shift: FloatArray?,
+        courses: IntArray,
+        ratings: ByteArray,
+        length: Int,
+        sums: CoRatedSums
+    )
+}
+
+/** Скалярная реализация; эталон для векторной и запасной вариант без jdk.incubator.vector */
+object ScalarSimilarityKernel : SimilarityKernel {
+    override val name = "scalar"
+
+    override fun coRatedSums(
+        query: FloatArray,
+        shift: FloatArray?,
+        courses: IntArray,
+        ratings: ByteArray,
+        length: Int,
+        sums: CoRatedSums
+    ) {
+        var count = 0
+        var sumQuery = 0f
+        var sumOther = 0f
+        var sumQuerySquares = 0f
+        var sumOtherSquares = 0f
+        var sumProducts = 0f
+        var rowSquares = 0
+        for (i in 0 until length) {
+            val rating = ratings[i].toInt()
+            rowSquares += rating * rating
+            val course = courses[i]
+            val q = query[course]
+            if (q.isNaN()) continue
+            val v = if (shift == null) rating.toFloat() else rating - shift[course]
+            count++
+            sumQuery += q
+            sumOther += v
+            sumQuerySquares += q * q
+            sumOtherSquares += v * v
+            sumProducts += q * v
+        }
+        sums.count = count.toDouble()
+        sums.query = sumQuery.toDouble()
+        sums.other = sumOther.toDouble()
+        sums.querySquares = sumQuerySquares.toDouble()
+        sums.otherSquares = sumOtherSquares.toDouble()
+        sums.products = sumProducts.toDouble()
+        sums.rowSquares = rowSquares.toDouble()
+    }
+}
+
+object SimilarityKernels {
+    private val logger = LoggerFactory.getLogger(SimilarityKernels::class.java)
+
+    /** Векторное ядро выигрывает только при аппаратном gather: AVX2 и шире (от 8 float-линий) */
+    private const val MIN_VECTOR_LANES = 8
+
+    /** До 21.0.3 C2 может неверно закодировать адрес gather-инструкции и упасть с SIGSEGV (JDK-8321215) */
+    private val MIN_VECTOR_JAVA_VERSION = Runtime.Version.parse("21.0.3")
+
+    /**
+     * auto - векторное ядро, если модуль jdk.incubator.vector подключён
+     * (--add-modules jdk.incubator.vector), Java не ниже [MIN_VECTOR_JAVA_VERSION]
+     * и регистры достаточно широкие, иначе скалярное;
+     * vector - векторное или ошибка; scalar - всегда скалярное.
+     */
+    fun create(mode: String): SimilarityKernel = when (mode) {
+        "scalar" -> ScalarSimilarityKernel
+        "vector" -> vectorKernel() ?: throw IllegalStateException(
+            "Vector similarity kernel is not available; " +
+                "run on Java $MIN_VECTOR_JAVA_VERSION+ with --add-modules jdk.incubator.vector"
+        )
+        "auto" -> vectorKernel()?.takeIf { it.lanes >= MIN_VECTOR_LANES } ?: ScalarSimilarityKernel
+        else -> throw IllegalArgumentException("Unknown similarity kernel: $mode")
+    }
+
+    private fun vectorKernel(): VectorSimilarityKernel? {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty) return null
+        if (Runtime.version().compareToIgnoreOptional(MIN_VECTOR_JAVA_VERSION) < 0) {
+            logger.warn("Vector similarity kernel needs Java $MIN_VECTOR_JAVA_VERSION+, running ${Runtime.version()}")
+            return null
+        }
+        return try {
+            VectorSimilarityKernel()
+        } catch (e: LinkageError) {
+            logger.warn("Vector API is not usable, falling back to scalar similarity kernel: ${e.message}")
+            null
+        }
+    }
+}
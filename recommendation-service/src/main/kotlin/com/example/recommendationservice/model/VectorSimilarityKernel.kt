@@ -0,0 +1,117 @@
+package com.example.recommendationservice.model
+
+import jdk.incubator.vector.ByteVector
+import jdk.incubator.vector.FloatVector
+import jdk.incubator.vector.VectorOperators
+import jdk.incubator.vector.VectorShape
+import jdk.incubator.vector.VectorSpecies
+
+/**
+ * [SimilarityKernel] на Vector API: значения запроса (и сдвиги) собираются gather'ом
+ * по индексам курсов кандидата, оценки-байты расширяются во float в регистре,
+ * курсы без оценки запроса (NaN) гасятся маской, суммы копятся в линиях
+ * и сворачиваются один раз в конце. Хвост строки - тот же шаг под маской
+ * диапазона, скалярно - только если регистр выходит за ёмкость массивов строки.
+ * Короткие строки целиком считает [ScalarSimilarityKernel]. Загрузки и gather'ы -
+ * без маски, маска применяется к результату.
+ *
+ * Оценки - целые от 1 до 127, поэтому без сдвига (косинус, Пирсон) суммы во float
+ * точны и совпадают со скалярным ядром; со сдвигом (скорректированный косинус)
+ * расхождение в пределах ошибки округления float.
+ *
+ * Загружается только при подключённом модуле jdk.incubator.vector, см. [SimilarityKernels].
+ */
+internal class VectorSimilarityKernel : SimilarityKernel {
+    override val name = "vector"
+
+    val lanes: Int get() = FLOATS.length()
+
+    override fun coRatedSums(
+        query: FloatArray,
+        shift: FloatArray?,
+        courses: IntArray,
+        ratings: ByteArray,
+        length: Int,
+        sums: CoRatedSums
+    ) {
+        if (length < MIN_VECTOR_LENGTH) {
+            ScalarSimilarityKernel.coRatedSums(query, shift, courses, ratings, length, sums)
+            return
+        }
+        val zero = FloatVector.zero(FLOATS)
+        var sumQuery = zero
+        var sumOther = zero
+        var sumQuerySquares = zero
+        var sumOtherSquares = zero
+        var sumProducts = zero
+        var rowSquares = zero
+        var count = 0
+
+        // Регистр целиком должен помещаться в массивы строки (у строк из снимка запаса ёмкости нет);
+        // линии за length читают хвост массива - это валидные индексы курсов, их гасит inRange
+        val vectorEnd = minOf(length, courses.size - FLOATS.length() + 1, ratings.size - FLOATS.length() + 1)
+        var i = 0
+        while (i < vectorEnd) {
+            val inRange = FLOATS.indexInRange(i, length)
+            val rating = ByteVector.fromArray(BYTES, ratings, i)
+                .convertShape(VectorOperators.B2F, FLOATS, 0) as FloatVector
+            rowSquares = rowSquares.add(rating.mul(rating), inRange)
+
+            val gathered = FloatVector.fromArray(FLOATS, query, 0, courses, i)
+            val rated = gathered.test(VectorOperators.IS_NAN).not().and(inRange)
+            val shifted = if (shift == null) rating else rating.sub(FloatVector.fromArray(FLOATS, shift, 0, courses, i))
+            val q = zero.blend(gathered, rated)
+            val v = zero.blend(shifted, rated)
+            count += rated.trueCount()
+            sumQuery = sumQuery.add(q)
+            sumOther = sumOther.add(v)
+            sumQuerySquares = q.fma(q, sumQuerySquares)
+            sumOtherSquares = v.fma(v, sumOtherSquares)
+            sumProducts = q.fma(v, sumProducts)
+            i += FLOATS.length()
+        }
+
+        var tailQuery = 0f
+        var tailOther = 0f
+        var tailQuerySquares = 0f
+        var tailOtherSquares = 0f
+        var tailProducts = 0f
+        var tailRowSquares = 0f
+        while (i < length) {
+            val rating = ratings[i].toFloat()
+            tailRowSquares += rating * rating
+            val course = courses[i]
+            val q = query[course]
+            if (!q.isNaN()) {
+                val v = if (shift == null) rating else rating - shift[course]
+                count++
+                tailQuery += q
+                tailOther += v
+                tailQuerySquares += q * q
+                tailOtherSquares += v * v
+                tailProducts += q * v
+            }
+            i++
+        }
+
+        sums.count = count.toDouble()
+        sums.query = (sumQuery.reduceLanes(VectorOperators.ADD) + tailQuery).toDouble()
+        sums.other = (sumOther.reduceLanes(VectorOperators.ADD) + tailOther).toDouble()
+        sums.querySquares = (sumQuerySquares.reduceLanes(VectorOperators.ADD) + tailQuerySquares).toDouble()
+        sums.otherSquares = (sumOtherSquares.reduceLanes(VectorOperators.ADD) + tailOtherSquares).toDouble()
+        sums.products = (sumProducts.reduceLanes(VectorOperators.ADD) + tailProducts).toDouble()
+        sums.rowSquares = (rowSquares.reduceLanes(VectorOperators.ADD) + tailRowSquares).toDouble()
+    }
+
+    private companion object {
+        /** Короче - постоянные расходы (свёртка семи регистров) съедают выигрыш, считаем скалярно */
+        const val MIN_VECTOR_LENGTH = 64
+
+        /** Не шире 256 бит: у типичной строки в несколько десятков оценок меньше пустых линий в хвосте */
+        val FLOATS: VectorSpecies<Float> =
+            if (FloatVector.SPECIES_PREFERRED.vectorBitSize() > 256) FloatVector.SPECIES_256 else FloatVector.SPECIES_PREFERRED
+
+        /** Столько же линий, сколько у [FLOATS]: байт на оценку */
+        val BYTES: VectorSpecies<Byte> = VectorSpecies.of(Byte::class.javaPrimitiveType!!, VectorShape.forBitSize(FLOATS.length() * 8))
+    }
+}
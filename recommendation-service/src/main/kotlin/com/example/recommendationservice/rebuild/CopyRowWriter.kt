@@ -0,0 +1,137 @@
+package com.example.recommendationservice.rebuild
+
+import org.postgresql.copy.CopyIn
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Кодирует строки user_ratings в текстовый формат COPY (поля через табуляцию) в
+ * собственный буфер и отдаёт его в [copyIn] кусками по [BUFFER_BYTES]. Счётчик [rows]
+ * общий для всех частей загрузки и растёт при каждой отправке буфера.
+ */
+class CopyRowWriter(private val copyIn: CopyIn, private val rows: AtomicLong) {
+
+    private val buffer = ByteArray(BUFFER_BYTES)
+    private var size = 0
+    private var pendingRows = 0L
+    var writtenRows = 0L
+        private set
+
+    fun row(userId: Long, courseId: Long, rating: Int) {
+        ensure(MAX_ROW_BYTES)
+        putLong(userId)
+        buffer[size++] = TAB
+        putLong(courseId)
+        buffer[size++] = TAB
+        putLong(rating.toLong())
+        buffer[size++] = NEWLINE
+        pendingRows++
+    }
+
+    /**
+     * Строка CSV из [fields] полей: первые три - целые числа, остальные (время) -
+     * без кавычек и символов, особых для COPY; пустое время - время загрузки.
+     */
+    fun csvLine(bytes: ByteArray, start: Int, length: Int, fields: Int, filePosition: Long) {
+        ensure(length + fields * NOW.size + 1)
+        var field = 0
+        var fieldStart = start
+        val end = start + length
+        for (i in start..end) {
+            if (i < end && bytes[i] != COMMA) continue
+            if (field == fields) throw invalidLine(bytes, start, length, filePosition)
+            val valid = if (field < 3) isInteger(bytes, fieldStart, i) else isPlainText(bytes, fieldStart, i)
+            if (!valid) throw invalidLine(bytes, start, length, filePosition)
+            if (field > 0) buffer[size++] = TAB
+            if (i == fieldStart && field >= 3) {
+                System.arraycopy(NOW, 0, buffer, size, NOW.size)
+                size += NOW.size
+            } else {
+                System.arraycopy(bytes, fieldStart, buffer, size, i - fieldStart)
+                size += i - fieldStart
+            }
+            field++
+            fieldStart = i + 1
+        }
+        if (field != fields) throw invalidLine(bytes, start, length, filePosition)
+        buffer[size++] = NEWLINE
+        pendingRows++
+    }
+
+    /** Отправляет остаток и завершает COPY; сверяет число строк с ответом сервера */
+    fun finish() {
+        flush()
+        val copied = copyIn.endCopy()
+        if (copied != writtenRows) throw IOException("COPY reported $copied rows, $writtenRows sent")
+    }
+
+    private fun ensure(bytes: Int) {
+        if (size + bytes > buffer.size) flush()
+        if (bytes > buffer.size) throw IOException("Row of $bytes bytes does not fit the COPY buffer")
+    }
+
+    private fun flush() {
+        if (size > 0) copyIn.writeToCopy(buffer, 0, size)
+        size = 0
+        writtenRows += pendingRows
+        rows.addAndGet(pendingRows)
+        pendingRows = 0
+    }
+
+    private fun putLong(value: Long) {
+        if (value < 0) {
+            buffer[size++] = '-'.code.toByte()
+            if (value == Long.MIN_VALUE) {
+                val digits = Long.MIN_VALUE.toString().substring(1).toByteArray()
+                System.arraycopy(digits, 0, buffer, size, digits.size)
+                size += digits.size
+                return
+            }
+            putLong(-value)
+            return
+        }
+        var digits = 1
+        var rest = value / 10
+        while (rest > 0) {
+            digits++
+            rest /= 10
+        }
+        var remaining = value
+        for (i in size + digits - 1 downTo size) {
+            buffer[i] = ('0'.code + (remaining % 10).toInt()).toByte()
+            remaining /= 10
+        }
+        size += digits
+    }
+
+    companion object {
+        private const val BUFFER_BYTES = 1 shl 20
+        // Три long со знаком, два разделителя и перевод строки
+        private const val MAX_ROW_BYTES = 3 * 20 + 3
+        private const val TAB = '\t'.code.toByte()
+        private const val NEWLINE = '\n'.code.toByte()
+        private const val COMMA = ','.code.toByte()
+        private val NOW = "now".toByteArray()
+
+        private fun isInteger(bytes: ByteArray, from: Int, to: Int): Boolean {
+            val digitsFrom = if (from < to && bytes[from] == '-'.code.toByte()) from + 1 else from
+            if (digitsFrom == to || to - digitsFrom > 19) return false
+            for (i in digitsFrom until to) {
+                if (bytes[i] < '0'.code.toByte() || bytes[i] > '9'.code.toByte()) return false
+            }
+            return true
+        }
+
+        /** Без кавычек CSV и символов, которые COPY в текстовом формате понимает особо */
+        private fun isPlainText(bytes: ByteArray, from: Int, to: Int): Boolean {
+            for (i in from until to) {
+                val b = bytes[i]
+                if (b == '"'.code.toByte() || b == '\\'.code.toByte() || b == TAB || b < 0x20) return false
+            }
+            return true
+        }
+
+        private fun invalidLine(bytes: ByteArray, start: Int, length: Int, filePosition: Long) =
+            IOException("Invalid rating row at byte $filePosition: ${String(bytes, start, minOf(length, 200))}")
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.recommendationservice.rebuild
+
+import com.example.recommendationservice.kafka.RatingEventConsumer
+import com.typesafe.config.ConfigFactory
+import io.ktor.server.config.*
+import kotlinx.serialization.json.Json
+import org.apache.kafka.clients.consumer.KafkaConsumer
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.common.TopicPartition
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.sql.DriverManager
+import kotlin.system.exitProcess
+
+/**
+ * Пересборка user_ratings в окно обслуживания, при остановленном сервисе:
+ * `--source=csv:<файл>` - выгрузка ratings из rating-service (см. [CsvRatingSource]),
+ * `--source=snapshot:<файл>` - снимок матрицы оценок (см. [SnapshotRatingSource]).
+ * Настройки БД и Kafka - из application.conf с теми же переменными окружения, что у сервиса.
+ *
+ * После замены таблицы остальное состояние сервиса приводится в соответствие с ней:
+ * - после выгрузки из rating-service старый снимок матрицы удаляется, чтобы сервис
+ *   загрузил матрицу из новой таблицы;
+ * - после снимка группе потребителя коммитятся offset'ы снимка ([RebuildOptions.resetOffsets]):
+ *   события после них сервис применит при старте, как после загрузки из БД.
+ *
+ * Из Gradle: `gradle rebuildRatings -Prebuild.source=csv:ratings.csv -Prebuild.parallelism=8`.
+ */
+fun main(args: Array<String>) {
+    val options = RebuildOptions.parse(args)
+    println("User ratings rebuild: $options")
+
+    val config = HoconApplicationConfig(ConfigFactory.load())
+    val topic = config.property("kafka.topic").getString()
+    val source = openSource(options.source)
+    if (source is SnapshotRatingSource && source.snapshot.topic != topic) {
+        System.err.println("Snapshot is for topic ${source.snapshot.topic}, not $topic")
+        exitProcess(1)
+    }
+
+    val url = config.property("database.url").getString()
+    val user = config.property("database.user").getString()
+    val password = config.property("database.password").getString()
+    val rebuild = UserRatingsRebuild(
+        connect = { DriverManager.getConnection(url, user, password) },
+        parallelism = options.parallelism,
+        maintenanceWorkMem = options.maintenanceWorkMem
+    )
+    val report = rebuild.run(source)
+
+    when (source) {
+        is CsvRatingSource -> {
+            val snapshotPath = Paths.get(config.property("recommendation.snapshot.path").getString())
+            if (Files.deleteIfExists(snapshotPath)) println("Deleted stale rating snapshot $snapshotPath")
+        }
+        is SnapshotRatingSource -> if (options.resetOffsets) {
+            commitOffsets(config, topic, source.snapshot.offsets)
+            println("Committed snapshot offsets of $topic: ${source.snapshot.offsets}")
+        }
+    }
+
+    println(report.format())
+    options.out?.let { out ->
+        val path = Paths.get(out)
+        path.toAbsolutePath().parent?.let { Files.createDirectories(it) }
+        Files.writeString(path, Json { prettyPrint = true }.encodeToString(RebuildReport.serializer(), report))
+        println("Report written to $path")
+    }
+}
+
+private fun openSource(source: String): RatingSource {
+    val kind = source.substringBefore(':')
+    val path = Paths.get(source.substringAfter(':'))
+    return when (kind) {
+        "csv" -> CsvRatingSource(path)
+        "snapshot" -> SnapshotRatingSource(path)
+        else -> throw IllegalArgumentException("Unknown source $source, expected csv:<path> or snapshot:<path>")
+    }
+}
+
+/** Не пройдёт, если в группе есть активные потребители: сервис должен быть остановлен */
+private fun commitOffsets(config: ApplicationConfig, topic: String, offsets: Map<Int, Long>) {
+    val props = RatingEventConsumer.consumerProperties(
+        config.property("kafka.bootstrapServers").getString(),
+        config.property("kafka.groupId").getString()
+    )
+    KafkaConsumer<String, String>(props).use { consumer ->
+        consumer.commitSync(offsets.map { (partition, offset) -> TopicPartition(topic, partition) to OffsetAndMetadata(offset) }.toMap())
+    }
+}
+
+data class RebuildOptions(
+    val source: String,
+    val parallelism: Int = 4,
+    // maintenance_work_mem сессий, строящих индексы, например 1GB
+    val maintenanceWorkMem: String? = null,
+    val resetOffsets: Boolean = true,
+    val out: String? = null
+) {
+    companion object {
+        fun parse(args: Array<String>): RebuildOptions {
+            val values = args.associate { arg ->
+                require(arg.startsWith("--") && '=' in arg) { "Expected --name=value, got $arg" }
+                arg.substring(2).substringBefore('=') to arg.substringAfter('=')
+            }
+            val unknown = values.keys - OPTION_NAMES
+            require(unknown.isEmpty()) { "Unknown options: $unknown" }
+            val source = requireNotNull(values["source"]) { "--source=csv:<path> or --source=snapshot:<path> is required" }
+            val defaults = RebuildOptions(source)
+            values["maintenanceWorkMem"]?.let {
+                require(MEMORY_SIZE.matches(it)) { "Expected maintenanceWorkMem like 512MB, got $it" }
+            }
+
+            return RebuildOptions(
+                source = source,
+                parallelism = values["parallelism"]?.toInt() ?: defaults.parallelism,
+                maintenanceWorkMem = values["maintenanceWorkMem"] ?: defaults.maintenanceWorkMem,
+                resetOffsets = values["resetOffsets"]?.toBooleanStrict() ?: defaults.resetOffsets,
+                out = values["out"]
+            )
+        }
+
+        val OPTION_NAMES = setOf("source", "parallelism", "maintenanceWorkMem", "resetOffsets", "out")
+        private val MEMORY_SIZE = Regex("""\d+\s*(kB|MB|GB)?""")
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.recommendationservice.rebuild
+
+import com.example.recommendationservice.model.RatingSnapshot
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+/**
+ * Источник строк user_ratings для пересборки. Делится на независимые части,
+ * каждая идёт своим COPY в своём соединении.
+ */
+sealed interface RatingSource {
+
+    /** Строки несут created_at и updated_at; иначе оба получают время загрузки */
+    val hasTimestamps: Boolean
+
+    fun parts(count: Int): List<RatingSourcePart>
+}
+
+fun interface RatingSourcePart {
+    fun copyTo(writer: CopyRowWriter)
+}
+
+/**
+ * Выгрузка таблицы ratings rating-service в CSV:
+ * `user_id,course_id,rating[,created_at,updated_at]`, строка заголовка необязательна.
+ * Части - диапазоны байтов файла; строка принадлежит части, в которой начинается.
+ * Поля не разбираются в объекты: числа проверяются, и строка уходит в COPY как есть,
+ * с табуляцией вместо запятой.
+ */
+class CsvRatingSource(private val path: Path) : RatingSource {
+
+    private val size = Files.size(path)
+    private val hasHeader: Boolean
+    override val hasTimestamps: Boolean
+
+    init {
+        val first = Files.newBufferedReader(path).use { it.readLine() } ?: ""
+        hasHeader = first.isNotEmpty() && !first[0].isDigit()
+        val columns = first.split(',').size
+        if (columns != 3 && columns != 5) {
+            throw IOException("Expected user_id,course_id,rating[,created_at,updated_at] in $path, got: $first")
+        }
+        hasTimestamps = columns == 5
+    }
+
+    override fun parts(count: Int): List<RatingSourcePart> =
+        (0 until count).map { part ->
+            val from = size * part / count
+            val to = size * (part + 1) / count
+            RatingSourcePart { writer -> copyRange(from, to, writer) }
+        }
+
+    private fun copyRange(from: Long, to: Long, writer: CopyRowWriter) {
+        FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+            // С байта перед началом: если это конец строки, с from начинается целая строка
+            val lines = LineReader(channel, maxOf(from - 1, 0))
+            if (from > 0 && !lines.next()) return
+            if (from == 0L && hasHeader && !lines.next()) return
+            val fields = if (hasTimestamps) 5 else 3
+            while (lines.position < to && lines.next()) {
+                if (lines.length > 0) writer.csvLine(lines.bytes, lines.start, lines.length, fields, lines.lineStart)
+            }
+        }
+    }
+
+    override fun toString() = "csv:$path"
+}
+
+/**
+ * Построчное чтение файла с [position] через собственный буфер. Строка - отрезок
+ * [start, start + length) массива [bytes] без перевода строки, действителен до следующего [next].
+ */
+internal class LineReader(private val channel: FileChannel, startPosition: Long) {
+
+    var bytes = ByteArray(BUFFER_BYTES)
+        private set
+    var start = 0
+        private set
+    var length = 0
+        private set
+
+    /** Позиция в файле начала текущей строки */
+    var lineStart = startPosition
+        private set
+
+    /** Позиция в файле начала следующей строки */
+    var position = startPosition
+        private set
+
+    private var filled = 0
+    private var scan = 0
+    private var eof = false
+
+    init {
+        channel.position(startPosition)
+    }
+
+    fun next(): Boolean {
+        while (true) {
+            var i = scan
+            while (i < filled && bytes[i] != NEWLINE) i++
+            if (i < filled || (eof && i > scan)) {
+                start = scan
+                length = i - scan
+                lineStart = position
+                val consumed = minOf(i + 1, filled) - scan
+                position += consumed
+                scan += consumed
+                if (length > 0 && bytes[start + length - 1] == CARRIAGE_RETURN) length--
+                return true
+            }
+            if (eof) return false
+            fill()
+        }
+    }
+
+    /** Сдвигает недочитанную строку в начало буфера (при необходимости растит его) и дочитывает файл */
+    private fun fill() {
+        val pending = filled - scan
+        if (scan > 0) System.arraycopy(bytes, scan, bytes, 0, pending)
+        else if (pending == bytes.size) bytes = bytes.copyOf(bytes.size * 2)
+        scan = 0
+        filled = pending
+        val buffer = ByteBuffer.wrap(bytes, filled, bytes.size - filled)
+        val read = channel.read(buffer)
+        if (read < 0) eof = true else filled += read
+    }
+
+    companion object {
+        private const val BUFFER_BYTES = 1 shl 20
+        private const val NEWLINE = '\n'.code.toByte()
+        private const val CARRIAGE_RETURN = '\r'.code.toByte()
+    }
+}
+
+/**
+ * Снимок матрицы оценок ([RatingSnapshot], recommendation.snapshot) - состояние топика
+ * до offset'ов снимка. Части - отрезки пользователей с примерно равным числом оценок.
+ */
+class SnapshotRatingSource(private val path: Path) : RatingSource {
+
+    val snapshot: RatingSnapshot = RatingSnapshot.read(path)
+
+    override val hasTimestamps = false
+
+    override fun parts(count: Int): List<RatingSourcePart> =
+        snapshot.userRanges(count).map { users ->
+            RatingSourcePart { writer -> snapshot.forEachRating(users, writer::row) }
+        }
+
+    override fun toString() = "snapshot:$path"
+}
@@ -0,0 +1,254 @@
+package com.example.recommendationservice.rebuild
+
+import com.example.recommendationservice.entity.UserRatings
+import kotlinx.serialization.Serializable
+import org.postgresql.PGConnection
+import org.slf4j.LoggerFactory
+import java.sql.Connection
+import java.util.concurrent.Executors
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.concurrent.thread
+
+@Serializable
+data class RebuildReport(
+    val source: String,
+    val parallelism: Int,
+    val rows: Long,
+    val loadSeconds: Double,
+    val loadRowsPerSecond: Double,
+    val indexSeconds: Double,
+    val swapSeconds: Double,
+    val totalSeconds: Double,
+    val totalRowsPerSecond: Double
+) {
+    fun format(): String = buildString {
+        appendLine("source=$source parallelism=$parallelism rows=$rows")
+        appendLine("load (COPY): %.1f s, %.0f rows/s".format(loadSeconds, loadRowsPerSecond))
+        appendLine("indexes: %.1f s".format(indexSeconds))
+        appendLine("swap: %.2f s".format(swapSeconds))
+        append("total: %.1f s, %.0f rows/s".format(totalSeconds, totalRowsPerSecond))
+    }
+}
+
+/**
+ * Пересборка таблицы user_ratings целиком из [RatingSource] в обход построчных upsert'ов:
+ *
+ * 1. пустая промежуточная таблица той же структуры без индексов;
+ * 2. загрузка протоколом COPY в [parallelism] соединений, по части источника на каждое;
+ * 3. первичный ключ и уникальный индекс (user_id, course_id) строятся одновременно в двух
+ *    соединениях; дубликат пары в источнике останавливает пересборку на этом шаге;
+ * 4. одной транзакцией под ACCESS EXCLUSIVE старая таблица удаляется, новая получает её имя,
+ *    имена индексов и последовательности id. Читатели видят либо старую таблицу, либо новую.
+ *
+ * При любой ошибке промежуточная таблица удаляется, а user_ratings остаётся прежней.
+ * Соединения даёт [connect]; для COPY нужен драйвер PostgreSQL.
+ */
+class UserRatingsRebuild(
+    private val connect: () -> Connection,
+    private val parallelism: Int,
+    // Память сортировки при построении индекса, например "1GB"; null - настройка сервера
+    private val maintenanceWorkMem: String? = null
+) {
+
+    private val logger = LoggerFactory.getLogger(UserRatingsRebuild::class.java)
+
+    private val table = UserRatings.tableName
+    private val staging = "${table}_rebuild"
+    // Имена, которые дают таблице SchemaUtils.create и PostgreSQL: сервис на них не ссылается,
+    // но после замены таблица должна выглядеть так же, как созданная при старте
+    private val primaryKeyName = "${table}_pkey"
+    private val uniqueIndexName = "${table}_user_id_course_id_unique"
+
+    init {
+        require(parallelism > 0) { "parallelism must be positive" }
+    }
+
+    fun run(source: RatingSource): RebuildReport {
+        val startedAt = System.nanoTime()
+        logger.info("Rebuilding $table from $source, parallelism=$parallelism")
+        createStaging()
+        try {
+            val rows = AtomicLong()
+            val loadStartedAt = System.nanoTime()
+            load(source, rows)
+            val loadSeconds = (System.nanoTime() - loadStartedAt) / 1e9
+            logger.info("Loaded ${rows.get()} rows in %.1f s, %.0f rows/s".format(loadSeconds, rows.get() / loadSeconds))
+
+            val indexStartedAt = System.nanoTime()
+            buildIndexes()
+            val indexSeconds = (System.nanoTime() - indexStartedAt) / 1e9
+            logger.info("Indexes built in %.1f s".format(indexSeconds))
+
+            val swapStartedAt = System.nanoTime()
+            swap()
+            val swapSeconds = (System.nanoTime() - swapStartedAt) / 1e9
+            val totalSeconds = (System.nanoTime() - startedAt) / 1e9
+            logger.info("Swapped $staging into $table")
+
+            return RebuildReport(
+                source = source.toString(),
+                parallelism = parallelism,
+                rows = rows.get(),
+                loadSeconds = loadSeconds,
+                loadRowsPerSecond = rows.get() / loadSeconds,
+                indexSeconds = indexSeconds,
+                swapSeconds = swapSeconds,
+                totalSeconds = totalSeconds,
+                totalRowsPerSecond = rows.get() / totalSeconds
+            )
+        } catch (e: Exception) {
+            dropStaging()
+            throw e
+        }
+    }
+
+    private fun createStaging() {
+        execute(
+            "DROP TABLE IF EXISTS $staging",
+            // Как UserRatings, но без индексов: они строятся после загрузки
+            """CREATE TABLE $staging (
+                id BIGSERIAL NOT NULL,
+                user_id BIGINT NOT NULL,
+                course_id BIGINT NOT NULL,
+                rating INT NOT NULL,
+                created_at TIMESTAMP NOT NULL DEFAULT now(),
+                updated_at TIMESTAMP NOT NULL DEFAULT now()
+            )"""
+        )
+    }
+
+    private fun load(source: RatingSource, rows: AtomicLong) {
+        val columns = if (source.hasTimestamps) {
+            "user_id, course_id, rating, created_at, updated_at"
+        } else {
+            "user_id, course_id, rating"
+        }
+        val progress = thread(name = "rebuild-progress", isDaemon = true) { reportProgress(rows) }
+        try {
+            runInParallel(source.parts(parallelism).map { part ->
+                {
+                    connect().use { connection ->
+                        connection.autoCommit = true
+                        val copyIn = connection.unwrap(PGConnection::class.java).copyAPI
+                            .copyIn("COPY $staging ($columns) FROM STDIN")
+                        try {
+                            CopyRowWriter(copyIn, rows).also { part.copyTo(it) }.finish()
+                        } finally {
+                            if (copyIn.isActive) copyIn.cancelCopy()
+                        }
+                    }
+                }
+            })
+        } finally {
+            progress.interrupt()
+        }
+    }
+
+    private fun reportProgress(rows: AtomicLong) {
+        val startedAt = System.nanoTime()
+        try {
+            while (true) {
+                Thread.sleep(PROGRESS_INTERVAL_MILLIS)
+                val seconds = (System.nanoTime() - startedAt) / 1e9
+                logger.info("Loaded ${rows.get()} rows, %.0f rows/s".format(rows.get() / seconds))
+            }
+        } catch (e: InterruptedException) {
+            // загрузка закончилась
+        }
+    }
+
+    /**
+     * Индексы строятся одновременно: CREATE INDEX берёт SHARE-блокировку, совместимую
+     * с самой собой. Первичный ключ затем привязывается к готовому уникальному индексу.
+     */
+    private fun buildIndexes() {
+        runInParallel(listOf(
+            { indexSession("CREATE UNIQUE INDEX ${primaryKeyName}_rebuild ON $staging (id)") },
+            {
+                try {
+                    indexSession("CREATE UNIQUE INDEX ${uniqueIndexName}_rebuild ON $staging (user_id, course_id)")
+                } catch (e: Exception) {
+                    throw IllegalStateException("Source has duplicate (user_id, course_id) rows or failed to index", e)
+                }
+            }
+        ))
+        execute(
+            "ALTER TABLE $staging ADD CONSTRAINT ${primaryKeyName}_rebuild PRIMARY KEY USING INDEX ${primaryKeyName}_rebuild",
+            "ANALYZE $staging"
+        )
+    }
+
+    private fun indexSession(sql: String) {
+        val statements = listOfNotNull(maintenanceWorkMem?.let { "SET maintenance_work_mem = '$it'" }, sql)
+        execute(*statements.toTypedArray())
+    }
+
+    private fun swap() {
+        connect().use { connection ->
+            connection.autoCommit = false
+            try {
+                connection.createStatement().use { statement ->
+                    val exists = statement.executeQuery("SELECT to_regclass('$table') IS NOT NULL").use { it.next() && it.getBoolean(1) }
+                    listOfNotNull(
+                        // Сервис, который не остановили, не должен надолго повесить все запросы к таблице
+                        "SET LOCAL lock_timeout = '$SWAP_LOCK_TIMEOUT'",
+                        "LOCK TABLE $table IN ACCESS EXCLUSIVE MODE".takeIf { exists },
+                        // Вместе с таблицей удаляется и её последовательность id
+                        "DROP TABLE IF EXISTS $table",
+                        "ALTER TABLE $staging RENAME TO $table",
+                        "ALTER TABLE $table RENAME CONSTRAINT ${primaryKeyName}_rebuild TO $primaryKeyName",
+                        "ALTER INDEX ${uniqueIndexName}_rebuild RENAME TO $uniqueIndexName",
+                        "ALTER SEQUENCE ${staging}_id_seq RENAME TO ${table}_id_seq",
+                        // Время по умолчанию нужно было только для загрузки; сервис пишет его сам
+                        "ALTER TABLE $table ALTER COLUMN created_at DROP DEFAULT, ALTER COLUMN updated_at DROP DEFAULT"
+                    ).forEach { statement.execute(it) }
+                }
+                connection.commit()
+            } catch (e: Exception) {
+                connection.rollback()
+                throw e
+            }
+        }
+    }
+
+    private fun dropStaging() {
+        try {
+            execute("DROP TABLE IF EXISTS $staging")
+        } catch (e: Exception) {
+            logger.error("Failed to drop $staging", e)
+        }
+    }
+
+    private fun execute(vararg statements: String) {
+        connect().use { connection ->
+            connection.autoCommit = true
+            connection.createStatement().use { statement -> statements.forEach { statement.execute(it) } }
+        }
+    }
+
+    /** Выполняет задачи в отдельных потоках; первая ошибка пробрасывается после завершения всех */
+    private fun runInParallel(tasks: List<() -> Unit>) {
+        val executor = Executors.newFixedThreadPool(tasks.size)
+        try {
+            val futures = tasks.map { task -> executor.submit { task() } }
+            var failure: Throwable? = null
+            futures.forEach { future ->
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    val cause = e.cause ?: e
+                    if (failure == null) failure = cause else failure!!.addSuppressed(cause)
+                }
+            }
+            failure?.let { throw it }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    companion object {
+        private const val PROGRESS_INTERVAL_MILLIS = 5000L
+        private const val SWAP_LOCK_TIMEOUT = "10s"
+    }
+}
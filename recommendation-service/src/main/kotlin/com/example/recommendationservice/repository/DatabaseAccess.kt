@@ -0,0 +1,76 @@
+package com.example.recommendationservice.repository
+
+import com.example.recommendationservice.metrics.Metrics
+import com.zaxxer.hikari.HikariDataSource
+import kotlinx.coroutines.ExecutorCoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import org.jetbrains.exposed.sql.Database
+import org.jetbrains.exposed.sql.Transaction
+import org.jetbrains.exposed.sql.transactions.experimental.newSuspendedTransaction
+import java.sql.Connection
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Подключение к БД для репозиториев. Транзакции выполняются на отдельном
+ * диспетчере, в котором потоков столько же, сколько соединений в пуле Hikari:
+ * поток диспетчера не ждёт соединения, а лишние запросы ждут в очереди
+ * диспетчера как приостановленные корутины, не занимая потоки Netty
+ * и Dispatchers.Default. Глубина очереди - метрика db.queued.
+ */
+object DatabaseAccess {
+
+    private val waitTimer = Metrics.timer("db.wait")
+
+    @Volatile
+    private var executor: ThreadPoolExecutor? = null
+
+    @Volatile
+    private var dispatcher: ExecutorCoroutineDispatcher? = null
+
+    /** Подключает Exposed к [dataSource] и создаёт диспетчер по размеру его пула */
+    fun connect(dataSource: HikariDataSource) {
+        val poolSize = dataSource.maximumPoolSize
+        val threadIds = AtomicInteger()
+        val pool = ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, LinkedBlockingQueue()) { task ->
+            Thread(task, "db-${threadIds.incrementAndGet()}").apply { isDaemon = true }
+        }
+        Database.connect(dataSource)
+        executor = pool
+        dispatcher = pool.asCoroutineDispatcher()
+        Metrics.gauge("db.queued") { pool.queue.size }
+        Metrics.gauge("db.active") { pool.activeCount }
+    }
+
+    fun close() {
+        dispatcher?.close()
+        dispatcher = null
+        executor = null
+    }
+
+    internal suspend fun <T> inTransaction(isolation: Int, readOnly: Boolean, block: Transaction.() -> T): T {
+        val context = dispatcher ?: throw IllegalStateException("Database is not connected")
+        val submittedAt = System.nanoTime()
+        return newSuspendedTransaction(context, transactionIsolation = isolation) {
+            waitTimer.record(System.nanoTime() - submittedAt)
+            // До первого запроса: PostgreSQL JDBC откроет транзакцию как BEGIN READ ONLY
+            if (readOnly) connection.readOnly = true
+            block()
+        }
+    }
+}
+
+/**
+ * Транзакция записи (REPEATABLE READ, как раньше у всего пула) на диспетчере БД.
+ */
+suspend fun <T> dbQuery(block: Transaction.() -> T): T =
+    DatabaseAccess.inTransaction(Connection.TRANSACTION_REPEATABLE_READ, readOnly = false, block)
+
+/**
+ * Транзакция только для чтения на диспетчере БД. READ COMMITTED: каждому
+ * чтению хватает снимка одного запроса, а PostgreSQL не держит снимок транзакции.
+ */
+suspend fun <T> dbRead(block: Transaction.() -> T): T =
+    DatabaseAccess.inTransaction(Connection.TRANSACTION_READ_COMMITTED, readOnly = true, block)
@@ -3,17 +3,27 @@ package com.example.recommendationservice.repository
 import com.example.recommendationservice.dto.CourseRecommendation
 import com.example.recommendationservice.dto.UserRatingData
 import com.example.recommendationservice.entity.Recommendations
+import com.example.recommendationservice.entity.UserRatingDeletions
 import com.example.recommendationservice.entity.UserRatings
+import com.example.recommendationservice.metrics.Metrics
 import org.jetbrains.exposed.sql.*
 import org.jetbrains.exposed.sql.SqlExpressionBuilder.eq
-import org.jetbrains.exposed.sql.transactions.transaction
+import org.jetbrains.exposed.sql.SqlExpressionBuilder.inList
+import org.jetbrains.exposed.sql.SqlExpressionBuilder.less
+import org.jetbrains.exposed.sql.transactions.TransactionManager
 import java.time.LocalDateTime
 
 object RecommendationRepository {
     
+    private val skippedWrites = Metrics.counter("recommendations.writes.skipped")
+    private val changedWrites = Metrics.counter("recommendations.writes.changed")
+    private val upsertedRows = Metrics.counter("recommendations.rows.upserted")
+    private val deletedRows = Metrics.counter("recommendations.rows.deleted")
+    
     // User Ratings operations
-    fun saveOrUpdateUserRating(userId: Long, courseId: Long, rating: Int) {
-        transaction {
+    // changedAt - время события оценки: по нему событие из повторов или DLQ сверяется с текущим состоянием пары
+    suspend fun saveOrUpdateUserRating(userId: Long, courseId: Long, rating: Int, changedAt: LocalDateTime = LocalDateTime.now()) {
+        dbQuery {
             val existing = UserRatings.select {
                 (UserRatings.userId eq userId) and (UserRatings.courseId eq courseId)
             }.singleOrNull()
@@ -23,44 +33,126 @@ object RecommendationRepository {
                     (UserRatings.userId eq userId) and (UserRatings.courseId eq courseId)
                 }) {
                     it[UserRatings.rating] = rating
-                    it[updatedAt] = LocalDateTime.now()
+                    it[updatedAt] = changedAt
                 }
             } else {
                 UserRatings.insert {
                     it[UserRatings.userId] = userId
                     it[UserRatings.courseId] = courseId
                     it[UserRatings.rating] = rating
-                    it[createdAt] = LocalDateTime.now()
-                    it[updatedAt] = LocalDateTime.now()
+                    it[createdAt] = changedAt
+                    it[updatedAt] = changedAt
                 }
             }
         }
     }
     
-    fun deleteUserRating(userId: Long, courseId: Long) {
-        transaction {
+    suspend fun deleteUserRating(userId: Long, courseId: Long, deletedAt: LocalDateTime = LocalDateTime.now()) {
+        dbQuery {
             UserRatings.deleteWhere {
                 (UserRatings.userId eq userId) and (UserRatings.courseId eq courseId)
             }
+            recordDeletions(listOf(userId to courseId)) { deletedAt }
         }
     }
     
-    fun getUserRatings(userId: Long): List<UserRatingData> {
-        return transaction {
-            UserRatings.select { UserRatings.userId eq userId }
-                .map {
-                    UserRatingData(
-                        userId = it[UserRatings.userId],
-                        courseId = it[UserRatings.courseId],
-                        rating = it[UserRatings.rating]
-                    )
+    /**
+     * Применяет пакет изменений одной транзакцией: multi-row
+     * INSERT ... ON CONFLICT (user_id, course_id) DO UPDATE и пакетное удаление.
+     * [changedAt] - время событий по парам; для пар без него - время применения.
+     */
+    suspend fun applyUserRatingBatch(
+        upserts: List<UserRatingData>,
+        deletes: List<Pair<Long, Long>>,
+        changedAt: Map<Pair<Long, Long>, LocalDateTime> = emptyMap()
+    ) {
+        if (upserts.isEmpty() && deletes.isEmpty()) return
+        
+        dbQuery {
+            val now = LocalDateTime.now()
+            if (upserts.isNotEmpty()) {
+                UserRatings.batchUpsert(
+                    upserts,
+                    UserRatings.userId, UserRatings.courseId,
+                    onUpdate = listOf(
+                        UserRatings.rating to excluded(UserRatings.rating),
+                        UserRatings.updatedAt to excluded(UserRatings.updatedAt)
+                    ),
+                    shouldReturnGeneratedValues = false
+                ) { rating ->
+                    val time = changedAt[rating.userId to rating.courseId] ?: now
+                    this[UserRatings.userId] = rating.userId
+                    this[UserRatings.courseId] = rating.courseId
+                    this[UserRatings.rating] = rating.rating
+                    this[UserRatings.createdAt] = time
+                    this[UserRatings.updatedAt] = time
                 }
+            }
+            
+            deletes.chunked(DELETE_CHUNK_SIZE).forEach { chunk ->
+                UserRatings.deleteWhere { Pair(UserRatings.userId, UserRatings.courseId) inList chunk }
+            }
+            if (deletes.isNotEmpty()) recordDeletions(deletes) { changedAt[it] ?: now }
+        }
+    }
+    
+    /**
+     * Время последнего изменения оценки пары - записи или удаления; null, если пара не менялась.
+     * Событие старше него уже перекрыто более новым.
+     */
+    suspend fun lastRatingChange(userId: Long, courseId: Long): LocalDateTime? =
+        dbRead {
+            val updatedAt = UserRatings.slice(UserRatings.updatedAt)
+                .select { (UserRatings.userId eq userId) and (UserRatings.courseId eq courseId) }
+                .singleOrNull()?.get(UserRatings.updatedAt)
+            val deletedAt = UserRatingDeletions.slice(UserRatingDeletions.deletedAt)
+                .select { (UserRatingDeletions.userId eq userId) and (UserRatingDeletions.courseId eq courseId) }
+                .singleOrNull()?.get(UserRatingDeletions.deletedAt)
+            listOfNotNull(updatedAt, deletedAt).maxOrNull()
+        }
+    
+    /**
+     * Время последнего изменения для нескольких пар одним запросом; пар без изменений в ответе нет
+     */
+    suspend fun lastRatingChanges(pairs: Collection<Pair<Long, Long>>): Map<Pair<Long, Long>, LocalDateTime> {
+        if (pairs.isEmpty()) return emptyMap()
+        val keys = pairs.distinct()
+        return dbRead {
+            val changes = HashMap<Pair<Long, Long>, LocalDateTime>()
+            keys.chunked(DELETE_CHUNK_SIZE).forEach { chunk ->
+                UserRatings.slice(UserRatings.userId, UserRatings.courseId, UserRatings.updatedAt)
+                    .select { Pair(UserRatings.userId, UserRatings.courseId) inList chunk }
+                    .forEach { changes[it[UserRatings.userId] to it[UserRatings.courseId]] = it[UserRatings.updatedAt] }
+                UserRatingDeletions.slice(UserRatingDeletions.userId, UserRatingDeletions.courseId, UserRatingDeletions.deletedAt)
+                    .select { Pair(UserRatingDeletions.userId, UserRatingDeletions.courseId) inList chunk }
+                    .forEach { row ->
+                        changes.merge(row[UserRatingDeletions.userId] to row[UserRatingDeletions.courseId], row[UserRatingDeletions.deletedAt], ::maxOf)
+                    }
+            }
+            changes
+        }
+    }
+
+    /** Удаляет отметки удалений старше [before]; возвращает число удалённых */
+    suspend fun pruneRatingDeletions(before: LocalDateTime): Int =
+        dbQuery { UserRatingDeletions.deleteWhere { UserRatingDeletions.deletedAt less before } }
+
+    private fun recordDeletions(pairs: List<Pair<Long, Long>>, deletedAt: (Pair<Long, Long>) -> LocalDateTime) {
+        UserRatingDeletions.batchUpsert(
+            pairs.distinct(),
+            UserRatingDeletions.userId, UserRatingDeletions.courseId,
+            onUpdate = listOf(UserRatingDeletions.deletedAt to excluded(UserRatingDeletions.deletedAt)),
+            shouldReturnGeneratedValues = false
+        ) { pair ->
+            this[UserRatingDeletions.userId] = pair.first
+            this[UserRatingDeletions.courseId] = pair.second
+            this[UserRatingDeletions.deletedAt] = deletedAt(pair)
         }
     }
     
-    fun getAllUserRatings(): List<UserRatingData> {
-        return transaction {
-            UserRatings.selectAll()
+    suspend fun getUserRatings(userId: Long): List<UserRatingData> {
+        return dbRead {
+            UserRatings.select { UserRatings.userId eq userId }
                 .map {
                     UserRatingData(
                         userId = it[UserRatings.userId],
@@ -71,35 +163,108 @@ object RecommendationRepository {
         }
     }
     
-    fun getUsersWhoRatedCourse(courseId: Long): List<Long> {
-        return transaction {
+    /**
+     * Потоково обходит всю таблицу оценок курсором, не материализуя её в список
+     */
+    suspend fun forEachUserRating(action: (userId: Long, courseId: Long, rating: Int) -> Unit) {
+        dbRead {
+            UserRatings.slice(UserRatings.userId, UserRatings.courseId, UserRatings.rating)
+                .selectAll()
+                .fetchSize(10_000)
+                .forEach { action(it[UserRatings.userId], it[UserRatings.courseId], it[UserRatings.rating]) }
+        }
+    }
+    
+    suspend fun getUsersWhoRatedCourse(courseId: Long): List<Long> {
+        return dbRead {
             UserRatings.select { UserRatings.courseId eq courseId }
                 .map { it[UserRatings.userId] }
         }
     }
     
     // Recommendations operations
-    fun saveRecommendations(userId: Long, recommendations: List<CourseRecommendation>) {
-        transaction {
-            // Delete old recommendations for user
-            Recommendations.deleteWhere { Recommendations.userId eq userId }
+    
+    /**
+     * Сохраняет рекомендации пользователя, сравнивая их с уже записанными:
+     * если ничего не изменилось, запись пропускается целиком; изменённые и новые
+     * строки пишутся одним batch upsert, выпавшие из топа - удаляются.
+     * Возвращает true, если в БД что-то было записано.
+     */
+    suspend fun saveRecommendations(userId: Long, recommendations: List<CourseRecommendation>): Boolean =
+        saveRecommendationsBatch(mapOf(userId to recommendations)).isNotEmpty()
+    
+    /**
+     * То же для пакета пользователей одной транзакцией: записанные строки читаются
+     * одним запросом, изменения всех пользователей - один batch upsert и пакетное удаление.
+     * Возвращает пользователей, у которых что-то было записано.
+     */
+    suspend fun saveRecommendationsBatch(batch: Map<Long, List<CourseRecommendation>>): Set<Long> {
+        if (batch.isEmpty()) return emptySet()
+        
+        return dbQuery {
+            val stored = HashMap<Long, MutableMap<Long, Pair<Double, String?>>>()
+            Recommendations.slice(Recommendations.userId, Recommendations.courseId, Recommendations.score, Recommendations.reason)
+                .select { Recommendations.userId inList batch.keys }
+                .forEach {
+                    stored.getOrPut(it[Recommendations.userId]) { HashMap() }[it[Recommendations.courseId]] =
+                        it[Recommendations.score] to it[Recommendations.reason]
+                }
             
-            // Insert new recommendations
-            recommendations.forEach { rec ->
-                Recommendations.insert {
-                    it[Recommendations.userId] = userId
-                    it[courseId] = rec.courseId
-                    it[score] = rec.score
-                    it[reason] = rec.reason
-                    it[createdAt] = LocalDateTime.now()
-                    it[updatedAt] = LocalDateTime.now()
+            val changed = ArrayList<Pair<Long, CourseRecommendation>>()
+            val removed = ArrayList<Pair<Long, Long>>()
+            val changedUsers = HashSet<Long>()
+            for ((userId, recommendations) in batch) {
+                val target = recommendations.distinctBy { it.courseId }
+                val userStored = stored[userId] ?: emptyMap()
+                val changedBefore = changed.size
+                val removedBefore = removed.size
+                
+                target.filter { rec -> userStored[rec.courseId] != (rec.score to rec.reason) }
+                    .mapTo(changed) { userId to it }
+                val targetCourseIds = target.mapTo(HashSet()) { it.courseId }
+                userStored.keys.filterNot { it in targetCourseIds }.mapTo(removed) { userId to it }
+                
+                if (changed.size == changedBefore && removed.size == removedBefore) {
+                    skippedWrites.incrementAndGet()
+                } else {
+                    changedUsers.add(userId)
                 }
             }
+            
+            removed.chunked(DELETE_CHUNK_SIZE).forEach { chunk ->
+                Recommendations.deleteWhere { Pair(Recommendations.userId, Recommendations.courseId) inList chunk }
+            }
+            
+            if (changed.isNotEmpty()) {
+                val now = LocalDateTime.now()
+                Recommendations.batchUpsert(
+                    changed,
+                    Recommendations.userId, Recommendations.courseId,
+                    onUpdate = listOf(
+                        Recommendations.score to excluded(Recommendations.score),
+                        Recommendations.reason to excluded(Recommendations.reason),
+                        Recommendations.updatedAt to excluded(Recommendations.updatedAt)
+                    ),
+                    shouldReturnGeneratedValues = false
+                ) { (userId, rec) ->
+                    this[Recommendations.userId] = userId
+                    this[Recommendations.courseId] = rec.courseId
+                    this[Recommendations.score] = rec.score
+                    this[Recommendations.reason] = rec.reason
+                    this[Recommendations.createdAt] = now
+                    this[Recommendations.updatedAt] = now
+                }
+            }
+            
+            changedWrites.addAndGet(changedUsers.size.toLong())
+            upsertedRows.addAndGet(changed.size.toLong())
+            deletedRows.addAndGet(removed.size.toLong())
+            changedUsers
         }
     }
     
-    fun getRecommendations(userId: Long): List<CourseRecommendation> {
-        return transaction {
+    suspend fun getRecommendations(userId: Long): List<CourseRecommendation> {
+        return dbRead {
             Recommendations.select { Recommendations.userId eq userId }
                 .orderBy(Recommendations.score, SortOrder.DESC)
                 .limit(10)
@@ -113,11 +278,47 @@ object RecommendationRepository {
         }
     }
     
-    fun getRatedCourseIds(userId: Long): Set<Long> {
-        return transaction {
+    /**
+     * Топ-10 рекомендаций для каждого из [userIds] одним запросом `user_id IN (...)`.
+     * Пользователи без сохранённых рекомендаций в результат не попадают.
+     */
+    suspend fun getRecommendationsBatch(userIds: Collection<Long>): Map<Long, List<CourseRecommendation>> {
+        if (userIds.isEmpty()) return emptyMap()
+        
+        return dbRead {
+            val result = HashMap<Long, MutableList<CourseRecommendation>>(userIds.size)
+            Recommendations.select { Recommendations.userId inList userIds }
+                .orderBy(Recommendations.userId to SortOrder.ASC, Recommendations.score to SortOrder.DESC)
+                .forEach {
+                    val recommendations = result.getOrPut(it[Recommendations.userId]) { ArrayList(10) }
+                    if (recommendations.size < 10) {
+                        recommendations.add(
+                            CourseRecommendation(
+                                courseId = it[Recommendations.courseId],
+                                score = it[Recommendations.score],
+                                reason = it[Recommendations.reason]
+                            )
+                        )
+                    }
+                }
+            result
+        }
+    }
+    
+    suspend fun getRatedCourseIds(userId: Long): Set<Long> {
+        return dbRead {
             UserRatings.select { UserRatings.userId eq userId }
                 .map { it[UserRatings.courseId] }
                 .toSet()
         }
     }
+    
+    /** Значение, которое пыталась вставить строка, в ветке ON CONFLICT DO UPDATE */
+    private fun <T> excluded(column: Column<T>): Expression<T> = object : Expression<T>() {
+        override fun toQueryBuilder(queryBuilder: QueryBuilder) {
+            queryBuilder.append("EXCLUDED.", TransactionManager.current().identity(column))
+        }
+    }
+    
+    private const val DELETE_CHUNK_SIZE = 1000
 }
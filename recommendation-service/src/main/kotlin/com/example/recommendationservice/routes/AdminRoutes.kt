@@ -0,0 +1,124 @@
+package com.example.recommendationservice.routes
+
+import com.example.recommendationservice.dto.ErrorResponse
+import com.example.recommendationservice.kafka.DeadLetterRedriver
+import com.example.recommendationservice.model.AlsRecommender
+import com.example.recommendationservice.model.DeltaUserScorer
+import com.example.recommendationservice.service.FullRecomputeJob
+import com.example.recommendationservice.service.NeighbourSearchReporter
+import io.ktor.http.*
+import io.ktor.server.application.*
+import io.ktor.server.response.*
+import io.ktor.server.routing.*
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+
+fun Route.adminRoutes(
+    neighbourSearchReporter: NeighbourSearchReporter,
+    alsRecommender: AlsRecommender?,
+    fullRecomputeJob: FullRecomputeJob,
+    deltaScorer: DeltaUserScorer?,
+    deadLetterRedriver: DeadLetterRedriver
+) {
+    
+    route("/api/admin") {
+        
+        // GET /api/admin/neighbours/report?sample=500&k=10
+        get("/neighbours/report") {
+            val sample = call.request.queryParameters["sample"]?.toIntOrNull() ?: 500
+            val k = call.request.queryParameters["k"]?.toIntOrNull() ?: 10
+            
+            val report = withContext(Dispatchers.Default) {
+                neighbourSearchReporter.report(sample, k)
+            }
+            call.respond(HttpStatusCode.OK, report)
+        }
+        
+        // GET /api/admin/als/report - отчёт последнего обучения ALS
+        get("/als/report") {
+            val report = alsRecommender?.lastReport
+            if (report == null) {
+                call.respond(HttpStatusCode.NotFound, ErrorResponse("ALS model has not been trained"))
+                return@get
+            }
+            call.respond(HttpStatusCode.OK, report)
+        }
+        
+        // POST /api/admin/als/train - переобучить модель сейчас
+        post("/als/train") {
+            if (alsRecommender == null) {
+                call.respond(HttpStatusCode.NotFound, ErrorResponse("ALS engine is not enabled"))
+                return@post
+            }
+            val report = withContext(Dispatchers.Default) { alsRecommender.train() }
+            call.respond(HttpStatusCode.OK, report)
+        }
+        
+        // GET /api/admin/als/ann-report?sample=200&k=10 - HNSW против полного перебора
+        get("/als/ann-report") {
+            val sample = call.request.queryParameters["sample"]?.toIntOrNull() ?: 200
+            val k = call.request.queryParameters["k"]?.toIntOrNull() ?: 10
+            
+            val report = alsRecommender?.let { withContext(Dispatchers.Default) { it.annReport(sample, k) } }
+            if (report == null) {
+                call.respond(HttpStatusCode.NotFound, ErrorResponse("HNSW index is not built"))
+                return@get
+            }
+            call.respond(HttpStatusCode.OK, report)
+        }
+        
+        // POST /api/admin/recompute?resume=true - пересчитать рекомендации всех пользователей
+        post("/recompute") {
+            val resume = call.request.queryParameters["resume"]?.toBooleanStrictOrNull() ?: true
+            if (!fullRecomputeJob.start(resume)) {
+                call.respond(HttpStatusCode.Conflict, ErrorResponse("Full recompute is already running"))
+                return@post
+            }
+            call.respond(HttpStatusCode.Accepted, fullRecomputeJob.progress())
+        }
+        
+        // GET /api/admin/recompute - прогресс, скорость и ETA
+        get("/recompute") {
+            call.respond(HttpStatusCode.OK, fullRecomputeJob.progress())
+        }
+        
+        // DELETE /api/admin/recompute - остановить; курсор сохраняется для resume
+        delete("/recompute") {
+            val cancelled = withContext(Dispatchers.IO) { fullRecomputeJob.cancel() }
+            if (!cancelled) {
+                call.respond(HttpStatusCode.NotFound, ErrorResponse("Full recompute is not running"))
+                return@delete
+            }
+            call.respond(HttpStatusCode.OK, fullRecomputeJob.progress())
+        }
+        
+        // GET /api/admin/delta/drift?sample=100 - сверить инкрементальное состояние с полным пересчётом
+        get("/delta/drift") {
+            if (deltaScorer == null) {
+                call.respond(HttpStatusCode.NotFound, ErrorResponse("Delta scoring is not enabled"))
+                return@get
+            }
+            val sample = call.request.queryParameters["sample"]?.toIntOrNull() ?: 100
+            val tolerance = call.request.queryParameters["tolerance"]?.toDoubleOrNull() ?: 1e-9
+            val report = withContext(Dispatchers.Default) { deltaScorer.verify(sample, tolerance) }
+            call.respond(HttpStatusCode.OK, report)
+        }
+        
+        // GET /api/admin/dlq - сколько событий ждёт в DLQ
+        get("/dlq") {
+            val report = withContext(Dispatchers.IO) { deadLetterRedriver.pending() }
+            call.respond(HttpStatusCode.OK, report)
+        }
+        
+        // POST /api/admin/dlq/redrive?limit=1000 - вернуть события из DLQ в основной топик
+        post("/dlq/redrive") {
+            val limit = call.request.queryParameters["limit"]?.toIntOrNull() ?: 1000
+            if (limit <= 0) {
+                call.respond(HttpStatusCode.BadRequest, ErrorResponse("limit must be positive"))
+                return@post
+            }
+            val report = withContext(Dispatchers.IO) { deadLetterRedriver.redrive(limit) }
+            call.respond(HttpStatusCode.OK, report)
+        }
+    }
+}
@@ -1,19 +1,24 @@
 package com.example.recommendationservice.routes
 
+import com.example.recommendationservice.dto.BatchRecommendationsRequest
 import com.example.recommendationservice.dto.ErrorResponse
 import com.example.recommendationservice.dto.RecommendationResponse
+import com.example.recommendationservice.metrics.Metrics
 import com.example.recommendationservice.repository.RecommendationRepository
 import com.example.recommendationservice.service.RecommendationService
 import io.ktor.http.*
 import io.ktor.server.application.*
+import io.ktor.server.request.*
 import io.ktor.server.response.*
 import io.ktor.server.routing.*
+import io.ktor.utils.io.*
 
-fun Route.recommendationRoutes() {
-    val courseServiceUrl = application.environment.config
-        .property("services.courseServiceUrl").getString()
-    val recommendationService = RecommendationService(courseServiceUrl)
-    
+// Верхняя граница пользователей в одном пакетном запросе
+private const val MAX_BATCH_USERS = 10_000
+
+private val NdJson = ContentType("application", "x-ndjson")
+
+fun Route.recommendationRoutes(recommendationService: RecommendationService) {
     route("/api/recommendations") {
         
         // GET /api/recommendations/{userId}
@@ -25,8 +30,28 @@ fun Route.recommendationRoutes() {
                 return@get
             }
             
-            val recommendations = recommendationService.getRecommendations(userId)
-            call.respond(HttpStatusCode.OK, recommendations)
+            call.respondBytes(
+                recommendationService.getRecommendationsJson(userId),
+                ContentType.Application.Json,
+                HttpStatusCode.OK
+            )
+        }
+        
+        // POST /api/recommendations/batch {"userIds": [...]} - по строке JSON (NDJSON) на пользователя
+        post("/batch") {
+            val request = call.receive<BatchRecommendationsRequest>()
+            
+            if (request.userIds.size > MAX_BATCH_USERS) {
+                call.respond(HttpStatusCode.BadRequest, ErrorResponse("At most $MAX_BATCH_USERS users per batch"))
+                return@post
+            }
+            
+            call.respondBytesWriter(NdJson, HttpStatusCode.OK) {
+                recommendationService.streamRecommendationsJson(request.userIds) { json ->
+                    writeFully(json)
+                    writeByte('\n'.code.toByte())
+                }
+            }
         }
         
         // POST /api/recommendations/{userId}/recalculate
@@ -60,4 +85,9 @@ fun Route.recommendationRoutes() {
     get("/health") {
         call.respond(HttpStatusCode.OK, mapOf("status" to "UP"))
     }
+    
+    // Metrics snapshot
+    get("/metrics") {
+        call.respond(HttpStatusCode.OK, Metrics.snapshot())
+    }
 }
@@ -0,0 +1,79 @@
+package com.example.recommendationservice.service
+
+import org.slf4j.LoggerFactory
+
+/** Значение gauge'а состояния - [ordinal]: 0 - закрыт, 1 - пробный вызов, 2 - открыт */
+enum class CircuitState { CLOSED, HALF_OPEN, OPEN }
+
+/**
+ * Предохранитель вызовов внешнего сервиса. После [failureThreshold] сбоев подряд
+ * размыкается: вызовы не выполняются [openMillis] мс, затем пропускается один
+ * пробный вызов - успех замыкает цепь, сбой размыкает снова.
+ *
+ * Разрешение [tryAcquire] должно завершаться ровно одним из [onSuccess],
+ * [onFailure] или [onAbandoned].
+ */
+class CircuitBreaker(
+    private val name: String,
+    private val failureThreshold: Int,
+    private val openMillis: Long
+) {
+
+    private val logger = LoggerFactory.getLogger(CircuitBreaker::class.java)
+
+    @Volatile
+    var state = CircuitState.CLOSED
+        private set
+
+    private var consecutiveFailures = 0
+    private var openedAt = 0L
+
+    init {
+        require(failureThreshold > 0) { "failureThreshold must be positive" }
+    }
+
+    /** Можно ли выполнять вызов; в разомкнутом состоянии после паузы - один пробный */
+    @Synchronized
+    fun tryAcquire(): Boolean = when (state) {
+        CircuitState.CLOSED -> true
+        CircuitState.HALF_OPEN -> false
+        CircuitState.OPEN -> {
+            if (System.currentTimeMillis() - openedAt >= openMillis) {
+                state = CircuitState.HALF_OPEN
+                true
+            } else {
+                false
+            }
+        }
+    }
+
+    @Synchronized
+    fun onSuccess() {
+        consecutiveFailures = 0
+        if (state != CircuitState.CLOSED) {
+            state = CircuitState.CLOSED
+            logger.info("Circuit $name closed")
+        }
+    }
+
+    @Synchronized
+    fun onFailure() {
+        consecutiveFailures++
+        if (state == CircuitState.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != CircuitState.OPEN) {
+                logger.warn("Circuit $name opened after $consecutiveFailures consecutive failures")
+            }
+            state = CircuitState.OPEN
+            openedAt = System.currentTimeMillis()
+        }
+    }
+
+    /** Вызов отменён не по вине сервиса: пробный вызов возвращается следующему запросу */
+    @Synchronized
+    fun onAbandoned() {
+        if (state == CircuitState.HALF_OPEN) {
+            state = CircuitState.OPEN
+            openedAt = System.currentTimeMillis() - openMillis
+        }
+    }
+}
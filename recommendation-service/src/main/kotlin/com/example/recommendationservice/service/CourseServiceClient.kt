@@ -0,0 +1,195 @@
+package com.example.recommendationservice.service
+
+import com.example.recommendationservice.dto.CourseData
+import com.example.recommendationservice.dto.CourseInfo
+import com.example.recommendationservice.metrics.Metrics
+import io.ktor.client.*
+import io.ktor.client.call.*
+import io.ktor.client.engine.cio.*
+import io.ktor.client.plugins.*
+import io.ktor.client.plugins.contentnegotiation.*
+import io.ktor.client.request.*
+import io.ktor.http.*
+import io.ktor.serialization.kotlinx.json.*
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withTimeout
+import kotlinx.serialization.json.Json
+import org.slf4j.LoggerFactory
+import java.util.concurrent.atomic.AtomicReference
+
+data class CourseClientSettings(
+    // Весь вызов: соединение, запрос и разбор ответа
+    val callTimeoutMillis: Long = 2_000,
+    val connectTimeoutMillis: Long = 500,
+    // Пауза между пакетами ответа
+    val socketTimeoutMillis: Long = 1_000,
+    val maxConnections: Int = 32,
+    // Одновременных вызовов; сверх лимита - сразу запасные данные
+    val maxConcurrentCalls: Int = 16,
+    val failureThreshold: Int = 5,
+    val openMillis: Long = 10_000,
+    // Сколько последних полученных курсов держать для запасного ответа
+    val fallbackCourses: Int = 10_000
+)
+
+/** Курсы от course-service; fresh = false - запасные данные, полученные раньше (или пусто) */
+class CourseFetchResult(val courses: List<CourseInfo>, val fresh: Boolean)
+
+/**
+ * Клиент course-service для обогащения ответов и холодного старта. Каждый вызов
+ * ограничен по времени ([CourseClientSettings.callTimeoutMillis]), числу одновременных
+ * вызовов (bulkhead) и защищён [CircuitBreaker]. Если вызов не удался, не выполнялся
+ * или не уложился в срок, отдаются последние полученные данные: курсы по id -
+ * из ограниченного кэша, топ - последний успешный ответ.
+ *
+ * Метрики: course_client.latency, course_client.failures, course_client.rejected
+ * (bulkhead), course_client.short_circuited, course_client.fallbacks,
+ * course_client.circuit.state (см. [CircuitState]); снимок каталога ([allCourses]) -
+ * отдельно: course_client.snapshot.latency, course_client.snapshot.failures.
+ */
+class CourseServiceClient(
+    private val baseUrl: String,
+    private val settings: CourseClientSettings = CourseClientSettings()
+) {
+
+    private val logger = LoggerFactory.getLogger(CourseServiceClient::class.java)
+
+    private val httpClient = HttpClient(CIO) {
+        expectSuccess = true
+        engine {
+            maxConnectionsCount = settings.maxConnections
+            endpoint {
+                maxConnectionsPerRoute = settings.maxConnections
+            }
+        }
+        install(HttpTimeout) {
+            connectTimeoutMillis = settings.connectTimeoutMillis
+            socketTimeoutMillis = settings.socketTimeoutMillis
+        }
+        install(ContentNegotiation) {
+            json(Json {
+                ignoreUnknownKeys = true
+                isLenient = true
+            })
+        }
+    }
+
+    private val bulkhead = Semaphore(settings.maxConcurrentCalls)
+    private val breaker = CircuitBreaker("course-service", settings.failureThreshold, settings.openMillis)
+
+    private val latency = Metrics.timer("course_client.latency")
+    private val failures = Metrics.counter("course_client.failures")
+    private val rejected = Metrics.counter("course_client.rejected")
+    private val shortCircuited = Metrics.counter("course_client.short_circuited")
+    private val fallbacks = Metrics.counter("course_client.fallbacks")
+    private val snapshotLatency = Metrics.timer("course_client.snapshot.latency")
+    private val snapshotFailures = Metrics.counter("course_client.snapshot.failures")
+
+    private val lastTopRated = AtomicReference<List<CourseInfo>>(emptyList())
+    private val lastCourses = object : LinkedHashMap<Long, CourseInfo>(256, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, CourseInfo>) = size > settings.fallbackCourses
+    }
+
+    init {
+        Metrics.gauge("course_client.circuit.state") { breaker.state.ordinal }
+    }
+
+    suspend fun coursesByIds(ids: List<Long>): CourseFetchResult {
+        val courses = call("courses by ids") {
+            httpClient.post("$baseUrl/api/courses/by-ids") {
+                contentType(ContentType.Application.Json)
+                setBody(ids)
+            }.body<List<CourseInfo>>()
+        }
+        if (courses != null) {
+            synchronized(lastCourses) { courses.forEach { lastCourses[it.id] = it } }
+            return CourseFetchResult(courses, fresh = true)
+        }
+        fallbacks.incrementAndGet()
+        val known = synchronized(lastCourses) { ids.mapNotNull { lastCourses[it] } }
+        return CourseFetchResult(known, fresh = false)
+    }
+
+    suspend fun topRated(): CourseFetchResult {
+        val courses = call("top rated courses") {
+            httpClient.get("$baseUrl/api/courses/top-rated").body<List<CourseInfo>>()
+        }
+        if (courses != null) {
+            lastTopRated.set(courses)
+            return CourseFetchResult(courses, fresh = true)
+        }
+        fallbacks.incrementAndGet()
+        return CourseFetchResult(lastTopRated.get(), fresh = false)
+    }
+
+    /**
+     * Все курсы - снимок для [com.example.recommendationservice.model.CourseCatalog];
+     * null, если вызов не удался. Запасных данных нет, срок и пауза между пакетами -
+     * [SNAPSHOT_TIMEOUT_MILLIS]. Снимок идёт мимо bulkhead и [CircuitBreaker] чтений:
+     * большой каталог не должен ни занимать их разрешения, ни выключать обогащение ответов.
+     */
+    suspend fun allCourses(): List<CourseData>? {
+        val startedAt = System.nanoTime()
+        return try {
+            httpClient.get("$baseUrl/api/courses") {
+                timeout {
+                    requestTimeoutMillis = SNAPSHOT_TIMEOUT_MILLIS
+                    socketTimeoutMillis = SNAPSHOT_TIMEOUT_MILLIS
+                }
+            }.body<List<CourseData>>()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            snapshotFailures.incrementAndGet()
+            logger.warn("Error fetching course snapshot from course-service: $e")
+            null
+        } finally {
+            snapshotLatency.record(System.nanoTime() - startedAt)
+        }
+    }
+
+    /** Результат вызова или null, если он не выполнялся или не удался */
+    private suspend fun <T> call(operation: String, request: suspend () -> T): T? {
+        if (!bulkhead.tryAcquire()) {
+            rejected.incrementAndGet()
+            return null
+        }
+        try {
+            if (!breaker.tryAcquire()) {
+                shortCircuited.incrementAndGet()
+                return null
+            }
+            val startedAt = System.nanoTime()
+            try {
+                val result = withTimeout(settings.callTimeoutMillis) { request() }
+                breaker.onSuccess()
+                return result
+            } catch (e: TimeoutCancellationException) {
+                onFailure(operation, e)
+            } catch (e: CancellationException) {
+                breaker.onAbandoned()
+                throw e
+            } catch (e: Exception) {
+                onFailure(operation, e)
+            } finally {
+                latency.record(System.nanoTime() - startedAt)
+            }
+            return null
+        } finally {
+            bulkhead.release()
+        }
+    }
+
+    private fun onFailure(operation: String, e: Exception) {
+        failures.incrementAndGet()
+        breaker.onFailure()
+        logger.warn("Error fetching $operation from course-service: $e")
+    }
+
+    companion object {
+        // Снимок всех курсов больше обычного ответа, но и нужен редко
+        const val SNAPSHOT_TIMEOUT_MILLIS = 30_000L
+    }
+}
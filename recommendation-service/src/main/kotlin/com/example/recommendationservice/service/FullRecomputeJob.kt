@@ -0,0 +1,274 @@
+package com.example.recommendationservice.service
+
+import com.example.recommendationservice.dto.CourseRecommendation
+import com.example.recommendationservice.dto.RecomputeProgress
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.model.RatingMatrix
+import kotlinx.coroutines.*
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import org.slf4j.LoggerFactory
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Пересчёт рекомендаций всех пользователей матрицы - чтобы переобученная модель
+ * и чужие оценки доходили и до тех, кто сам давно ничего не оценивал.
+ *
+ * - Пользователи делятся на [shards] шардов по hash(userId); шард обходит своих
+ *   пользователей по возрастанию userId одним воркером.
+ * - Посчитанные рекомендации копятся пакетами по [batchSize] и пишутся одной
+ *   транзакцией; после записи пакета курсор шарда сохраняется в [checkpointPath],
+ *   так что прерванный прогон продолжается с места остановки.
+ * - Общий лимит [maxUsersPerSecond] и пауза, пока очередь пересчётов по событиям
+ *   длиннее [liveQueueThreshold], не дают заданию вытеснить живой консьюмер.
+ *   Пользователи, ждущие пересчёта по событию, пропускаются: их пересчитает планировщик.
+ */
+class FullRecomputeJob(
+    private val ratingMatrix: RatingMatrix,
+    private val recommendationService: RecommendationService,
+    private val scheduler: RecalculationScheduler,
+    private val shards: Int,
+    private val batchSize: Int,
+    private val maxUsersPerSecond: Int,
+    private val liveQueueThreshold: Int,
+    private val checkpointPath: Path
+) {
+
+    enum class State { IDLE, RUNNING, COMPLETED, CANCELLED, FAILED }
+
+    /** Курсор шарда - последний записанный userId, Long.MIN_VALUE - шард не начат */
+    @Serializable
+    private data class Checkpoint(val startedAt: Long, val cursors: List<Long>)
+
+    /** Состояние одного прогона; заменяется целиком при следующем запуске */
+    private class Run(val startedAt: Long, val resumed: Boolean, val cursors: AtomicLongArray) {
+        val startedNanos = System.nanoTime()
+        val total = AtomicLong()
+        val skippedByCheckpoint = AtomicLong()
+        val processed = AtomicLong()
+        val changed = AtomicLong()
+        val failed = AtomicLong()
+
+        @Volatile
+        var state = State.RUNNING
+
+        @Volatile
+        var finishedNanos = 0L
+    }
+
+    private val logger = LoggerFactory.getLogger(FullRecomputeJob::class.java)
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val json = Json { ignoreUnknownKeys = true }
+    private val throttle = Throttle(maxUsersPerSecond)
+    private val checkpointLock = Any()
+
+    @Volatile
+    private var run: Run? = null
+    private var job: Job? = null
+
+    private val usersProcessed = Metrics.counter("recompute.users")
+    private val usersFailed = Metrics.counter("recompute.failed")
+    private val batchWrite = Metrics.timer("recompute.batch_write")
+
+    init {
+        require(shards > 0) { "Recompute shards must be positive" }
+        require(batchSize > 0) { "Recompute batch size must be positive" }
+    }
+
+    val hasCheckpoint: Boolean get() = Files.exists(checkpointPath)
+
+    /**
+     * Запускает прогон; с [resume] продолжает по сохранённому курсору, если он есть.
+     * false, если прогон уже идёт.
+     */
+    @Synchronized
+    fun start(resume: Boolean): Boolean {
+        if (job?.isActive == true) return false
+
+        val checkpoint = if (resume) readCheckpoint() else null
+        val current = if (checkpoint != null) {
+            logger.info("Resuming full recompute started at ${checkpoint.startedAt} over ${checkpoint.cursors.size} shards")
+            Run(checkpoint.startedAt, true, AtomicLongArray(checkpoint.cursors.toLongArray()))
+        } else {
+            Run(System.currentTimeMillis(), false, AtomicLongArray(LongArray(shards) { Long.MIN_VALUE }))
+        }
+        run = current
+        job = scope.launch { execute(current) }
+        return true
+    }
+
+    /** Останавливает прогон; курсор остаётся, следующий запуск с resume продолжит с него */
+    fun cancel(): Boolean {
+        val active = synchronized(this) { job?.takeIf { it.isActive } } ?: return false
+        runBlocking { active.cancelAndJoin() }
+        return true
+    }
+
+    fun progress(): RecomputeProgress {
+        val current = run ?: return RecomputeProgress(state = State.IDLE.name, checkpointed = hasCheckpoint)
+        val processed = current.processed.get()
+        val done = current.skippedByCheckpoint.get() + processed
+        val total = current.total.get()
+        val endNanos = if (current.state == State.RUNNING) System.nanoTime() else current.finishedNanos
+        val seconds = (endNanos - current.startedNanos) / 1e9
+        val usersPerSecond = if (seconds > 0) processed / seconds else 0.0
+
+        return RecomputeProgress(
+            state = current.state.name,
+            startedAt = current.startedAt,
+            resumed = current.resumed,
+            shards = current.cursors.length(),
+            totalUsers = total,
+            processedUsers = done,
+            changedUsers = current.changed.get(),
+            failedUsers = current.failed.get(),
+            usersPerSecond = usersPerSecond,
+            etaSeconds = if (current.state == State.RUNNING && usersPerSecond > 0) (total - done) / usersPerSecond else null,
+            checkpointed = hasCheckpoint
+        )
+    }
+
+    fun stop() {
+        scope.cancel()
+    }
+
+    private suspend fun execute(current: Run) {
+        try {
+            // Иначе прогон до первой ALS-модели перезаписал бы всем рекомендации популярным
+            while (!recommendationService.isEngineReady) {
+                delay(ENGINE_READY_POLL_MILLIS)
+            }
+            val shardUsers = partitionUsers(current.cursors.length())
+            current.total.set(shardUsers.sumOf { it.size }.toLong())
+            shardUsers.forEachIndexed { shard, users ->
+                val cursor = current.cursors.get(shard)
+                current.skippedByCheckpoint.addAndGet(users.count { it <= cursor }.toLong())
+            }
+            logger.info("Full recompute of ${current.total.get()} users started, ${current.skippedByCheckpoint.get()} already done")
+
+            coroutineScope {
+                shardUsers.forEachIndexed { shard, users -> launch { runShard(current, shard, users) } }
+            }
+            finish(current, State.COMPLETED)
+            Files.deleteIfExists(checkpointPath)
+        } catch (e: CancellationException) {
+            finish(current, State.CANCELLED)
+            throw e
+        } catch (e: Exception) {
+            finish(current, State.FAILED)
+            logger.error("Full recompute failed", e)
+        }
+    }
+
+    private fun finish(current: Run, state: State) {
+        current.finishedNanos = System.nanoTime()
+        current.state = state
+        val progress = progress()
+        logger.info(
+            "Full recompute ${state.name.lowercase()}: ${progress.processedUsers}/${progress.totalUsers} users, " +
+                "${progress.changedUsers} changed, ${progress.failedUsers} failed, %.1f users/s".format(progress.usersPerSecond)
+        )
+    }
+
+    /** Снимок userId матрицы, разложенный по шардам и отсортированный внутри шарда */
+    private fun partitionUsers(shardCount: Int): List<LongArray> {
+        val userIds = ratingMatrix.read { LongArray(ratingMatrix.userCount) { ratingMatrix.userIdAt(it) } }
+        val buckets = Array(shardCount) { ArrayList<Long>() }
+        userIds.forEach { buckets[Math.floorMod(it.hashCode(), shardCount)].add(it) }
+        return buckets.map { bucket -> bucket.toLongArray().also { it.sort() } }
+    }
+
+    private suspend fun runShard(current: Run, shard: Int, users: LongArray) {
+        val cursor = current.cursors.get(shard)
+        val batch = LinkedHashMap<Long, List<CourseRecommendation>>()
+        var lastUserId = cursor
+
+        for (userId in users) {
+            if (userId <= cursor) continue
+            awaitLiveQueue()
+            throttle.acquire()
+
+            if (!scheduler.isPending(userId)) {
+                try {
+                    val recommendations = recommendationService.computeRecommendations(userId)
+                    if (recommendations.isNotEmpty()) batch[userId] = recommendations
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    current.failed.incrementAndGet()
+                    usersFailed.incrementAndGet()
+                    logger.error("Full recompute failed for user $userId", e)
+                }
+            }
+            lastUserId = userId
+            current.processed.incrementAndGet()
+            usersProcessed.incrementAndGet()
+
+            if (batch.size >= batchSize) {
+                flush(current, shard, batch, lastUserId)
+            }
+        }
+        flush(current, shard, batch, lastUserId)
+    }
+
+    private suspend fun flush(current: Run, shard: Int, batch: MutableMap<Long, List<CourseRecommendation>>, lastUserId: Long) {
+        if (batch.isNotEmpty()) {
+            val changed = batchWrite.time { recommendationService.saveRecommendations(batch) }
+            current.changed.addAndGet(changed.toLong())
+            batch.clear()
+        }
+        if (lastUserId != current.cursors.get(shard)) {
+            current.cursors.set(shard, lastUserId)
+            writeCheckpoint(current)
+        }
+    }
+
+    private suspend fun awaitLiveQueue() {
+        while (scheduler.queueDepth > liveQueueThreshold) {
+            delay(LIVE_QUEUE_BACKOFF_MILLIS)
+        }
+    }
+
+    private fun readCheckpoint(): Checkpoint? {
+        if (!Files.exists(checkpointPath)) return null
+        return try {
+            json.decodeFromString(Checkpoint.serializer(), Files.readString(checkpointPath))
+        } catch (e: Exception) {
+            logger.warn("Ignoring unreadable recompute checkpoint $checkpointPath", e)
+            null
+        }
+    }
+
+    private fun writeCheckpoint(current: Run) = synchronized(checkpointLock) {
+        val cursors = List(current.cursors.length()) { current.cursors.get(it) }
+        val text = json.encodeToString(Checkpoint.serializer(), Checkpoint(current.startedAt, cursors))
+        checkpointPath.toAbsolutePath().parent?.let { Files.createDirectories(it) }
+        val tmp = checkpointPath.resolveSibling(checkpointPath.fileName.toString() + ".tmp")
+        Files.writeString(tmp, text)
+        Files.move(tmp, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    /** Равномерный лимит на все шарды: каждый вызов резервирует следующий слот времени */
+    private class Throttle(perSecond: Int) {
+        private val intervalNanos = if (perSecond > 0) 1_000_000_000L / perSecond else 0L
+        private val nextSlot = AtomicLong(System.nanoTime())
+
+        suspend fun acquire() {
+            if (intervalNanos == 0L) return
+            val now = System.nanoTime()
+            val slot = nextSlot.getAndUpdate { maxOf(it, now) + intervalNanos }.coerceAtLeast(now)
+            val waitNanos = slot - now
+            if (waitNanos > 0) delay(waitNanos / 1_000_000)
+        }
+    }
+
+    companion object {
+        private const val LIVE_QUEUE_BACKOFF_MILLIS = 200L
+        private const val ENGINE_READY_POLL_MILLIS = 5_000L
+    }
+}
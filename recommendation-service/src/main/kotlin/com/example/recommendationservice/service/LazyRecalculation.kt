@@ -0,0 +1,147 @@
+package com.example.recommendationservice.service
+
+import com.example.recommendationservice.metrics.Metrics
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Ленивый пересчёт (recommendation.recalculation.mode = lazy): событие оценки только
+ * поднимает версию данных пользователя, а рекомендации пересчитываются при чтении, если
+ * сохранённые построены по более старой версии. Одновременные читатели одного пользователя
+ * ждут один пересчёт. Фоновый обход ([sweep]) заранее пересчитывает устаревших пользователей,
+ * которые читали рекомендации за последние [activeWindowMillis].
+ *
+ * Версии хранятся только для читавших в этом окне; про остальных (и про всех после
+ * рестарта) неизвестно, по каким данным построены рекомендации, и первое чтение
+ * пересчитывает их один раз.
+ */
+class LazyRecalculation(
+    private val activeWindowMillis: Long,
+    // Одновременных пересчётов при обходе и пакетном чтении
+    private val concurrency: Int,
+    val sweepIntervalMillis: Long
+) {
+
+    /** built - версия данных, по которой построены сохранённые рекомендации; -1 - ещё не строились */
+    private class UserVersions {
+        val data = AtomicLong()
+        val built = AtomicLong(-1)
+        @Volatile
+        var lastReadAt = 0L
+
+        val isStale: Boolean get() = data.get() > built.get()
+    }
+
+    private val clock = AtomicLong()
+    private val users = ConcurrentHashMap<Long, UserVersions>()
+    private val inFlight = ConcurrentHashMap<Long, CompletableDeferred<Unit>>()
+
+    private val marked = Metrics.counter("recalculation.lazy.marked")
+    private val onRead = Metrics.counter("recalculation.lazy.on_read")
+    private val joined = Metrics.counter("recalculation.lazy.joined")
+    private val swept = Metrics.counter("recalculation.lazy.swept")
+    private val evicted = Metrics.counter("recalculation.lazy.evicted")
+
+    init {
+        require(concurrency > 0) { "Lazy recalculation concurrency must be positive" }
+        Metrics.gauge("recalculation.lazy.tracked_users") { users.size }
+    }
+
+    /**
+     * Данные пользователя изменились. Вызывается после изменения матрицы: пересчёт,
+     * начатый до этого вызова, оставит пользователя устаревшим.
+     */
+    fun markStale(userId: Long) {
+        marked.incrementAndGet()
+        val versions = users[userId] ?: return
+        versions.data.accumulateAndGet(clock.incrementAndGet(), ::maxOf)
+    }
+
+    /** Перед чтением: пересчитывает рекомендации пользователя, если они устарели */
+    suspend fun ensureFresh(userId: Long, recalculate: suspend (Long) -> Boolean) {
+        val versions = users.computeIfAbsent(userId) { UserVersions() }
+        versions.lastReadAt = System.currentTimeMillis()
+        if (!versions.isStale) return
+        onRead.incrementAndGet()
+        refresh(userId, recalculate)
+    }
+
+    /** То же для пакета; устаревшие пересчитываются не больше [concurrency] одновременно */
+    suspend fun ensureFresh(userIds: Collection<Long>, recalculate: suspend (Long) -> Boolean) {
+        val now = System.currentTimeMillis()
+        val stale = userIds.filter { userId ->
+            val versions = users.computeIfAbsent(userId) { UserVersions() }
+            versions.lastReadAt = now
+            versions.isStale
+        }
+        onRead.addAndGet(stale.size.toLong())
+        refreshAll(stale, recalculate)
+    }
+
+    /**
+     * Пересчитывает устаревших пользователей, читавших рекомендации за [activeWindowMillis],
+     * и забывает версии остальных. Возвращает число пересчитанных.
+     */
+    suspend fun sweep(recalculate: suspend (Long) -> Boolean): Int {
+        val cutoff = System.currentTimeMillis() - activeWindowMillis
+        val stale = ArrayList<Long>()
+        users.forEach { (userId, versions) ->
+            if (versions.lastReadAt < cutoff) {
+                if (users.remove(userId, versions)) evicted.incrementAndGet()
+            } else if (versions.isStale) {
+                stale.add(userId)
+            }
+        }
+        refreshAll(stale, recalculate)
+        swept.addAndGet(stale.size.toLong())
+        return stale.size
+    }
+
+    private suspend fun refreshAll(userIds: List<Long>, recalculate: suspend (Long) -> Boolean) {
+        if (userIds.isEmpty()) return
+        val next = AtomicInteger()
+        coroutineScope {
+            repeat(minOf(concurrency, userIds.size)) {
+                launch {
+                    while (true) {
+                        val i = next.getAndIncrement()
+                        if (i >= userIds.size) break
+                        refresh(userIds[i], recalculate)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Один пересчёт на пользователя: кто пришёл во время чужого пересчёта, ждёт его.
+     * Если за это время пришло новое событие, пересчитывает сам - не больше одного раза.
+     */
+    private suspend fun refresh(userId: Long, recalculate: suspend (Long) -> Boolean) {
+        repeat(2) {
+            val flight = CompletableDeferred<Unit>()
+            val running = inFlight.putIfAbsent(userId, flight)
+            if (running != null) {
+                joined.incrementAndGet()
+                running.await()
+                if (users[userId]?.isStale == false) return
+                return@repeat
+            }
+            try {
+                val versions = users.computeIfAbsent(userId) { UserVersions() }
+                if (!versions.isStale) return
+                // Версия берётся до чтения матрицы: событие после неё снова сделает пользователя устаревшим
+                val version = clock.get()
+                if (recalculate(userId)) versions.built.accumulateAndGet(version, ::maxOf)
+            } finally {
+                inFlight.remove(userId, flight)
+                flight.complete(Unit)
+            }
+            return
+        }
+    }
+}
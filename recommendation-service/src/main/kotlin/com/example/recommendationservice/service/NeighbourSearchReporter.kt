@@ -0,0 +1,83 @@
+package com.example.recommendationservice.service
+
+import com.example.recommendationservice.dto.NeighbourSearchReport
+import com.example.recommendationservice.metrics.latencySummary
+import com.example.recommendationservice.model.MIN_COMMON_COURSES
+import com.example.recommendationservice.model.MinHashLshIndex
+import com.example.recommendationservice.model.NeighbourSearch
+import com.example.recommendationservice.model.RatingMatrix
+import java.util.SplittableRandom
+
+/**
+ * Сравнивает приближённый поиск соседей (MinHash/LSH) с точным на одних и тех же
+ * данных: recall@k относительно точного top-k и задержку одного запроса.
+ */
+class NeighbourSearchReporter(
+    private val ratingMatrix: RatingMatrix,
+    private val exact: NeighbourSearch,
+    lshIndexProvider: () -> MinHashLshIndex
+) {
+    
+    private val lshIndex by lazy(lshIndexProvider)
+    
+    fun report(sampleSize: Int, k: Int): NeighbourSearchReport {
+        val index = lshIndex
+        val users = sampleUsers(sampleSize)
+        
+        // Прогрев JIT, чтобы первые запросы не искажали перцентили
+        users.take(WARMUP_QUERIES).forEach { user ->
+            ratingMatrix.read {
+                exact.similarUsers(user, k)
+                index.similarUsers(user, k)
+            }
+        }
+        
+        val exactNanos = LongArray(users.size)
+        val lshNanos = LongArray(users.size)
+        var recallSum = 0.0
+        var recallCount = 0
+        var candidateSum = 0L
+        
+        users.forEachIndexed { i, user ->
+            ratingMatrix.read {
+                var startedAt = System.nanoTime()
+                val expected = exact.similarUsers(user, k)
+                exactNanos[i] = System.nanoTime() - startedAt
+                
+                startedAt = System.nanoTime()
+                val approximate = index.similarUsers(user, k)
+                lshNanos[i] = System.nanoTime() - startedAt
+                
+                candidateSum += index.candidates(user).size
+                if (expected.size > 0) {
+                    val expectedIds = (0 until expected.size).map { expected.idAt(it) }.toSet()
+                    val found = (0 until approximate.size).count { approximate.idAt(it) in expectedIds }
+                    recallSum += found.toDouble() / expected.size
+                    recallCount++
+                }
+            }
+        }
+        
+        return NeighbourSearchReport(
+            sampledUsers = users.size,
+            k = k,
+            bands = index.bands,
+            rows = index.rows,
+            recallAtK = if (recallCount > 0) recallSum / recallCount else 1.0,
+            meanCandidates = if (users.isNotEmpty()) candidateSum.toDouble() / users.size else 0.0,
+            exactLatency = latencySummary(exactNanos),
+            lshLatency = latencySummary(lshNanos)
+        )
+    }
+    
+    private fun sampleUsers(sampleSize: Int): List<Int> = ratingMatrix.read {
+        val eligible = (0 until ratingMatrix.userCount).filter { ratingMatrix.rowSize(it) >= MIN_COMMON_COURSES }
+        val random = SplittableRandom(SAMPLE_SEED)
+        if (eligible.size <= sampleSize) eligible else List(sampleSize) { eligible[random.nextInt(eligible.size)] }
+    }
+    
+    companion object {
+        private const val WARMUP_QUERIES = 50
+        private const val SAMPLE_SEED = 42L
+    }
+}
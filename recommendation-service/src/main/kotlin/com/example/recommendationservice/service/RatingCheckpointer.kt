@@ -0,0 +1,47 @@
+package com.example.recommendationservice.service
+
+import com.example.recommendationservice.kafka.RatingEventConsumer
+import com.example.recommendationservice.metrics.Metrics
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.model.RatingSnapshot
+import org.slf4j.LoggerFactory
+import java.nio.file.Path
+
+/**
+ * Пишет снимок матрицы оценок с offset'ами, до которых потребитель применил
+ * события. Offset'ы берутся до снятия матрицы, поэтому снимок никогда
+ * не обещает событий, которых в нём нет.
+ */
+class RatingCheckpointer(
+    private val ratingMatrix: RatingMatrix,
+    private val consumer: RatingEventConsumer,
+    private val topic: String,
+    private val path: Path
+) {
+
+    private val logger = LoggerFactory.getLogger(RatingCheckpointer::class.java)
+
+    @Volatile
+    private var lastCheckpointAt = 0L
+
+    private val captureTimer = Metrics.timer("snapshot.capture")
+    private val writeTimer = Metrics.timer("snapshot.write")
+
+    init {
+        Metrics.gauge("snapshot.age_seconds") {
+            if (lastCheckpointAt == 0L) -1 else (System.currentTimeMillis() - lastCheckpointAt) / 1000
+        }
+    }
+
+    @Synchronized
+    fun checkpoint() {
+        val offsets = consumer.appliedOffsets()
+        val snapshot = captureTimer.time { RatingSnapshot.capture(ratingMatrix, topic, offsets) }
+        writeTimer.time { snapshot.write(path) }
+        lastCheckpointAt = snapshot.createdAt
+        logger.info(
+            "Rating snapshot written to $path: users=${snapshot.userCount}, courses=${snapshot.courseCount}, " +
+                "ratings=${snapshot.ratingCount}, offsets=$offsets"
+        )
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.recommendationservice.service
+
+import com.example.recommendationservice.metrics.Metrics
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Планировщик пересчёта рекомендаций с фиксированным пулом воркеров.
+ *
+ * - Пользователь закреплён за одним воркером (lane = hash(userId) % workers),
+ *   поэтому пересчёты одного пользователя никогда не идут параллельно.
+ * - Пока пользователь ждёт в очереди, новые события по нему схлопываются
+ *   в один пересчёт; событие, пришедшее во время пересчёта, запускает ещё один.
+ * - Пересчёт начинается не раньше чем через [debounceMillis] после первого события,
+ *   чтобы серия оценок подряд превращалась в один пересчёт.
+ *
+ * В ленивом режиме ([lazyRecalculation]) очереди не используются: событие только отмечает
+ * пользователя устаревшим, пересчёт идёт при чтении, а раз в
+ * [LazyRecalculation.sweepIntervalMillis] - для устаревших среди недавно читавших.
+ */
+class RecalculationScheduler(
+    private val recommendationService: RecommendationService,
+    private val workers: Int,
+    private val debounceMillis: Long,
+    private val lazyRecalculation: LazyRecalculation? = null
+) {
+
+    private val logger = LoggerFactory.getLogger(RecalculationScheduler::class.java)
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val lanes = Array(workers) { Channel<Long>(Channel.UNLIMITED) }
+
+    // userId -> время постановки в очередь (System.nanoTime)
+    private val pending = ConcurrentHashMap<Long, Long>()
+
+    @Volatile
+    private var draining = false
+
+    private val scheduled = Metrics.counter("recalculation.scheduled")
+    private val coalesced = Metrics.counter("recalculation.coalesced")
+    private val failed = Metrics.counter("recalculation.failed")
+    private val queueWait = Metrics.timer("recalculation.queue_wait")
+    private val duration = Metrics.timer("recalculation.duration")
+    private val sweepDuration = Metrics.timer("recalculation.lazy.sweep")
+
+    private val workerJobs = lanes.map { lane -> scope.launch { runWorker(lane) } }
+    private val sweeperJob = lazyRecalculation?.let { lazy -> scope.launch { runSweeper(lazy) } }
+
+    init {
+        require(workers > 0) { "Recalculation workers must be positive" }
+        Metrics.gauge("recalculation.queue_depth") { pending.size }
+    }
+
+    /**
+     * Ставит пользователя в очередь на пересчёт. Не блокирует вызывающий поток.
+     */
+    fun schedule(userId: Long) {
+        if (draining) {
+            logger.warn("Scheduler is draining, recalculation for user $userId skipped")
+            return
+        }
+        if (lazyRecalculation != null) {
+            lazyRecalculation.markStale(userId)
+            return
+        }
+        if (pending.putIfAbsent(userId, System.nanoTime()) != null) {
+            coalesced.incrementAndGet()
+            return
+        }
+        scheduled.incrementAndGet()
+        lanes[Math.floorMod(userId.hashCode(), workers)].trySend(userId)
+    }
+
+    /** Пользователей, ожидающих пересчёта по событиям */
+    val queueDepth: Int get() = pending.size
+
+    fun isPending(userId: Long): Boolean = pending.containsKey(userId)
+
+    private suspend fun runWorker(lane: Channel<Long>) {
+        for (userId in lane) {
+            val enqueuedAt = pending[userId] ?: continue
+            val waitNanos = enqueuedAt + debounceMillis * 1_000_000 - System.nanoTime()
+            if (waitNanos > 0 && !draining) {
+                delay(waitNanos / 1_000_000)
+            }
+
+            // Снимаем отметку до пересчёта: события, пришедшие во время него, поставят пользователя снова
+            pending.remove(userId)
+            queueWait.record(System.nanoTime() - enqueuedAt)
+
+            try {
+                duration.time { recommendationService.recalculateRecommendations(userId) }
+            } catch (e: Exception) {
+                failed.incrementAndGet()
+                logger.error("Recalculation failed for user $userId", e)
+            }
+        }
+    }
+
+    private suspend fun runSweeper(lazy: LazyRecalculation) {
+        while (currentCoroutineContext().isActive) {
+            delay(lazy.sweepIntervalMillis)
+            try {
+                val swept = sweepDuration.time { lazy.sweep(recommendationService::recalculateRecommendations) }
+                if (swept > 0) logger.info("Lazy sweep recalculated $swept stale active users")
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                logger.error("Lazy recalculation sweep failed", e)
+            }
+        }
+    }
+
+    /**
+     * Прекращает приём новых задач и дожидается обработки уже поставленных
+     * (без debounce-задержки), но не дольше [timeoutMillis].
+     */
+    fun drain(timeoutMillis: Long) {
+        draining = true
+        sweeperJob?.cancel()
+        lanes.forEach { it.close() }
+        runBlocking {
+            val completed = withTimeoutOrNull(timeoutMillis) { workerJobs.joinAll() }
+            if (completed == null) {
+                logger.warn("Recalculation queue not drained in $timeoutMillis ms, ${pending.size} users left")
+            }
+        }
+        scope.cancel()
+        Metrics.removeGauge("recalculation.queue_depth")
+        logger.info("Recalculation scheduler stopped")
+    }
+}
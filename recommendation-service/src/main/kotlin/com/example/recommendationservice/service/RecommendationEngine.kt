@@ -0,0 +1,20 @@
+package com.example.recommendationservice.service
+
+/**
+ * Алгоритм расчёта персональных рекомендаций (recommendation.engine в application.conf)
+ */
+enum class RecommendationEngine {
+    /** User-user collaborative filtering по Jaccard-сходству наборов оценённых курсов */
+    USER_BASED,
+
+    /** Item-item: слияние top-K списков соседей высоко оценённых курсов */
+    ITEM_BASED,
+
+    /** Матричная факторизация (ALS): скалярное произведение векторов пользователя и курса */
+    ALS;
+
+    companion object {
+        fun fromConfig(value: String): RecommendationEngine =
+            valueOf(value.trim().uppercase().replace('-', '_'))
+    }
+}
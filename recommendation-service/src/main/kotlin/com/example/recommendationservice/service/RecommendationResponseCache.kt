@@ -0,0 +1,111 @@
+package com.example.recommendationservice.service
+
+import com.example.recommendationservice.metrics.Metrics
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Кэш готовых ответов GET /api/recommendations/{userId}: сериализованный
+ * JSON с уже подставленными данными курсов. Ограничен суммарным размером
+ * [maxBytes], вытесняется самый давно запрошенный пользователь (LRU).
+ *
+ * Чтобы загрузка, начатая до инвалидации, не положила в кэш устаревший
+ * ответ, запись идёт через [put] с эпохой, взятой [epoch] до загрузки:
+ * любая инвалидация пользователя (или всего кэша) эту эпоху сдвигает.
+ */
+class RecommendationResponseCache(private val maxBytes: Long) {
+
+    private class Entry(val bytes: ByteArray, val courseIds: LongArray)
+
+    // accessOrder = true: итерация начинается с самых давно использованных записей
+    private val entries = LinkedHashMap<Long, Entry>(1024, 0.75f, true)
+    private var totalBytes = 0L
+
+    // Эпохи по полосам userId: ограниченная память, редкие ложные конфликты
+    private val userEpochs = AtomicLongArray(EPOCH_STRIPES)
+    private val globalEpoch = AtomicLong()
+
+    private val hits = Metrics.counter("response_cache.hits")
+    private val misses = Metrics.counter("response_cache.misses")
+    private val evictions = Metrics.counter("response_cache.evictions")
+
+    init {
+        require(maxBytes > 0) { "Response cache size must be positive" }
+        Metrics.gauge("response_cache.entries") { synchronized(entries) { entries.size } }
+        Metrics.gauge("response_cache.bytes") { synchronized(entries) { totalBytes } }
+    }
+
+    fun get(userId: Long): ByteArray? {
+        val entry = synchronized(entries) { entries[userId] }
+        if (entry == null) {
+            misses.incrementAndGet()
+            return null
+        }
+        hits.incrementAndGet()
+        return entry.bytes
+    }
+
+    fun contains(userId: Long): Boolean = synchronized(entries) { entries.containsKey(userId) }
+
+    /** Метка состояния пользователя, которую нужно взять до загрузки ответа */
+    fun epoch(userId: Long): Long = userEpochs.get(stripe(userId)) + globalEpoch.get()
+
+    /**
+     * Кладёт ответ, если с момента [epoch] пользователь не инвалидировался.
+     * Ответ больше четверти кэша не кэшируется.
+     */
+    fun put(userId: Long, epoch: Long, bytes: ByteArray, courseIds: LongArray): Boolean {
+        if (bytes.size > maxBytes / 4) return false
+
+        synchronized(entries) {
+            if (epoch(userId) != epoch) return false
+
+            entries.put(userId, Entry(bytes, courseIds))?.let { totalBytes -= it.bytes.size }
+            totalBytes += bytes.size
+
+            val iterator = entries.values.iterator()
+            while (totalBytes > maxBytes && iterator.hasNext()) {
+                totalBytes -= iterator.next().bytes.size
+                iterator.remove()
+                evictions.incrementAndGet()
+            }
+        }
+        return true
+    }
+
+    fun invalidate(userId: Long) {
+        synchronized(entries) {
+            userEpochs.incrementAndGet(stripe(userId))
+            entries.remove(userId)?.let { totalBytes -= it.bytes.size }
+        }
+    }
+
+    /** Сбрасывает ответы, в которых упоминается курс. Полный проход - изменения курсов редки. */
+    fun invalidateCourse(courseId: Long) {
+        synchronized(entries) {
+            globalEpoch.incrementAndGet()
+            val iterator = entries.values.iterator()
+            while (iterator.hasNext()) {
+                val entry = iterator.next()
+                if (courseId in entry.courseIds) {
+                    totalBytes -= entry.bytes.size
+                    iterator.remove()
+                }
+            }
+        }
+    }
+
+    fun invalidateAll() {
+        synchronized(entries) {
+            globalEpoch.incrementAndGet()
+            entries.clear()
+            totalBytes = 0
+        }
+    }
+
+    private fun stripe(userId: Long): Int = Math.floorMod(userId.hashCode(), EPOCH_STRIPES)
+
+    companion object {
+        private const val EPOCH_STRIPES = 1024
+    }
+}
@@ -1,198 +1,459 @@
 package com.example.recommendationservice.service
 
 import com.example.recommendationservice.dto.*
+import com.example.recommendationservice.model.AlsRecommender
+import com.example.recommendationservice.model.CourseCatalog
+import com.example.recommendationservice.model.DeltaUserScorer
+import com.example.recommendationservice.model.ExactNeighbourSearch
+import com.example.recommendationservice.model.ItemSimilarityModel
+import com.example.recommendationservice.model.NeighbourSearch
+import com.example.recommendationservice.model.PopularityModel
+import com.example.recommendationservice.model.RatingMatrix
 import com.example.recommendationservice.repository.RecommendationRepository
-import io.ktor.client.*
-import io.ktor.client.call.*
-import io.ktor.client.engine.cio.*
-import io.ktor.client.plugins.contentnegotiation.*
-import io.ktor.client.request.*
-import io.ktor.serialization.kotlinx.json.*
+import com.example.recommendationservice.util.LongIntHashMap
+import com.example.recommendationservice.util.TopKSelector
 import kotlinx.serialization.json.Json
 import org.slf4j.LoggerFactory
 
-class RecommendationService(private val courseServiceUrl: String) {
+class RecommendationService(
+    private val courseClient: CourseServiceClient,
+    private val ratingMatrix: RatingMatrix,
+    private val engine: RecommendationEngine = RecommendationEngine.USER_BASED,
+    private val itemSimilarityModel: ItemSimilarityModel? = null,
+    private val neighbourSearch: NeighbourSearch = ExactNeighbourSearch(ratingMatrix),
+    private val responseCache: RecommendationResponseCache? = null,
+    private val courseCatalog: CourseCatalog? = null,
+    private val popularityModel: PopularityModel? = null,
+    private val alsRecommender: AlsRecommender? = null,
+    private val deltaScorer: DeltaUserScorer? = null,
+    // Ленивый режим: рекомендации пересчитываются при чтении, если устарели
+    val lazyRecalculation: LazyRecalculation? = null
+) {
     
     private val logger = LoggerFactory.getLogger(RecommendationService::class.java)
     
-    private val httpClient = HttpClient(CIO) {
-        install(ContentNegotiation) {
-            json(Json {
-                ignoreUnknownKeys = true
-                isLenient = true
-            })
-        }
+    // Компактный JSON для кэша ответов (ContentNegotiation отдаёт prettyPrint)
+    private val responseJson = Json {
+        isLenient = true
+        ignoreUnknownKeys = true
     }
     
+    /** Готов ли движок: ALS до первой модели отдаёт только популярное */
+    val isEngineReady: Boolean
+        get() = engine != RecommendationEngine.ALS || alsRecommender?.isReady == true
+    
     /**
      * Пересчитывает рекомендации для пользователя на основе:
      * 1. Категорий курсов, которые он высоко оценил
      * 2. Курсов, которые высоко оценили похожие пользователи (collaborative filtering)
+     *
+     * Возвращает false, если пересчёт не удался.
      */
-    suspend fun recalculateRecommendations(userId: Long) {
+    suspend fun recalculateRecommendations(userId: Long): Boolean {
         logger.info("Recalculating recommendations for user: $userId")
         
         try {
-            // Получаем оценки пользователя
-            val userRatings = RecommendationRepository.getUserRatings(userId)
-            if (userRatings.isEmpty()) {
-                logger.info("User $userId has no ratings, generating default recommendations")
-                generateDefaultRecommendations(userId)
-                return
-            }
-            
-            // Получаем высоко оценённые курсы (rating >= 4)
-            val highRatedCourseIds = userRatings
-                .filter { it.rating >= 4 }
-                .map { it.courseId }
-            
-            // Получаем все оценки для collaborative filtering
-            val allRatings = RecommendationRepository.getAllUserRatings()
-            
-            // Находим похожих пользователей (оценили те же курсы)
-            val similarUsers = findSimilarUsers(userId, userRatings, allRatings)
-            
-            // Собираем рекомендации
-            val recommendations = mutableListOf<CourseRecommendation>()
-            
-            // 1. Добавляем курсы от похожих пользователей
-            val userRatedCourseIds = RecommendationRepository.getRatedCourseIds(userId)
-            
-            similarUsers.forEach { (similarUserId, similarity) ->
-                val similarUserRatings = allRatings.filter { 
-                    it.userId == similarUserId && it.rating >= 4 && it.courseId !in userRatedCourseIds 
-                }
-                
-                similarUserRatings.forEach { rating ->
-                    val existingRec = recommendations.find { it.courseId == rating.courseId }
-                    if (existingRec == null) {
-                        recommendations.add(
-                            CourseRecommendation(
-                                courseId = rating.courseId,
-                                score = similarity * rating.rating / 5.0,
-                                reason = "Рекомендовано на основе похожих пользователей"
-                            )
-                        )
-                    }
-                }
-            }
-            
-            // Сортируем и сохраняем топ-10
-            val topRecommendations = recommendations
-                .sortedByDescending { it.score }
-                .take(10)
-            
-            if (topRecommendations.isNotEmpty()) {
-                RecommendationRepository.saveRecommendations(userId, topRecommendations)
-                logger.info("Saved ${topRecommendations.size} recommendations for user $userId")
-            } else {
-                generateDefaultRecommendations(userId)
-            }
+            val recommendations = computeRecommendations(userId)
+            if (recommendations.isEmpty()) return true
             
+            val changed = RecommendationRepository.saveRecommendations(userId, recommendations)
+            logger.info("Saved ${recommendations.size} recommendations for user $userId")
+            refreshCachedResponse(userId, recommendations, changed)
+            return true
         } catch (e: Exception) {
             logger.error("Error recalculating recommendations for user $userId", e)
+            return false
         }
     }
     
     /**
-     * Находит похожих пользователей на основе пересечения оценённых курсов
+     * Считает рекомендации без записи в БД: по выбранному движку, а если у пользователя
+     * нет оценок или движок ничего не нашёл - популярные курсы.
      */
-    private fun findSimilarUsers(
-        userId: Long,
-        userRatings: List<UserRatingData>,
-        allRatings: List<UserRatingData>
-    ): List<Pair<Long, Double>> {
-        val userCourseIds = userRatings.map { it.courseId }.toSet()
-        
-        return allRatings
-            .filter { it.userId != userId }
-            .groupBy { it.userId }
-            .mapNotNull { (otherUserId, otherRatings) ->
-                val otherCourseIds = otherRatings.map { it.courseId }.toSet()
-                val commonCourses = userCourseIds.intersect(otherCourseIds)
-                
-                if (commonCourses.size >= 2) {
-                    // Jaccard similarity
-                    val union = userCourseIds.union(otherCourseIds)
-                    val similarity = commonCourses.size.toDouble() / union.size
-                    Pair(otherUserId, similarity)
-                } else {
-                    null
-                }
+    suspend fun computeRecommendations(userId: Long): List<CourseRecommendation> {
+        // Считаем по резидентной матрице оценок, без выгрузки таблицы из Postgres
+        val recommendations = ratingMatrix.read {
+            when (engine) {
+                RecommendationEngine.USER_BASED -> collaborativeRecommendations(userId)
+                RecommendationEngine.ITEM_BASED -> itemBasedRecommendations(userId)
+                RecommendationEngine.ALS -> alsRecommendations(userId)
             }
-            .sortedByDescending { it.second }
-            .take(10)
+        }
+        if (!recommendations.isNullOrEmpty()) return recommendations
+        
+        if (recommendations == null) {
+            logger.debug("User $userId has no ratings, generating default recommendations")
+        }
+        return defaultRecommendations(userId)
     }
     
     /**
-     * Генерирует дефолтные рекомендации (топ курсы по рейтингу)
+     * Записывает пакет посчитанных рекомендаций одной транзакцией и обновляет
+     * закэшированные ответы изменившихся пользователей. Возвращает их число.
      */
-    private suspend fun generateDefaultRecommendations(userId: Long) {
-        try {
-            val courses = fetchTopRatedCourses()
-            val userRatedCourseIds = RecommendationRepository.getRatedCourseIds(userId)
+    suspend fun saveRecommendations(batch: Map<Long, List<CourseRecommendation>>): Int {
+        val changedUsers = RecommendationRepository.saveRecommendationsBatch(batch)
+        changedUsers.forEach { userId -> refreshCachedResponse(userId, batch.getValue(userId), true) }
+        return changedUsers.size
+    }
+    
+    /**
+     * Топ-10 курсов от похожих пользователей или null, если у пользователя нет оценок.
+     * Вызывается под блокировкой чтения матрицы.
+     */
+    private fun collaborativeRecommendations(userId: Long): List<CourseRecommendation>? {
+        val user = ratingMatrix.userIndexOf(userId)
+        if (user < 0 || ratingMatrix.rowSize(user) == 0) {
+            return null
+        }
+        
+        // Инкрементальный скорер держит те же кандидаты и обновляет их по событиям
+        if (deltaScorer != null) {
+            return deltaScorer.recommend(user, 10) { isRecommendable(it) }.map { (courseId, score) ->
+                CourseRecommendation(
+                    courseId = courseId,
+                    score = score,
+                    reason = "Рекомендовано на основе похожих пользователей"
+                )
+            }
+        }
+        
+        // Находим похожих пользователей (оценили те же курсы)
+        val similarUsers = neighbourSearch.similarUsers(user, 10)
+        
+        // Собираем рекомендации: курс получает score от самого похожего пользователя,
+        // который оценил его на 4+, и не должен быть уже оценён текущим пользователем
+        val recommendations = mutableListOf<CourseRecommendation>()
+        val seenCourses = LongIntHashMap()
+        
+        for (rank in 0 until similarUsers.size) {
+            val similarUser = similarUsers.idAt(rank)
+            val similarity = similarUsers.scoreAt(rank)
+            val courses = ratingMatrix.rowCourses(similarUser)
+            val ratings = ratingMatrix.rowRatings(similarUser)
             
-            val recommendations = courses
-                .filter { it.id !in userRatedCourseIds }
-                .take(10)
-                .mapIndexed { index, course ->
+            for (i in 0 until ratingMatrix.rowSize(similarUser)) {
+                val course = courses[i]
+                val rating = ratings[i].toInt()
+                if (rating < 4 || ratingMatrix.rating(user, course) != 0) continue
+                if (seenCourses.containsKey(course.toLong())) continue
+                
+                seenCourses.put(course.toLong(), 1)
+                val courseId = ratingMatrix.courseIdAt(course)
+                if (!isRecommendable(courseId)) continue
+                recommendations.add(
                     CourseRecommendation(
-                        courseId = course.id,
-                        score = 1.0 - (index * 0.05),
-                        reason = "Популярный курс с высоким рейтингом"
+                        courseId = courseId,
+                        score = similarity * rating / 5.0,
+                        reason = "Рекомендовано на основе похожих пользователей"
                     )
-                }
-            
-            if (recommendations.isNotEmpty()) {
-                RecommendationRepository.saveRecommendations(userId, recommendations)
+                )
             }
-        } catch (e: Exception) {
-            logger.error("Error generating default recommendations", e)
         }
+        
+        // Сортируем и оставляем топ-10
+        return recommendations
+            .sortedByDescending { it.score }
+            .take(10)
     }
     
-    suspend fun getRecommendations(userId: Long): RecommendationResponse {
-        val recommendations = RecommendationRepository.getRecommendations(userId)
+    /**
+     * Item-based рекомендации: слияние top-K списков соседей курсов, которые
+     * пользователь оценил на 4+. score(j) - среднее по таким курсам i
+     * от sim(i, j) * rating(i) / 5. Вызывается под блокировкой чтения матрицы.
+     */
+    private fun itemBasedRecommendations(userId: Long): List<CourseRecommendation>? {
+        val model = checkNotNull(itemSimilarityModel) { "Item similarity model is not configured" }
+        val user = ratingMatrix.userIndexOf(userId)
+        if (user < 0 || ratingMatrix.rowSize(user) == 0) {
+            return null
+        }
+        
+        val userCourses = ratingMatrix.rowCourses(user)
+        val userRatings = ratingMatrix.rowRatings(user)
+        val slots = LongIntHashMap()
+        var candidates = IntArray(32)
+        var scores = DoubleArray(32)
+        var candidateCount = 0
+        var highRatedCount = 0
         
-        // Получаем информацию о курсах
-        val enrichedRecommendations = if (recommendations.isNotEmpty()) {
-            try {
-                val courseIds = recommendations.map { it.courseId }
-                val courses = fetchCoursesByIds(courseIds)
-                val coursesMap = courses.associateBy { it.id }
+        for (i in 0 until ratingMatrix.rowSize(user)) {
+            val rating = userRatings[i].toInt()
+            if (rating < 4) continue
+            highRatedCount++
+            
+            val neighbours = model.neighbours(userCourses[i])
+            for (n in 0 until neighbours.size) {
+                val course = neighbours.courses[n]
+                if (ratingMatrix.rating(user, course) != 0) continue
                 
-                recommendations.map { rec ->
-                    rec.copy(course = coursesMap[rec.courseId])
+                var slot = slots.get(course.toLong())
+                if (slot < 0) {
+                    if (candidateCount == candidates.size) {
+                        candidates = candidates.copyOf(candidateCount * 2)
+                        scores = scores.copyOf(candidateCount * 2)
+                    }
+                    slot = candidateCount++
+                    slots.put(course.toLong(), slot)
+                    candidates[slot] = course
                 }
-            } catch (e: Exception) {
-                logger.error("Error fetching course details", e)
-                recommendations
+                scores[slot] += neighbours.similarities[n] * rating / 5.0
             }
+        }
+        
+        val top = TopKSelector(10)
+        for (slot in 0 until candidateCount) {
+            if (!isRecommendable(ratingMatrix.courseIdAt(candidates[slot]))) continue
+            top.offer(candidates[slot], scores[slot] / highRatedCount)
+        }
+        
+        return (0 until top.size).map { rank ->
+            CourseRecommendation(
+                courseId = ratingMatrix.courseIdAt(top.idAt(rank)),
+                score = top.scoreAt(rank),
+                reason = "Похож на курсы, которые вы высоко оценили"
+            )
+        }
+    }
+    
+    /**
+     * Рекомендации по ALS-модели: топ-10 неоценённых курсов по предсказанной оценке.
+     * Пока модель не обучена - пустой список (уходим в популярное).
+     * Вызывается под блокировкой чтения матрицы.
+     */
+    private fun alsRecommendations(userId: Long): List<CourseRecommendation>? {
+        val recommender = checkNotNull(alsRecommender) { "ALS model is not configured" }
+        val user = ratingMatrix.userIndexOf(userId)
+        if (user < 0 || ratingMatrix.rowSize(user) == 0) {
+            return null
+        }
+        
+        val scored = recommender.recommend(userId, 10, ::isRecommendable) ?: return emptyList()
+        return scored.map { (courseId, prediction) ->
+            CourseRecommendation(
+                courseId = courseId,
+                score = (prediction / 5.0).coerceIn(0.0, 1.0),
+                reason = "Подобрано по вашим оценкам"
+            )
+        }
+    }
+    
+    /** Снятые с публикации и удалённые курсы не рекомендуем (если реплика курсов подключена) */
+    private fun isRecommendable(courseId: Long): Boolean = courseCatalog?.isRecommendable(courseId) ?: true
+    
+    private fun ratedCourseIds(userId: Long): Set<Long> = ratingMatrix.read {
+        val user = ratingMatrix.userIndexOf(userId)
+        if (user < 0) {
+            emptySet()
         } else {
-            recommendations
+            val courses = ratingMatrix.rowCourses(user)
+            (0 until ratingMatrix.rowSize(user)).mapTo(HashSet()) { ratingMatrix.courseIdAt(courses[it]) }
         }
+    }
+    
+    /**
+     * Дефолтные рекомендации (топ курсов по популярности или рейтингу)
+     */
+    private suspend fun defaultRecommendations(userId: Long): List<CourseRecommendation> {
+        val userRatedCourseIds = ratedCourseIds(userId)
+        return popularRecommendations(userRatedCourseIds) ?: topRatedRecommendations(userRatedCourseIds)
+    }
+    
+    /**
+     * Топ из готового снимка модели популярности: без сетевых вызовов и сортировки.
+     * null, если снимок ещё пуст (нет ни одной оценки).
+     */
+    private fun popularRecommendations(userRatedCourseIds: Set<Long>): List<CourseRecommendation>? {
+        val snapshot = popularityModel?.snapshot ?: return null
+        if (snapshot.size == 0) return null
         
-        return RecommendationResponse(userId, enrichedRecommendations)
+        val recommendations = ArrayList<CourseRecommendation>(10)
+        for (i in 0 until snapshot.size) {
+            val courseId = snapshot.courseIds[i]
+            if (courseId in userRatedCourseIds || !isRecommendable(courseId)) continue
+            recommendations.add(
+                CourseRecommendation(
+                    courseId = courseId,
+                    score = snapshot.scores[i],
+                    reason = "Популярный курс с высоким рейтингом"
+                )
+            )
+            if (recommendations.size == 10) break
+        }
+        return recommendations
     }
     
-    private suspend fun fetchCoursesByIds(ids: List<Long>): List<CourseInfo> {
-        return try {
-            httpClient.post("$courseServiceUrl/api/courses/by-ids") {
-                setBody(ids)
-                header("Content-Type", "application/json")
-            }.body()
-        } catch (e: Exception) {
-            logger.error("Error fetching courses by ids", e)
-            emptyList()
+    private suspend fun topRatedRecommendations(userRatedCourseIds: Set<Long>): List<CourseRecommendation> {
+        val courses = readyCatalog()?.topRated(TOP_RATED_LIMIT) ?: courseClient.topRated().courses
+        
+        return courses
+            .filter { it.id !in userRatedCourseIds }
+            .take(10)
+            .mapIndexed { index, course ->
+                CourseRecommendation(
+                    courseId = course.id,
+                    score = 1.0 - (index * 0.05),
+                    reason = "Популярный курс с высоким рейтингом"
+                )
+            }
+    }
+    
+    suspend fun getRecommendations(userId: Long): RecommendationResponse {
+        lazyRecalculation?.ensureFresh(userId, ::recalculateRecommendations)
+        return buildResponse(userId, RecommendationRepository.getRecommendations(userId)).first
+    }
+    
+    /**
+     * Готовый JSON ответа для GET /api/recommendations/{userId}:
+     * при попадании в кэш - без обращения к БД и course-service.
+     */
+    suspend fun getRecommendationsJson(userId: Long): ByteArray {
+        val cache = responseCache
+            ?: return responseJson.encodeToString(RecommendationResponse.serializer(), getRecommendations(userId)).toByteArray()
+        // Устаревший пользователь пересчитывается до кэша: пересчёт обновит и закэшированный ответ
+        lazyRecalculation?.ensureFresh(userId, ::recalculateRecommendations)
+        cache.get(userId)?.let { return it }
+        
+        val epoch = cache.epoch(userId)
+        val recommendations = RecommendationRepository.getRecommendations(userId)
+        return cacheResponse(cache, userId, epoch, recommendations)
+    }
+    
+    /**
+     * Ответы для списка пользователей в порядке [userIds] - тот же JSON, что и у
+     * GET /api/recommendations/{userId}, по одному на вызов [emit]. Пользователи идут
+     * группами по [BATCH_CHUNK_SIZE]: закэшированные ответы отдаются как есть, для
+     * остальных рекомендации читаются одним IN-запросом, а данные курсов - одним
+     * запросом по уникальным courseId группы. В памяти одновременно только одна группа.
+     */
+    suspend fun streamRecommendationsJson(userIds: List<Long>, emit: suspend (ByteArray) -> Unit) {
+        val cache = responseCache
+        for (chunk in userIds.chunked(BATCH_CHUNK_SIZE)) {
+            lazyRecalculation?.ensureFresh(chunk, ::recalculateRecommendations)
+            val cached = HashMap<Long, ByteArray>()
+            val epochs = HashMap<Long, Long>()
+            for (userId in chunk) {
+                val bytes = cache?.get(userId)
+                if (bytes != null) {
+                    cached[userId] = bytes
+                } else if (cache != null) {
+                    epochs[userId] = cache.epoch(userId)
+                }
+            }
+            
+            val misses = chunk.filter { it !in cached }.distinct()
+            val stored = RecommendationRepository.getRecommendationsBatch(misses)
+            val courseIds = stored.values.flatMapTo(LinkedHashSet()) { list -> list.map { it.courseId } }
+            val courses = lookupCourses(courseIds.toList())
+            
+            for (userId in chunk) {
+                val bytes = cached[userId] ?: run {
+                    val recommendations = stored[userId] ?: emptyList()
+                    val (response, complete) = enrichResponse(userId, recommendations, courses)
+                    val json = responseJson.encodeToString(RecommendationResponse.serializer(), response).toByteArray()
+                    if (cache != null && complete) {
+                        cache.put(userId, epochs.getValue(userId), json, recommendations.map { it.courseId }.toLongArray())
+                    }
+                    // Повтор userId в запросе не пересобирает ответ
+                    json.also { cached[userId] = it }
+                }
+                emit(bytes)
+            }
         }
     }
     
-    private suspend fun fetchTopRatedCourses(): List<CourseInfo> {
-        return try {
-            httpClient.get("$courseServiceUrl/api/courses/top-rated").body()
-        } catch (e: Exception) {
-            logger.error("Error fetching top rated courses", e)
-            emptyList()
+    /** Сбрасывает закэшированные ответы, в которых есть курс (данные курса изменились) */
+    fun invalidateCourse(courseId: Long) {
+        responseCache?.invalidateCourse(courseId)
+    }
+    
+    fun invalidateAllResponses() {
+        responseCache?.invalidateAll()
+    }
+    
+    /**
+     * После пересчёта пересобирает ответ пользователя, если он уже был в кэше:
+     * активные пользователи не получают промах после каждой новой оценки.
+     */
+    private suspend fun refreshCachedResponse(
+        userId: Long,
+        recommendations: List<CourseRecommendation>,
+        changed: Boolean
+    ) {
+        val cache = responseCache ?: return
+        if (!changed || !cache.contains(userId)) return
+        
+        cache.invalidate(userId)
+        val epoch = cache.epoch(userId)
+        // Тот же порядок и лимит, что и у RecommendationRepository.getRecommendations
+        cacheResponse(cache, userId, epoch, recommendations.sortedByDescending { it.score }.take(10))
+    }
+    
+    private suspend fun cacheResponse(
+        cache: RecommendationResponseCache,
+        userId: Long,
+        epoch: Long,
+        recommendations: List<CourseRecommendation>
+    ): ByteArray {
+        val (response, complete) = buildResponse(userId, recommendations)
+        val bytes = responseJson.encodeToString(RecommendationResponse.serializer(), response).toByteArray()
+        // Ответ без свежих данных курсов (course-service недоступен) не кэшируем
+        if (complete) {
+            cache.put(userId, epoch, bytes, recommendations.map { it.courseId }.toLongArray())
+        }
+        return bytes
+    }
+    
+    /**
+     * Подставляет данные курсов. Второй элемент - получены ли свежие данные курсов.
+     */
+    private suspend fun buildResponse(
+        userId: Long,
+        recommendations: List<CourseRecommendation>
+    ): Pair<RecommendationResponse, Boolean> {
+        if (recommendations.isEmpty()) {
+            return RecommendationResponse(userId, recommendations) to true
+        }
+        return enrichResponse(userId, recommendations, lookupCourses(recommendations.map { it.courseId }))
+    }
+    
+    /** Данные курсов для ответа; complete = false - course-service не ответил, данные запасные */
+    private class CourseLookup(val course: (Long) -> CourseInfo?, val complete: Boolean)
+    
+    /**
+     * Данные курсов по id. Берём из локальной реплики, к course-service идём одним
+     * запросом, только пока она не загружена.
+     */
+    private suspend fun lookupCourses(ids: List<Long>): CourseLookup {
+        val catalog = readyCatalog()
+        if (catalog != null) return CourseLookup(catalog::get, complete = true)
+        if (ids.isEmpty()) return CourseLookup({ null }, complete = true)
+        
+        val result = courseClient.coursesByIds(ids)
+        val coursesMap = result.courses.associateBy { it.id }
+        return CourseLookup(coursesMap::get, complete = result.fresh)
+    }
+    
+    private fun enrichResponse(
+        userId: Long,
+        recommendations: List<CourseRecommendation>,
+        courses: CourseLookup
+    ): Pair<RecommendationResponse, Boolean> {
+        if (recommendations.isEmpty()) {
+            return RecommendationResponse(userId, recommendations) to true
+        }
+        val enrichedRecommendations = recommendations.map { rec ->
+            rec.copy(course = courses.course(rec.courseId))
         }
+        return RecommendationResponse(userId, enrichedRecommendations) to courses.complete
+    }
+    
+    private fun readyCatalog(): CourseCatalog? = courseCatalog?.takeIf { it.isReady }
+    
+    companion object {
+        private const val TOP_RATED_LIMIT = 10
+        
+        // Пользователей на один IN-запрос и один запрос данных курсов в пакетном ответе
+        private const val BATCH_CHUNK_SIZE = 500
     }
 }
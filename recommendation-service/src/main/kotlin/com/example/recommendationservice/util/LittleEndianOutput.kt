@@ -0,0 +1,125 @@
+package com.example.recommendationservice.util
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * Буферизованная запись примитивов в little-endian в файл. Пишет во временный
+ * файл рядом с целевым и атомарно переименовывает его при [commit], чтобы
+ * читатели (в том числе отображающие файл в память) не видели его недописанным.
+ */
+class LittleEndianOutput private constructor(
+    private val target: Path,
+    private val tmp: Path,
+    private val channel: FileChannel
+) : AutoCloseable {
+
+    private val buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+    private var committed = false
+
+    fun putInt(value: Int): LittleEndianOutput {
+        ensure(4)
+        buffer.putInt(value)
+        return this
+    }
+
+    fun putLong(value: Long): LittleEndianOutput {
+        ensure(8)
+        buffer.putLong(value)
+        return this
+    }
+
+    fun putFloat(value: Float): LittleEndianOutput {
+        ensure(4)
+        buffer.putFloat(value)
+        return this
+    }
+
+    // Массивы пишутся кусками через view-буферы того же порядка байт, без поэлементных put
+
+    fun putLongs(values: LongArray, from: Int = 0, to: Int = values.size) {
+        var i = from
+        while (i < to) {
+            ensure(8)
+            val count = minOf(to - i, buffer.remaining() / 8)
+            buffer.asLongBuffer().put(values, i, count)
+            buffer.position(buffer.position() + count * 8)
+            i += count
+        }
+    }
+
+    fun putInts(values: IntArray, from: Int = 0, to: Int = values.size) {
+        var i = from
+        while (i < to) {
+            ensure(4)
+            val count = minOf(to - i, buffer.remaining() / 4)
+            buffer.asIntBuffer().put(values, i, count)
+            buffer.position(buffer.position() + count * 4)
+            i += count
+        }
+    }
+
+    fun putFloats(values: FloatArray, from: Int = 0, to: Int = values.size) {
+        var i = from
+        while (i < to) {
+            ensure(4)
+            val count = minOf(to - i, buffer.remaining() / 4)
+            buffer.asFloatBuffer().put(values, i, count)
+            buffer.position(buffer.position() + count * 4)
+            i += count
+        }
+    }
+
+    fun putBytes(values: ByteArray, from: Int = 0, to: Int = values.size) {
+        var i = from
+        while (i < to) {
+            ensure(1)
+            val count = minOf(to - i, buffer.remaining())
+            buffer.put(values, i, count)
+            i += count
+        }
+    }
+
+    /** Дописывает буфер, сбрасывает на диск и подменяет целевой файл */
+    fun commit() {
+        flush()
+        channel.force(true)
+        channel.close()
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        committed = true
+    }
+
+    override fun close() {
+        if (committed) return
+        channel.close()
+        Files.deleteIfExists(tmp)
+    }
+
+    private fun ensure(bytes: Int) {
+        if (buffer.remaining() < bytes) flush()
+    }
+
+    private fun flush() {
+        buffer.flip()
+        while (buffer.hasRemaining()) channel.write(buffer)
+        buffer.clear()
+    }
+
+    companion object {
+        private const val BUFFER_BYTES = 1 shl 20
+
+        fun create(target: Path): LittleEndianOutput {
+            target.toAbsolutePath().parent?.let { Files.createDirectories(it) }
+            val tmp = target.resolveSibling(target.fileName.toString() + ".tmp")
+            val channel = FileChannel.open(
+                tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+            )
+            return LittleEndianOutput(target, tmp, channel)
+        }
+    }
+}
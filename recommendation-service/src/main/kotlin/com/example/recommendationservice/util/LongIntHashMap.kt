@@ -0,0 +1,138 @@
+package com.example.recommendationservice.util
+
+/**
+ * Хеш-таблица long -> int с открытой адресацией (линейное пробирование).
+ * Не боксит ключи и значения; не потокобезопасна.
+ */
+class LongIntHashMap(expectedSize: Int = 16, private val missingValue: Int = -1) {
+
+    private var keys: LongArray
+    private var values: IntArray
+    private var used: BooleanArray
+    private var mask: Int
+
+    var size: Int = 0
+        private set
+
+    init {
+        val capacity = tableSizeFor(expectedSize)
+        keys = LongArray(capacity)
+        values = IntArray(capacity)
+        used = BooleanArray(capacity)
+        mask = capacity - 1
+    }
+
+    fun get(key: Long): Int {
+        var slot = slotOf(key)
+        while (used[slot]) {
+            if (keys[slot] == key) return values[slot]
+            slot = (slot + 1) and mask
+        }
+        return missingValue
+    }
+
+    fun containsKey(key: Long): Boolean = findSlot(key) >= 0
+
+    fun put(key: Long, value: Int) {
+        var slot = slotOf(key)
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                values[slot] = value
+                return
+            }
+            slot = (slot + 1) and mask
+        }
+        keys[slot] = key
+        values[slot] = value
+        used[slot] = true
+        if (++size > (keys.size shr 1) + (keys.size shr 2)) rehash(keys.size shl 1)
+    }
+
+    /**
+     * Прибавляет [delta] к значению ключа (отсутствующий ключ считается нулём)
+     * и возвращает новое значение.
+     */
+    fun addTo(key: Long, delta: Int): Int {
+        var slot = slotOf(key)
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                values[slot] += delta
+                return values[slot]
+            }
+            slot = (slot + 1) and mask
+        }
+        put(key, delta)
+        return delta
+    }
+
+    fun remove(key: Long): Int {
+        var slot = findSlot(key)
+        if (slot < 0) return missingValue
+        val removed = values[slot]
+        // Сдвигаем хвост кластера, чтобы не оставлять "дыр" в цепочке пробирования
+        var next = (slot + 1) and mask
+        while (used[next]) {
+            val ideal = slotOf(keys[next])
+            val shouldMove = if (slot <= next) ideal <= slot || ideal > next else ideal <= slot && ideal > next
+            if (shouldMove) {
+                keys[slot] = keys[next]
+                values[slot] = values[next]
+                slot = next
+            }
+            next = (next + 1) and mask
+        }
+        used[slot] = false
+        size--
+        return removed
+    }
+
+    inline fun forEach(action: (key: Long, value: Int) -> Unit) {
+        for (i in 0 until capacity()) {
+            if (isUsed(i)) action(keyAt(i), valueAt(i))
+        }
+    }
+
+    fun clear() {
+        used.fill(false)
+        size = 0
+    }
+
+    @PublishedApi internal fun capacity(): Int = keys.size
+    @PublishedApi internal fun isUsed(slot: Int): Boolean = used[slot]
+    @PublishedApi internal fun keyAt(slot: Int): Long = keys[slot]
+    @PublishedApi internal fun valueAt(slot: Int): Int = values[slot]
+
+    private fun findSlot(key: Long): Int {
+        var slot = slotOf(key)
+        while (used[slot]) {
+            if (keys[slot] == key) return slot
+            slot = (slot + 1) and mask
+        }
+        return -1
+    }
+
+    private fun slotOf(key: Long): Int {
+        val h = key * -0x61c8864680b583ebL
+        return (h xor (h ushr 32)).toInt() and mask
+    }
+
+    private fun rehash(newCapacity: Int) {
+        val oldKeys = keys
+        val oldValues = values
+        val oldUsed = used
+        keys = LongArray(newCapacity)
+        values = IntArray(newCapacity)
+        used = BooleanArray(newCapacity)
+        mask = newCapacity - 1
+        size = 0
+        for (i in oldKeys.indices) {
+            if (oldUsed[i]) put(oldKeys[i], oldValues[i])
+        }
+    }
+
+    private fun tableSizeFor(expected: Int): Int {
+        var capacity = 16
+        while (capacity * 3 / 4 < expected) capacity = capacity shl 1
+        return capacity
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.recommendationservice.util
+
+/**
+ * Ограниченный отбор K лучших (int id, double score) без боксинга.
+ * Результат упорядочен по убыванию score, при равенстве - по возрастанию id,
+ * поэтому не зависит от порядка, в котором предлагаются элементы.
+ */
+class TopKSelector(val capacity: Int) {
+
+    private val ids = IntArray(capacity)
+    private val scores = DoubleArray(capacity)
+
+    var size: Int = 0
+        private set
+
+    fun offer(id: Int, score: Double) {
+        if (capacity == 0) return
+        if (size == capacity && !ranksBefore(id, score, size - 1)) return
+        var pos = if (size < capacity) size++ else size - 1
+        while (pos > 0 && ranksBefore(id, score, pos - 1)) {
+            ids[pos] = ids[pos - 1]
+            scores[pos] = scores[pos - 1]
+            pos--
+        }
+        ids[pos] = id
+        scores[pos] = score
+    }
+
+    private fun ranksBefore(id: Int, score: Double, rank: Int): Boolean =
+        score > scores[rank] || (score == scores[rank] && id < ids[rank])
+
+    fun idAt(rank: Int): Int = ids[rank]
+
+    fun scoreAt(rank: Int): Double = scores[rank]
+
+    fun clear() {
+        size = 0
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.recommendationservice.kafka
+
+import com.example.recommendationservice.entity.Recommendations
+import com.example.recommendationservice.entity.UserRatingDeletions
+import com.example.recommendationservice.entity.UserRatings
+import com.example.recommendationservice.model.RatingMatrix
+import com.example.recommendationservice.repository.DatabaseAccess
+import com.example.recommendationservice.repository.RecommendationRepository
+import com.example.recommendationservice.service.CourseServiceClient
+import com.example.recommendationservice.service.LazyRecalculation
+import com.example.recommendationservice.service.RecalculationScheduler
+import com.example.recommendationservice.service.RecommendationService
+import com.zaxxer.hikari.HikariConfig
+import com.zaxxer.hikari.HikariDataSource
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres
+import kotlinx.coroutines.runBlocking
+import org.apache.kafka.clients.consumer.ConsumerRecord
+import org.jetbrains.exposed.sql.SchemaUtils
+import org.jetbrains.exposed.sql.deleteAll
+import org.jetbrains.exposed.sql.transactions.transaction
+import org.junit.AfterClass
+import org.junit.BeforeClass
+import java.time.LocalDateTime
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+/**
+ * Обработка пакетов событий оценок на настоящем PostgreSQL: проверка оценок до записи
+ * в БД и пропуск возвращённых из DLQ событий, перекрытых более новыми.
+ */
+class RatingEventProcessorTest {
+
+    @Test
+    fun `batch with an out-of-range rating applies the valid events only`() {
+        listOf(true, false).forEach { batchMode ->
+            transaction { UserRatings.deleteAll() }
+            val matrix = RatingMatrix()
+            val processor = RatingEventProcessor(matrix, scheduler(matrix), batchMode)
+
+            processor.process(
+                listOf(
+                    record(0, event("CREATED", userId = 1, courseId = 10, rating = 4)),
+                    record(1, event("CREATED", userId = 1, courseId = 11, rating = 9)),
+                    record(2, event("UPDATED", userId = 2, courseId = 10, rating = 0)),
+                    record(3, event("CREATED", userId = 2, courseId = 12, rating = 200)),
+                    // У удаления оценки нет - оно не проверяется
+                    record(4, event("DELETED", userId = 3, courseId = 10, rating = 0))
+                )
+            )
+
+            val stored = ArrayList<Triple<Long, Long, Int>>()
+            runBlocking { RecommendationRepository.forEachUserRating { u, c, r -> stored.add(Triple(u, c, r)) } }
+            assertEquals(listOf(Triple(1L, 10L, 4)), stored, "batchMode=$batchMode")
+            assertEquals(1, matrix.ratingCount, "batchMode=$batchMode")
+        }
+    }
+
+    @Test
+    fun `redriven events older than the pair's last change are skipped`() {
+        listOf(true, false).forEach { batchMode ->
+            transaction {
+                UserRatings.deleteAll()
+                UserRatingDeletions.deleteAll()
+            }
+            val matrix = RatingMatrix()
+            val processor = RatingEventProcessor(matrix, scheduler(matrix), batchMode)
+            processor.process(
+                listOf(
+                    record(0, event("CREATED", userId = 1, courseId = 10, rating = 5, timestamp = LATER)),
+                    record(1, event("CREATED", userId = 1, courseId = 11, rating = 5, timestamp = LATER)),
+                    record(2, event("DELETED", userId = 1, courseId = 11, rating = 0, timestamp = LATER))
+                )
+            )
+
+            processor.process(
+                listOf(
+                    redriven(3, event("UPDATED", userId = 1, courseId = 10, rating = 2)),
+                    redriven(4, event("CREATED", userId = 1, courseId = 11, rating = 3)),
+                    redriven(5, event("CREATED", userId = 1, courseId = 12, rating = 4))
+                )
+            )
+
+            val stored = ArrayList<Triple<Long, Long, Int>>()
+            runBlocking { RecommendationRepository.forEachUserRating { u, c, r -> stored.add(Triple(u, c, r)) } }
+            assertEquals(listOf(Triple(1L, 10L, 5), Triple(1L, 12L, 4)), stored.sortedBy { it.second }, "batchMode=$batchMode")
+            assertEquals(2, matrix.ratingCount, "batchMode=$batchMode")
+        }
+
+        // Отметки удалений старше срока хранения удаляются
+        val pruned = runBlocking { RecommendationRepository.pruneRatingDeletions(LocalDateTime.parse(LATER).plusDays(1)) }
+        assertEquals(1, pruned)
+    }
+
+    private fun scheduler(matrix: RatingMatrix): RecalculationScheduler {
+        val service = RecommendationService(CourseServiceClient(UNREACHABLE_COURSE_SERVICE), matrix)
+        // Ленивый режим: schedule только помечает пользователя, пересчёты в тесте не запускаются
+        return RecalculationScheduler(service, workers = 1, debounceMillis = 0, LazyRecalculation(60_000, 1, 60_000))
+    }
+
+    private fun record(offset: Long, value: String) = ConsumerRecord(TOPIC, 0, offset, "key", value)
+
+    private fun redriven(offset: Long, value: String) = record(offset, value).also {
+        it.headers().add(FailedEventRouter.REDRIVEN_HEADER, offset.toString().toByteArray())
+    }
+
+    private fun event(type: String, userId: Long, courseId: Long, rating: Int, timestamp: String = EARLIER) =
+        """{"eventType":"$type","ratingId":$courseId,"userId":$userId,"courseId":$courseId,"rating":$rating,""" +
+            """"timestamp":"$timestamp"}"""
+
+    companion object {
+        private const val TOPIC = "ratings"
+        private const val UNREACHABLE_COURSE_SERVICE = "http://127.0.0.1:9"
+        private const val EARLIER = "2026-01-01T00:00:00"
+        private const val LATER = "2026-01-02T00:00:00"
+
+        private lateinit var postgres: EmbeddedPostgres
+        private lateinit var dataSource: HikariDataSource
+
+        @BeforeClass
+        @JvmStatic
+        fun startDatabase() {
+            postgres = EmbeddedPostgres.start()
+            dataSource = HikariDataSource(HikariConfig().apply {
+                jdbcUrl = postgres.getJdbcUrl("postgres", "postgres")
+                maximumPoolSize = 2
+                isAutoCommit = false
+            })
+            DatabaseAccess.connect(dataSource)
+            transaction { SchemaUtils.create(UserRatings, UserRatingDeletions, Recommendations) }
+        }
+
+        @AfterClass
+        @JvmStatic
+        fun stopDatabase() {
+            dataSource.close()
+            postgres.close()
+        }
+    }
+}
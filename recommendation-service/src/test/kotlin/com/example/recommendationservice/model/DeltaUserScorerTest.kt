@@ -0,0 +1,115 @@
+package com.example.recommendationservice.model
+
+import java.util.SplittableRandom
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
+
+/**
+ * Сверяет инкрементальное состояние [DeltaUserScorer] с полным пересчётом: после каждой
+ * случайной записи или удаления рекомендации отслеживаемых пользователей должны совпадать
+ * с рекомендациями нового скорера, который строит состояние с нуля по той же матрице.
+ */
+class DeltaUserScorerTest {
+
+    private class Fixture(maxTrackedUsers: Int, maxOverlapEntries: Long) {
+        val matrix = RatingMatrix()
+        val scorer = DeltaUserScorer(matrix, NEIGHBOURS, maxTrackedUsers, maxOverlapEntries)
+        val notified = HashSet<Long>()
+
+        init {
+            matrix.addWriteListener(scorer)
+            matrix.addListener(scorer)
+            scorer.changeListener = { notified.add(it) }
+        }
+
+        fun recommend(userId: Long): List<Pair<Long, Double>> = recommend(scorer, userId)
+
+        /** Полный пересчёт: новый скорер строит состояние пользователя с нуля */
+        fun rebuilt(userId: Long): List<Pair<Long, Double>> =
+            recommend(DeltaUserScorer(matrix, NEIGHBOURS, Int.MAX_VALUE, Long.MAX_VALUE), userId)
+
+        private fun recommend(scorer: DeltaUserScorer, userId: Long): List<Pair<Long, Double>> =
+            matrix.read {
+                val user = matrix.userIndexOf(userId)
+                if (user < 0) emptyList() else scorer.recommend(user, LIMIT, ::isRecommendable)
+            }
+    }
+
+    @Test
+    fun `incremental state matches full rebuild on random put and remove sequences`() {
+        repeat(SEEDS) { seed ->
+            val random = SplittableRandom(seed.toLong())
+            val fixture = Fixture(Int.MAX_VALUE, Long.MAX_VALUE)
+            fill(fixture.matrix, random)
+
+            val tracked = (1L..TRACKED_USERS).toList()
+            // Отслеживаются только пользователи, уже попавшие в матрицу
+            tracked.forEach { fixture.matrix.put(it, 1L + random.nextInt(COURSES), 1 + random.nextInt(5)) }
+            val served = tracked.associateWithTo(HashMap()) { fixture.recommend(it) }
+
+            repeat(EVENTS) { event ->
+                fixture.notified.clear()
+                randomEvent(fixture.matrix, random)
+
+                tracked.forEach { userId ->
+                    val expected = fixture.rebuilt(userId)
+                    // Уведомление приходит ровно тогда, когда изменился отданный топ
+                    if (userId in fixture.notified) {
+                        assertNotEquals(served[userId]!!.map { it.first }, expected.map { it.first },
+                            "seed=$seed event=$event user=$userId: notified without a top change")
+                        served[userId] = fixture.recommend(userId)
+                    }
+                    assertEquals(served[userId]!!.map { it.first }, expected.map { it.first },
+                        "seed=$seed event=$event user=$userId: top changed without a notification")
+                }
+                // Запрос отслеживаемого пользователя не перестраивает состояние - сверяем и скоры
+                val userId = tracked[random.nextInt(tracked.size)]
+                assertEquals(fixture.rebuilt(userId), fixture.recommend(userId).also { served[userId] = it },
+                    "seed=$seed event=$event user=$userId")
+            }
+            assertEquals(0, fixture.scorer.verify(TRACKED_USERS.toInt(), 0.0).driftedUsers, "seed=$seed")
+        }
+    }
+
+    @Test
+    fun `evicted and re-requested users match full rebuild`() {
+        repeat(SEEDS) { seed ->
+            val random = SplittableRandom(seed.toLong() + SEEDS)
+            // Лимиты меньше числа запрашиваемых пользователей: вытеснение идёт всё время
+            val fixture = Fixture(maxTrackedUsers = 6, maxOverlapEntries = 120)
+            fill(fixture.matrix, random)
+
+            repeat(EVENTS) { event ->
+                randomEvent(fixture.matrix, random)
+                val userId = 1L + random.nextInt(USERS)
+                assertEquals(fixture.rebuilt(userId), fixture.recommend(userId), "seed=$seed event=$event user=$userId")
+            }
+        }
+    }
+
+    private fun fill(matrix: RatingMatrix, random: SplittableRandom) {
+        repeat(USERS * 6) { matrix.put(1L + random.nextInt(USERS), 1L + random.nextInt(COURSES), 1 + random.nextInt(5)) }
+    }
+
+    /** Новая оценка, смена оценки (UPDATED) или удаление - примерно поровну */
+    private fun randomEvent(matrix: RatingMatrix, random: SplittableRandom) {
+        val userId = 1L + random.nextInt(USERS)
+        val courseId = 1L + random.nextInt(COURSES)
+        if (random.nextInt(3) == 0) matrix.remove(userId, courseId) else matrix.put(userId, courseId, 1 + random.nextInt(5))
+    }
+
+    companion object {
+        private const val USERS = 40
+        private const val COURSES = 30
+        private const val TRACKED_USERS = 12L
+        private const val SEEDS = 20
+        private const val EVENTS = 300
+
+        // Отдаётся больше курсов, чем соседей, и часть курсов отфильтрована - как в сервисе с каталогом
+        private const val NEIGHBOURS = 5
+        private const val LIMIT = 8
+
+        private fun isRecommendable(courseId: Long): Boolean = courseId % 7 != 0L
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.recommendationservice.model
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class RatingMatrixTest {
+
+    @Test
+    fun `listeners are notified only when the stored rating changes`() {
+        val matrix = RatingMatrix()
+        val changes = ArrayList<String>()
+        val writes = ArrayList<String>()
+        matrix.addListener { userId, courseId, previous, current -> changes.add("$userId:$courseId:$previous->$current") }
+        matrix.addWriteListener { _, _, previous, current -> writes.add("$previous->$current") }
+
+        assertEquals(0, matrix.put(1, 10, 4))
+        // Повтор того же события и удаление отсутствующей оценки ничего не меняют
+        assertEquals(4, matrix.put(1, 10, 4))
+        assertEquals(0, matrix.remove(1, 11))
+        assertEquals(4, matrix.put(1, 10, 2))
+        assertEquals(2, matrix.remove(1, 10))
+        assertEquals(0, matrix.remove(1, 10))
+
+        assertEquals(listOf("1:10:0->4", "1:10:4->2", "1:10:2->0"), changes)
+        assertEquals(listOf("0->4", "4->2", "2->0"), writes)
+        assertEquals(0, matrix.ratingCount)
+        matrix.read { assertEquals(0L, matrix.columnSum(matrix.courseIndexOf(10))) }
+    }
+}